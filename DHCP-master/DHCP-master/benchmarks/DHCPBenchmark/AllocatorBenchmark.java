@@ -0,0 +1,60 @@
+package DHCPBenchmark;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import DHCPServer.FreeAddressSet;
+
+/**
+ * Cost of taking a free address and releasing it again, from an empty pool up to 99.9% in use
+ * The addresses in use are scattered over the pool at random, so the free ones are too
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AllocatorBenchmark
+{
+	@Param({"65536", "10000000"})
+	public int poolSize;
+
+	@Param({"0", "50", "90", "99", "99.9"})
+	public double utilization;
+
+	@Param({"LOWEST", "ROUND_ROBIN", "RANDOM"})
+	public FreeAddressSet.Order order;
+
+	private FreeAddressSet free;
+
+	@Setup
+	public void setup()
+	{
+		free = new FreeAddressSet(poolSize, order);
+		SplittableRandom random = new SplittableRandom(42);
+		int inUse = (int)(poolSize * utilization / 100);
+		while(free.size() - free.count() < inUse)
+			free.take(random.nextInt(poolSize));
+	}
+
+	@Benchmark
+	public int takeRelease()
+	{
+		int index = free.take();
+		free.release(index);
+		return index;
+	}
+}
@@ -0,0 +1,23 @@
+package DHCPBenchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar: runs the JMH benchmarks selected on the command line, always with the GC profiler,
+ * so every result comes with its allocation rate (gc.alloc.rate.norm is bytes per operation)
+ *
+ * java -jar benchmarks.jar [JMH options, e.g. IPStorageBenchmark -p poolSize=5,1000]
+ */
+public class BenchmarkRunner
+{
+	public static void main(String[] args) throws Exception
+	{
+		new Runner(new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build()).run();
+	}
+}
@@ -0,0 +1,90 @@
+package DHCPBenchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import DHCPHelper.DHCPMessage;
+import DHCPHelper.DHCPMessageView;
+import DHCPHelper.DHCPoption;
+
+/**
+ * Cost of the message codec: parsing a DHCPMessage, serializing it with retrieveBytes,
+ * encoding its options one by one, and wrapping the allocation free DHCPMessageView
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark
+{
+	private byte[] discover;
+	private DHCPMessage message;
+	private ByteBuffer buffer;
+	private ByteBuffer wrapped;
+	private DHCPMessageView view;
+
+	@Setup
+	public void setup()
+	{
+		discover = TemplateBenchmark.discover();
+		message = new DHCPMessage(discover);
+		buffer = ByteBuffer.allocate(DHCPMessage.MAXLENGTH);
+		wrapped = ByteBuffer.wrap(discover);
+		view = new DHCPMessageView();
+	}
+
+	@Benchmark
+	public DHCPMessage parse()
+	{
+		return new DHCPMessage(discover);
+	}
+
+	@Benchmark
+	public byte[] retrieveBytes()
+	{
+		return message.retrieveBytes();
+	}
+
+	@Benchmark
+	public int writeTo()
+	{
+		buffer.clear();
+		return message.writeTo(buffer);
+	}
+
+	@Benchmark
+	public void optionGetBytes(Blackhole blackhole)
+	{
+		for(DHCPoption option : message.options)
+			blackhole.consume(option.getBytes());
+	}
+
+	@Benchmark
+	public int optionWriteTo()
+	{
+		buffer.clear();
+		for(DHCPoption option : message.options)
+			option.writeTo(buffer);
+		return buffer.position();
+	}
+
+	@Benchmark
+	public byte viewType()
+	{
+		return view.wrap(wrapped, discover.length).getType();
+	}
+}
@@ -0,0 +1,137 @@
+package DHCPBenchmark;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import DHCPHelper.DHCPMessage;
+import DHCPHelper.DHCPMessageView;
+import DHCPHelper.LoopbackTransport;
+import DHCPHelper.Utility;
+import DHCPServer.DHCPServer;
+import DHCPServer.ServerConfig;
+
+/**
+ * Full DHCPDiscover -> DHCPOffer -> DHCPRequest -> DHCPAck (-> DHCPRelease) exchanges per second
+ * against an in-process server over a LoopbackTransport, so without sockets or the kernel:
+ * what is measured is the server's own pipeline and lease bookkeeping
+ *
+ * java [-Ddhcp.mode=serial|staged|pool] -cp <classes> DHCPBenchmark.DoraBenchmark [clients] [seconds]
+ */
+public class DoraBenchmark
+{
+	private static final String SERVERIP = "127.0.0.1";
+
+	/**
+	 * Offset of the data of option 50 (requested IP) in the request built by request()
+	 */
+	private static final int REQUESTEDIP = DHCPMessageView.OPTIONS + 3 + 6 + 2;
+
+	public static void main(String[] args) throws Exception
+	{
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		LoopbackTransport.Network network = new LoopbackTransport.Network(1024);
+		ServerConfig config = new ServerConfig();
+		DHCPServer server = new DHCPServer(SERVERIP, config, network.open(new InetSocketAddress(InetAddress.getByName(SERVERIP), 1234)));
+		Thread serverThread = new Thread(server::run, "dhcp-server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		for(int round = 0; round < 3; round++)
+		{
+			AtomicLong exchanges = new AtomicLong();
+			AtomicLong nanos = new AtomicLong();
+			long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+			Thread[] threads = new Thread[clients];
+			for(int c = 0; c < clients; c++)
+			{
+				int client = c;
+				threads[c] = new Thread(() -> client(network, client, deadline, exchanges, nanos));
+				threads[c].start();
+			}
+			for(Thread thread : threads)
+				thread.join();
+			long count = Math.max(1, exchanges.get());
+			System.out.printf("mode %s, clients %d: %.0f DORA/s, %.0f ns per lease%n",
+					config.mode, clients, count / (double)seconds, nanos.get() / (double)count);
+		}
+		server.close();
+	}
+
+	/**
+	 * Lease, and release again, an address until the deadline
+	 */
+	private static void client(LoopbackTransport.Network network, int client, long deadline, AtomicLong exchanges, AtomicLong nanos)
+	{
+		try(LoopbackTransport transport = network.open())
+		{
+			SocketAddress server = new InetSocketAddress(InetAddress.getByName(SERVERIP), 1234);
+			// 4 hardware addresses over all clients, the default pool holds 5 addresses
+			byte[] discover = TemplateBenchmark.discover();
+			byte[] request = request();
+			byte[] release = release();
+			for(byte[] message : new byte[][]{discover, request, release})
+			{
+				ByteBuffer.wrap(message).put(DHCPMessageView.CLIENTHARDWAREADDRESS + 5, (byte)(client & 3));
+				ByteBuffer.wrap(message).putInt(DHCPMessageView.TRANSACTIONID, client);
+			}
+			ByteBuffer reply = ByteBuffer.allocate(DHCPMessage.MAXLENGTH);
+			ByteBuffer requestBuffer = ByteBuffer.wrap(request);
+			long done = 0;
+			long start = System.nanoTime();
+			long now = start;
+			while(now < deadline)
+			{
+				transport.send(ByteBuffer.wrap(discover), server);
+				reply.clear();
+				transport.receive(reply);
+				int offered = reply.getInt(DHCPMessageView.YOURIP);
+				if(reply.get(DHCPMessageView.OPTIONS + 2) == DHCPMessage.DHCPOFFER)
+				{
+					requestBuffer.putInt(REQUESTEDIP, offered);
+					transport.send(requestBuffer.clear(), server);
+					reply.clear();
+					transport.receive(reply);
+					transport.send(ByteBuffer.wrap(release), server);
+					done++;
+				}
+				now = System.nanoTime();
+			}
+			exchanges.addAndGet(done);
+			nanos.addAndGet(now - start);
+		}
+		catch(Exception e)
+		{e.printStackTrace();}
+	}
+
+	/**
+	 * @return a DHCPRequest for the server, the requested IP (option 50) to be filled in
+	 */
+	private static byte[] request() throws Exception
+	{
+		DHCPMessage message = new DHCPMessage(TemplateBenchmark.discover());
+		message.serverIP = InetAddress.getByName(SERVERIP).getAddress();
+		message.resetoptions();
+		message.addOption((byte)53, (byte)1, new byte[]{DHCPMessage.DHCPREQUEST});
+		message.addOption((byte)51, (byte)4, Utility.toByteArray(60));
+		message.addOption((byte)50, (byte)4, new byte[4]);
+		message.addOption((byte)255, (byte)0, Utility.toBytes(new int[]{0}));
+		return message.retrieveBytes();
+	}
+
+	/**
+	 * @return a DHCPRelease for the server
+	 */
+	private static byte[] release()
+	{
+		DHCPMessage message = new DHCPMessage(TemplateBenchmark.discover());
+		message.resetoptions();
+		message.addOption((byte)53, (byte)1, new byte[]{DHCPMessage.DHCPRELEASE});
+		message.addOption((byte)255, (byte)0, Utility.toBytes(new int[]{0}));
+		return message.retrieveBytes();
+	}
+}
@@ -0,0 +1,120 @@
+package DHCPBenchmark;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import DHCPHelper.DHCPMessage;
+import DHCPHelper.DHCPMessageView;
+import DHCPServer.DHCPServer;
+import DHCPServer.ServerConfig;
+
+/**
+ * Loopback load test of one execution mode of the DHCPServer
+ * The server runs in this JVM; every DHCPDiscover handler blocks for a while first, standing in for
+ * a slow log, a lease store fsync or a DNS update. An open-loop client sends DHCPDiscovers at each
+ * of the given rates and measures the offers that come back.
+ *
+ * java -cp <classes> DHCPBenchmark.ExecutionModeBenchmark <serial|pool|virtual|...> [blocking micros] [seconds] [rate ...]
+ * The server can only be started once per JVM, so run it once per mode to compare them
+ */
+public class ExecutionModeBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		ServerConfig config = new ServerConfig();
+		config.mode = ServerConfig.Mode.valueOf(args.length > 0 ? args[0].toUpperCase() : "SERIAL");
+		long blockingMicros = args.length > 1 ? Long.parseLong(args[1]) : 200;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+		int[] rates = args.length > 3 
+				? Arrays.stream(args, 3, args.length).mapToInt(Integer::parseInt).toArray() 
+				: new int[]{1_000, 10_000, 50_000, 100_000};
+
+		DHCPServer server = new DHCPServer("127.0.0.1", config);
+		server.setHandler(DHCPMessage.DHCPDISCOVER, context -> {
+			LockSupport.parkNanos(blockingMicros * 1000);
+			server.DHCPOffer(context);
+		});
+		Thread serverThread = new Thread(server::run, "dhcp-server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		Thread.sleep(500);
+
+		System.out.printf("mode %s, handler blocks %d us%n", config.mode, blockingMicros);
+		for(int rate : rates)
+			run(server.portServer, rate, seconds);
+		System.out.print(server.getStatistics());
+		server.close();
+	}
+
+	/**
+	 * Send DHCPDiscovers at the given rate for the given time and report how many offers came back and how fast
+	 */
+	private static void run(int port, int rate, int seconds) throws Exception
+	{
+		int total = rate * seconds;
+		long[] sent = new long[total];
+		long[] latency = new long[total];
+		int[] received = new int[1];
+		InetSocketAddress serverAddress = new InetSocketAddress("127.0.0.1", port);
+		DatagramChannel channel = DatagramChannel.open();
+		channel.bind(null);
+
+		Thread receiver = new Thread(() -> {
+			ByteBuffer reply = ByteBuffer.allocate(DHCPMessage.MAXLENGTH);
+			try
+			{
+				while(true)
+				{
+					reply.clear();
+					channel.receive(reply);
+					long now = System.nanoTime();
+					int sequence = reply.getInt(DHCPMessageView.TRANSACTIONID);
+					if(sequence >= 0 && sequence < total && sent[sequence] != 0)
+						latency[received[0]++] = now - sent[sequence];
+				}
+			}
+			catch(Exception e)
+			{
+				// channel closed at the end of the run
+			}
+		});
+		receiver.start();
+
+		byte[] discover = TemplateBenchmark.discover();
+		ByteBuffer request = ByteBuffer.wrap(discover);
+		long interval = 1_000_000_000L / rate;
+		long start = System.nanoTime();
+		for(int i = 0; i < total; i++)
+		{
+			long due = start + i * interval;
+			while(System.nanoTime() < due)
+				Thread.onSpinWait();
+			// 4 clients, the pool holds 5 addresses
+			request.putInt(DHCPMessageView.TRANSACTIONID, i);
+			request.put(DHCPMessageView.CLIENTHARDWAREADDRESS + 5, (byte)(i & 3));
+			request.clear();
+			sent[i] = System.nanoTime();
+			channel.send(request, serverAddress);
+		}
+		long elapsed = System.nanoTime() - start;
+		Thread.sleep(1000);
+		channel.close();
+		receiver.join();
+
+		int count = received[0];
+		long[] sorted = Arrays.copyOf(latency, count);
+		Arrays.sort(sorted);
+		System.out.printf("rate %7d/s  sent %8d  offers %8d (%5.1f%%)  achieved %9.0f/s  p50 %8.1f us  p99 %9.1f us%n",
+				rate, total, count, 100.0 * count / total, count * 1e9 / elapsed,
+				percentile(sorted, 0.50) / 1e3, percentile(sorted, 0.99) / 1e3);
+	}
+
+	private static double percentile(long[] sorted, double p)
+	{
+		if(sorted.length == 0) return Double.NaN;
+		return sorted[(int)Math.min(sorted.length - 1, p * sorted.length)];
+	}
+}
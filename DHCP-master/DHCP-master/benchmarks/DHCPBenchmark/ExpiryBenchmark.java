@@ -0,0 +1,76 @@
+package DHCPBenchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import DHCPServer.TimingWheel;
+
+/**
+ * Precision and cost of lease expiry on a TimingWheel, driven the way the server drives it:
+ * a dedicated scheduler thread advances the wheel every tick
+ * The given number of leases get a deadline spread evenly over the given number of seconds;
+ * when all have expired, the lateness of the expiries and the CPU time of the scheduler thread are printed
+ *
+ * java -Xmx3g -cp <classes> DHCPBenchmark.ExpiryBenchmark [leases] [seconds] [tick ms]
+ */
+public class ExpiryBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		int leases = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int tick = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+		TimingWheel wheel = new TimingWheel(leases, tick * 1_000_000L);
+		long[] deadlines = new long[leases];
+		SplittableRandom random = new SplittableRandom(42);
+		long scheduling = System.nanoTime();
+		long start = scheduling + 1_000_000_000L;
+		for(int i = 0; i < leases; i++)
+		{
+			deadlines[i] = start + random.nextLong(seconds * 1_000_000_000L);
+			wheel.schedule(i, deadlines[i]);
+		}
+		System.out.printf("%d leases scheduled in %d ms%n", leases, (System.nanoTime() - scheduling) / 1_000_000);
+
+		// lateness histogram in ms, the last bucket collects everything later
+		long[] late = new long[1001];
+		long[] total = new long[3];
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		CountDownLatch done = new CountDownLatch(1);
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		scheduler.scheduleAtFixedRate(() -> {
+			long cpu = threads.getCurrentThreadCpuTime();
+			long now = System.nanoTime();
+			total[0] += wheel.advance(now, index -> {
+				long lateness = now - deadlines[index];
+				late[(int)Math.min(late.length - 1, Math.max(0, lateness / 1_000_000))]++;
+				total[1] += Math.max(0, lateness);
+			});
+			total[2] += threads.getCurrentThreadCpuTime() - cpu;
+			if(wheel.size() == 0)
+				done.countDown();
+		}, tick, tick, TimeUnit.MILLISECONDS);
+		done.await();
+		scheduler.shutdown();
+
+		long expired = total[0];
+		long p50 = -1, p99 = -1, max = 0, seen = 0;
+		for(int ms = 0; ms < late.length; ms++)
+		{
+			seen += late[ms];
+			if(late[ms] > 0) max = ms;
+			if(p50 < 0 && seen * 2 >= expired) p50 = ms;
+			if(p99 < 0 && seen * 100 >= expired * 99) p99 = ms;
+		}
+		System.out.printf("tick %d ms: %d expired, lateness mean %.1f ms, p50 %d ms, p99 %d ms, max %d%s ms%n", 
+				tick, expired, total[1] / 1e6 / expired, p50, p99, max, max == late.length - 1 ? "+" : "");
+		System.out.printf("scheduler CPU %d ms in total, %.0f ns per expired lease, %.2f%% of one core%n", 
+				total[2] / 1_000_000, (double)total[2] / expired, 100.0 * total[2] / (seconds * 1e9));
+	}
+}
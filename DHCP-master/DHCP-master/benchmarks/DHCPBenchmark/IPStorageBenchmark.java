@@ -0,0 +1,87 @@
+package DHCPBenchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import DHCPServer.IPStorage;
+
+/**
+ * Cost of the lease engine per operation for pools from today's 5 addresses up to 10 million,
+ * almost empty (a few long leases) or with the given percentage of its addresses allocated
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+public class IPStorageBenchmark
+{
+	@Param({"5", "1000", "100000", "10000000"})
+	public int poolSize;
+
+	@Param({"0", "99"})
+	public int utilization;
+
+	private IPStorage pool;
+	private byte[] mac;
+	private byte[] unknown;
+
+	@Setup
+	public void setup()
+	{
+		pool = new IPStorage(poolSize);
+		int leased = Math.min(poolSize - 1, Math.max(4, (int)((long)poolSize * utilization / 100)));
+		for(int i = 0; i < leased; i++)
+		{
+			byte[] client = mac(0x10 + i);
+			pool.reserveAddress(client, Integer.MAX_VALUE);
+			pool.allocateAddress(client);
+		}
+		mac = mac(1);
+		unknown = mac(2);
+	}
+
+	private static byte[] mac(int client)
+	{
+		return new byte[]{0, 0x1b, (byte)(client >>> 24), (byte)(client >>> 16), (byte)(client >>> 8), (byte)client, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+	}
+
+	@Benchmark
+	public byte[] lookUpMiss()
+	{
+		return pool.lookUp(unknown);
+	}
+
+	@Benchmark
+	public boolean reserveRelease()
+	{
+		pool.reserveAddress(mac, 60);
+		return pool.release(mac);
+	}
+
+	@Benchmark
+	public boolean reserveAllocateRelease()
+	{
+		pool.reserveAddress(mac, 60);
+		pool.allocateAddress(mac);
+		return pool.release(mac);
+	}
+
+	@Benchmark
+	public void update()
+	{
+		pool.update();
+	}
+}
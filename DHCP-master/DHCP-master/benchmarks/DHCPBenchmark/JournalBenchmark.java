@@ -0,0 +1,121 @@
+package DHCPBenchmark;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+import DHCPServer.IPStorage;
+import DHCPServer.LeaseJournal;
+
+/**
+ * Group commit of the LeaseJournal: every thread is a client waiting for its DHCPAck, it allocates an address,
+ * waits until the allocation is durable and releases it again, so at most one record per thread is in flight
+ * Printed per durability window: allocations per second, records per fsync and the time an allocation waited
+ * Then the time a restarted pool takes to replay the journal, also after a record torn by a crash
+ * (without a snapshot, see RecoveryBenchmark for that)
+ *
+ * java -cp <classes> DHCPBenchmark.JournalBenchmark [journal] [threads] [seconds per window]
+ */
+public class JournalBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		Path file = Paths.get(args.length > 0 ? args[0] : "leases.journal");
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+		for(int window : new int[]{0, 200, 1000, 5000})
+		{
+			delete(file);
+			LeaseJournal journal = new LeaseJournal(file, window, LeaseJournal.DEFAULTBATCH);
+			IPStorage pool = IPStorage.builder().size(65536).offerTimeout(0).build();
+			pool.setJournal(journal);
+			AtomicLong allocations = new AtomicLong(), waited = new AtomicLong();
+			long end = System.nanoTime() + seconds * 1_000_000_000L;
+			Thread[] clients = new Thread[threads];
+			for(int t = 0; t < threads; t++)
+			{
+				long high = t;
+				clients[t] = new Thread(() -> {
+					long count = 0, nanos = 0;
+					long[] sequence = new long[1];
+					try
+					{
+						for(long client = 0; System.nanoTime() < end; client++)
+						{
+							pool.reserveAddress(high, client, 3600);
+							pool.allocateAddress(high, client, sequence);
+							long start = System.nanoTime();
+							journal.awaitDurable(sequence[0]);
+							nanos += System.nanoTime() - start;
+							pool.release(high, client);
+							count++;
+						}
+					}
+					catch(Exception e)
+					{e.printStackTrace();}
+					allocations.addAndGet(count);
+					waited.addAndGet(nanos);
+				});
+				clients[t].start();
+			}
+			for(Thread client : clients)
+				client.join();
+			long batches = journal.getBatches();
+			journal.close();
+			long count = Math.max(1, allocations.get());
+			System.out.printf("window %5d us, %d threads: %.0f durable allocations/s, %.1f records per fsync, %.0f us waited%n",
+					window, threads, count / (double)seconds, journal.getDurable() / (double)Math.max(1, batches), waited.get() / 1e3 / count);
+		}
+
+		// a journal of leases only, replayed by a restarted pool
+		delete(file);
+		int leased = 1_000_000;
+		LeaseJournal journal = new LeaseJournal(file, LeaseJournal.DEFAULTWINDOW, LeaseJournal.DEFAULTBATCH);
+		IPStorage pool = new IPStorage(2 * leased);
+		pool.setJournal(journal);
+		for(long client = 0; client < leased; client++)
+		{
+			pool.reserveAddress(client, 0, 3600);
+			pool.allocateAddress(client, 0);
+		}
+		journal.close();
+		Path segment = Paths.get(file + ".0");
+		for(int round = 0; round < 3; round++)
+		{
+			if(round == 2)
+			{
+				// a crash halfway the last write
+				try(FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND))
+				{channel.write(ByteBuffer.wrap(new byte[LeaseJournal.RECORD / 2]));}
+			}
+			long start = System.nanoTime();
+			journal = new LeaseJournal(file, LeaseJournal.DEFAULTWINDOW, LeaseJournal.DEFAULTBATCH);
+			pool = new IPStorage(2 * leased);
+			int leases = pool.setJournal(journal);
+			long nanos = System.nanoTime() - start;
+			boolean found = pool.lookUp(0, 0) != 0 && pool.lookUp(leased - 1, 0) != 0;
+			System.out.printf("replay of %d leases%s: %.1f ms, %d free, leases %s, journal of %d bytes%n", leases,
+					round == 2 ? " and a torn record" : "", nanos / 1e6, pool.getFreeAddresses(), found ? "found" : "LOST", Files.size(segment));
+			journal.close();
+		}
+		delete(file);
+	}
+
+	/**
+	 * Delete the segments and snapshot of the given journal
+	 */
+	static void delete(Path file) throws Exception
+	{
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(file.toAbsolutePath().getParent(), file.getFileName() + ".*"))
+		{
+			for(Path segment : files)
+				Files.delete(segment);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+package DHCPBenchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import DHCPServer.IPStorage;
+import DHCPServer.MappedLeaseTable;
+
+/**
+ * An IPStorage with its leases in a memory-mapped lease file:
+ * the cost of leasing under every sync policy, then the time a restarted pool takes to map the file and take its leases up again
+ *
+ * java -cp <classes> DHCPBenchmark.LeaseFileBenchmark [lease file] [pool size] [leased] [seconds per policy]
+ */
+public class LeaseFileBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		Path file = Paths.get(args.length > 0 ? args[0] : "leases.bin");
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 4_194_304;
+		int leased = args.length > 2 ? Integer.parseInt(args[2]) : 2_000_000;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+
+		for(MappedLeaseTable.Sync sync : MappedLeaseTable.Sync.values())
+		{
+			Files.deleteIfExists(file);
+			IPStorage pool = open(file, size, sync);
+			long collections = collections();
+			long operations = 0;
+			long start = System.nanoTime(), end = start + seconds * 1_000_000_000L, now = start, tick = start;
+			for(long client = 0; now < end; client++)
+			{
+				pool.reserveAddress(client, 1, 3600);
+				pool.allocateAddress(client, 1);
+				pool.release(client, 1);
+				if(++operations % 64 == 0)
+					now = System.nanoTime();
+				// the lease scheduler runs every expiry tick
+				if(now - tick >= IPStorage.DEFAULTTICK)
+				{
+					pool.update();
+					tick = now;
+				}
+			}
+			System.out.printf("sync %-8s: %.0f ns per reserve/allocate/release, %d collections%n",
+					sync, (now - start) / (double)operations, collections() - collections);
+			pool.close();
+		}
+
+		Files.deleteIfExists(file);
+		IPStorage pool = open(file, size, MappedLeaseTable.Sync.NONE);
+		for(long client = 0; client < leased; client++)
+		{
+			pool.reserveAddress(client, 0, 3600);
+			pool.allocateAddress(client, 0);
+		}
+		pool.close();
+
+		for(int round = 0; round < 3; round++)
+		{
+			long start = System.nanoTime();
+			pool = open(file, size, MappedLeaseTable.Sync.NONE);
+			long nanos = System.nanoTime() - start;
+			boolean found = pool.lookUp(0, 0) != 0 && pool.lookUp(leased - 1, 0) != 0;
+			System.out.printf("restart with %d leases in %d addresses: %.1f ms, %d free, leases %s%n",
+					leased, size, nanos / 1e6, pool.getFreeAddresses(), found ? "found" : "LOST");
+			pool.close();
+		}
+		Files.deleteIfExists(file);
+	}
+
+	private static IPStorage open(Path file, int size, MappedLeaseTable.Sync sync) throws Exception
+	{
+		return IPStorage.builder().size(size).leaseFile(file, sync).build();
+	}
+
+	private static long collections()
+	{
+		long count = 0;
+		for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+			count += collector.getCollectionCount();
+		return count;
+	}
+}
@@ -0,0 +1,327 @@
+package DHCPBenchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import DHCPHelper.DHCPMessage;
+import DHCPHelper.DHCPMessageView;
+import DHCPHelper.LoopbackTransport;
+import DHCPHelper.Utility;
+import DHCPServer.DHCPServer;
+import DHCPServer.IPStorage;
+import DHCPServer.LoadBalancer;
+import DHCPServer.PipelineStatistics;
+import DHCPServer.PipelineStatistics.Stage;
+import DHCPServer.ServerConfig;
+
+/**
+ * Peer servers sharing the clients of one broadcast domain by the hash buckets of RFC 3074
+ * - how evenly the hash spreads random hardware addresses over the buckets
+ * - a bucket nobody answers is taken over by a peer once the secs of its client reach the threshold
+ * - a renewing DHCPRequest is answered by the server holding its lease, whatever its bucket
+ * - end to end, a renewal as RFC 2131 has it (ciaddr, no option 50 or 54) gets a DHCPAck, and a DHCPRequest selecting
+ *   another server frees the offer without a reply
+ * - 1, 2 and 4 in-process servers over a LoopbackTransport; every DHCPDiscover goes to all of them, as a broadcast would,
+ *   the DHCPRequest and DHCPRelease to the server that offered; per lease, every server answering every client and the buckets
+ *   divided between them: the CPU time of the servers (including the polling of their idle loopback inboxes), the time spent
+ *   in their pipeline stages (PipelineStatistics) and the number of replies sent
+ *
+ * java -cp <classes> DHCPBenchmark.LoadBalanceBenchmark [clients] [seconds]
+ */
+public class LoadBalanceBenchmark
+{
+	private static final int PORT = 1234;
+	private static final int POOL = 1 << 20;
+	private static final int ADDRESSES = 1_000_000;
+
+	/**
+	 * Offset of the data of option 50 (requested IP) in the request built by request()
+	 */
+	private static final int REQUESTEDIP = DHCPMessageView.OPTIONS + 3 + 6 + 2;
+
+	/**
+	 * Offset of the data of option 54 (server identifier) in the request built by request()
+	 */
+	private static final int SERVERIDENTIFIER = REQUESTEDIP + 4 + 2;
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	public static void main(String[] args) throws Exception
+	{
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		distribution();
+		takeover();
+		renewal();
+		for(int servers : new int[]{1, 2, 4})
+		{
+			double[] all = run(servers, false, clients, seconds);
+			double[] shared = servers == 1 ? all : run(servers, true, clients, seconds);
+			System.out.printf("%d server(s), answering every client: %6.0f ns of server CPU, %5.0f ns in the pipeline, %4.1f replies per lease%n",
+					servers, all[0], all[1], all[2]);
+			System.out.printf("%d server(s), sharing the buckets:    %6.0f ns of server CPU, %5.0f ns in the pipeline, %4.1f replies per lease (%.2fx less CPU, %.2fx less pipeline)%n",
+					servers, shared[0], shared[1], shared[2], all[0] / shared[0], all[1] / shared[1]);
+		}
+	}
+
+	/**
+	 * Spread of random hardware addresses over the buckets
+	 */
+	private static void distribution()
+	{
+		int[] counts = new int[LoadBalancer.BUCKETS];
+		byte[] address = new byte[6];
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long start = System.nanoTime();
+		for(int i = 0; i < ADDRESSES; i++)
+		{
+			random.nextBytes(address);
+			counts[LoadBalancer.hash(address, 0, address.length)]++;
+		}
+		long nanos = System.nanoTime() - start;
+		int min = Integer.MAX_VALUE, max = 0;
+		double expected = ADDRESSES / (double)LoadBalancer.BUCKETS, chiSquare = 0;
+		for(int count : counts)
+		{
+			min = Math.min(min, count);
+			max = Math.max(max, count);
+			chiSquare += (count - expected) * (count - expected) / expected;
+		}
+		System.out.printf("%d random hardware addresses: %d to %d per bucket (%.0f expected), chi-square %.0f for 255 degrees of freedom, %.1f ns per hash%n",
+				ADDRESSES, min, max, expected, chiSquare, nanos / (double)ADDRESSES);
+	}
+
+	/**
+	 * A DHCPDiscover of a bucket the server does not own is left to the peers, until its secs reach the threshold,
+	 * but a renewing DHCPRequest of a lease the server holds is answered whatever its bucket
+	 */
+	private static void takeover() throws Exception
+	{
+		LoadBalancer balancer = new LoadBalancer("", LoadBalancer.DEFAULTTAKEOVER);
+		ByteBuffer discover = ByteBuffer.wrap(TemplateBenchmark.discover());
+		DHCPMessageView view = new DHCPMessageView().wrap(discover, discover.capacity());
+		IPStorage pool = new IPStorage(16);
+		int bucket = LoadBalancer.bucket(view);
+		// a renewal of a lease of another server, then of one of this server
+		discover.putInt(DHCPMessageView.CLIENTIP, pool.getFirstAddress());
+		boolean foreign = balancer.isServed(view, DHCPMessage.DHCPREQUEST, pool);
+		pool.reserveAddress(view.chaddrHigh(), view.chaddrLow(), 60);
+		pool.allocateAddress(view.chaddrHigh(), view.chaddrLow());
+		boolean renewing = balancer.isServed(view, DHCPMessage.DHCPREQUEST, pool);
+		discover.putInt(DHCPMessageView.CLIENTIP, 0);
+		boolean waiting = balancer.isServed(view, DHCPMessage.DHCPDISCOVER, pool);
+		discover.putShort(DHCPMessageView.SECS, (short)LoadBalancer.DEFAULTTAKEOVER);
+		boolean late = balancer.isServed(view, DHCPMessage.DHCPDISCOVER, pool);
+		discover.putShort(DHCPMessageView.SECS, (short)0);
+		boolean after = balancer.isServed(view, DHCPMessage.DHCPDISCOVER, pool);
+		System.out.println("bucket " + bucket + " owned by no server: renewal of a lease held elsewhere answered " + foreign + ", of one held here " + renewing
+				+ "; DHCPDiscover answered at secs 0 " + waiting + ", at secs " + LoadBalancer.DEFAULTTAKEOVER + " " + late
+				+ ", then at secs 0 " + after + "; buckets now " + balancer.getBuckets());
+		if(foreign || !renewing || waiting || !late || !after)
+			System.exit(1);
+	}
+
+	/**
+	 * A client selects the offer of a server and renews its lease with ciaddr only, which the server acknowledges;
+	 * a second client selects another server, so its offer is freed without a reply and its renewal after gets a DHCPNak
+	 */
+	private static void renewal() throws Exception
+	{
+		LoopbackTransport.Network network = new LoopbackTransport.Network(64);
+		ServerConfig config = new ServerConfig();
+		config.poolSize = 16;
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), PORT);
+		DHCPServer server = new DHCPServer("127.0.0.1", config, network.open(address));
+		Thread thread = new Thread(server::run, "dhcp-server");
+		thread.setDaemon(true);
+		thread.start();
+		try(LoopbackTransport transport = network.open())
+		{
+			byte[] discover = TemplateBenchmark.discover(), request = request(), renew = message(DHCPMessage.DHCPREQUEST);
+			ByteBuffer reply = ByteBuffer.allocate(DHCPMessage.MAXLENGTH);
+
+			client(1, discover, request, renew);
+			int offered = exchange(transport, address, discover, reply) == DHCPMessage.DHCPOFFER ? reply.getInt(DHCPMessageView.YOURIP) : 0;
+			ByteBuffer.wrap(request).putInt(REQUESTEDIP, offered).put(SERVERIDENTIFIER, address.getAddress().getAddress());
+			boolean selected = exchange(transport, address, request, reply) == DHCPMessage.DHCPACK && reply.getInt(DHCPMessageView.YOURIP) == offered;
+			ByteBuffer.wrap(renew).putInt(DHCPMessageView.CLIENTIP, offered);
+			boolean renewed = exchange(transport, address, renew, reply) == DHCPMessage.DHCPACK && reply.getInt(DHCPMessageView.YOURIP) == offered;
+
+			client(2, discover, request, renew);
+			offered = exchange(transport, address, discover, reply) == DHCPMessage.DHCPOFFER ? reply.getInt(DHCPMessageView.YOURIP) : 0;
+			ByteBuffer.wrap(request).putInt(REQUESTEDIP, offered).put(SERVERIDENTIFIER, InetAddress.getByName("127.0.0.9").getAddress());
+			transport.send(ByteBuffer.wrap(request), address);
+			// no reply to the request: the next one is the reply to the renewal, told apart by its transaction id
+			ByteBuffer.wrap(renew).putInt(DHCPMessageView.CLIENTIP, offered).putInt(DHCPMessageView.TRANSACTIONID, 3);
+			boolean declined = exchange(transport, address, renew, reply) == DHCPMessage.DHCPNAK && reply.getInt(DHCPMessageView.TRANSACTIONID) == 3;
+			System.out.println("selecting this server acknowledged " + selected + ", renewal with ciaddr only acknowledged " + renewed
+					+ ", offer freed without a reply when another server is selected " + declined);
+			if(!selected || !renewed || !declined)
+				System.exit(1);
+		}
+		finally
+		{server.close();}
+	}
+
+	/**
+	 * Give the given messages the hardware address and transaction id of the given client
+	 */
+	private static void client(int client, byte[]... messages)
+	{
+		for(byte[] message : messages)
+			ByteBuffer.wrap(message).putInt(DHCPMessageView.CLIENTHARDWAREADDRESS + 2, client).putInt(DHCPMessageView.TRANSACTIONID, client);
+	}
+
+	/**
+	 * Send the given message to the given server and receive its reply
+	 * @return	the type of the reply (option 53)
+	 */
+	private static byte exchange(LoopbackTransport transport, SocketAddress server, byte[] message, ByteBuffer reply) throws Exception
+	{
+		transport.send(ByteBuffer.wrap(message), server);
+		reply.clear();
+		transport.receive(reply);
+		return reply.get(DHCPMessageView.OPTIONS + 2);
+	}
+
+	/**
+	 * Lease and release addresses from the given number of servers on the given number of client threads
+	 * @param shared	if the servers divide the buckets between them, or each answers every client
+	 * @return	the CPU time of the servers and the time in their pipelines per lease, in nanoseconds, and the replies per lease
+	 */
+	private static double[] run(int servers, boolean shared, int clients, int seconds) throws Exception
+	{
+		LoopbackTransport.Network network = new LoopbackTransport.Network(4096);
+		DHCPServer[] peers = new DHCPServer[servers];
+		SocketAddress[] addresses = new SocketAddress[servers];
+		for(int s = 0; s < servers; s++)
+		{
+			ServerConfig config = new ServerConfig();
+			config.poolSize = POOL;
+			if(shared)
+				config.buckets = s * LoadBalancer.BUCKETS / servers + "-" + ((s + 1) * LoadBalancer.BUCKETS / servers - 1);
+			String ip = "127.0.0." + (s + 1);
+			addresses[s] = new InetSocketAddress(InetAddress.getByName(ip), PORT);
+			peers[s] = new DHCPServer(ip, config, network.open(addresses[s]));
+			Thread thread = new Thread(peers[s]::run, "dhcp-server-" + s);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		AtomicLong leases = new AtomicLong(), clientCpu = new AtomicLong();
+		long cpu = processCpu();
+		long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+		Thread[] threads = new Thread[clients];
+		for(int c = 0; c < clients; c++)
+		{
+			int client = c;
+			threads[c] = new Thread(() -> client(network, addresses, shared ? 1 : servers, client, deadline, leases, clientCpu));
+			threads[c].start();
+		}
+		for(Thread thread : threads)
+			thread.join();
+		cpu = processCpu() - cpu - clientCpu.get();
+		double work = 0, replies = 0;
+		for(DHCPServer peer : peers)
+		{
+			PipelineStatistics statistics = peer.getStatistics();
+			for(Stage stage : Stage.values())
+				work += statistics.averageNanos(stage) * statistics.packets(stage);
+			replies += statistics.packets(Stage.SEND);
+			peer.close();
+		}
+		double count = Math.max(1, leases.get());
+		return new double[]{cpu / count, work / count, replies / count};
+	}
+
+	/**
+	 * Lease, and release again, an address for a new hardware address every time until the deadline
+	 * @param offers	Number of DHCPOffers every DHCPDiscover gets
+	 */
+	private static void client(LoopbackTransport.Network network, SocketAddress[] servers, int offers, int client, long deadline, AtomicLong leases, AtomicLong cpu)
+	{
+		long start = THREADS.getCurrentThreadCpuTime();
+		try(LoopbackTransport transport = network.open())
+		{
+			byte[] discover = TemplateBenchmark.discover();
+			byte[] request = request();
+			byte[] release = message(DHCPMessage.DHCPRELEASE);
+			ByteBuffer reply = ByteBuffer.allocate(DHCPMessage.MAXLENGTH);
+			long done = 0;
+			for(int hardwareAddress = 0; System.nanoTime() < deadline; hardwareAddress++)
+			{
+				for(byte[] message : new byte[][]{discover, request, release})
+				{
+					ByteBuffer.wrap(message).put(DHCPMessageView.CLIENTHARDWAREADDRESS + 1, (byte)client).putInt(DHCPMessageView.CLIENTHARDWAREADDRESS + 2, hardwareAddress);
+					ByteBuffer.wrap(message).putInt(DHCPMessageView.TRANSACTIONID, hardwareAddress);
+				}
+				for(SocketAddress server : servers)
+					transport.send(ByteBuffer.wrap(discover), server);
+				// the first DHCPOffer is taken, the others only read
+				SocketAddress offering = null;
+				int offered = 0;
+				for(int offer = 0; offer < offers; offer++)
+				{
+					reply.clear();
+					SocketAddress server = transport.receive(reply);
+					if(offering == null && reply.get(DHCPMessageView.OPTIONS + 2) == DHCPMessage.DHCPOFFER)
+					{
+						offering = server;
+						offered = reply.getInt(DHCPMessageView.YOURIP);
+					}
+				}
+				if(offering == null) continue;
+				ByteBuffer.wrap(request).putInt(REQUESTEDIP, offered)
+						.put(SERVERIDENTIFIER, ((InetSocketAddress)offering).getAddress().getAddress());
+				transport.send(ByteBuffer.wrap(request), offering);
+				reply.clear();
+				transport.receive(reply);
+				transport.send(ByteBuffer.wrap(release), offering);
+				done++;
+			}
+			leases.addAndGet(done);
+		}
+		catch(Exception e)
+		{e.printStackTrace();}
+		cpu.addAndGet(THREADS.getCurrentThreadCpuTime() - start);
+	}
+
+	private static long processCpu()
+	{
+		return ((com.sun.management.OperatingSystemMXBean)ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+	}
+
+	/**
+	 * @return a DHCPRequest, the requested IP (option 50) and the server (option 54) to be filled in
+	 */
+	private static byte[] request()
+	{
+		DHCPMessage message = new DHCPMessage(TemplateBenchmark.discover());
+		message.resetoptions();
+		message.addOption((byte)53, (byte)1, new byte[]{DHCPMessage.DHCPREQUEST});
+		message.addOption((byte)51, (byte)4, Utility.toByteArray(60));
+		message.addOption((byte)50, (byte)4, new byte[4]);
+		message.addOption((byte)54, (byte)4, new byte[4]);
+		message.addOption((byte)255, (byte)0, Utility.toBytes(new int[]{0}));
+		return message.retrieveBytes();
+	}
+
+	/**
+	 * @return a message of the given type without other options: a DHCPRelease, or a DHCPRequest renewing the lease of its ciaddr
+	 */
+	private static byte[] message(byte type)
+	{
+		DHCPMessage message = new DHCPMessage(TemplateBenchmark.discover());
+		message.resetoptions();
+		message.addOption((byte)53, (byte)1, new byte[]{type});
+		message.addOption((byte)255, (byte)0, Utility.toBytes(new int[]{0}));
+		return message.retrieveBytes();
+	}
+}
@@ -0,0 +1,68 @@
+package DHCPBenchmark;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import DHCPServer.IPStorage;
+
+/**
+ * Effective pool capacity under a flood of DHCPDiscovers from clients that never send a DHCPRequest
+ * A flooder reserves addresses for random hardware addresses at the given rate, while regular clients
+ * go through reserve/allocate/release as fast as they can; expiry runs every 100 ms as in the server
+ * The flood can hold at most (flood per second) x (offer timeout) addresses: below the pool size, regular clients keep being served
+ * Every second the addresses held for offers, the reclaimed holds and the share of regular clients that got an address are printed
+ *
+ * java -cp <classes> DHCPBenchmark.OfferFloodBenchmark [pool] [offer timeout s] [flood per second] [seconds]
+ */
+public class OfferFloodBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 65536;
+		int timeout = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+		int rate = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+
+		IPStorage pool = IPStorage.builder().size(size).tick(100_000_000L).offerTimeout(timeout).build();
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+		scheduler.scheduleAtFixedRate(pool::update, 100, 100, TimeUnit.MILLISECONDS);
+
+		long end = System.nanoTime() + seconds * 1_000_000_000L;
+		Thread flooder = new Thread(() -> {
+			SplittableRandom random = new SplittableRandom(7);
+			long period = 1_000_000_000L / rate;
+			long next = System.nanoTime();
+			while(next < end)
+			{
+				byte[] mac = new byte[16];
+				random.nextBytes(mac);
+				pool.reserveAddress(mac, 3600);
+				next += period;
+				LockSupport.parkNanos(next - System.nanoTime());
+			}
+		}, "flooder");
+		flooder.start();
+
+		byte[] client = {0, 0x1b, 0x21, 0x3c, 0x4d, 0x5e, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+		for(int second = 1; second <= seconds; second++)
+		{
+			long attempts = 0, leased = 0;
+			long until = System.nanoTime() + 1_000_000_000L;
+			while(System.nanoTime() < until)
+			{
+				attempts++;
+				if(pool.reserveAddress(client, 60) != null && pool.allocateAddress(client) != null)
+					leased++;
+				pool.release(client);
+				LockSupport.parkNanos(10_000);
+			}
+			System.out.printf("second %2d: held %6d, reclaimed %8d, regular clients served %5.1f%%%n", 
+					second, pool.getHeldOffers(), pool.getReclaimedOffers(), 100.0 * leased / attempts);
+		}
+		flooder.join();
+		scheduler.shutdown();
+	}
+}
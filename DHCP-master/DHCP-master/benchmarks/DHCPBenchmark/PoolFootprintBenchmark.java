@@ -0,0 +1,51 @@
+package DHCPBenchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.ref.Reference;
+
+import DHCPServer.HeapLeaseTable;
+import DHCPServer.IPStorage;
+import DHCPServer.LeaseTable;
+
+/**
+ * Startup time and heap used per address by an IPStorage with the given number of leased addresses,
+ * dense or sparse, and the time of a full scan over a lease table of the size of the pool
+ * The LeaseIndex of every stripe is included in the heap
+ *
+ * java -Xmx4g -cp <classes> DHCPBenchmark.PoolFootprintBenchmark [pool size] [leased] [dense|sparse]
+ */
+public class PoolFootprintBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 16_777_216;
+		int leased = args.length > 1 ? Integer.parseInt(args[1]) : size / 2;
+		boolean sparse = args.length > 2 && args[2].equals("sparse");
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+		System.gc();
+		long before = memory.getHeapMemoryUsage().getUsed();
+		long start = System.nanoTime();
+		IPStorage pool = IPStorage.builder().size(size).sparse(sparse).offerTimeout(0).build();
+		long startup = System.nanoTime() - start;
+		for(int client = 0; client < leased; client++)
+			pool.reserveAddress(0x001b2100_00000000L | client, 0, 3600);
+		System.gc();
+		long after = memory.getHeapMemoryUsage().getUsed();
+		Reference.reachabilityFence(pool);
+		System.out.printf("%s, %d addresses, %d leased: started in %.1f ms, %.1f MB, %.1f bytes per address%n",
+				sparse ? "sparse" : "dense", size, leased, startup / 1e6, (after - before) / 1e6, (after - before) / (double)size);
+
+		HeapLeaseTable table = new HeapLeaseTable(0, size);
+		for(int index = 0; index < size; index += 2)
+			table.reserve(index, index, 0, 3600);
+		for(int round = 0; round < 5; round++)
+		{
+			start = System.nanoTime();
+			int reserved = table.count(LeaseTable.RESERVED);
+			long nanos = System.nanoTime() - start;
+			System.out.printf("full scan: %d reserved in %.1f ms, %.2f ns per address%n", reserved, nanos / 1e6, nanos / (double)size);
+		}
+	}
+}
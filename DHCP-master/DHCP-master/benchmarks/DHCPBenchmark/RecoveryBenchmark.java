@@ -0,0 +1,101 @@
+package DHCPBenchmark;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import DHCPServer.IPStorage;
+import DHCPServer.LeaseJournal;
+
+/**
+ * Restart of a pool with a LeaseJournal and LeaseSnapshot: a pool leases most of its addresses, a snapshot is written
+ * while a client keeps allocating, then the journal gets a tail of releases and new leases and the pool stops
+ * Printed: the time the snapshot took and the allocations that went on meanwhile, then the time from a new pool
+ * to its first offer, and if every lease came back at its address
+ *
+ * java -Xmx4g -cp <classes> DHCPBenchmark.RecoveryBenchmark [journal] [pool size] [leased] [tail]
+ */
+public class RecoveryBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		Path file = Paths.get(args.length > 0 ? args[0] : "leases.journal");
+		int size = args.length > 1 ? Integer.parseInt(args[1]) : 8_388_608;
+		int leased = args.length > 2 ? Integer.parseInt(args[2]) : 5_000_000;
+		int tail = args.length > 3 ? Integer.parseInt(args[3]) : 100_000;
+
+		JournalBenchmark.delete(file);
+		LeaseJournal journal = new LeaseJournal(file, LeaseJournal.DEFAULTWINDOW, LeaseJournal.DEFAULTBATCH);
+		IPStorage pool = new IPStorage(size);
+		pool.setJournal(journal);
+		int[] addresses = new int[leased + tail];
+		long start = System.nanoTime();
+		for(int client = 0; client < leased; client++)
+		{
+			pool.reserveAddress(client, 0, 3600);
+			addresses[client] = pool.allocateAddress(client, 0);
+		}
+		System.out.printf("%d leases journaled in %.1f s%n", leased, (System.nanoTime() - start) / 1e9);
+
+		// a client that keeps allocating and releasing while the snapshot is written
+		AtomicBoolean running = new AtomicBoolean(true);
+		AtomicLong allocations = new AtomicLong();
+		IPStorage leasing = pool;
+		Thread client = new Thread(() -> {
+			for(long other = 0; running.get(); other++)
+			{
+				leasing.reserveAddress(1L << 32, other, 3600);
+				leasing.allocateAddress(1L << 32, other);
+				leasing.release(1L << 32, other);
+				allocations.incrementAndGet();
+			}
+		});
+		client.start();
+		Thread.sleep(200);
+		long before = allocations.get();
+		start = System.nanoTime();
+		int snapshot = journal.snapshot(pool);
+		long nanos = System.nanoTime() - start;
+		long during = allocations.get() - before;
+		running.set(false);
+		client.join();
+		System.out.printf("snapshot of %d leases in %.1f ms, %.0f allocations/s meanwhile%n", snapshot, nanos / 1e6, during / (nanos / 1e9));
+
+		// the tail: half of it releases, half new leases
+		for(int i = 0; i < tail / 2; i++)
+		{
+			pool.release(i, 0);
+			pool.reserveAddress(leased + i, 0, 3600);
+			addresses[leased + i] = pool.allocateAddress(leased + i, 0);
+		}
+		journal.close();
+		pool = null;
+		System.gc();
+
+		start = System.nanoTime();
+		journal = new LeaseJournal(file, LeaseJournal.DEFAULTWINDOW, LeaseJournal.DEFAULTBATCH);
+		pool = new IPStorage(size);
+		long created = System.nanoTime() - start;
+		int recovered = pool.setJournal(journal);
+		int offered = pool.reserveAddress(-1, -1, 3600);
+		nanos = System.nanoTime() - start;
+		System.out.printf("restart: pool created in %.1f ms, %d leases recovered, first offer after %.1f ms on %d processors%n",
+				created / 1e6, recovered, nanos / 1e6, Runtime.getRuntime().availableProcessors());
+
+		int wrong = 0;
+		for(int i = 0; i < leased + tail / 2; i++)
+		{
+			int expected = i < tail / 2 ? 0 : addresses[i];
+			if(pool.lookUp(i, 0) != expected)
+				wrong++;
+		}
+		int free = size - (leased + 1);
+		System.out.printf("%d leases at another address or lost, %d free (%s), offered %s%n", wrong, pool.getFreeAddresses(),
+				pool.getFreeAddresses() == free ? "ok" : "expected " + free, offered != 0 ? "ok" : "NONE");
+		journal.close();
+		System.out.printf("journal after the snapshot: %d bytes in %s%n", Files.size(Paths.get(file + "." + 1)), file + ".1");
+		JournalBenchmark.delete(file);
+	}
+}
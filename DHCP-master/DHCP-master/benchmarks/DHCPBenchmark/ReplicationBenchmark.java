@@ -0,0 +1,277 @@
+package DHCPBenchmark;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import DHCPServer.IPStorage;
+import DHCPServer.LeaseReplica;
+import DHCPServer.LeaseReplicator;
+
+/**
+ * Active/standby replication between two processes on localhost: this process is the primary, a child process the standby
+ * - the time a client waits for its allocation (reserve and allocate, as for a DHCPAck) without replication,
+ *   with a replicator but no standby and while streaming to the standby
+ * - the standby catches up from a copy of a pool that already has leases, then follows it while clients come and go,
+ *   RATE operations per second; halfway it is stopped (SIGSTOP) until the primary disconnects it for lagging,
+ *   and continued, so it catches up again
+ * - afterwards the leases of the standby must equal the ones of the primary, deadlines within a second
+ * - then the link between them fails: the standby serves clients of its own while the primary serves others, from the same free addresses;
+ *   when the standby connects again, the primary must have taken every lease the standby granted but the ones whose address it gave
+ *   to one of its clients meanwhile, and the standby must have the leases of the primary again
+ *
+ * Exits with status 1 when they differ, or a lease the standby granted is lost
+ *
+ * java -cp <classes> DHCPBenchmark.ReplicationBenchmark [threads] [seconds per phase]
+ */
+public class ReplicationBenchmark
+{
+	private static final int SIZE = 65536;
+	private static final int CLIENTS = 40000;
+	private static final int LAG = 65536;
+	private static final int RATE = 100_000;
+	private static final int SERVED = 1000;
+
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length > 0 && args[0].equals("standby"))
+		{
+			standby(Integer.parseInt(args[1]));
+			return;
+		}
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+
+		IPStorage plain = IPStorage.builder().size(SIZE).offerTimeout(0).build();
+		report("no replication", allocate(plain, threads, seconds));
+		IPStorage pool = IPStorage.builder().size(SIZE).offerTimeout(0).build();
+		LeaseReplicator replicator = new LeaseReplicator(pool, new InetSocketAddress("127.0.0.1", 0), LAG);
+		pool.setReplicator(replicator);
+		report("no standby", allocate(pool, threads, seconds));
+
+		// leases the standby has to catch up with
+		for(int client = 0; client < CLIENTS / 2; client++)
+		{
+			pool.reserveAddress(client, 1, 3600);
+			pool.allocateAddress(client, 1);
+		}
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		Process standby = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), ReplicationBenchmark.class.getName(),
+				"standby", Integer.toString(replicator.getAddress().getPort())).redirectErrorStream(true).start();
+		BufferedReader output = new BufferedReader(new InputStreamReader(standby.getInputStream()));
+		PrintStream input = new PrintStream(standby.getOutputStream(), true);
+		expect(output, "synced");
+		report("streaming", allocate(pool, threads, seconds));
+		System.out.println("standby disconnected " + replicator.getLagged() + " times for lagging at full load");
+		long full = replicator.getLagged();
+
+		// clients come and go, while the standby is stopped for a while
+		Thread[] churn = new Thread[threads];
+		long end = System.currentTimeMillis() + seconds * 3000L;
+		for(int t = 0; t < threads; t++)
+		{
+			int thread = t;
+			churn[t] = new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				long next = System.nanoTime();
+				for(int operation = 1; System.currentTimeMillis() < end; operation++)
+				{
+					if(operation % 100 == 0)
+					{
+						next += 100L * threads * 1_000_000_000L / RATE;
+						LockSupport.parkNanos(next - System.nanoTime());
+					}
+					long client = random.nextInt(CLIENTS / threads) * threads + thread;
+					switch(random.nextInt(3))
+					{
+						case 0:
+							pool.reserveAddress(client, 1, 600 + random.nextInt(3000));
+							break;
+						case 1:
+							pool.reserveAddress(client, 1, 600 + random.nextInt(3000));
+							pool.allocateAddress(client, 1);
+							break;
+						default:
+							pool.release(client, 1);
+					}
+				}
+			});
+			churn[t].start();
+		}
+		Thread.sleep(seconds * 1000L);
+		System.out.println("standby following " + RATE + " operations/s: disconnected " + (replicator.getLagged() - full) + " times for lagging, lags " + replicator.getLag() + " records");
+		long lagged = replicator.getLagged();
+		new ProcessBuilder("kill", "-STOP", Long.toString(standby.pid())).start().waitFor();
+		long stopped = System.nanoTime();
+		while(replicator.isStreaming() && System.nanoTime() - stopped < 10_000_000_000L)
+			Thread.sleep(10);
+		System.out.printf("standby stopped: disconnected after %.0f ms for lagging %d records behind%n", (System.nanoTime() - stopped) / 1e6, LAG);
+		new ProcessBuilder("kill", "-CONT", Long.toString(standby.pid())).start().waitFor();
+		for(Thread thread : churn)
+			thread.join();
+
+		// the standby must end with the leases of the primary
+		while(!replicator.isStreaming())
+			Thread.sleep(10);
+		int differing = compare(pool, replicator, input, output);
+		System.out.printf("standby: %d frames, %d disconnects for lagging%n", replicator.getFrames(), replicator.getLagged());
+		boolean failed = differing > 0 || replicator.getLagged() == lagged;
+
+		// the link fails: both serve, from the same free addresses
+		InetSocketAddress address = replicator.getAddress();
+		replicator.close();
+		input.println("serve " + SERVED);
+		expect(output, "serving");
+		for(int client = 0; client < SERVED / 2; client++)
+		{
+			pool.reserveAddress(3, client, 3600);
+			pool.allocateAddress(3, client);
+		}
+		expect(output, "served");
+		replicator = new LeaseReplicator(pool, address, LAG);
+		pool.setReplicator(replicator);
+		while(!replicator.isStreaming())
+			Thread.sleep(10);
+		int taken = 0;
+		for(int client = 0; client < SERVED; client++)
+			if(pool.lookUp(2, client) != 0)
+				taken++;
+		System.out.printf("link failed: %d leases of the standby taken by the primary, %d in conflict with its own, %d of %d clients of the standby kept%n",
+				replicator.getRestored(), replicator.getConflicts(), taken, SERVED);
+		differing = compare(pool, replicator, input, output);
+		input.println("quit");
+		standby.waitFor();
+		replicator.close();
+		if(failed || differing > 0 || replicator.getRestored() + replicator.getConflicts() != SERVED || taken != replicator.getRestored())
+			System.exit(1);
+	}
+
+	/**
+	 * Have the standby print its leases once it has applied every transition of the primary so far, and compare them to the ones of the primary
+	 * @return	the number of leases that differ or that the standby does not have
+	 */
+	private static int compare(IPStorage pool, LeaseReplicator replicator, PrintStream input, BufferedReader output) throws Exception
+	{
+		Map<Integer, String> leases = new HashMap<>();
+		pool.copy((index, state, leaseDuration, high, low, expiry) -> leases.put(index, state + " " + high + " " + low + " " + leaseDuration + " " + expiry));
+		input.println("dump " + replicator.getSequence());
+		int matching = 0, wrong = 0;
+		for(String line; (line = output.readLine()) != null; )
+		{
+			String[] fields = line.split(" ");
+			if(!fields[0].equals("lease"))
+			{
+				System.out.println("standby: " + line);
+				if(fields[0].equals("end")) break;
+				continue;
+			}
+			String[] expected = leases.getOrDefault(Integer.parseInt(fields[1]), "").split(" ");
+			boolean same = expected.length == 5 && expected[0].equals(fields[2]) && expected[1].equals(fields[3]) && expected[2].equals(fields[4])
+					&& expected[3].equals(fields[5]) && Math.abs(Long.parseLong(expected[4]) - Long.parseLong(fields[6])) <= 1000;
+			if(same)
+				matching++;
+			else if(wrong++ < 5)
+				System.out.println("differs at " + fields[1] + ": " + line.substring(line.indexOf(' ', 6) + 1) + " on the standby, " + leases.get(Integer.parseInt(fields[1])) + " on the primary");
+			leases.remove(Integer.parseInt(fields[1]));
+		}
+		// what is left the standby does not have
+		int missing = leases.size();
+		leases.entrySet().stream().limit(5).forEach(lease -> System.out.println("missing at " + lease.getKey() + ": " + lease.getValue()));
+		System.out.printf("standby: %d leases as on the primary, %d differ, %d missing%n", matching, wrong, missing);
+		return wrong + missing;
+	}
+
+	/**
+	 * Allocate and release addresses on the given number of threads for the given time
+	 * @return	the number of allocations and the nanoseconds they took
+	 */
+	private static long[] allocate(IPStorage pool, int threads, int seconds) throws InterruptedException
+	{
+		AtomicLong count = new AtomicLong(), nanos = new AtomicLong();
+		long end = System.nanoTime() + seconds * 1_000_000_000L;
+		Thread[] clients = new Thread[threads];
+		for(int t = 0; t < threads; t++)
+		{
+			long high = 1000 + t;
+			clients[t] = new Thread(() -> {
+				long allocations = 0, waited = 0;
+				for(long client = 0; System.nanoTime() < end; client++)
+				{
+					long start = System.nanoTime();
+					pool.reserveAddress(high, client, 3600);
+					pool.allocateAddress(high, client);
+					waited += System.nanoTime() - start;
+					pool.release(high, client);
+					allocations++;
+				}
+				count.addAndGet(allocations);
+				nanos.addAndGet(waited);
+			});
+			clients[t].start();
+		}
+		for(Thread client : clients)
+			client.join();
+		return new long[]{count.get() / seconds, nanos.get() / Math.max(1, count.get())};
+	}
+
+	private static void report(String name, long[] result)
+	{
+		System.out.printf("%-15s %9d allocations/s, %5d ns per allocation%n", name, result[0], result[1]);
+	}
+
+	private static void expect(BufferedReader output, String expected) throws Exception
+	{
+		for(String line; (line = output.readLine()) != null; )
+		{
+			if(line.equals(expected)) return;
+			System.out.println("standby: " + line);
+		}
+		throw new IllegalStateException("standby ended before " + expected);
+	}
+
+	/**
+	 * The standby: follow the primary, and print its leases once it has applied the given sequence number
+	 */
+	private static void standby(int port) throws Exception
+	{
+		IPStorage pool = IPStorage.builder().size(SIZE).offerTimeout(0).build();
+		LeaseReplica replica = new LeaseReplica(pool, new InetSocketAddress("127.0.0.1", port), 100, LeaseReplica.DEFAULTGRACE);
+		while(!replica.isSynced())
+			Thread.sleep(1);
+		System.out.println("synced");
+		BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+		for(String line; (line = input.readLine()) != null && !line.equals("quit"); )
+		{
+			if(line.startsWith("serve"))
+			{
+				// the clients of the standby, once it lost the primary
+				while(replica.isConnected())
+					Thread.sleep(1);
+				System.out.println("serving");
+				for(int client = 0; client < Integer.parseInt(line.split(" ")[1]); client++)
+				{
+					pool.reserveAddress(2, client, 3600);
+					pool.allocateAddress(2, client);
+				}
+				System.out.println("served");
+				continue;
+			}
+			long sequence = Long.parseLong(line.split(" ")[1]);
+			while(!replica.isSynced() || replica.getApplied() < sequence)
+				Thread.sleep(1);
+			StringBuilder leases = new StringBuilder();
+			pool.copy((index, state, leaseDuration, high, low, expiry) -> leases.append("lease ").append(index).append(' ').append(state).append(' ')
+					.append(high).append(' ').append(low).append(' ').append(leaseDuration).append(' ').append(expiry).append('\n'));
+			System.out.print(leases);
+			System.out.println("end " + replica.getCatchUps() + " catch-ups, " + replica.getHandedBack() + " leases handed back");
+		}
+		replica.close();
+	}
+}
@@ -0,0 +1,111 @@
+package DHCPBenchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.ThreadParams;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import DHCPServer.IPStorage;
+
+/**
+ * Address reservations per second against one pool shared by the benchmark threads,
+ * with a single allocation shard and with one shard per thread
+ * Every thread reserves and releases addresses for clients of its own, so the threads only meet in the allocator
+ *
+ * java -jar benchmarks.jar ReserveScalingBenchmark -t 16	one number of threads
+ * java -cp benchmarks.jar DHCPBenchmark.ReserveScalingBenchmark [JMH options]
+ * 		every number of threads from 1 to 64, doubling, and a table of the results
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(3)
+@Threads(4)
+public class ReserveScalingBenchmark
+{
+	private static final int CLIENTS = 64;
+
+	@Param({"100000"})
+	public int poolSize;
+
+	@Param({"false", "true"})
+	public boolean shardPerThread;
+
+	private IPStorage pool;
+
+	@Setup(Level.Trial)
+	public void setup(BenchmarkParams params) throws IOException
+	{
+		pool = IPStorage.builder().size(poolSize).shards(shardPerThread ? params.getThreads() : 1).offerTimeout(0).build();
+	}
+
+	/**
+	 * The clients of a thread
+	 */
+	@State(Scope.Thread)
+	public static class Clients
+	{
+		private final byte[][] macs = new byte[CLIENTS][16];
+
+		@Setup
+		public void setup(ThreadParams thread)
+		{
+			for(int c = 0; c < CLIENTS; c++)
+			{
+				macs[c][0] = (byte)thread.getThreadIndex();
+				macs[c][1] = (byte)c;
+			}
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CLIENTS)
+	public int reserveRelease(Clients clients)
+	{
+		int reserved = 0;
+		for(byte[] mac : clients.macs)
+			if(pool.reserveAddress(mac, 60) != null)
+				reserved++;
+		for(byte[] mac : clients.macs)
+			pool.release(mac);
+		return reserved;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		CommandLineOptions options = new CommandLineOptions(args);
+		StringBuilder table = new StringBuilder(String.format("%8s %24s %24s%n", "threads", "1 shard", "shard/thread"));
+		for(int threads = 1; threads <= 64; threads *= 2)
+		{
+			String[] columns = {"-", "-"};
+			for(RunResult result : new Runner(new OptionsBuilder().parent(options).include(ReserveScalingBenchmark.class.getSimpleName())
+					.threads(threads).build()).run())
+				columns[Boolean.parseBoolean(result.getParams().getParam("shardPerThread")) ? 1 : 0]
+						= String.format("%.0f +- %.0f", result.getPrimaryResult().getScore(), result.getPrimaryResult().getScoreError());
+			table.append(String.format("%8d %24s %24s%n", threads, columns[0], columns[1]));
+		}
+		// the table after all the output of JMH
+		System.out.print(table);
+	}
+}
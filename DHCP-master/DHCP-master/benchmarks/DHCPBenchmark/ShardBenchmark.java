@@ -0,0 +1,101 @@
+package DHCPBenchmark;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import DHCPHelper.DHCPMessage;
+import DHCPHelper.DHCPMessageView;
+import DHCPServer.DHCPServer;
+import DHCPServer.PipelineStatistics.Stage;
+import DHCPServer.ServerConfig;
+import DHCPServer.ServerShard;
+
+/**
+ * Loopback throughput of the DHCPServer with one or more SO_REUSEPORT shards
+ * A number of clients, each on its own socket (so on its own source port, which is what the kernel hashes on),
+ * keep a window of DHCPDiscovers in flight; at the end the offers per second and the packets and drops of every shard are printed
+ *
+ * java -Ddhcp.shards=<n> [-Ddhcp.mode=nio] -cp <classes> DHCPBenchmark.ShardBenchmark [clients] [window] [seconds]
+ * Run it for 1, 2, 4, ... shards to see how throughput scales
+ */
+public class ShardBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int window = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		ServerConfig config = new ServerConfig();
+		DHCPServer server = new DHCPServer("127.0.0.1", config);
+		Thread serverThread = new Thread(server::run, "dhcp-server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+		Thread.sleep(500);
+
+		AtomicLong offers = new AtomicLong();
+		long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+		Thread[] threads = new Thread[clients];
+		for(int c = 0; c < clients; c++)
+		{
+			int client = c;
+			threads[c] = new Thread(() -> offers.addAndGet(client(server.portServer, client, window, deadline)));
+			threads[c].start();
+		}
+		for(Thread thread : threads)
+			thread.join();
+
+		System.out.printf("mode %s, shards %d, clients %d, window %d: %.0f offers/s%n", 
+				config.mode, server.getShards().length, clients, window, offers.get() / (double)seconds);
+		for(ServerShard shard : server.getShards())
+			System.out.printf("shard %2d  received %10d  dropped %8d  sent %10d%n", shard.index, 
+					shard.statistics.packets(Stage.RECEIVE), 
+					shard.statistics.drops(Stage.RECEIVE) + shard.statistics.drops(Stage.SEND), 
+					shard.statistics.packets(Stage.SEND));
+		server.close();
+	}
+
+	/**
+	 * Keep window DHCPDiscovers in flight until the deadline
+	 * @return	the number of offers received
+	 */
+	private static long client(int port, int client, int window, long deadline)
+	{
+		long received = 0;
+		try(DatagramSocket socket = new DatagramSocket())
+		{
+			socket.setSoTimeout(100);
+			InetAddress server = InetAddress.getByName("127.0.0.1");
+			byte[] discover = TemplateBenchmark.discover();
+			// 4 hardware addresses over all clients, the default pool holds 5 addresses
+			ByteBuffer.wrap(discover).put(DHCPMessageView.CLIENTHARDWAREADDRESS + 5, (byte)(client & 3));
+			DatagramPacket request = new DatagramPacket(discover, discover.length, server, port);
+			DatagramPacket reply = new DatagramPacket(new byte[DHCPMessage.MAXLENGTH], DHCPMessage.MAXLENGTH);
+			for(int i = 0; i < window; i++)
+				socket.send(request);
+			while(System.nanoTime() < deadline)
+			{
+				try
+				{
+					socket.receive(reply);
+					received++;
+				}
+				catch(SocketTimeoutException e)
+				{
+					// requests or replies were dropped: refill the window
+					for(int i = 0; i < window; i++)
+						socket.send(request);
+					continue;
+				}
+				socket.send(request);
+			}
+		}
+		catch(Exception e)
+		{e.printStackTrace();}
+		return received;
+	}
+}
@@ -0,0 +1,213 @@
+package DHCPBenchmark;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import DHCPHelper.Utility;
+import DHCPServer.FreeAddressSet;
+import DHCPServer.IPStorage;
+import DHCPServer.LeaseTable;
+import DHCPServer.MappedLeaseTable;
+import DHCPServer.ProcessSlots;
+
+/**
+ * Several server processes sharing one lease file: every child process reserves, allocates and releases addresses
+ * for clients of its own, one of them is killed halfway, and the others must take up its leases
+ * Afterwards every survivor prints its process slot and the address of every client it holds, its own and the ones it took up,
+ * and the parent checks that
+ * - no address is held by two processes, and every one of them is owned by its process in the lease file
+ * - no lease of the killed process is left behind
+ * - a pool opened on the file afterwards accounts for every address and takes up the leases of the survivors,
+ *   after which it has retired the slots of all the other processes, so it stops scanning the file
+ *
+ * Exits with status 1 when a check fails
+ *
+ * java -cp <classes> DHCPBenchmark.SharedPoolStress [lease file] [processes] [seconds]
+ */
+public class SharedPoolStress
+{
+	private static final int SIZE = 16384;
+	private static final int CLIENTS = 3000;
+	private static final long TIMEOUT = 1000;
+
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length > 0 && args[0].equals("child"))
+		{
+			child(Paths.get(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), Long.parseLong(args[4]));
+			return;
+		}
+		Path file = Paths.get(args.length > 0 ? args[0] : "shared-leases.bin");
+		int processes = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 6;
+		Files.deleteIfExists(file);
+		// the file is created by a pool of the parent, which gives its slot up again right away
+		open(file).close();
+
+		long end = System.currentTimeMillis() + seconds * 1000L;
+		String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+		List<Process> children = new ArrayList<>();
+		for(int child = 0; child < processes; child++)
+			children.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), SharedPoolStress.class.getName(),
+					"child", file.toString(), Integer.toString(child), Integer.toString(processes), Long.toString(end)).redirectErrorStream(true).start());
+
+		Thread.sleep(seconds * 1000L / 3);
+		Process killed = children.get(0);
+		killed.destroyForcibly().waitFor();
+		System.out.println("killed child 0");
+
+		boolean failed = false;
+		Map<Integer, Integer> holders = new HashMap<>();
+		Map<Long, Integer> leases = new HashMap<>();
+		List<Integer> survivors = new ArrayList<>();
+		for(int child = 1; child < processes; child++)
+		{
+			Process process = children.get(child);
+			int slot = -1, held = 0;
+			try(BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream())))
+			{
+				for(String line; (line = output.readLine()) != null; )
+				{
+					String[] fields = line.split(" ");
+					if(fields[0].equals("slot"))
+					{
+						slot = Integer.parseInt(fields[1]);
+						survivors.add(slot);
+						continue;
+					}
+					if(fields.length != 2)
+					{
+						System.out.println("child " + child + ": " + line);
+						continue;
+					}
+					int address = Integer.parseInt(fields[1]);
+					leases.put(Long.parseLong(fields[0]), address);
+					held++;
+					if(holders.put(address, slot) != null)
+					{
+						System.out.println("FORBIDDEN: " + Integer.toHexString(address) + " held by two processes");
+						failed = true;
+					}
+				}
+			}
+			process.waitFor();
+			System.out.printf("child %d: slot %d, %d leases%n", child, slot, held);
+		}
+
+		int first = Utility.toInt(Utility.toBytes(new int[]{128,1,0,1}));
+		int orphans = 0, foreign = 0, taken = 0;
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			MappedLeaseTable table = new MappedLeaseTable(channel, 0, first, SIZE, MappedLeaseTable.Sync.NONE, 0);
+			for(int index = 0; index < SIZE; index++)
+			{
+				if(table.state(index) == LeaseTable.FREE) continue;
+				taken++;
+				Integer holder = holders.get(first + index);
+				if(!survivors.contains(table.owner(index)))
+					orphans++;
+				else if(holder == null || holder != table.owner(index))
+					foreign++;
+			}
+		}
+		System.out.printf("lease file: %d taken, %d of the killed process left, %d not held by their owner%n", taken, orphans, foreign);
+		if(orphans > 0 || foreign > 0 || taken != holders.size())
+		{
+			System.out.println("FORBIDDEN: the lease file does not match the leases of the survivors");
+			failed = true;
+		}
+
+		IPStorage pool = open(file);
+		int free = pool.getFreeAddresses();
+		// the survivors are gone: take their leases up as well
+		pool.setHeartbeatTimeout(-1);
+		pool.update();
+		int lost = 0;
+		for(Map.Entry<Long, Integer> lease : leases.entrySet())
+			if(pool.lookUp(lease.getKey(), 0) != lease.getValue())
+				lost++;
+		int retired = 0, self = pool.getProcessSlot();
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			ProcessSlots slots = new ProcessSlots(channel, MappedLeaseTable.HEADER);
+			for(int slot = 0; slot < ProcessSlots.SLOTS; slot++)
+				if(slot != self && slots.heartbeat(slot) != 0)
+					retired++;
+		}
+		pool.close();
+		System.out.printf("process slots: %d of the other processes not retired after a full scan%n", retired);
+		if(retired > 0)
+		{
+			System.out.println("FORBIDDEN: the slots of dead processes stay in use, and the file is scanned forever");
+			failed = true;
+		}
+		System.out.printf("recovered pool: %d free + %d leased of %d, %d leases lost%n", free, taken, SIZE, lost);
+		if(free + taken != SIZE || lost > 0)
+		{
+			System.out.println("FORBIDDEN: the recovered pool does not account for every address");
+			failed = true;
+		}
+		Files.deleteIfExists(file);
+		if(failed)
+			System.exit(1);
+	}
+
+	/**
+	 * A server process: random operations on clients of its own until the given wall clock time
+	 */
+	private static void child(Path file, int id, int processes, long end) throws Exception
+	{
+		IPStorage pool = open(file);
+		pool.setHeartbeatTimeout(TIMEOUT);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long tick = System.nanoTime();
+		for(long operations = 0; ; operations++)
+		{
+			long client = (long)id << 32 | random.nextInt(CLIENTS);
+			int operation = random.nextInt(4);
+			if(operation == 0)
+				pool.release(client, 0);
+			else if(pool.reserveAddress(client, 0, 3600) != 0 && operation == 1)
+				pool.allocateAddress(client, 0);
+			if(operations % 64 == 0)
+			{
+				// the lease scheduler runs every expiry tick
+				if(System.nanoTime() - tick >= IPStorage.DEFAULTTICK)
+				{
+					pool.update();
+					tick = System.nanoTime();
+				}
+				if(System.currentTimeMillis() >= end) break;
+				Thread.sleep(0, 100_000);
+			}
+		}
+		// the leases are printed without giving the slot up: the others stop scanning at the same time
+		StringBuilder output = new StringBuilder("slot " + pool.getProcessSlot() + "\n");
+		for(long process = 0; process < processes; process++)
+			for(int client = 0; client < CLIENTS; client++)
+			{
+				int address = pool.lookUp(process << 32 | client, 0);
+				if(address != 0)
+					output.append(process << 32 | client).append(' ').append(address).append('\n');
+			}
+		System.out.print(output);
+		System.out.flush();
+		System.exit(0);
+	}
+
+	private static IPStorage open(Path file) throws Exception
+	{
+		return IPStorage.builder().size(SIZE).order(FreeAddressSet.Order.RANDOM).shards(4).leaseFile(file, MappedLeaseTable.Sync.PERIODIC)
+				.build();
+	}
+}
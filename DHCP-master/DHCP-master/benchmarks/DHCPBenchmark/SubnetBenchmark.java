@@ -0,0 +1,179 @@
+package DHCPBenchmark;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import DHCPHelper.DHCPMessage;
+import DHCPHelper.DHCPMessageView;
+import DHCPHelper.LoopbackTransport;
+import DHCPServer.DHCPServer;
+import DHCPServer.IPStorage;
+import DHCPServer.ServerConfig;
+import DHCPServer.Subnet;
+import DHCPServer.SubnetIndex;
+
+/**
+ * Pools of many subnets, selected by the relay agent address (giaddr) of a packet
+ * - the time to find the subnet of an address in a SubnetIndex of 16 to 65536 subnets, and the heap its idle pools take
+ * - a pool hands out every address of its subnet but the excluded ones
+ * - relayed DHCPDiscovers to a server with a subnets file get an address of the subnet of their relay agent,
+ *   never the address of the relay agent itself, and the ones from a subnet the server does not serve get no answer
+ * - a server with a subnets file and a lease file, a journal or replication refuses to start
+ *
+ * Exits with status 1 when an address is handed out in the wrong subnet, an excluded one or the one of a relay agent is,
+ * or such a server starts
+ *
+ * java -cp <classes> DHCPBenchmark.SubnetBenchmark
+ */
+public class SubnetBenchmark
+{
+	private static final int LOOKUPS = 10_000_000;
+
+	public static void main(String[] args) throws Exception
+	{
+		for(int count : new int[]{16, 256, 4096, 65536})
+			lookUp(count);
+		exclusions();
+		relayed();
+	}
+
+	/**
+	 * @return	the given number of /24 subnets, 10.0.0.0/24, 10.0.1.0/24 and so on, with the router (.1) excluded
+	 */
+	private static List<Subnet> subnets(int count)
+	{
+		List<Subnet> subnets = new ArrayList<>();
+		for(int i = 0; i < count; i++)
+		{
+			int network = 10 << 24 | i << 8;
+			subnets.add(new Subnet(network, 24, new int[]{network + 1, network + 1}));
+		}
+		return subnets;
+	}
+
+	/**
+	 * Find the pool of random addresses in the given number of subnets, and the heap their pools take before any address is handed out
+	 */
+	private static void lookUp(int count) throws Exception
+	{
+		Runtime runtime = Runtime.getRuntime();
+		// the garbage of the previous run collected first
+		for(int i = 0; i < 3; i++)
+			System.gc();
+		long heap = runtime.totalMemory() - runtime.freeMemory();
+		SubnetIndex index = new SubnetIndex(subnets(count), subnet -> IPStorage.builder().first(subnet.getFirstAddress()).size(subnet.getSize())
+				.exclude(subnet.getExcluded()).stripes(1).sparse(true).build());
+		System.gc();
+		heap = runtime.totalMemory() - runtime.freeMemory() - heap;
+
+		int[] addresses = new int[1 << 16];
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for(int i = 0; i < addresses.length; i++)
+			// one in eight misses every subnet
+			addresses[i] = 10 << 24 | random.nextInt(count + count / 8 + 1) << 8 | random.nextInt(256);
+		long found = 0;
+		for(int round = 0; round < 2; round++)
+		{
+			found = 0;
+			long start = System.nanoTime();
+			for(int i = 0; i < LOOKUPS; i++)
+				if(index.pool(addresses[i & (addresses.length - 1)]) != null)
+					found++;
+			if(round == 1)
+				System.out.printf("%6d subnets: %5.1f ns per lookup, %4.1f%% found, %6.0f bytes of heap per idle pool%n",
+						count, (System.nanoTime() - start) / (double)LOOKUPS, found * 100.0 / LOOKUPS, heap / (double)count);
+		}
+	}
+
+	/**
+	 * Exhaust a pool with excluded addresses
+	 */
+	private static void exclusions() throws Exception
+	{
+		Subnet subnet = Subnet.parse("192.168.7.0/28 exclude 192.168.7.1,192.168.7.10-192.168.7.12");
+		IPStorage pool = IPStorage.builder().first(subnet.getFirstAddress()).size(subnet.getSize()).exclude(subnet.getExcluded())
+				.stripes(1).sparse(true).build();
+		int free = pool.getFreeAddresses(), handedOut = 0, wrong = 0;
+		for(long client = 1; ; client++)
+		{
+			int address = pool.reserveAddress(0, client, 60);
+			if(address == 0) break;
+			handedOut++;
+			int host = address & 0xFF;
+			if(!subnet.contains(address) || host == 0 || host == 1 || host >= 10 && host <= 12 || host == 15)
+			{
+				System.out.println("handed out " + Subnet.toString(address));
+				wrong++;
+			}
+		}
+		System.out.println(subnet + " without 4 addresses: " + free + " free, " + handedOut + " handed out, " + wrong + " wrong");
+		if(wrong > 0 || handedOut != 10 || free != 10)
+			System.exit(1);
+	}
+
+	/**
+	 * DHCPDiscovers relayed from a few subnets to a server serving some of them
+	 */
+	private static void relayed() throws Exception
+	{
+		Path file = Files.createTempFile("subnets", ".txt");
+		Files.write(file, List.of("# relayed subnets", "10.20.0.0/16 exclude 10.20.0.1-10.20.0.99", "10.30.5.0/24", "172.16.0.0/30"));
+		ServerConfig config = new ServerConfig();
+		config.subnets = file.toString();
+		LoopbackTransport.Network network = new LoopbackTransport.Network(64);
+		SocketAddress server = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 1234);
+		DHCPServer dhcp = new DHCPServer("127.0.0.1", config, network.open(server));
+		Thread thread = new Thread(dhcp::run, "dhcp-server");
+		thread.setDaemon(true);
+		thread.start();
+
+		int wrong = 0;
+		try(LoopbackTransport relay = network.open())
+		{
+			byte[] discover = TemplateBenchmark.discover();
+			ByteBuffer message = ByteBuffer.wrap(discover);
+			ByteBuffer reply = ByteBuffer.allocate(DHCPMessage.MAXLENGTH);
+			String[][] relays = {{"10.20.0.1", "10.20.0.100"}, {"10.30.5.1", "10.30.5.2"}, {"172.16.0.2", "172.16.0.1"}, {"10.20.255.254", "10.20.0.101"}};
+			for(int i = 0; i < relays.length; i++)
+			{
+				// a relay agent of a subnet that is not served first: it must stay unanswered
+				message.putInt(DHCPMessageView.GATEWAYIP, Subnet.parseAddress("192.0.2.1"));
+				message.put(DHCPMessageView.CLIENTHARDWAREADDRESS + 5, (byte)(100 + i));
+				relay.send(ByteBuffer.wrap(discover), server);
+				message.putInt(DHCPMessageView.GATEWAYIP, Subnet.parseAddress(relays[i][0]));
+				message.put(DHCPMessageView.CLIENTHARDWAREADDRESS + 5, (byte)i);
+				relay.send(ByteBuffer.wrap(discover), server);
+				reply.clear();
+				relay.receive(reply);
+				String offered = Subnet.toString(reply.getInt(DHCPMessageView.YOURIP));
+				System.out.println("relayed from " + relays[i][0] + ": offered " + offered);
+				// the relay agent has its address on the subnet: offering it would be a conflict
+				if(!offered.equals(relays[i][1]) || offered.equals(relays[i][0]))
+					wrong++;
+			}
+		}
+		dhcp.close();
+
+		// the pools of the subnets are not persisted: a server that would persist its pool refuses to start
+		config.journal = file + ".journal";
+		boolean refused = false;
+		try
+		{new DHCPServer("127.0.0.1", config, network.open(server)).close();}
+		catch(IllegalArgumentException e)
+		{
+			System.out.println("with a journal: " + e.getMessage());
+			refused = true;
+		}
+		Files.delete(file);
+		System.out.println(wrong + " offers in the wrong subnet");
+		if(wrong > 0 || !refused)
+			System.exit(1);
+	}
+}
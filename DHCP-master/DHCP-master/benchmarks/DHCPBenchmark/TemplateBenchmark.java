@@ -0,0 +1,113 @@
+package DHCPBenchmark;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import DHCPHelper.DHCPEncoder;
+import DHCPHelper.DHCPMessage;
+import DHCPHelper.DHCPMessageView;
+import DHCPHelper.Utility;
+import DHCPServer.DHCPResponseTemplate;
+
+/**
+ * Compares the cost of building one DHCPOffer
+ * - rebuild: parse the request into a DHCPMessage, resolve the server IP, re-add the options, serialize
+ * - encoder: write the reply with a DHCPEncoder
+ * - template: copy the precompiled template and patch it
+ *
+ * java -cp <classes> DHCPBenchmark.TemplateBenchmark [iterations]
+ */
+public class TemplateBenchmark
+{
+	private static final String SERVERIP = "127.0.0.1";
+	private static final int YOURIP = Utility.toInt(Utility.toBytes(new int[]{128,1,0,1}));
+
+	public static void main(String[] args) throws Exception
+	{
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+		byte[] discover = discover();
+		int serverAddress = Utility.toInt(InetAddress.getByName(SERVERIP).getAddress());
+
+		byte[] request = new byte[DHCPMessage.MAXLENGTH];
+		ByteBuffer reply = ByteBuffer.allocateDirect(DHCPMessage.MAXLENGTH);
+		ByteBuffer wrapped = ByteBuffer.wrap(request);
+		DHCPMessageView view = new DHCPMessageView();
+		DHCPEncoder encoder = new DHCPEncoder();
+		DHCPResponseTemplate template = new DHCPResponseTemplate(DHCPMessage.DHCPOFFER, serverAddress);
+
+		for(int round = 0; round < 3; round++)
+		{
+			long sink = 0;
+			long start = System.nanoTime();
+			for(int i = 0; i < iterations; i++)
+				sink += rebuild(discover).length;
+			report("rebuild", start, iterations, sink);
+
+			start = System.nanoTime();
+			for(int i = 0; i < iterations; i++)
+			{
+				System.arraycopy(discover, 0, request, 0, discover.length);
+				view.wrap(wrapped, discover.length);
+				sink += encoder.replyTo(view, reply)
+						.yourIP(YOURIP)
+						.serverIP(serverAddress)
+						.option(53, DHCPMessage.DHCPOFFER)
+						.option(54, serverAddress)
+						.option(51, view.optionInt(view.findOption(51, 4)))
+						.end();
+			}
+			report("encoder", start, iterations, sink);
+
+			start = System.nanoTime();
+			for(int i = 0; i < iterations; i++)
+			{
+				System.arraycopy(discover, 0, request, 0, discover.length);
+				view.wrap(wrapped, discover.length);
+				sink += template.render(view, reply, YOURIP, view.optionInt(view.findOption(51, 4)));
+			}
+			report("template", start, iterations, sink);
+		}
+	}
+
+	/**
+	 * The reply path as it was before templates: decode, resolve, rebuild and serialize
+	 */
+	private static byte[] rebuild(byte[] discover) throws Exception
+	{
+		DHCPMessage message = new DHCPMessage(discover);
+		message.opCode = DHCPMessage.BOOTREPLY;
+		int leaseDuration = Utility.toInt(message.getOptionData((byte)51));
+		message.yourIP = Utility.toByteArray(YOURIP);
+		message.serverIP = InetAddress.getByName(SERVERIP).getAddress();
+		message.resetoptions();
+		message.addOption((byte)53, (byte)1, new byte[]{DHCPMessage.DHCPOFFER});
+		message.addOption((byte)54, (byte)4, message.serverIP);
+		message.addOption((byte)51, (byte)4, Utility.toByteArray(leaseDuration));
+		message.addOption((byte)255, (byte)0, Utility.toBytes(new int[]{0}));
+		return message.retrieveBytes();
+	}
+
+	/**
+	 * @return a DHCPDiscover as sent by DHCPClient
+	 */
+	static byte[] discover()
+	{
+		DHCPMessage message = new DHCPMessage();
+		message.opCode = DHCPMessage.BOOTREQUEST;
+		message.hardWareType = DHCPMessage.ETHERNET;
+		message.hardWareAddressLength = 6;
+		message.transactionID = Utility.toByteArray(0x12345678);
+		message.clientHardWareAddress = Utility.toBytes(new int[]{0,0x1b,0x21,0x3c,0x4d,0x5e,0,0,0,0,0,0,0,0,0,0});
+		message.magicCookie = DHCPMessage.COOKIE;
+		message.addOption((byte)53, (byte)1, new byte[]{DHCPMessage.DHCPDISCOVER});
+		message.addOption((byte)51, (byte)4, Utility.toByteArray(60));
+		message.addOption((byte)255, (byte)0, Utility.toBytes(new int[]{0}));
+		return message.retrieveBytes();
+	}
+
+	private static void report(String name, long start, int iterations, long sink)
+	{
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("%-10s %8.1f ns/op   (%d)%n", name, (double)elapsed / iterations, sink & 1);
+	}
+}
@@ -1,10 +1,10 @@
 package DHCPClient;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
+import java.net.SocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
@@ -15,6 +15,8 @@ import java.util.Scanner;
 import DHCPHelper.Utility;
 import DHCPHelper.DHCPMessage;
 import DHCPHelper.DHCPoption;
+import DHCPHelper.Transport;
+import DHCPHelper.UdpTransport;
 
 /**
  * This DHCPClient will send and receive messages with the target of receiving and allocating an IP-address
@@ -30,7 +32,7 @@ public class DHCPClient
 	public final byte MACLENGTH = 6;
 	public final int leaseDuration = 60; 
 	public InetAddress IPServer; 
-	private DatagramSocket clientSocket;
+	private Transport transport;
 	private byte[] IPAllocated = new byte[4];
 	
 	// Choose the IP-address in use
@@ -43,6 +45,16 @@ public class DHCPClient
 	 * This method will be called by MainClient to initialize the client
 	 */
 	public  DHCPClient(String serverIP)
+	{
+		this(serverIP, null);
+	}
+	
+	/**
+	 * Initialize the client on the given transport
+	 * @param serverIP
+	 * @param transport		The transport to talk to the server over, null to open a UDP socket
+	 */
+	public  DHCPClient(String serverIP, Transport transport)
 	{
 		System.out.print("Initialization of the client started\n");
 		try 
@@ -50,10 +62,10 @@ public class DHCPClient
 			IPServerString = serverIP;
 			IPInUse = IPServerString;
 			macAddress = getMacAddress();
-			clientSocket = new DatagramSocket();
+			this.transport = transport != null ? transport : new UdpTransport();
 			System.out.println("Initialization of the client completed\n");
 		} 
-		catch (SocketException e) 
+		catch (IOException e) 
 		{
 			e.printStackTrace();
 		}
@@ -77,12 +89,12 @@ public class DHCPClient
 		
 		// Listen for DHCPOffer (2)
 		byte[] buffer = new byte[576];
-		int length = buffer.length;
-		DatagramPacket receivePacketOffer = new DatagramPacket(buffer,length);
+		ByteBuffer receiveBuffer = ByteBuffer.wrap(buffer);
+		SocketAddress sender = null;
 		try 
 		{
-			clientSocket.receive(receivePacketOffer);
-			System.out.print("Client receives packet with a size of " + receivePacketOffer.getLength() + "\n");
+			sender = transport.receive(receiveBuffer);
+			System.out.print("Client receives packet with a size of " + receiveBuffer.position() + "\n");
 		}
 		catch (IOException e) 
 		{
@@ -90,19 +102,19 @@ public class DHCPClient
 		}
 		
 		// Receive a message
-		Utility.printDataBytes(receivePacketOffer.getData());
-		DHCPMessage message = new DHCPMessage(receivePacketOffer.getData());
+		Utility.printDataBytes(buffer);
+		DHCPMessage message = new DHCPMessage(buffer);
 		System.out.println(message);
 		
 		// Send DHCPDiscover (3)
-		DHCPRequest(receivePacketOffer);
+		DHCPRequest(buffer, sender);
 		
 		// Listen for DHCPAck OR DHCPNak (4)
-		DatagramPacket receivePacketAck = new DatagramPacket(buffer,length);
+		receiveBuffer.clear();
 		try 
 		{
-			clientSocket.receive(receivePacketAck);
-			System.out.print("Client receives packet with a size of " + receivePacketAck.getLength() + "\n");
+			transport.receive(receiveBuffer);
+			System.out.print("Client receives packet with a size of " + receiveBuffer.position() + "\n");
 		}
 		catch (IOException e) 
 		{
@@ -110,8 +122,8 @@ public class DHCPClient
 		}
 		
 		
-		Utility.printDataBytes(receivePacketAck.getData());
-		DHCPMessage message2 = new DHCPMessage(receivePacketAck.getData());
+		Utility.printDataBytes(buffer);
+		DHCPMessage message2 = new DHCPMessage(buffer);
 		System.out.println(message2);
 		
 		//Determine DHCPAck OR DHCPNak
@@ -142,7 +154,10 @@ public class DHCPClient
 		}
 		
 		// Close the socket
-		clientSocket.close();	
+		try 
+		{transport.close();} 
+		catch (IOException e) 
+		{e.printStackTrace();}
 	}	
 	
 	/**
@@ -221,8 +236,7 @@ public class DHCPClient
 			
 			// Send the message in bytes in no-broadcast to the server allocated above
 			IPServer = InetAddress.getByName(IPInUse);
-			DatagramPacket sendingPacket = new DatagramPacket(message.retrieveBytes(), message.getLength(), IPServer, portServer);
-			clientSocket.send(sendingPacket);	
+			send(message, new InetSocketAddress(IPServer, portServer));
 			
 			System.out.println("DHCPDiscover sent\n");
 		} 
@@ -231,13 +245,14 @@ public class DHCPClient
 	
 	/**
 	 * Build and send a DHCPRequest based on the given DHCPOffer message
-	 * @param receivePacket		The received DHCPOffer
+	 * @param offer		The received DHCPOffer
+	 * @param sender	The address the DHCPOffer came from
 	 */
-	public  void DHCPRequest(DatagramPacket receivePacket){
+	public  void DHCPRequest(byte[] offer, SocketAddress sender){
 		try
 		{
 			System.out.print("Building DHCP request \n");
-			DHCPMessage message = new DHCPMessage(receivePacket.getData());
+			DHCPMessage message = new DHCPMessage(offer);
 			
 			message.opCode = DHCPMessage.BOOTREQUEST;
 
@@ -267,9 +282,8 @@ public class DHCPClient
 			
 			// Send the message to the server
 			IPServer = InetAddress.getByAddress(message.serverIP);
-			int portServer = receivePacket.getPort();
-			DatagramPacket sendingPacket = new DatagramPacket(message.retrieveBytes(), message.getLength(), IPServer, portServer);
-			clientSocket.send(sendingPacket);	
+			int portServer = ((InetSocketAddress)sender).getPort();
+			send(message, new InetSocketAddress(IPServer, portServer));
 			System.out.println("DHCPRequest sent\n");
 		}
 		catch(Exception e){e.printStackTrace();}
@@ -350,13 +364,23 @@ public class DHCPClient
 			
 			// Send the message to the server
 			IPServer = InetAddress.getByName(IPInUse);
-			DatagramPacket sendingPacket = new DatagramPacket(message.retrieveBytes(), message.getLength(), IPServer, portServer);
-			clientSocket.send(sendingPacket);	
+			send(message, new InetSocketAddress(IPServer, portServer));
 			System.out.println("DHCPRelease sent\n");
 		}
 		catch(Exception e){e.printStackTrace();}
 	}
 	
+	/**
+	 * Send the given message to the given address
+	 * @param message
+	 * @param target
+	 * @throws IOException
+	 */
+	private void send(DHCPMessage message, SocketAddress target) throws IOException
+	{
+		transport.send(ByteBuffer.wrap(message.retrieveBytes(), 0, message.getLength()), target);
+	}
+	
 	public static int[] getMacAddress() {
 		byte[] byteMacAddress = null;
 		int intMacAddress[] = new int[16];
@@ -0,0 +1,135 @@
+package DHCPHelper;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a DHCP reply straight into a caller supplied ByteBuffer (heap or direct)
+ * No intermediate arrays are created, so a worker can keep one encoder and one buffer
+ * and generate replies without producing garbage
+ *
+ * A reply is built into a buffer of its own (replyTo), so the request stays readable while it is written
+ */
+public class DHCPEncoder
+{
+	private ByteBuffer buffer;
+	private int position;
+
+	/**
+	 * Start a reply to the given request in a separate buffer
+	 * The fixed header of the request is copied, the options are not
+	 * @param 	request		The received request
+	 * @param 	destination	The buffer to write the reply in (at least MAXLENGTH bytes)
+	 * @return	this encoder
+	 */
+	public DHCPEncoder replyTo(DHCPMessageView request, ByteBuffer destination)
+	{
+		buffer = destination;
+		buffer.put(0, request.buffer(), 0, DHCPMessageView.OPTIONS);
+		buffer.put(DHCPMessageView.OPCODE, DHCPMessage.BOOTREPLY);
+		position = DHCPMessageView.OPTIONS;
+		return this;
+	}
+
+	/**
+	 * Start a message from scratch in the given buffer: all header fields zero, magic cookie set
+	 * @param 	destination	The buffer to write the message in (at least MAXLENGTH bytes)
+	 * @param 	opCode		BOOTREQUEST or BOOTREPLY
+	 * @return	this encoder
+	 */
+	public DHCPEncoder begin(ByteBuffer destination, byte opCode)
+	{
+		buffer = destination;
+		for(int i = 0; i < DHCPMessageView.MAGICCOOKIE; i += 4)
+			buffer.putInt(i, 0);
+		buffer.put(DHCPMessageView.OPCODE, opCode);
+		buffer.putInt(DHCPMessageView.MAGICCOOKIE, Utility.toInt(DHCPMessage.COOKIE));
+		position = DHCPMessageView.OPTIONS;
+		return this;
+	}
+
+	/**
+	 * Set a 4 byte header field (ciaddr, yiaddr, siaddr, giaddr, xid)
+	 * @param 	offset	The offset of the field, see DHCPMessageView
+	 * @param 	value
+	 * @return	this encoder
+	 */
+	public DHCPEncoder field(int offset, int value)
+	{
+		buffer.putInt(offset, value);
+		return this;
+	}
+
+	public DHCPEncoder yourIP(int ip)
+	{
+		return field(DHCPMessageView.YOURIP, ip);
+	}
+
+	public DHCPEncoder serverIP(int ip)
+	{
+		return field(DHCPMessageView.SERVERIP, ip);
+	}
+
+	/**
+	 * Append an option with a one byte value
+	 * @param code
+	 * @param value
+	 * @return	this encoder
+	 */
+	public DHCPEncoder option(int code, byte value)
+	{
+		buffer.put(position, (byte)code);
+		buffer.put(position + 1, (byte)1);
+		buffer.put(position + 2, value);
+		position += 3;
+		return this;
+	}
+
+	/**
+	 * Append an option with a four byte value (an address or a duration)
+	 * @param code
+	 * @param value
+	 * @return	this encoder
+	 */
+	public DHCPEncoder option(int code, int value)
+	{
+		buffer.put(position, (byte)code);
+		buffer.put(position + 1, (byte)4);
+		buffer.putInt(position + 2, value);
+		position += 6;
+		return this;
+	}
+
+	/**
+	 * Append an option with the given value
+	 * @param code
+	 * @param data
+	 * @return	this encoder
+	 */
+	public DHCPEncoder option(int code, byte[] data)
+	{
+		buffer.put(position, (byte)code);
+		buffer.put(position + 1, (byte)data.length);
+		buffer.put(position + 2, data);
+		position += 2 + data.length;
+		return this;
+	}
+
+	/**
+	 * Close the option zone with option 255
+	 * @return	the length of the encoded message in bytes
+	 */
+	public int end()
+	{
+		buffer.put(position, (byte)DHCPOptionIndex.END);
+		position++;
+		return position;
+	}
+
+	/**
+	 * @return the number of bytes written so far
+	 */
+	public int position()
+	{
+		return position;
+	}
+}
@@ -1,5 +1,6 @@
 package DHCPHelper;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 /**
@@ -120,11 +121,17 @@ public class DHCPMessage
      */
     public void addOption(byte Code, byte Length, byte[] Data){
     	DHCPoption newoption = new DHCPoption(Code, Length, Data);
+    	optionIndex.put(Code, options.size());
     	options.add(newoption);
     }
     
     public ArrayList<DHCPoption> options = new ArrayList<>();
     
+    /**
+     * Position in options of the first option with a given code, kept up to date by addOption and resetoptions
+     */
+    private final DHCPOptionIndex optionIndex = new DHCPOptionIndex();
+    
     public final static int MINLENGTH = 240;   
     public final static int MAXLENGTH = 576;
     
@@ -194,13 +201,7 @@ public class DHCPMessage
     	j += magicCookie.length;
     		
     	if(j < buffer.length-1)
-    	{
-	    	int k = buffer.length - j;
-	    	byte[] bufferedoptions = new byte[k];
-	    	for(int i = 0; i < k; i++)
-	    		bufferedoptions[i] = buffer[j+i];
-	    	createOptions(bufferedoptions); 
-    	}
+	    	createOptions(buffer, j);
     }
     
     /**
@@ -221,39 +222,40 @@ public class DHCPMessage
      */
     public byte getType()
     {
-    	for(DHCPoption opt : options)
-    		if(opt.getCode() == 53 && opt.getLength() == 1) return opt.getData()[0];
-    	return 0;
+    	int position = optionIndex.get(53);
+    	if(position < 0) return 0;
+    	DHCPoption opt = options.get(position);
+    	return opt.getLength() == 1 ? opt.getData()[0] : 0;
     }
     
     /**
-     * Create an option in this message that matches the representation in the given list of bytes
-     * (if possible: matching length, ...)
-     * @param 	Buffer (option in bytes)
+     * Create the options in this message that match the representation in the given list of bytes
+     * The option zone is walked once: PAD bytes are skipped, END closes the zone
+     * and an option running past the end of the buffer stops the walk
+     * @param 	buffer	(message in bytes)
+     * @param 	start	(offset of the first option)
      */
-    private void createOptions(byte[] Buffer){
-    	//1 byte geeft error bij checken buffer.length ==0, want outofbound
-    	//2 bytes minimaal aantal bytes :: bv. 2(=code) 0(lengte)
-    	if(Buffer[0] == (byte)255)
+    private void createOptions(byte[] buffer, int start){
+    	int i = start;
+    	while(i < buffer.length)
     	{
-    		byte opCode = (byte) 255;
-    		byte length= (byte) 0;
-    		byte[] data = {0};
-    		addOption(opCode, length, data);
-    		return;
+    		byte code = buffer[i];
+    		if(code == DHCPOptionIndex.PAD)
+    		{
+    			i++;
+    			continue;
+    		}
+    		if(code == (byte)DHCPOptionIndex.END)
+    		{
+    			addOption(code, (byte)0, new byte[]{0});
+    			return;
+    		}
+    		if(i + 1 >= buffer.length) return;
+    		int length = buffer[i + 1] & 0xFF;
+    		if(i + 2 + length > buffer.length) return;
+    		addOption(code, (byte)length, Arrays.copyOfRange(buffer, i + 2, i + 2 + length));
+    		i += 2 + length;
     	}
-    	byte option = Buffer[0];
-    	byte length = Buffer[1];
-    	int k = length+2;
-    	byte[] data = new byte[length];
-    	for(int i=0; i<length; i++)
-    		data[i] = Buffer[i+2];
-    	addOption(option, length, data);
-    	int l = Buffer.length - k;
-    	byte[] topass = new byte[l];
-    	for(int i=0; i<l; i++)
-    		topass[i] = Buffer[k+i];
-    	createOptions(topass);
     }
     
     /**
@@ -262,64 +264,39 @@ public class DHCPMessage
     public byte[] retrieveBytes()
     {
     	byte[] toReturn = new byte[getLength() + 1];
+    	writeTo(ByteBuffer.wrap(toReturn));
+    	return toReturn;	
+    }
+    
+    /**
+     * Write the bytes that represent this message in the DHCP standards into the given buffer,
+     * starting at its position and advancing it
+     * @param 	destination
+     * @return	the number of bytes written
+     */
+    public int writeTo(ByteBuffer destination)
+    {
+    	int start = destination.position();
+    	destination.put(opCode);
+    	destination.put(hardWareType);
+    	destination.put(hardWareAddressLength);
+    	destination.put(hopCount);
+    	destination.put(transactionID);
+    	destination.put(secs);
+    	destination.put(flags);
+    	destination.put(clientIP);
+    	destination.put(yourIP);
+    	destination.put(serverIP);
+    	destination.put(gateWayIP);
+    	destination.put(clientHardWareAddress);
+    	destination.put(serverHostName);
+    	destination.put(bootFileName);
+    	destination.put(magicCookie);
     	
-    	toReturn[0] = opCode;
-    	toReturn[1] = hardWareType;
-    	toReturn[2] = hardWareAddressLength;;
-    	toReturn[3] = hopCount;
-    	
-    	int j = 4;
-    	
-    	for(int i = 0; i < transactionID.length; i++)
-    		toReturn[i + j] = transactionID[i];
-    	j += transactionID.length;
-    	
-    	for(int i = 0; i < secs.length; i++)
-    		toReturn[i + j] = secs[i];
-    	j += secs.length;
-    	
-    	for(int i = 0; i < flags.length; i++)
-    		toReturn[i + j] = flags[i];
-    	j += flags.length;
-    	
-    	for(int i = 0; i < clientIP.length; i++)
-    		toReturn[i + j] = clientIP[i];
-    	j += clientIP.length;
-    	
-    	for(int i = 0; i < yourIP.length; i++)
-    		toReturn[i + j] = yourIP[i];
-    	j += yourIP.length;
-    	
-    	for(int i = 0; i < serverIP.length; i++)
-    		toReturn[i + j] = serverIP[i];
-    	j += serverIP.length;
-    	
-    	for(int i = 0; i < gateWayIP.length; i++)
-    		toReturn[i + j] = gateWayIP[i];
-    	j += gateWayIP.length;
-    	
-    	for(int i = 0; i < clientHardWareAddress.length; i++)
-    		toReturn[i + j] = clientHardWareAddress[i];
-    	j += clientHardWareAddress.length;
-    	
-    	for(int i = 0; i < serverHostName.length; i++)
-    		toReturn[i + j] = serverHostName[i];
-    	j += serverHostName.length;
-    	
-    	for(int i = 0; i < bootFileName.length; i++)
-    		toReturn[i + j] = bootFileName[i];
-    	j += bootFileName.length;
-    	
-    	for(int i = 0; i < magicCookie.length; i++)
-    		toReturn[i + j] = magicCookie[i];
-    	j += magicCookie.length;
+    	for(int i = 0; i < options.size(); i++)
+    		options.get(i).writeTo(destination);
     	
-    	for(int i = 0; i < options.size(); i++){
-    		System.arraycopy(options.get(i).getBytes(), 0, toReturn, j, options.get(i).getTotalLength());
-    		j += options.get(i).getTotalLength();
-    	}
-
-    	return toReturn;	
+    	return destination.position() - start;
     }
     
     /**
@@ -366,6 +343,7 @@ public class DHCPMessage
 	 */
 	public void resetoptions() {
 		options.clear();
+		optionIndex.clear();
 	}
 	
 	/**
@@ -375,11 +353,7 @@ public class DHCPMessage
 	 */
 	public byte[] getOptionData(byte opCode)
 	{
-		for(DHCPoption opt : options)
-		{
-			if(opt.getCode() == opCode)
-				return opt.getData();
-		}
-		return null;
+		int position = optionIndex.get(opCode);
+		return position < 0 ? null : options.get(position).getData();
 	}
 }
@@ -0,0 +1,236 @@
+package DHCPHelper;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only flyweight view over a DHCP message held in a ByteBuffer
+ * Every field is read straight from its fixed offset in the buffer, nothing is copied,
+ * so a single view can be re-wrapped around every packet the server receives
+ *
+ * The buffer must be in network (big endian) order, which is the default for a ByteBuffer
+ */
+public class DHCPMessageView
+{
+	/**
+	 * Offsets of the fixed header fields
+	 */
+	public final static int OPCODE = 0;
+	public final static int HARDWARETYPE = 1;
+	public final static int HARDWAREADDRESSLENGTH = 2;
+	public final static int HOPCOUNT = 3;
+	public final static int TRANSACTIONID = 4;
+	public final static int SECS = 8;
+	public final static int FLAGS = 10;
+	public final static int CLIENTIP = 12;
+	public final static int YOURIP = 16;
+	public final static int SERVERIP = 20;
+	public final static int GATEWAYIP = 24;
+	public final static int CLIENTHARDWAREADDRESS = 28;
+	public final static int SERVERHOSTNAME = 44;
+	public final static int BOOTFILENAME = 108;
+	public final static int MAGICCOOKIE = 236;
+	public final static int OPTIONS = 240;
+
+	private final static int COOKIE = 0x63825363;
+
+	private ByteBuffer buffer;
+	private int length;
+	private final DHCPOptionIndex optionIndex = new DHCPOptionIndex();
+
+	/**
+	 * Point this view at the message in the first length bytes of the given buffer
+	 * @param 	buffer	The buffer holding the message
+	 * @param 	length	The number of valid bytes in the buffer
+	 * @return	this view
+	 */
+	public DHCPMessageView wrap(ByteBuffer buffer, int length)
+	{
+		this.buffer = buffer;
+		this.length = Math.min(length, buffer.capacity());
+		if(this.length > OPTIONS)
+			optionIndex.scan(buffer, OPTIONS, this.length);
+		else
+			optionIndex.clear();
+		return this;
+	}
+
+	/**
+	 * @return the buffer this view reads from
+	 */
+	public ByteBuffer buffer()
+	{
+		return buffer;
+	}
+
+	/**
+	 * @return the number of valid bytes in the wrapped message
+	 */
+	public int length()
+	{
+		return length;
+	}
+
+	/**
+	 * @return if the message is long enough to hold the fixed header and carries the magic cookie
+	 */
+	public boolean isValid()
+	{
+		return length >= DHCPMessage.MINLENGTH && buffer.getInt(MAGICCOOKIE) == COOKIE;
+	}
+
+	public byte opCode()
+	{
+		return buffer.get(OPCODE);
+	}
+
+	public byte hardWareType()
+	{
+		return buffer.get(HARDWARETYPE);
+	}
+
+	public byte hardWareAddressLength()
+	{
+		return buffer.get(HARDWAREADDRESSLENGTH);
+	}
+
+	public byte hopCount()
+	{
+		return buffer.get(HOPCOUNT);
+	}
+
+	public int xid()
+	{
+		return buffer.getInt(TRANSACTIONID);
+	}
+
+	public int secs()
+	{
+		return buffer.getShort(SECS) & 0xFFFF;
+	}
+
+	public int flags()
+	{
+		return buffer.getShort(FLAGS) & 0xFFFF;
+	}
+
+	public int ciaddr()
+	{
+		return buffer.getInt(CLIENTIP);
+	}
+
+	public int yiaddr()
+	{
+		return buffer.getInt(YOURIP);
+	}
+
+	public int siaddr()
+	{
+		return buffer.getInt(SERVERIP);
+	}
+
+	public int giaddr()
+	{
+		return buffer.getInt(GATEWAYIP);
+	}
+
+	/**
+	 * @param 	i	Index in the 16 byte client hardware address
+	 * @return	the byte of the client hardware address at the given index
+	 */
+	public byte chaddr(int i)
+	{
+		return buffer.get(CLIENTHARDWAREADDRESS + i);
+	}
+
+	/**
+	 * @return the first 8 bytes of the client hardware address packed in a long
+	 */
+	public long chaddrHigh()
+	{
+		return buffer.getLong(CLIENTHARDWAREADDRESS);
+	}
+
+	/**
+	 * @return the last 8 bytes of the client hardware address packed in a long
+	 */
+	public long chaddrLow()
+	{
+		return buffer.getLong(CLIENTHARDWAREADDRESS + 8);
+	}
+
+	/**
+	 * Copy the client hardware address into the given array of (at least) 16 bytes
+	 * @param destination
+	 */
+	public void copyClientHardWareAddress(byte[] destination)
+	{
+		buffer.get(CLIENTHARDWAREADDRESS, destination, 0, 16);
+	}
+
+	/**
+	 * Look for the given option in the option zone of the message
+	 * @param 	code	The code of the option
+	 * @return	the offset in the buffer of the option's data, or -1 if the option is not present
+	 */
+	public int findOption(int code)
+	{
+		return optionIndex.get(code);
+	}
+
+	/**
+	 * Look for the given option with at least the given length of data; a shorter one is malformed and taken as absent
+	 * @param 	code	The code of the option
+	 * @param 	length	The number of bytes of data the option needs
+	 * @return	the offset in the buffer of the option's data, or -1 if the option is not present or too short
+	 */
+	public int findOption(int code, int length)
+	{
+		int offset = optionIndex.get(code);
+		return offset < 0 || optionLength(offset) < length ? -1 : offset;
+	}
+	
+	/**
+	 * @return the offset of the END option, -1 if the message has none
+	 */
+	public int endOfOptions()
+	{
+		return optionIndex.end();
+	}
+
+	/**
+	 * @param 	offset	Offset of the option's data as returned by findOption
+	 * @return	the length of the option's data
+	 */
+	public int optionLength(int offset)
+	{
+		return buffer.get(offset - 1) & 0xFF;
+	}
+
+	/**
+	 * @param 	offset	Offset of the option's data as returned by findOption
+	 * @return	the first byte of the option's data
+	 */
+	public byte optionByte(int offset)
+	{
+		return buffer.get(offset);
+	}
+
+	/**
+	 * @param 	offset	Offset of the option's data as returned by findOption
+	 * @return	the first four bytes of the option's data as an int, the option being found with findOption(code, 4)
+	 */
+	public int optionInt(int offset)
+	{
+		return buffer.getInt(offset);
+	}
+
+	/**
+	 * @return the type of option 53 (length 1), 0 if there is none
+	 */
+	public byte getType()
+	{
+		int offset = findOption(53);
+		if(offset < 0 || optionLength(offset) != 1) return 0;
+		return buffer.get(offset);
+	}
+}
@@ -0,0 +1,118 @@
+package DHCPHelper;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Index from option code to the offset of that option's data in a message
+ * The option zone is scanned once, iteratively and bounds-checked, after which every lookup is O(1)
+ *
+ * Entries are stamped with a generation so that clearing the index for the next message
+ * does not have to touch all 256 slots
+ */
+public class DHCPOptionIndex
+{
+	public final static int PAD = 0;
+	public final static int END = 255;
+
+	private final int[] offsets = new int[256];
+	private final int[] generations = new int[256];
+	private int generation = 1;
+	private int end = -1;
+	private boolean truncated;
+
+	/**
+	 * Scan the options between start and end in the given buffer
+	 * PAD bytes are skipped, END stops the scan, an option running past the end stops the scan and marks it truncated
+	 * When an option code appears more than once, the first occurrence is indexed
+	 * @param 	buffer	The buffer holding the message
+	 * @param 	start	Offset of the first option
+	 * @param 	limit	Offset right after the last valid byte
+	 * @return	this index
+	 */
+	public DHCPOptionIndex scan(ByteBuffer buffer, int start, int limit)
+	{
+		clear();
+		int i = start;
+		while(i < limit)
+		{
+			int code = buffer.get(i) & 0xFF;
+			if(code == PAD)
+			{
+				i++;
+				continue;
+			}
+			if(code == END)
+			{
+				end = i;
+				return this;
+			}
+			if(i + 1 >= limit)
+				break;
+			int length = buffer.get(i + 1) & 0xFF;
+			if(i + 2 + length > limit)
+				break;
+			if(generations[code] != generation)
+			{
+				generations[code] = generation;
+				offsets[code] = i + 2;
+			}
+			i += 2 + length;
+		}
+		truncated = i < limit;
+		return this;
+	}
+
+	/**
+	 * Forget all indexed options
+	 */
+	public void clear()
+	{
+		if(++generation == 0)
+		{
+			Arrays.fill(generations, 0);
+			generation = 1;
+		}
+		end = -1;
+		truncated = false;
+	}
+
+	/**
+	 * Register the option with the given code at the given offset, unless it is already present
+	 * @param code
+	 * @param offset
+	 */
+	public void put(int code, int offset)
+	{
+		code &= 0xFF;
+		if(generations[code] == generation) return;
+		generations[code] = generation;
+		offsets[code] = offset;
+	}
+
+	/**
+	 * @param 	code	The option code
+	 * @return	the offset of the option's data, -1 if the option is not present
+	 */
+	public int get(int code)
+	{
+		code &= 0xFF;
+		return generations[code] == generation ? offsets[code] : -1;
+	}
+
+	/**
+	 * @return the offset of the END option, -1 if the scan did not meet one
+	 */
+	public int end()
+	{
+		return end;
+	}
+
+	/**
+	 * @return if the last scan stopped on an option running past the end of the message
+	 */
+	public boolean isTruncated()
+	{
+		return truncated;
+	}
+}
@@ -1,5 +1,6 @@
 package DHCPHelper;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 /**
  * This DHCPoption represent one option with an option code, length and value (data)
@@ -63,6 +64,16 @@ public class DHCPoption {
 		return tosend;
 	}
 	
+	/**
+	 * Write the whole option as it will be represented in a DHCP-message into the given buffer
+	 * @param destination
+	 */
+	public void writeTo(ByteBuffer destination){
+		destination.put(Code);
+		destination.put(Length);
+		destination.put(Data, 0, Length & 0xFF);
+	}
+	
 	/**
 	 * @return a string representing this option
 	 * @override standard toString()
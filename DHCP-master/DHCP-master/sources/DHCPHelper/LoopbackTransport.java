@@ -0,0 +1,194 @@
+package DHCPHelper;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory transport between endpoints of the same Network, without sockets or the kernel
+ * Every endpoint has a bounded lock-free inbox of preallocated message slots (a Vyukov MPMC ring):
+ * send copies the message into a free slot of the target's inbox, receive copies it out again
+ * A message to a full inbox or to an unknown address is dropped, as UDP would
+ */
+public class LoopbackTransport implements Transport
+{
+	/**
+	 * A set of endpoints that can reach each other by address
+	 */
+	public static class Network
+	{
+		private final ConcurrentHashMap<SocketAddress, LoopbackTransport> endpoints = new ConcurrentHashMap<>();
+		private final AtomicInteger nextPort = new AtomicInteger(49152);
+		private final int capacity;
+		
+		/**
+		 * @param capacity	Number of messages every inbox can hold (rounded up to a power of two)
+		 */
+		public Network(int capacity)
+		{
+			this.capacity = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+		}
+		
+		/**
+		 * Open an endpoint on the given address
+		 * @param 	address
+		 * @return	the endpoint
+		 * @throws	IOException if the address is in use
+		 */
+		public LoopbackTransport open(SocketAddress address) throws IOException
+		{
+			LoopbackTransport endpoint = new LoopbackTransport(this, address, capacity);
+			if(endpoints.putIfAbsent(address, endpoint) != null)
+				throw new IOException("Address already in use: " + address);
+			return endpoint;
+		}
+		
+		/**
+		 * Open an endpoint on the given port of the loopback address
+		 * @param port
+		 * @return	the endpoint
+		 * @throws	IOException if the port is in use
+		 */
+		public LoopbackTransport open(int port) throws IOException
+		{
+			return open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		}
+		
+		/**
+		 * Open an endpoint on a free port of the loopback address
+		 * @return	the endpoint
+		 * @throws	IOException
+		 */
+		public LoopbackTransport open() throws IOException
+		{
+			while(true)
+			{
+				try
+				{return open(nextPort.getAndIncrement());}
+				catch(IOException e)
+				{}
+			}
+		}
+	}
+	
+	private final Network network;
+	private final SocketAddress address;
+	private volatile boolean closed;
+	
+	// inbox
+	private final int mask;
+	private final byte[] messages;
+	private final int[] lengths;
+	private final LoopbackTransport[] senders;
+	private final AtomicLongArray sequences;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	
+	private LoopbackTransport(Network network, SocketAddress address, int capacity)
+	{
+		this.network = network;
+		this.address = address;
+		mask = capacity - 1;
+		messages = new byte[capacity * DHCPMessage.MAXLENGTH];
+		lengths = new int[capacity];
+		senders = new LoopbackTransport[capacity];
+		sequences = new AtomicLongArray(capacity);
+		for(int i = 0; i < capacity; i++)
+			sequences.set(i, i);
+	}
+	
+	@Override
+	public SocketAddress receive(ByteBuffer destination) throws IOException
+	{
+		int idle = 0;
+		while(true)
+		{
+			if(closed) throw new AsynchronousCloseException();
+			long position = head.get();
+			int slot = (int)position & mask;
+			long difference = sequences.get(slot) - (position + 1);
+			if(difference == 0)
+			{
+				if(!head.compareAndSet(position, position + 1)) continue;
+				int length = Math.min(lengths[slot], destination.remaining());
+				destination.put(messages, slot * DHCPMessage.MAXLENGTH, length);
+				SocketAddress sender = senders[slot].address;
+				senders[slot] = null;
+				sequences.set(slot, position + mask + 1);
+				return sender;
+			}
+			if(difference < 0)
+				idle = backOff(idle);
+		}
+	}
+	
+	/**
+	 * Wait a little longer every time the inbox is found empty: spin, then yield, then park
+	 */
+	private static int backOff(int idle)
+	{
+		if(idle < 100) Thread.onSpinWait();
+		else if(idle < 200) Thread.yield();
+		else LockSupport.parkNanos(20_000);
+		return idle + 1;
+	}
+	
+	@Override
+	public int send(ByteBuffer source, SocketAddress target) throws IOException
+	{
+		if(closed) throw new AsynchronousCloseException();
+		LoopbackTransport receiver = network.endpoints.get(target);
+		int length = source.remaining();
+		if(receiver == null || length > DHCPMessage.MAXLENGTH || !receiver.deliver(source, this))
+			return 0;
+		return length;
+	}
+	
+	/**
+	 * Copy the given message into a free slot of this inbox
+	 * @return	false if the inbox is full
+	 */
+	private boolean deliver(ByteBuffer source, LoopbackTransport sender)
+	{
+		long position = tail.get();
+		int slot;
+		while(true)
+		{
+			slot = (int)position & mask;
+			long difference = sequences.get(slot) - position;
+			if(difference == 0)
+			{
+				if(tail.compareAndSet(position, position + 1)) break;
+			}
+			else if(difference < 0)
+				return false;
+			position = tail.get();
+		}
+		lengths[slot] = source.remaining();
+		source.get(messages, slot * DHCPMessage.MAXLENGTH, lengths[slot]);
+		senders[slot] = sender;
+		sequences.set(slot, position + 1);
+		return true;
+	}
+	
+	@Override
+	public SocketAddress getLocalAddress()
+	{
+		return address;
+	}
+	
+	@Override
+	public void close()
+	{
+		closed = true;
+		network.endpoints.remove(address, this);
+	}
+}
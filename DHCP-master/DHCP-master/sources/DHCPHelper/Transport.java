@@ -0,0 +1,35 @@
+package DHCPHelper;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * The way DHCP messages travel between a client and a server
+ * Datagram semantics: a message is delivered whole or not at all, and may be dropped
+ */
+public interface Transport extends Closeable
+{
+	/**
+	 * Wait for the next message and copy it into the given buffer, starting at its position
+	 * @param 	destination
+	 * @return	the address of the sender
+	 * @throws 	IOException	also when the transport is closed while waiting
+	 */
+	SocketAddress receive(ByteBuffer destination) throws IOException;
+	
+	/**
+	 * Send the remaining bytes of the given buffer as one message
+	 * @param 	source
+	 * @param 	target
+	 * @return	the number of bytes sent, 0 when the message was dropped
+	 * @throws 	IOException
+	 */
+	int send(ByteBuffer source, SocketAddress target) throws IOException;
+	
+	/**
+	 * @return the address other endpoints send to to reach this one
+	 */
+	SocketAddress getLocalAddress() throws IOException;
+}
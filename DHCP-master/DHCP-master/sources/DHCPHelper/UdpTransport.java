@@ -0,0 +1,64 @@
+package DHCPHelper;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Transport over a UDP socket
+ */
+public class UdpTransport implements Transport
+{
+	private final DatagramChannel channel;
+	
+	/**
+	 * Constructor of a transport on an ephemeral port
+	 * @throws IOException
+	 */
+	public UdpTransport() throws IOException
+	{
+		this(DatagramChannel.open().bind(null));
+	}
+	
+	/**
+	 * Constructor of a transport over the given (bound) channel
+	 * @param channel
+	 */
+	public UdpTransport(DatagramChannel channel)
+	{
+		this.channel = channel;
+	}
+	
+	/**
+	 * @return the channel of this transport, for callers that need a selector
+	 */
+	public DatagramChannel getChannel()
+	{
+		return channel;
+	}
+	
+	@Override
+	public SocketAddress receive(ByteBuffer destination) throws IOException
+	{
+		return channel.receive(destination);
+	}
+	
+	@Override
+	public int send(ByteBuffer source, SocketAddress target) throws IOException
+	{
+		return channel.send(source, target);
+	}
+	
+	@Override
+	public SocketAddress getLocalAddress() throws IOException
+	{
+		return channel.getLocalAddress();
+	}
+	
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+}
@@ -0,0 +1,180 @@
+package DHCPServer;
+
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import DHCPHelper.DHCPMessageView;
+import DHCPHelper.UdpTransport;
+import DHCPServer.PipelineStatistics.Stage;
+
+/**
+ * Non-blocking transport of the DHCPServer
+ * One selector thread drains the socket until it is empty every time it becomes readable,
+ * receiving each datagram into a pooled context with direct buffers
+ * The contexts are handed to a fixed set of workers that run decode through send
+ *
+ * A client always lands on the same worker (chosen by its hardware address), so its messages stay in order
+ * When no buffer is free or the worker queue is full the datagram is dropped and counted
+ * close stops the loop: the selector thread closes its selector and interrupts the workers on its way out
+ */
+public class ChannelEventLoop
+{
+	private final DHCPServer server;
+	private final ServerShard shard;
+	private final DatagramChannel channel;
+	private final PipelineStatistics statistics;
+	private final BlockingQueue<PacketContext> free;
+	private final BlockingQueue<PacketContext>[] queues;
+	private final Thread[] workers;
+	
+	/**
+	 * The selector of the running loop, null before it runs; closed by the selector thread only
+	 */
+	private volatile Selector selector;
+	private volatile boolean closed;
+	
+	/**
+	 * Context used to discard datagrams when no pooled context is free
+	 */
+	private final PacketContext discard;
+	
+	/**
+	 * Constructor of the event loop over the (bound) channel of the given UDP shard
+	 * @param server
+	 * @param shard
+	 * @param workers		Number of worker threads
+	 * @param buffers		Number of pooled contexts
+	 * @param queueCapacity	Capacity of the queue of each worker
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public ChannelEventLoop(DHCPServer server, ServerShard shard, int workers, int buffers, int queueCapacity)
+	{
+		this.server = server;
+		this.shard = shard;
+		this.channel = ((UdpTransport)shard.transport).getChannel();
+		this.statistics = shard.statistics;
+		discard = new PacketContext(shard, true);
+		free = new ArrayBlockingQueue<>(Math.max(1, buffers));
+		for(int i = 0; i < Math.max(1, buffers); i++)
+			free.add(new PacketContext(shard, true));
+		queues = new BlockingQueue[Math.max(1, workers)];
+		for(int i = 0; i < queues.length; i++)
+			queues[i] = new ArrayBlockingQueue<>(queueCapacity);
+		this.workers = new Thread[queues.length];
+	}
+	
+	/**
+	 * Start the workers and run the selector loop on the calling thread, until the channel or this loop is closed
+	 * The selector is closed and the workers are stopped when the loop ends, also when it fails
+	 * @throws IOException
+	 */
+	public void run() throws IOException
+	{
+		for(int i = 0; i < queues.length; i++)
+		{
+			BlockingQueue<PacketContext> queue = queues[i];
+			workers[i] = new Thread(() -> work(queue), "dhcp-worker-" + shard.index + "-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+		
+		try
+		{
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+			while(!closed && channel.isOpen())
+			{
+				selector.select();
+				selector.selectedKeys().clear();
+				if(!closed)
+					drain();
+			}
+		}
+		finally
+		{
+			if(selector != null)
+				selector.close();
+			for(Thread worker : workers)
+				worker.interrupt();
+		}
+	}
+	
+	/**
+	 * Stop the loop: wake the selector thread up, which then closes the selector and stops the workers
+	 * The packets the workers are processing are finished, the queued ones are dropped
+	 */
+	public void close()
+	{
+		closed = true;
+		Selector selector = this.selector;
+		if(selector != null)
+			selector.wakeup();
+	}
+	
+	/**
+	 * Receive datagrams until the socket has none left
+	 * @throws IOException
+	 */
+	private void drain() throws IOException
+	{
+		while(true)
+		{
+			PacketContext context = free.poll();
+			if(context == null)
+			{
+				discard.reset();
+				if(channel.receive(discard.request) == null) return;
+				statistics.drop(Stage.RECEIVE);
+				continue;
+			}
+			context.reset();
+			context.client = channel.receive(context.request);
+			if(context.client == null)
+			{
+				free.add(context);
+				return;
+			}
+			context.length = context.request.position();
+			statistics.record(Stage.RECEIVE, 0);
+			if(!queues[worker(context)].offer(context))
+			{
+				statistics.drop(Stage.RECEIVE);
+				free.add(context);
+			}
+		}
+	}
+	
+	/**
+	 * @return the index of the worker of the client that sent the packet in the given context
+	 */
+	private int worker(PacketContext context)
+	{
+		if(context.length < DHCPMessageView.OPTIONS) return 0;
+		long mac = context.request.getLong(DHCPMessageView.CLIENTHARDWAREADDRESS);
+		int hash = Long.hashCode(mac * 0x9E3779B97F4A7C15L);
+		return (hash & Integer.MAX_VALUE) % queues.length;
+	}
+	
+	/**
+	 * Worker loop: run the remaining stages of every packet of the given queue
+	 * @param queue
+	 */
+	private void work(BlockingQueue<PacketContext> queue)
+	{
+		while(true)
+		{
+			PacketContext context;
+			try 
+			{context = queue.take();} 
+			catch (InterruptedException e) 
+			{return;}
+			server.process(context);
+			free.add(context);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package DHCPServer;
+
+import java.nio.ByteBuffer;
+
+import DHCPHelper.DHCPEncoder;
+import DHCPHelper.DHCPMessage;
+import DHCPHelper.DHCPMessageView;
+
+/**
+ * A precompiled reply (DHCPOffer, DHCPAck or DHCPNak) of one server for one pool
+ * Everything that is the same for every client is encoded once, when the template is compiled
+ * A reply is produced by copying the template and patching the fields that depend on the request:
+ * xid, flags, ciaddr, giaddr, chaddr, your IP and the lease duration
+ */
+public class DHCPResponseTemplate
+{
+	private final byte type;
+	private final byte[] template;
+	private final int length;
+
+	/**
+	 * Offset of the data of option 51 in the template, -1 if the reply carries no lease (DHCPNak)
+	 */
+	private final int leaseOffset;
+
+	/**
+	 * Compile the template of the given reply type for the server with the given address
+	 * @param 	type			DHCPOFFER, DHCPACK or DHCPNAK
+	 * @param 	serverAddress	The IP of the server (option 54 and siaddr)
+	 */
+	public DHCPResponseTemplate(byte type, int serverAddress)
+	{
+		this.type = type;
+		template = new byte[DHCPMessage.MAXLENGTH];
+		DHCPEncoder encoder = new DHCPEncoder().begin(ByteBuffer.wrap(template), DHCPMessage.BOOTREPLY);
+		encoder.option(53, type);
+		encoder.option(54, serverAddress);
+		if(type != DHCPMessage.DHCPNAK)
+		{
+			encoder.serverIP(serverAddress);
+			leaseOffset = encoder.position() + 2;
+			encoder.option(51, 0);
+		}
+		else
+			leaseOffset = -1;
+		length = encoder.end();
+	}
+
+	/**
+	 * @return the reply type of this template
+	 */
+	public byte getType()
+	{
+		return type;
+	}
+
+	/**
+	 * @return the length of the replies rendered from this template
+	 */
+	public int getLength()
+	{
+		return length;
+	}
+
+	/**
+	 * Render the reply to the given request into the given buffer (heap or direct)
+	 * @param 	request			The received request
+	 * @param 	destination		The buffer to write the reply in (at least MAXLENGTH bytes)
+	 * @param 	yourIP			The IP assigned to the client
+	 * @param 	leaseDuration	The lease duration in seconds (ignored for DHCPNak)
+	 * @return	the length of the reply
+	 */
+	public int render(DHCPMessageView request, ByteBuffer destination, int yourIP, int leaseDuration)
+	{
+		// the limit of the previous, possibly shorter, reply would bound the absolute puts
+		destination.clear();
+		destination.put(0, template, 0, length);
+		ByteBuffer source = request.buffer();
+		// htype and hlen
+		destination.putShort(DHCPMessageView.HARDWARETYPE, source.getShort(DHCPMessageView.HARDWARETYPE));
+		destination.putInt(DHCPMessageView.TRANSACTIONID, source.getInt(DHCPMessageView.TRANSACTIONID));
+		destination.putShort(DHCPMessageView.FLAGS, source.getShort(DHCPMessageView.FLAGS));
+		if(type == DHCPMessage.DHCPACK)
+			destination.putInt(DHCPMessageView.CLIENTIP, source.getInt(DHCPMessageView.CLIENTIP));
+		destination.putInt(DHCPMessageView.YOURIP, yourIP);
+		destination.putInt(DHCPMessageView.GATEWAYIP, source.getInt(DHCPMessageView.GATEWAYIP));
+		destination.putLong(DHCPMessageView.CLIENTHARDWAREADDRESS, source.getLong(DHCPMessageView.CLIENTHARDWAREADDRESS));
+		destination.putLong(DHCPMessageView.CLIENTHARDWAREADDRESS + 8, source.getLong(DHCPMessageView.CLIENTHARDWAREADDRESS + 8));
+		if(leaseOffset >= 0)
+			destination.putInt(leaseOffset, leaseDuration);
+		return length;
+	}
+}
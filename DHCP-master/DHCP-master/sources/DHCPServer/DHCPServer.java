@@ -1,49 +1,377 @@
 package DHCPServer;
 
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.NetworkInterface;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
-import java.util.Arrays;
-
-import javax.swing.Timer;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import DHCPHelper.Utility;
 import DHCPHelper.DHCPMessage;
+import DHCPHelper.DHCPMessageView;
+import DHCPHelper.Transport;
+import DHCPHelper.UdpTransport;
+import DHCPServer.PipelineStatistics.Stage;
 
 /**
  * This class represents a DHCPServer that can communicate with client(s) and allocate IP's
+ * 
+ * Every packet goes through the same stages: receive -> decode -> classify -> lease decision -> encode -> send
+ * The stages share one PacketContext per packet, so a request is decoded only once
+ * The lease decision is delegated to the PacketHandler registered for the message type
  */
 public class DHCPServer 
 {
 	private IPStorage pool;
-	private DatagramSocket serverSocket;
-	private String serverIP;
+	private ServerShard[] shards;
+	private volatile String serverIP;
+	private volatile int serverAddress;
+	private final ServerConfig config;
 	public final int portServer = 1234;
 	public final int MAXLEASEDURATION = 3600;
 	
 	/**
-	 * Constructor initializes this server
+	 * Precompiled replies indexed by message type (DHCPOFFER, DHCPACK, DHCPNAK)
+	 */
+	private volatile DHCPResponseTemplate[] templates = new DHCPResponseTemplate[DHCPMessage.DHCPINFORM + 1];
+	
+	/**
+	 * Lease decision per message type (option 53), null for the types this server ignores
+	 */
+	private final PacketHandler[] handlers = new PacketHandler[256];
+	
+	/**
+	 * Cleared by close: the receive loops stop at their next packet
+	 */
+	private volatile boolean running = true;
+	
+	/**
+	 * Runs the lease expiry of the pool every tick, on a thread of its own
+	 */
+	private ScheduledExecutorService leaseScheduler;
+	
+	/**
+	 * The journal of the lease transitions, null for none, and the DHCPAcks that wait for it
+	 */
+	private LeaseJournal journal;
+	private BlockingQueue<HeldReply> heldReplies;
+	
+	/**
+	 * The replicator to the standby of this server and the replica of the primary of this server, null for none
+	 */
+	private LeaseReplicator replicator;
+	private LeaseReplica replica;
+	
+	/**
+	 * The buckets of clients this server shares with its peers, null to answer every client
+	 */
+	private LoadBalancer loadBalancer;
+	
+	/**
+	 * The event loop of every shard in NIO mode, by shard index, null before it runs
+	 */
+	private ChannelEventLoop[] eventLoops;
+	
+	/**
+	 * The subnets served and their pools, null to serve every client from pool, which is null when there are subnets
+	 */
+	private SubnetIndex subnets;
+	
+	/**
+	 * The pools of the subnets with deadlines, each once: a pool is added by its deadline listener when it gets one,
+	 * and dropped by expireLeases when an update leaves it none, so idle subnets cost the lease scheduler nothing
+	 */
+	private final ConcurrentLinkedQueue<IPStorage> expiringPools = new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * The number of addresses of a subnet per lock stripe and per allocation shard of its pool
+	 */
+	public final static int SUBNETSHARE = 4096;
+	
+	/**
+	 * A reply waiting for the journal record it confirms to be durable, with a copy of its bytes
+	 */
+	private final class HeldReply implements LeaseJournal.Waiter
+	{
+		final ByteBuffer reply = ByteBuffer.allocate(DHCPMessage.MAXLENGTH);
+		ServerShard shard;
+		SocketAddress client;
+		byte replyType;
+		
+		@Override
+		public void completed(boolean durable)
+		{
+			if(durable)
+				send(shard, reply, client, replyType);
+			else
+				shard.statistics.drop(Stage.SEND);
+			client = null;
+			heldReplies.add(this);
+		}
+	}
+	
+	/**
+	 * Constructor initializes this server with the configuration given by the system properties
 	 */
 	public DHCPServer(String serverIP)
+	{
+		this(serverIP, new ServerConfig());
+	}
+	
+	/**
+	 * Constructor initializes this server on UDP port portServer
+	 */
+	public DHCPServer(String serverIP, ServerConfig config)
+	{
+		this(serverIP, config, (Transport[])null);
+	}
+	
+	/**
+	 * Constructor initializes this server on the given transport
+	 * A server on anything but UDP runs a single shard, and NIO mode falls back to SERIAL
+	 * @param serverIP
+	 * @param config
+	 * @param transport		The transport to receive on, null to open UDP port portServer
+	 * @throws IllegalArgumentException	when subnets are combined with a lease file, a journal or replication
+	 */
+	public DHCPServer(String serverIP, ServerConfig config, Transport transport)
+	{
+		this(serverIP, config, transport == null ? null : new Transport[]{transport});
+	}
+	
+	/**
+	 * Constructor initializes this server on the given transports, a shard each, as one per interface
+	 * With subnets, a client that is neither relayed nor has an address is served from the subnet of the address
+	 * the transport that received it is bound to
+	 * Several transports run in SERIAL mode, or NIO mode when they are all UDP
+	 * @param serverIP
+	 * @param config
+	 * @param transports	The transports to receive on, null to open UDP port portServer
+	 * @throws IllegalArgumentException	when subnets are combined with a lease file, a journal or replication
+	 */
+	public DHCPServer(String serverIP, ServerConfig config, Transport[] transports)
 	{
 		System.out.print("Initialization of the server started\n");
+		if(config.subnets != null && (config.leaseFile != null || config.journal != null || config.replicationPort > 0 || config.primary != null))
+			throw new IllegalArgumentException("dhcp.subnets cannot be combined with dhcp.leasefile, dhcp.journal, dhcp.replicate or dhcp.primary:"
+					+ " the pools of the subnets are kept on the heap only");
+		this.config = config;
 		try 
 		{
 			this.serverIP = serverIP;
-			serverSocket = new DatagramSocket(portServer);
-			pool = new IPStorage();
+			serverAddress = Utility.toInt(InetAddress.getByName(serverIP).getAddress());
+			compileTemplates();
+			if(transports == null)
+				openShards();
+			else
+			{
+				shards = new ServerShard[transports.length];
+				for(int i = 0; i < transports.length; i++)
+				{
+					shards[i] = new ServerShard(i, transports[i]);
+					if(config.mode == ServerConfig.Mode.NIO && !(transports[i] instanceof UdpTransport))
+						config.mode = ServerConfig.Mode.SERIAL;
+				}
+				if(shards.length > 1 && config.mode != ServerConfig.Mode.SERIAL && config.mode != ServerConfig.Mode.NIO)
+				{
+					System.out.println("Mode " + config.mode + " runs a single shard, SERIAL runs one per transport\n");
+					config.mode = ServerConfig.Mode.SERIAL;
+				}
+			}
+			if(config.subnets != null)
+				openSubnets();
+			else
+				openPool();
+			if(config.buckets != null)
+				loadBalancer = new LoadBalancer(config.buckets, config.takeover);
+			setHandler(DHCPMessage.DHCPDISCOVER, this::DHCPOffer);
+			setHandler(DHCPMessage.DHCPREQUEST, this::handleDHCPRequest);
+			setHandler(DHCPMessage.DHCPRELEASE, this::handleDHCPRelease);
 			System.out.println("Initialization of the server completed\n");
 		} 
-		catch (SocketException e) 
+		catch (IOException e) 
 		{e.printStackTrace();}
 	}
 	
+	/**
+	 * Create the pool every client is served from, without subnets, with its lease file, journal and replication
+	 */
+	private void openPool() throws IOException
+	{
+		pool = IPStorage.builder().size(config.poolSize).order(config.allocationOrder).tick(config.expiryTick * 1_000_000L).stripes(config.stripes)
+				.shards(config.allocationShards).sparse(config.sparse).leaseFile(config.leaseFile == null ? null : Paths.get(config.leaseFile), config.sync)
+				.offerTimeout(config.offerTimeout).build();
+		if(config.journal != null)
+			openJournal();
+		if(config.replicationPort > 0)
+		{
+			replicator = new LeaseReplicator(pool, new InetSocketAddress(config.replicationPort), config.replicationLag);
+			pool.setReplicator(replicator);
+		}
+		if(config.primary != null)
+		{
+			int colon = config.primary.lastIndexOf(':');
+			replica = new LeaseReplica(pool, new InetSocketAddress(config.primary.substring(0, colon), Integer.parseInt(config.primary.substring(colon + 1))),
+					LeaseReplica.DEFAULTRETRY, config.primaryGrace * 1000L);
+		}
+	}
+	
+	/**
+	 * Open the lease journal, recover the pool from its snapshot and journal and prepare the DHCPAcks that wait for it
+	 * @throws IOException
+	 */
+	private void openJournal() throws IOException
+	{
+		journal = new LeaseJournal(Paths.get(config.journal), config.journalWindow, config.journalBatch);
+		long start = System.nanoTime();
+		int leases = pool.setJournal(journal);
+		System.out.printf("Lease journal: %d leases recovered in %.1f ms%n", leases, (System.nanoTime() - start) / 1e6);
+		heldReplies = new ArrayBlockingQueue<>(Math.max(1, config.heldAcks));
+		for(int i = 0; i < Math.max(1, config.heldAcks); i++)
+			heldReplies.add(new HeldReply());
+	}
+	
+	/**
+	 * Open the receive sockets: one, or one per shard with SO_REUSEPORT
+	 * @throws IOException
+	 */
+	private void openShards() throws IOException
+	{
+		int count = Math.max(1, config.shards);
+		if(count > 1 && config.mode != ServerConfig.Mode.SERIAL && config.mode != ServerConfig.Mode.NIO)
+		{
+			System.out.println("Mode " + config.mode + " runs a single shard\n");
+			count = 1;
+		}
+		shards = new ServerShard[count];
+		for(int i = 0; i < count; i++)
+		{
+			DatagramChannel channel = DatagramChannel.open();
+			if(count > 1)
+				channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			if(config.receiveBufferSize > 0)
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, config.receiveBufferSize);
+			if(config.sendBufferSize > 0)
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, config.sendBufferSize);
+			channel.bind(new InetSocketAddress(portServer));
+			shards[i] = new ServerShard(i, new UdpTransport(channel));
+		}
+	}
+	
+	/**
+	 * Stop the server: close the transports of all shards, which wakes up the threads waiting to receive
+	 */
+	public void close()
+	{
+		running = false;
+		if(leaseScheduler != null)
+			leaseScheduler.shutdownNow();
+		if(replica != null)
+			replica.close();
+		if(replicator != null)
+			replicator.close();
+		if(journal != null)
+		{
+			snapshotLeases();
+			journal.close();
+		}
+		if(pool != null)
+			pool.close();
+		ChannelEventLoop[] loops = eventLoops;
+		if(loops != null)
+			for(ChannelEventLoop loop : loops)
+				if(loop != null)
+					loop.close();
+		for(ServerShard shard : shards)
+		{
+			try 
+			{shard.transport.close();} 
+			catch (IOException e) 
+			{e.printStackTrace();}
+		}
+	}
+	
+	/**
+	 * Compile the reply templates for the current configuration
+	 * Called again by setServerIP; the lease duration is patched into every reply, so a change of it needs no new templates
+	 */
+	public void compileTemplates()
+	{
+		DHCPResponseTemplate[] compiled = new DHCPResponseTemplate[templates.length];
+		compiled[DHCPMessage.DHCPOFFER] = new DHCPResponseTemplate(DHCPMessage.DHCPOFFER, serverAddress);
+		compiled[DHCPMessage.DHCPACK] = new DHCPResponseTemplate(DHCPMessage.DHCPACK, serverAddress);
+		compiled[DHCPMessage.DHCPNAK] = new DHCPResponseTemplate(DHCPMessage.DHCPNAK, serverAddress);
+		templates = compiled;
+	}
+	
+	/**
+	 * Register the lease decision for the given message type, null to ignore that type
+	 * @param type		The value of option 53
+	 * @param handler
+	 */
+	public void setHandler(byte type, PacketHandler handler)
+	{
+		handlers[type & 0xFF] = handler;
+	}
+	
+	/**
+	 * Change the IP of the server (option 54 and siaddr of the replies) while it runs, and compile the reply templates for it
+	 * @param 	serverIP
+	 * @throws 	UnknownHostException	when it is not an IP address
+	 */
+	public void setServerIP(String serverIP) throws UnknownHostException
+	{
+		serverAddress = Utility.toInt(InetAddress.getByName(serverIP).getAddress());
+		this.serverIP = serverIP;
+		compileTemplates();
+	}
+	
+	/**
+	 * @return the IP of the server
+	 */
+	public String getServerIP()
+	{
+		return serverIP;
+	}
+	
+	/**
+	 * @return the packet and timing counters of every stage, summed over all shards
+	 */
+	public PipelineStatistics getStatistics()
+	{
+		PipelineStatistics total = new PipelineStatistics();
+		for(ServerShard shard : shards)
+			total.add(shard.statistics);
+		return total;
+	}
+	
+	/**
+	 * @return the receive sockets of this server, each with its own counters
+	 */
+	public ServerShard[] getShards()
+	{
+		return shards;
+	}
+	
+	/**
+	 * @return the buckets of clients this server shares with its peers, to change them at runtime; null when it answers every client
+	 */
+	public LoadBalancer getLoadBalancer()
+	{
+		return loadBalancer;
+	}
+	
 	/**
 	 * After initialization this method will be called by the main server
 	 * It will periodically call an update of the pool of IP's
@@ -52,232 +380,602 @@ public class DHCPServer
 	 */
 	public void run()
 	{
-		ActionListener actionListener = new ActionListener()
-		{
-			@Override
-			public void actionPerformed(ActionEvent e)
-			{pool.update();}
-		};
-		Timer timer = new Timer(1000,actionListener);
-		timer.start();
-		while(true)
+		leaseScheduler = Executors.newScheduledThreadPool(2, task -> {
+			Thread thread = new Thread(task, "dhcp-leases");
+			thread.setDaemon(true);
+			return thread;
+		});
+		leaseScheduler.scheduleAtFixedRate(this::expireLeases, config.expiryTick, config.expiryTick, TimeUnit.MILLISECONDS);
+		if(journal != null && config.snapshotInterval > 0)
+			leaseScheduler.scheduleWithFixedDelay(this::snapshotLeases, config.snapshotInterval, config.snapshotInterval, TimeUnit.SECONDS);
+		
+		if(config.statisticsInterval > 0)
+			startDaemon("dhcp-statistics", () -> {
+				while(true)
+				{
+					Thread.sleep(config.statisticsInterval * 1000L);
+					if(shards.length > 1)
+						for(ServerShard shard : shards)
+							System.out.print("Shard " + shard.index + "\n" + shard.statistics);
+					System.out.print(getStatistics());
+					if(pool != null)
+						System.out.println("Offers held: " + pool.getHeldOffers() + ", reclaimed: " + pool.getReclaimedOffers());
+					if(journal != null)
+						System.out.println("Journal: " + journal.getDurable() + " records durable in " + journal.getBatches() + " batches");
+					if(replicator != null)
+						System.out.println("Replication: standby " + (replicator.isStreaming() ? "lags " + replicator.getLag() + " records" : "not connected")
+								+ ", " + replicator.getFrames() + " frames, disconnected " + replicator.getLagged() + " times for lagging, "
+								+ replicator.getRestored() + " leases of the standby taken, " + replicator.getConflicts() + " in conflict");
+					if(replica != null)
+						System.out.println("Replica: primary " + (replica.isConnected() ? "connected" : "lost") + ", " + replica.getRecords()
+								+ " transitions applied, " + replica.getCatchUps() + " catch-ups, " + replica.getHandedBack() + " leases handed back");
+					if(loadBalancer != null)
+						System.out.println("Load balancing: buckets " + loadBalancer.getBuckets() + ", " + loadBalancer.getAnswered() + " answered, "
+								+ loadBalancer.getIgnored() + " left to peers, " + loadBalancer.getTakenOver() + " buckets taken over, "
+								+ loadBalancer.getHandedBack() + " handed back");
+				}
+			});
+		
+		switch(config.mode)
 		{
-			pool.printContent();
-			
-			//listen to incoming packet
-			byte[] buffer = new byte[576];
-			DatagramPacket receivePacket = new DatagramPacket(buffer,buffer.length);
-			try 
+			case STAGED:
+				runStaged();
+				break;
+			case POOL:
+				runTasks(Executors.newFixedThreadPool(Math.max(1, config.workers)));
+				break;
+			case VIRTUAL:
+				runTasks(virtualThreadExecutor());
+				break;
+			case NIO:
+				eventLoops = new ChannelEventLoop[shards.length];
+				for(int i = 1; i < shards.length; i++)
+				{
+					ServerShard shard = shards[i];
+					startDaemon("dhcp-shard-" + i, () -> runEventLoop(shard));
+				}
+				runEventLoop(shards[0]);
+				break;
+			default:
+				for(int i = 1; i < shards.length; i++)
+				{
+					ServerShard shard = shards[i];
+					startDaemon("dhcp-shard-" + i, () -> runSerial(shard));
+				}
+				runSerial(shards[0]);
+		}
+		leaseScheduler.shutdownNow();
+	}
+	
+	/**
+	 * Load the subnets and give each a pool of its own, instead of the pool of the server
+	 * A subnet gets a lock stripe and an allocation shard per SUBNETSHARE addresses, up to the configured numbers:
+	 * the many /24 subnets of a typical file each get one, not the stripes and shards sized for the pool of a whole server
+	 */
+	private void openSubnets() throws IOException
+	{
+		subnets = new SubnetIndex(SubnetIndex.load(Paths.get(config.subnets)), subnet -> {
+			int share = Math.max(1, subnet.getSize() / SUBNETSHARE);
+			IPStorage subnetPool = IPStorage.builder().first(subnet.getFirstAddress()).size(subnet.getSize()).exclude(subnet.getExcluded())
+					.order(config.allocationOrder).tick(config.expiryTick * 1_000_000L).stripes(Math.min(config.stripes, share))
+					.shards(Math.min(config.allocationShards, share)).sparse(true).offerTimeout(config.offerTimeout).build();
+			subnetPool.setDeadlineListener(expiringPools::add);
+			return subnetPool;
+		});
+		System.out.println("Subnets: " + subnets.size() + " loaded from " + config.subnets);
+	}
+	
+	/**
+	 * Release the addresses whose lease has expired
+	 * With subnets, only the pools with deadlines are updated
+	 */
+	private void expireLeases()
+	{
+		int released = 0;
+		if(subnets == null)
+			released = pool.update();
+		else
+			// the pools added while this runs wait for the next run
+			for(int i = expiringPools.size(); i > 0; i--)
 			{
-				serverSocket.receive(receivePacket);
-				System.out.print("Server receives packet with a size of " + receivePacket.getLength() +"\n");
+				IPStorage subnetPool = expiringPools.poll();
+				released += subnetPool.update();
+				if(subnetPool.isExpiring())
+					expiringPools.add(subnetPool);
 			}
-			catch (IOException e) 
-			{e.printStackTrace();}
+		if(released > 0 && config.verbose)
+		{
+			System.out.println(released + " IP(s) released");
+			if(pool != null)
+				pool.printContent();
+		}
+	}
+	
+	/**
+	 * Write a snapshot of the pool next to the journal and delete the journal before it
+	 */
+	private void snapshotLeases()
+	{
+		try
+		{
+			long start = System.nanoTime();
+			int leases = journal.snapshot(pool);
+			if(config.verbose)
+				System.out.printf("Lease snapshot: %d leases in %.1f ms%n", leases, (System.nanoTime() - start) / 1e6);
+		}
+		catch(IOException e)
+		{e.printStackTrace();}
+	}
+	
+	/**
+	 * Run the non-blocking event loop of the given shard, with its share of the workers and buffers
+	 * @param shard
+	 */
+	private void runEventLoop(ServerShard shard)
+	{
+		int workers = Math.max(1, config.workers / shards.length);
+		int buffers = Math.max(1, config.buffers / shards.length);
+		ChannelEventLoop loop = new ChannelEventLoop(this, shard, workers, buffers, config.queueCapacity);
+		eventLoops[shard.index] = loop;
+		// a close that came before the loop was known ends it here
+		if(!running) return;
+		try 
+		{loop.run();} 
+		catch (IOException e) 
+		{e.printStackTrace();}
+	}
+	
+	/**
+	 * Run every stage of every packet received by the given shard on the calling thread, reusing one context
+	 * @param shard
+	 */
+	private void runSerial(ServerShard shard)
+	{
+		PacketContext context = new PacketContext(shard);
+		while(running)
+		{
+			context.reset();
+			if(receive(context))
+				process(context);
+		}
+	}
+	
+	/**
+	 * Run every stage after receive on the calling thread
+	 * @param context	A context holding a received packet
+	 */
+	void process(PacketContext context)
+	{
+		if(decode(context) && classify(context))
+		{
+			decide(context);
+			encode(context);
+			send(context);
+		}
+	}
+	
+	/**
+	 * Run receive/decode/classify, decide/encode and send on three threads
+	 * Contexts are handed over through bounded queues: a packet that does not fit in the next queue is dropped and counted
+	 */
+	private void runStaged()
+	{
+		int capacity = Math.max(1, config.queueCapacity);
+		BlockingQueue<PacketContext> free = new ArrayBlockingQueue<>(2 * capacity + 3);
+		BlockingQueue<PacketContext> toDecide = new ArrayBlockingQueue<>(capacity);
+		BlockingQueue<PacketContext> toSend = new ArrayBlockingQueue<>(capacity);
+		for(int i = 0; i < 2 * capacity + 3; i++)
+			free.add(new PacketContext(shards[0]));
 		
-			Utility.printDataBytes(receivePacket.getData());
-			
-			//determine type of request
-			DHCPMessage response = new DHCPMessage(receivePacket.getData());
-			System.out.println(response);
-			try
+		startDaemon("dhcp-decide", () -> {
+			while(true)
 			{
-				switch (response.getType())
+				PacketContext context = toDecide.take();
+				decide(context);
+				encode(context);
+				if(context.replyLength == 0)
+					free.put(context);
+				else if(!toSend.offer(context))
 				{
-					case DHCPMessage.DHCPDISCOVER:
-					try {
-						DHCPOffer(receivePacket);
-					} catch (UnknownHostException e) {e.printStackTrace();}
-						break;
-					case DHCPMessage.DHCPREQUEST:	
-						if(canAcceptRequest(receivePacket))
-							DHCPAck(receivePacket);
-						else
-							DHCPNak(receivePacket);
-						break;	
-					case DHCPMessage.DHCPRELEASE:
-						handleDHCPRelease(receivePacket);
-						break;
+					context.shard.statistics.drop(Stage.ENCODE);
+					free.put(context);
 				}
 			}
-			catch(Exception e)
-			{e.printStackTrace();}
+		});
+		startDaemon("dhcp-send", () -> {
+			while(true)
+			{
+				PacketContext context = toSend.take();
+				send(context);
+				free.put(context);
+			}
+		});
+		
+		while(running)
+		{
+			PacketContext context;
+			try 
+			{context = free.take();} 
+			catch (InterruptedException e) 
+			{return;}
+			context.reset();
+			if(!(receive(context) && decode(context) && classify(context)))
+				free.add(context);
+			else if(!toDecide.offer(context))
+			{
+				context.shard.statistics.drop(Stage.CLASSIFY);
+				free.add(context);
+			}
 		}
 	}
 	
 	/**
-	 * Build and send a DHCPOffer message out of the given message which will be a DHCPDiscover
-	 * @param 	receivePacket	The received message (DHCPDiscover)
-	 * @throws 	UnknownHostException	
+	 * Receive on the calling thread and run the remaining stages of each packet as a task on the given executor
+	 * The number of packets in flight is bounded by the number of pooled contexts: receiving waits for a free one
+	 * @param executor
 	 */
-	public void DHCPOffer(DatagramPacket receivePacket) throws UnknownHostException
+	private void runTasks(ExecutorService executor)
 	{
-		System.out.print("Building DHCPOffer\n");
-		DHCPMessage message = new DHCPMessage(receivePacket.getData());
-		
-		message.opCode = DHCPMessage.BOOTREPLY;
-		
-		//Reserve new IP address
-		int leaseDuration = Utility.toInt(message.getOptionData((byte)51));//(int)(Math.random()*300);
-		message.yourIP = pool.reserveAddress(message.clientHardWareAddress, leaseDuration);
-		
-		// Server IP set
-		message.serverIP = InetAddress.getByName(this.serverIP).getAddress();
-		
-		// reset options fields
-		message.resetoptions();
-		
-		// Set option 53 to value 2
-		byte[] i = {DHCPMessage.DHCPOFFER};
-		message.addOption((byte)53, (byte)1, i);
-		
-		message.addOption((byte)54, (byte)4, message.serverIP);
-		
-		// Set option 255
-		int[] j = {0};
-		message.addOption((byte) 255, (byte)0, Utility.toBytes(j));
-
-		InetAddress IPClient = receivePacket.getAddress();
-		int portClient = receivePacket.getPort();
+		int buffers = Math.max(1, config.buffers);
+		BlockingQueue<PacketContext> free = new ArrayBlockingQueue<>(buffers);
+		for(int i = 0; i < buffers; i++)
+			free.add(new PacketContext(shards[0], true));
 		
-		byte[] sendingBytes = message.retrieveBytes();
-		DatagramPacket response = new DatagramPacket(sendingBytes, sendingBytes.length, IPClient, portClient);
+		while(running)
+		{
+			PacketContext context;
+			try 
+			{context = free.take();} 
+			catch (InterruptedException e) 
+			{break;}
+			context.reset();
+			if(!receive(context))
+			{
+				free.add(context);
+				continue;
+			}
+			executor.execute(() -> {
+				process(context);
+				free.add(context);
+			});
+		}
+		executor.shutdown();
+	}
+	
+	/**
+	 * @return an executor that starts a virtual thread per task
+	 * 			or, on a JVM without virtual threads, a cached pool of platform threads
+	 */
+	static ExecutorService virtualThreadExecutor()
+	{
+		try
+		{
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(ReflectiveOperationException e)
+		{
+			System.out.println("Virtual threads are not available in this JVM, using platform threads\n");
+			return Executors.newCachedThreadPool();
+		}
+	}
+	
+	/**
+	 * A stage loop that runs until the server stops
+	 */
+	private interface StageLoop
+	{
+		void run() throws InterruptedException;
+	}
+	
+	private void startDaemon(String name, StageLoop loop)
+	{
+		Thread thread = new Thread(() -> {
+			try 
+			{loop.run();} 
+			catch (InterruptedException e) 
+			{}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Receive stage: wait for the next packet
+	 * Only counted, not timed: the time spent here is mostly waiting
+	 * @return	if a packet was received
+	 */
+	private boolean receive(PacketContext context)
+	{
+		if(config.verbose && pool != null) pool.printContent();
 		try 
 		{
-			serverSocket.send(response);
-			System.out.println("DHCPOffer sent\n");
-		} 
+			context.client = context.shard.transport.receive(context.request);
+			context.length = context.request.position();
+			if(config.verbose) System.out.print("Server receives packet with a size of " + context.length +"\n");
+		}
 		catch (IOException e) 
-		{e.printStackTrace();}
+		{
+			if(running) e.printStackTrace(); 
+			return false;
+		}
+		context.shard.statistics.record(Stage.RECEIVE, 0);
+		return true;
 	}
 	
 	/**
-	 * Determin if the requested IP can be allocated to the client with the given options, ...
-	 * @param 	receivePacket
-	 * @return	True or False
+	 * Decode stage: wrap the view around the received bytes, this is the only time the message is parsed
+	 * @return	if the packet is a well formed BOOTREQUEST
+	 */
+	boolean decode(PacketContext context)
+	{
+		long start = System.nanoTime();
+		context.view.wrap(context.request, context.length);
+		boolean valid = context.view.isValid() && context.view.opCode() == DHCPMessage.BOOTREQUEST;
+		context.shard.statistics.record(Stage.DECODE, System.nanoTime() - start);
+		if(!valid)
+		{
+			context.shard.statistics.drop(Stage.DECODE);
+			return false;
+		}
+		if(config.verbose)
+		{
+			byte[] received = context.receivedBytes();
+			Utility.printDataBytes(received);
+			System.out.println(new DHCPMessage(received));
+		}
+		return true;
+	}
+	
+	/**
+	 * Classify stage: determine the type of request
+	 * A standby answers nothing while its primary is up or before it has had the chance to reach it, and a server sharing the clients with its peers only the ones of its buckets
+	 * The pool of the packet is the one of its subnet, when there are subnets; a packet from a subnet that is not served is dropped
+	 * @return	if there is a handler for this type
 	 */
-	public boolean canAcceptRequest(DatagramPacket receivePacket)
+	boolean classify(PacketContext context)
 	{
+		long start = System.nanoTime();
+		context.type = context.view.getType();
+		boolean known = handlers[context.type & 0xFF] != null && (replica == null || replica.isServing())
+				&& (context.pool = pool(context)) != null
+				&& (loadBalancer == null || loadBalancer.isServed(context.view, context.type, context.pool));
+		context.shard.statistics.record(Stage.CLASSIFY, System.nanoTime() - start);
+		if(!known) context.shard.statistics.drop(Stage.CLASSIFY);
+		return known;
+	}
+	
+	/**
+	 * Find the pool of the subnet of the client of the given packet: the one of the relay agent (giaddr) if relayed,
+	 * else the one of the address of the client (ciaddr) if it has one, else the one of the interface that received it:
+	 * the address the transport of its shard is bound to, or the one of the server for a transport bound to every interface
+	 * @param 	context
+	 * @return	the pool, null if the subnet is not served
+	 */
+	private IPStorage pool(PacketContext context)
+	{
+		if(subnets == null) return pool;
+		DHCPMessageView request = context.view;
+		int key = request.giaddr();
+		if(key == 0)
+			key = request.ciaddr();
+		if(key == 0)
+			key = context.shard.interfaceAddress;
+		if(key == 0)
+			key = serverAddress;
+		return subnets.pool(key);
+	}
+	
+	/**
+	 * Lease decision stage: run the handler registered for the type of request
+	 */
+	void decide(PacketContext context)
+	{
+		long start = System.nanoTime();
 		try
 		{
-			DHCPMessage message = new DHCPMessage(receivePacket.getData());
-			return Utility.toInt(message.getOptionData((byte)51)) < MAXLEASEDURATION  && Arrays.equals(InetAddress.getByName(this.serverIP).getAddress(), message.serverIP) ;
+			handlers[context.type & 0xFF].handle(context);
 		}
 		catch(Exception e)
-		{return false;}
+		{
+			e.printStackTrace();
+			context.replyType = 0;
+		}
+		context.shard.statistics.record(Stage.DECIDE, System.nanoTime() - start);
+	}
+	
+	/**
+	 * Encode stage: render the decided reply from its template
+	 */
+	void encode(PacketContext context)
+	{
+		if(context.replyType == 0) return;
+		long start = System.nanoTime();
+		context.replyLength = templates[context.replyType].render(context.view, context.reply, context.yourIP, context.leaseDuration);
+		context.shard.statistics.record(Stage.ENCODE, System.nanoTime() - start);
+	}
+	
+	/**
+	 * Send stage: send the encoded reply back to the sender of the received message
+	 * A reply that confirms a journal record which is not durable yet is held back until it is
+	 */
+	void send(PacketContext context)
+	{
+		if(context.replyLength == 0) return;
+		context.reply.clear().limit(context.replyLength);
+		if(context.journalSequence > 0 && !journal.isDurable(context.journalSequence) && hold(context)) return;
+		send(context.shard, context.reply, context.client, context.replyType);
 	}
 	
 	/**
-	 * Build and send a DHCPAck out of the received message (DHCPRequest)
-	 * @param receivePacket
-	 * @throws UnknownHostException
+	 * Send the given reply through the socket of the given shard
 	 */
-	public void DHCPAck(DatagramPacket receivePacket) throws UnknownHostException
+	private void send(ServerShard shard, ByteBuffer reply, SocketAddress client, byte replyType)
 	{
+		long start = System.nanoTime();
+		try 
+		{
+			// a non-blocking channel or a full loopback inbox sends nothing
+			if(shard.transport.send(reply, client) == 0)
+				shard.statistics.drop(Stage.SEND);
+			else if(config.verbose) System.out.println("Reply " + replyType + " sent\n");
+		} 
+		catch (IOException e) 
+		{
+			e.printStackTrace();
+			shard.statistics.drop(Stage.SEND);
+		}
+		shard.statistics.record(Stage.SEND, System.nanoTime() - start);
+	}
+	
+	/**
+	 * Hold back the reply of the given context until the journal record it confirms is durable:
+	 * a copy waits for the journal writer to send it, or, when every HeldReply is in use, the calling thread waits
+	 * @return	if the reply is taken care of, false to send it now
+	 */
+	private boolean hold(PacketContext context)
+	{
+		HeldReply held = heldReplies.poll();
 		try
 		{
-			System.out.print("Building DHCPAck\n");
-			DHCPMessage message = new DHCPMessage(receivePacket.getData());
-			
-			pool.allocateAddress(message.clientHardWareAddress);
-			
-			message.opCode = DHCPMessage.BOOTREPLY;
-
-			byte[] data = message.getOptionData((byte)50);
-			message.yourIP = data;
-			
-			// Server IP set
-			message.serverIP = InetAddress.getByName(serverIP).getAddress();
-			
-			// reset options fields
-			message.resetoptions();
-			
-			// Set option 53 to value 5
-			byte[] i = {DHCPMessage.DHCPACK};
-			message.addOption((byte)53, (byte)1, i);
-			
-			message.addOption((byte)54, (byte)4,message.serverIP);
-			
-			// Set option 255
-			int[] j = {0};
-			message.addOption((byte) 255, (byte)0, Utility.toBytes(j));
-	
-			InetAddress IPClient = receivePacket.getAddress();
-			int portClient = receivePacket.getPort();
-			
-			byte[] sendingBytes = message.retrieveBytes();
-			DatagramPacket response = new DatagramPacket(sendingBytes, sendingBytes.length, IPClient, portClient);
-			try 
+			if(held == null)
 			{
-				serverSocket.send(response);
-				System.out.println("DHCPAck sent\n");
-			} 
-			catch (IOException e) 
-			{e.printStackTrace();}
+				journal.awaitDurable(context.journalSequence);
+				return false;
+			}
+			held.reply.clear();
+			held.reply.put(context.reply).flip();
+			held.shard = context.shard;
+			held.client = context.client;
+			held.replyType = context.replyType;
+			if(!journal.whenDurable(context.journalSequence, held))
+				held.completed(true);
+			return true;
+		}
+		catch(IOException e)
+		{
+			// the journal has stopped: no DHCPAck for an allocation that is not on the disk
+			if(held != null)
+				heldReplies.add(held);
+			context.shard.statistics.drop(Stage.SEND);
+			return true;
 		}
-		catch(Exception e)
-		{e.printStackTrace();}
 	}
 	
 	/**
-	 * Build and send a DHCPNak out of the received message (DHCPRequest)
-	 * @param receivePacket
-	 * @throws UnknownHostException
+	 * Decide the DHCPOffer for the received message which will be a DHCPDiscover
+	 * @param 	context	The packet holding the received message (DHCPDiscover)
 	 */
-	public void DHCPNak(DatagramPacket receivePacket) throws UnknownHostException
+	public void DHCPOffer(PacketContext context)
 	{
-		try
+		DHCPMessageView request = context.view;
+		
+		//Reserve new IP address, for the lease the client asks for up to MAXLEASEDURATION
+		int lease = request.findOption(51, 4);
+		int leaseDuration = lease < 0 ? MAXLEASEDURATION : request.optionInt(lease);
+		if(leaseDuration <= 0 || leaseDuration > MAXLEASEDURATION)
+			leaseDuration = MAXLEASEDURATION;
+		int yourIP = context.pool.reserveAddress(request.chaddrHigh(), request.chaddrLow(), leaseDuration);
+		if(yourIP != 0 && yourIP == request.giaddr())
 		{
-			System.out.print("Building DHCPNak\n");
-			DHCPMessage message = new DHCPMessage(receivePacket.getData());
-			
-			pool.release(message.clientHardWareAddress);
-			message.opCode = DHCPMessage.BOOTREPLY;
-
-			byte[] data = message.getOptionData((byte)50);
-			message.yourIP = data;
+			// the relay agent has that address on its interface in the subnet: it leaves the pool, and the client gets another
+			context.pool.exclude(yourIP);
+			context.pool.release(request.chaddrHigh(), request.chaddrLow());
+			yourIP = context.pool.reserveAddress(request.chaddrHigh(), request.chaddrLow(), leaseDuration);
+		}
+		if(yourIP == 0)
+		{
+			if(config.verbose) System.out.println("No free IP to offer\n");
+			return;
+		}
 		
-			// Server IP set
-			message.serverIP = InetAddress.getByName(this.serverIP).getAddress();
-			
-			// reset options fields
-			message.resetoptions();
-			
-			// Set option 53 to value 5
-			byte[] i = {DHCPMessage.DHCPNAK};
-			message.addOption((byte)53, (byte)1, i);
-			
-			message.addOption((byte)54, (byte)4,message.serverIP);
-			
-			// Set option 255
-			int[] j = {0};
-			message.addOption((byte) 255, (byte)0, Utility.toBytes(j));
-	
-			InetAddress IPClient = receivePacket.getAddress();
-			int portClient = receivePacket.getPort();
-			
-			byte[] sendingBytes = message.retrieveBytes();
-			DatagramPacket response = new DatagramPacket(sendingBytes, sendingBytes.length, IPClient, portClient);
-			try 
-			{
-				serverSocket.send(response);
-				System.out.println("DHCPNak sent\n");
-			} 
-			catch (IOException e) 
-			{e.printStackTrace();}
+		context.reply(DHCPMessage.DHCPOFFER, yourIP, leaseDuration);
+	}
+	
+	/**
+	 * Decide between DHCPAck and DHCPNak for the received message (DHCPRequest)
+	 * @param context
+	 */
+	public void handleDHCPRequest(PacketContext context)
+	{
+		DHCPMessageView request = context.view;
+		int server = request.findOption(54, 4);
+		if(server >= 0 && request.optionInt(server) != serverAddress)
+		{
+			// the client took the offer of another server (RFC 2131 4.3.2): its reservation here goes back, without a reply,
+			// and its bucket to that server if this one took it over
+			context.pool.release(request.chaddrHigh(), request.chaddrLow());
+			if(loadBalancer != null)
+				loadBalancer.peerAnswered(request);
+			return;
 		}
-		catch(Exception e)
-		{e.printStackTrace();}
+		if(canAcceptRequest(context))
+			DHCPAck(context);
+		else
+			DHCPNak(context);
+	}
+	
+	/**
+	 * Determine if the address the client requests is the one this server reserved or allocated to it:
+	 * the requested IP (option 50) of a client selecting an offer or rebooting, or the ciaddr of one renewing or rebinding,
+	 * which sends neither option 50 nor option 54 (RFC 2131 4.3.2)
+	 * A server identifier (option 54), when there is one, has to be this server
+	 * @param 	context	The packet holding the received message (DHCPRequest), with the pool of the client
+	 * @return	True or False
+	 */
+	public boolean canAcceptRequest(PacketContext context)
+	{
+		DHCPMessageView request = context.view;
+		int server = request.findOption(54, 4);
+		if(server >= 0 && request.optionInt(server) != serverAddress) return false;
+		int requested = request.findOption(50, 4);
+		int requestedIP = requested < 0 ? request.ciaddr() : request.optionInt(requested);
+		return requestedIP != 0 && requestedIP == context.pool.lookUp(request.chaddrHigh(), request.chaddrLow());
+	}
+	
+	/**
+	 * Allocate the reserved IP and decide a DHCPAck for the received message (DHCPRequest)
+	 * A client without a reservation (its offer was reclaimed, or it never had one) or that requests another address
+	 * than the one reserved for it gets a DHCPNak instead, so an address is never acknowledged to two clients
+	 * The lease acknowledged is the one the pool keeps the address for, the one of the DHCPOffer
+	 * @param context
+	 */
+	public void DHCPAck(PacketContext context)
+	{
+		DHCPMessageView request = context.view;
+		
+		int requested = request.findOption(50, 4);
+		int requestedIP = requested < 0 ? request.ciaddr() : request.optionInt(requested);
+		// compared before allocating, under the lock of the client: a request for another address gets its DHCPNak without an allocation being journaled
+		int yourIP = requestedIP == 0 ? 0 : context.pool.allocateAddress(request.chaddrHigh(), request.chaddrLow(), requestedIP, context.allocation);
+		if(yourIP == 0)
+		{
+			DHCPNak(context);
+			return;
+		}
+		// the record of this allocation, not the last one appended: that one may be of another client, and later
+		context.journalSequence = context.allocation[0];
+		
+		context.reply(DHCPMessage.DHCPACK, yourIP, context.pool.getLeaseDuration(request.chaddrHigh(), request.chaddrLow()));
+	}
+	
+	/**
+	 * Release the reservation and decide a DHCPNak for the received message (DHCPRequest)
+	 * @param context
+	 */
+	public void DHCPNak(PacketContext context)
+	{
+		context.pool.release(context.view.chaddrHigh(), context.view.chaddrLow());
+		
+		context.reply(DHCPMessage.DHCPNAK, 0, 0);
 	}
 	
 	/**
 	 * Handling of a DHCPrelease received message
 	 * Release the allocated IP-address if there is one
-	 * @param receivePacket
+	 * @param context
 	 */
-	public void handleDHCPRelease(DatagramPacket receivePacket)
+	public void handleDHCPRelease(PacketContext context)
 	{
-		DHCPMessage message = new DHCPMessage(receivePacket.getData());
-		pool.release(message.clientHardWareAddress);
+		context.pool.release(context.view.chaddrHigh(), context.view.chaddrLow());
 	}	
 }
@@ -0,0 +1,174 @@
+package DHCPServer;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The set of free addresses of a pool, by index in the pool, as a hierarchical bitmap
+ * Level 0 has one bit per address (set = free), every bit of the next level tells if a word of the level below has a bit set,
+ * up to a level of a single word: finding a free address is a find-first-set per level, so O(log64 n),
+ * and taking or releasing one updates at most one word per level
+ *
+ * Not thread safe: IPStorage guards it with the lock of its allocation shard
+ */
+public class FreeAddressSet
+{
+	/**
+	 * The order in which free addresses are handed out
+	 * LOWEST:		always the lowest free address
+	 * ROUND_ROBIN:	the lowest free address after the one handed out last, so a released address rests as long as possible
+	 * RANDOM:		the lowest free address after a random one
+	 */
+	public enum Order {LOWEST, ROUND_ROBIN, RANDOM}
+
+	private final long[][] levels;
+	private final int size;
+	private final Order order;
+	private int count;
+	private int cursor;
+
+	/**
+	 * Construct the set of the given number of addresses, all free
+	 * @param size
+	 * @param order
+	 */
+	public FreeAddressSet(int size, Order order)
+	{
+		this.size = size;
+		this.order = order;
+		int depth = 1;
+		for(long bits = size; bits > 64; bits = (bits + 63) >>> 6)
+			depth++;
+		levels = new long[depth][];
+		long bits = size;
+		for(int level = 0; level < depth; level++)
+		{
+			levels[level] = new long[(int)Math.max(1, (bits + 63) >>> 6)];
+			bits = (bits + 63) >>> 6;
+		}
+		for(int i = 0; i < size; i++)
+			release(i);
+	}
+
+	/**
+	 * @return the number of addresses in this set
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the number of free addresses
+	 */
+	public int count()
+	{
+		return count;
+	}
+
+	/**
+	 * @param 	index
+	 * @return	if the address with the given index is free
+	 */
+	public boolean isFree(int index)
+	{
+		return (levels[0][index >>> 6] & (1L << index)) != 0;
+	}
+
+	/**
+	 * Take a free address in the configured order
+	 * @return	its index, -1 if no address is free
+	 */
+	public int take()
+	{
+		if(count == 0) return -1;
+		int from;
+		switch(order)
+		{
+			case ROUND_ROBIN:
+				from = cursor;
+				break;
+			case RANDOM:
+				from = ThreadLocalRandom.current().nextInt(size);
+				break;
+			default:
+				from = 0;
+		}
+		int index = next(from);
+		if(index < 0)
+			index = next(0);
+		take(index);
+		cursor = index + 1 == size ? 0 : index + 1;
+		return index;
+	}
+
+	/**
+	 * Mark the address with the given index as in use
+	 * @param index
+	 */
+	public void take(int index)
+	{
+		if(!isFree(index)) return;
+		count--;
+		for(int level = 0; level < levels.length; level++)
+		{
+			long[] words = levels[level];
+			int word = index >>> 6;
+			words[word] &= ~(1L << index);
+			if(words[word] != 0) return;
+			index = word;
+		}
+	}
+
+	/**
+	 * Mark the address with the given index as free
+	 * @param index
+	 */
+	public void release(int index)
+	{
+		if(isFree(index)) return;
+		count++;
+		for(int level = 0; level < levels.length; level++)
+		{
+			long[] words = levels[level];
+			int word = index >>> 6;
+			boolean wasEmpty = words[word] == 0;
+			words[word] |= 1L << index;
+			if(!wasEmpty) return;
+			index = word;
+		}
+	}
+
+	/**
+	 * @param 	from	The index to start from
+	 * @return	the lowest free index at or after from, -1 if there is none
+	 */
+	public int next(int from)
+	{
+		if(from >= size) return -1;
+		int level = 0;
+		int index = from;
+		// climb until a word holds a set bit at or after the index
+		while(true)
+		{
+			long[] words = levels[level];
+			int word = index >>> 6;
+			if(word >= words.length) return -1;
+			long bits = words[word] & (-1L << index);
+			if(bits != 0)
+			{
+				index = (word << 6) + Long.numberOfTrailingZeros(bits);
+				break;
+			}
+			if(level == levels.length - 1) return -1;
+			level++;
+			index = word + 1;
+		}
+		// descend to the lowest set bit under it
+		while(level > 0)
+		{
+			level--;
+			index = (index << 6) + Long.numberOfTrailingZeros(levels[level][index]);
+		}
+		return index;
+	}
+}
@@ -0,0 +1,130 @@
+package DHCPServer;
+
+/**
+ * A LeaseTable on the Java heap
+ * Every field is a primitive array of its own (struct of arrays): the address is first + index, the hardware address
+ * of the client is packed into two longs (as LeaseIndex.high/low) and the state and lease duration share one long,
+ * so a lease costs 24 bytes, there is no object per address and a scan over one field reads consecutive memory
+ * The end of a lease is not kept: it lives in the TimingWheel of IPStorage only, a LeaseSnapshot copies it from there
+ */
+public class HeapLeaseTable implements LeaseTable
+{
+	private static final int STATESHIFT = 62;
+	private static final long DURATIONMASK = 0xFFFFFFFFL;
+
+	private final int first;
+	private final long[] highs;
+	private final long[] lows;
+
+	/**
+	 * state << 62 | lease duration in seconds, unsigned
+	 */
+	private final long[] states;
+
+	/**
+	 * @param first	The first IPv4 address of the pool, as an int
+	 * @param size	Number of addresses, indexed 0 to size - 1
+	 */
+	public HeapLeaseTable(int first, int size)
+	{
+		this.first = first;
+		highs = new long[size];
+		lows = new long[size];
+		states = new long[size];
+	}
+
+	@Override
+	public int size()
+	{
+		return states.length;
+	}
+
+	@Override
+	public int address(int index)
+	{
+		return first + index;
+	}
+
+	@Override
+	public int index(int address)
+	{
+		long index = (address - first) & 0xFFFFFFFFL;
+		return index < states.length ? (int)index : -1;
+	}
+
+	@Override
+	public int state(int index)
+	{
+		return (int)(states[index] >>> STATESHIFT);
+	}
+
+	@Override
+	public long leaseDuration(int index)
+	{
+		return states[index] & DURATIONMASK;
+	}
+
+	@Override
+	public boolean isClient(int index, long high, long low)
+	{
+		return states[index] >>> STATESHIFT != FREE && highs[index] == high && lows[index] == low;
+	}
+
+	@Override
+	public long high(int index)
+	{
+		return highs[index];
+	}
+
+	@Override
+	public long low(int index)
+	{
+		return lows[index];
+	}
+
+	@Override
+	public boolean reserve(int index, long high, long low, int leaseDuration)
+	{
+		highs[index] = high;
+		lows[index] = low;
+		states[index] = (long)RESERVED << STATESHIFT | (leaseDuration & DURATIONMASK);
+		return true;
+	}
+
+	@Override
+	public boolean allocate(int index)
+	{
+		states[index] = (long)ALLOCATED << STATESHIFT | (states[index] & DURATIONMASK);
+		return true;
+	}
+
+	@Override
+	public boolean release(int index)
+	{
+		highs[index] = 0;
+		lows[index] = 0;
+		states[index] = 0;
+		return true;
+	}
+
+	@Override
+	public int count(int state)
+	{
+		int count = 0;
+		for(long word : states)
+			if(word >>> STATESHIFT == state)
+				count++;
+		return count;
+	}
+
+	@Override
+	public long expiry(int index)
+	{
+		return 0;
+	}
+
+	@Override
+	public void sync()
+	{
+	}
+}
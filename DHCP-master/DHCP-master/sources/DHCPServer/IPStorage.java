@@ -1,73 +1,629 @@
 package DHCPServer;
 
-import java.net.InetAddress;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 import DHCPHelper.Utility;
 /**
  * The IPStorrage manages all IP addresses in this storage
+ * It is shared by the server workers and the lease scheduler, and is safe to use from any number of threads:
+ * - the clients are divided over stripes by a hash of their MAC address; every stripe has a StampedLock and a LeaseIndex
+ *   of its own, so the operations on one client lock only its stripe and clients in different stripes do not contend
+ * - lookUp reads optimistically, without locking, and only takes the read lock when a writer interfered
+ * - the addresses are divided over allocation shards, contiguous blocks with their own lock, free addresses (FreeAddressSet)
+ *   and deadlines (TimingWheel, OfferHolds); a shard lock is only ever taken while holding a stripe lock, or no lock at all
+ * - every thread reserves from a shard of its own and only moves on to the next shard that has a free address when its own
+ *   has run dry, so with as many shards as workers, concurrent DHCPDiscovers do not fight over one "next free address"
+ *   (the allocation order then holds within a shard, not over the whole pool)
+ * Every operation on a client runs entirely under the write lock of its stripe, so reserve, allocate and release are linearizable
+ * The locks are not synchronized monitors, so a virtual thread waiting for one does not pin its carrier
+ *
+ * A sparse pool is divided in shards of at most SPARSEBLOCK addresses that are only materialized when an address of theirs
+ * is first reserved: until then a shard is nothing but its range, all free, so a pool of millions of addresses starts at once
+ * and its memory grows with the blocks in use rather than with its range
+ *
+ * The leases themselves are kept in a LeaseTable per shard, on the heap or in a LeaseFile; the operations come in two flavours:
+ * on the hardware address packed in two longs, returning the IPv4 address as an int (0 for none), which allocate nothing,
+ * and on byte arrays, for callers that have them
+ * Free addresses are tracked in a FreeAddressSet and the lease of every client in a LeaseIndex,
+ * so none of the operations on one client scans the pool
+ * An allocated address expires at an absolute System.nanoTime() deadline kept in a TimingWheel:
+ * update only touches the leases that expire
+ * A reserved address is held for the client for offerTimeout seconds only (OfferHolds): when no DHCPRequest follows,
+ * update reclaims it, so DHCPDiscovers from clients that never come back cannot exhaust the pool
+ *
+ * Persistence and replication are done by collaborators that work on the stripes and shards of the pool under the same locks:
+ * LeaseFile keeps the leases in a memory-mapped file, possibly shared with other processes, JournalRecovery rebuilds the pool
+ * from a LeaseJournal and its LeaseSnapshot, and LeaseApplier applies the transitions of a primary server to a standby;
+ * every transition is appended to the LeaseJournal and handed to the LeaseReplicator of the pool, if it has them
+ *
+ * A pool may start at any address and leave ranges of its addresses out (the router, static hosts): the excluded addresses
+ * are taken from the free addresses of a shard when it is materialized, so they cost nothing on the reserve path
+ *
+ * Pools are made with a Builder, IPStorage(range) is a pool on the heap with the default settings
  */
-public class IPStorage 
+public class IPStorage
 {
-	private ArrayList<IPContainer> listIPContainer;
-	private byte[] IP  = Utility.toBytes(new int[]{128,1,0,1});
+	private int IP = DEFAULTFIRST;
 	private int IPRange = 5;
 	
+	/**
+	 * The first address of a pool unless the Builder is given one: 128.1.0.1
+	 */
+	public final static int DEFAULTFIRST = Utility.toInt(Utility.toBytes(new int[]{128,1,0,1}));
+	
+	/**
+	 * The clients whose MAC address hashes to the same stripe, with the lock that guards them
+	 */
+	static class Stripe
+	{
+		final StampedLock lock = new StampedLock();
+		
+		/**
+		 * Index in the pool of the reserved or allocated IP address of every client of this stripe, by MAC address
+		 */
+		final LeaseIndex leases = new LeaseIndex();
+	}
+	
+	public final static int DEFAULTSTRIPES = 16;
+	private int stripeCount = DEFAULTSTRIPES;
+	private Stripe[] stripes;
+	private int stripeMask;
+	
+	/**
+	 * A contiguous block of the pool, from base on, with the lock that guards its leases, free addresses and deadlines
+	 * The structures are indexed relative to base, and null as long as the shard is not materialized (all its addresses are free)
+	 */
+	static class AllocationShard
+	{
+		final ReentrantLock lock = new ReentrantLock();
+		final int base;
+		final int size;
+		
+		/**
+		 * The leases
+		 */
+		LeaseTable table;
+		
+		/**
+		 * The free IP addresses
+		 */
+		FreeAddressSet free;
+		
+		/**
+		 * Lease deadlines, advanced by update
+		 */
+		TimingWheel expiry;
+		
+		/**
+		 * Reserved addresses waiting for a DHCPRequest
+		 */
+		OfferHolds holds;
+		
+		AllocationShard(int base, int size)
+		{
+			this.base = base;
+			this.size = size;
+		}
+		
+		/**
+		 * Drop the structures of this shard again, as if it was never materialized
+		 * The caller holds its lock, or is the constructor of the pool
+		 */
+		void clear()
+		{
+			table = null;
+			free = null;
+			expiry = null;
+			holds = null;
+		}
+	}
+	
+	/**
+	 * The maximum number of addresses of a shard of a sparse pool
+	 */
+	public final static int SPARSEBLOCK = 4096;
+	private boolean sparse = false;
+	
+	/**
+	 * The lease file the tables of the shards are mapped from, null to keep them on the heap
+	 */
+	private LeaseFile leaseFile;
+	
+	/**
+	 * The journal the lease transitions are appended to, null for none
+	 */
+	private LeaseJournal journal;
+	
+	/**
+	 * The number of addresses copied under one shard lock
+	 */
+	public final static int SNAPSHOTSLICE = 4096;
+	
+	/**
+	 * The replicator the lease transitions are streamed to a standby with, null for none
+	 */
+	private LeaseReplicator replicator;
+	private int shardCount = 1;
+	private AllocationShard[] shards;
+	private int shardSize;
+	private FreeAddressSet.Order order = FreeAddressSet.Order.LOWEST;
+	
+	/**
+	 * The indexes that are never reserved, as pairs of first and last index, sorted and disjoint
+	 * Replaced as a whole by exclude(address), under the lock of the shard of the address and the exclusion lock
+	 */
+	private volatile int[] excluded = new int[0];
+	private final ReentrantLock exclusionLock = new ReentrantLock();
+	
+	/**
+	 * The shard every thread reserves from first: handed out round robin, then the last one it found a free address in
+	 */
+	private final AtomicInteger nextHome = new AtomicInteger();
+	private final ThreadLocal<int[]> home = ThreadLocal.withInitial(() -> new int[]{nextHome.getAndIncrement()});
+	
+	public final static long DEFAULTTICK = 100_000_000L;
+	private long tickNanos = DEFAULTTICK;
+	public final static int DEFAULTOFFERTIMEOUT = 10;
+	private long offerTimeout = DEFAULTOFFERTIMEOUT * 1_000_000_000L;
+	
+	/**
+	 * Indexes handed out by expiry and holds during the current update, with the client they had then; only used by update
+	 */
+	private int[] expired = new int[64];
+	private long[] expiredHighs = new long[64];
+	private long[] expiredLows = new long[64];
+	private int expiredCount;
+	
+	/**
+	 * If the pool got a deadline (a hold or a lease) since the last update started, and who is told when it gets one while it has none
+	 */
+	private final AtomicBoolean deadlines = new AtomicBoolean();
+	private volatile Consumer<IPStorage> deadlineListener;
+	private boolean expiring;
+	
+	/**
+	 * The settings of a pool, each with the default of IPStorage(range) until it is set
+	 * IPStorage.builder().size(65536).shards(4).build()
+	 */
+	public static class Builder
+	{
+		private int first = DEFAULTFIRST;
+		private int size = 5;
+		private int[] excluded;
+		private FreeAddressSet.Order order = FreeAddressSet.Order.LOWEST;
+		private long tickNanos = DEFAULTTICK;
+		private int stripes = DEFAULTSTRIPES;
+		private int shards = 1;
+		private boolean sparse;
+		private Path leaseFile;
+		private MappedLeaseTable.Sync sync = MappedLeaseTable.Sync.NONE;
+		private int offerTimeout = DEFAULTOFFERTIMEOUT;
+		
+		/**
+		 * @param first	The first IPv4 address of the pool, as an int
+		 */
+		public Builder first(int first)
+		{
+			this.first = first;
+			return this;
+		}
+		
+		/**
+		 * @param size	The number of addresses of the pool
+		 */
+		public Builder size(int size)
+		{
+			this.size = size;
+			return this;
+		}
+		
+		/**
+		 * @param ranges	The addresses never to reserve, as pairs of first and last IPv4 address (inclusive); null for none
+		 */
+		public Builder exclude(int[] ranges)
+		{
+			excluded = ranges;
+			return this;
+		}
+		
+		/**
+		 * @param order	The order in which free addresses are reserved
+		 */
+		public Builder order(FreeAddressSet.Order order)
+		{
+			this.order = order;
+			return this;
+		}
+		
+		/**
+		 * @param tickNanos	The resolution of the lease deadlines in nanoseconds
+		 */
+		public Builder tick(long tickNanos)
+		{
+			this.tickNanos = tickNanos;
+			return this;
+		}
+		
+		/**
+		 * @param stripes	The number of lock stripes the clients are divided over (rounded up to a power of two)
+		 */
+		public Builder stripes(int stripes)
+		{
+			this.stripes = stripes;
+			return this;
+		}
+		
+		/**
+		 * @param shards	The number of allocation shards the addresses are divided over, typically the number of workers
+		 */
+		public Builder shards(int shards)
+		{
+			this.shards = shards;
+			return this;
+		}
+		
+		/**
+		 * @param sparse	If the pool is sparse: shards of at most SPARSEBLOCK addresses, materialized on first use
+		 */
+		public Builder sparse(boolean sparse)
+		{
+			this.sparse = sparse;
+			return this;
+		}
+		
+		/**
+		 * Set how long a reserved IP address is held for a DHCPRequest before it is reclaimed
+		 * It is fixed for the life of the pool: the holds of an allocation shard expire in the order they are taken (OfferHolds)
+		 * @param seconds	The timeout, 0 to hold reserved addresses forever
+		 */
+		public Builder offerTimeout(int seconds)
+		{
+			offerTimeout = seconds;
+			return this;
+		}
+		
+		/**
+		 * Keep the leases in the given file, created when it does not exist
+		 * When the file holds the leases of this pool already, they are taken up again: allocated addresses until the end of their lease,
+		 * reserved ones for the offer timeout; the leases of other processes that share the file are only marked as taken, unless they are dead
+		 * @param file	The lease file, null to keep the leases on the heap
+		 * @param sync	When changes to the lease file are forced to the disk
+		 */
+		public Builder leaseFile(Path file, MappedLeaseTable.Sync sync)
+		{
+			leaseFile = file;
+			this.sync = sync;
+			return this;
+		}
+		
+		/**
+		 * @return	the pool
+		 * @throws 	IOException	when the lease file cannot be mapped, or holds the leases of another pool
+		 * @throws 	IllegalArgumentException	for an excluded range whose last address comes before its first
+		 */
+		public IPStorage build() throws IOException
+		{
+			return new IPStorage(this);
+		}
+	}
+	
+	/**
+	 * @return the settings of a new pool
+	 */
+	public static Builder builder()
+	{
+		return new Builder();
+	}
+	
 	/**
 	 * Constructor calls the initialization of the pool of IP addresses
 	 */
 	public IPStorage()
 	{
-		listIPContainer = new ArrayList<>();
-		init();
+		this(5);
 	}
 	
 	/**
-	 * Initialize the pool of IP addresses to manage
+	 * Constructor of a pool on the heap of the given number of IP addresses, starting at 128.1.0.1
+	 * @param range
 	 */
-	private void init()
+	public IPStorage(int range)
+	{
+		IPRange = range;
+		try
+		{init();}
+		catch(IOException e)
+		{throw new UncheckedIOException(e);}
+	}
+	
+	private IPStorage(Builder settings) throws IOException
 	{
-		byte[] IPIncrementing = IP;
+		IP = settings.first;
+		IPRange = settings.size;
+		exclude(settings.excluded);
+		order = settings.order;
+		tickNanos = settings.tickNanos;
+		stripeCount = settings.stripes;
+		shardCount = settings.shards;
+		sparse = settings.sparse;
+		offerTimeout = settings.offerTimeout * 1_000_000_000L;
+		if(settings.leaseFile != null)
+			leaseFile = new LeaseFile(settings.leaseFile, IP, Math.max(0, IPRange), settings.sync);
 		try
+		{init();}
+		catch(IOException | RuntimeException e)
 		{
-			for(int i = 0; i < IPRange; i++)
+			if(leaseFile != null)
+				leaseFile.close(new AllocationShard[0]);
+			throw e;
+		}
+	}
+	
+	/**
+	 * Turn the given pairs of excluded addresses into the sorted and merged ranges of indexes of this pool
+	 * @param ranges	Pairs of first and last IPv4 address, null for none
+	 * @throws IllegalArgumentException	for a pair whose last address comes before its first
+	 */
+	private void exclude(int[] ranges)
+	{
+		if(ranges == null || ranges.length == 0) return;
+		long size = Math.max(0, IPRange);
+		long[] indexes = new long[ranges.length / 2];
+		int count = 0;
+		for(int i = 0; i + 1 < ranges.length; i += 2)
+		{
+			long from = (ranges[i] & 0xFFFFFFFFL) - (IP & 0xFFFFFFFFL), to = (ranges[i + 1] & 0xFFFFFFFFL) - (IP & 0xFFFFFFFFL);
+			if(to < from)
+				throw new IllegalArgumentException("Excluded range ends before it starts: " + Integer.toHexString(ranges[i]) + "-" + Integer.toHexString(ranges[i + 1]));
+			from = Math.max(0, from);
+			to = Math.min(size - 1, to);
+			if(from <= to)
+				indexes[count++] = from << 32 | to;
+		}
+		Arrays.sort(indexes, 0, count);
+		int[] merged = new int[count * 2];
+		int length = 0;
+		for(int i = 0; i < count; i++)
+		{
+			int from = (int)(indexes[i] >>> 32), to = (int)indexes[i];
+			if(length > 0 && from <= merged[length - 1] + 1)
+				merged[length - 1] = Math.max(merged[length - 1], to);
+			else
 			{
-				IPContainer ipcontainer = new IPContainer(IPIncrementing);
-				IPIncrementing = incrementIPAddress(IPIncrementing);
-				listIPContainer.add(ipcontainer);
+				merged[length++] = from;
+				merged[length++] = to;
 			}
 		}
-		catch(Exception e)
-		{e.printStackTrace();}
+		excluded = Arrays.copyOf(merged, length);
 	}
 	
 	/**
-	 * Increment the given IP address and checks if its valid
-	 * Assume only in the range of zero to 255
-	 * @param IPAddress
-	 * @return
+	 * Leave the given address out of the pool from now on, as if it were in the excluded ranges the pool was built with
+	 * A client that holds it keeps it until it releases it or its lease expires, but it is never reserved again
+	 * For an address the server only learns at runtime, as the one of a relay agent (giaddr)
+	 * @param address	The IPv4 address, as an int; one outside the pool is ignored
 	 */
-	private byte[] incrementIPAddress(byte[] IPAddress)
+	public void exclude(int address)
 	{
-		if(IPAddress.length != 4) throw new IllegalArgumentException("Invalid ip4 format");
-		int IPInt = Utility.toInt(IPAddress);
-		IPInt++;
-		return Utility.toByteArray(IPInt);
+		long offset = (address - IP) & 0xFFFFFFFFL;
+		if(offset >= IPRange) return;
+		int index = (int)offset;
+		AllocationShard shard = shard(index);
+		shard.lock.lock();
+		exclusionLock.lock();
+		try
+		{
+			if(isExcluded(index)) return;
+			int[] ranges = new int[excluded.length + 2];
+			for(int i = 0; i < excluded.length; i++)
+				ranges[i] = IP + excluded[i];
+			ranges[excluded.length] = address;
+			ranges[excluded.length + 1] = address;
+			exclude(ranges);
+			if(shard.free != null)
+				shard.free.take(index - shard.base);
+		}
+		finally
+		{
+			exclusionLock.unlock();
+			shard.lock.unlock();
+		}
 	}
 	
 	/**
-	 * @return if the given IP is reserved or not
-	 * @param ip
+	 * @param 	index
+	 * @return	if the address with the given index is excluded from the pool
 	 */
-	private boolean isReserved(InetAddress ip)
+	private boolean isExcluded(int index)
 	{
-		for(IPContainer ipcontainer : listIPContainer)
-			if(ip.equals(ipcontainer.IPAddress) && ipcontainer.isReserved())
+		int[] ranges = excluded;
+		int low = 0, high = ranges.length / 2 - 1;
+		while(low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			if(ranges[middle * 2 + 1] < index)
+				low = middle + 1;
+			else if(ranges[middle * 2] > index)
+				high = middle - 1;
+			else
 				return true;
+		}
 		return false;
 	}
 	
+	/**
+	 * @param 	shard
+	 * @return	the number of excluded addresses in the given shard
+	 */
+	private int excludedIn(AllocationShard shard)
+	{
+		int count = 0;
+		for(int i = 0; i < excluded.length; i += 2)
+			count += Math.max(0, Math.min(excluded[i + 1], shard.base + shard.size - 1) - Math.max(excluded[i], shard.base) + 1);
+		return count;
+	}
+	
+	/**
+	 * Initialize the pool of IP addresses to manage, and take the leases of its lease file up again
+	 */
+	private void init() throws IOException
+	{
+		stripes = new Stripe[Integer.highestOneBit(Math.max(1, stripeCount) * 2 - 1)];
+		for(int i = 0; i < stripes.length; i++)
+			stripes[i] = new Stripe();
+		stripeMask = stripes.length - 1;
+		int size = Math.max(0, IPRange);
+		int count = Math.max(1, Math.min(shardCount, size));
+		if(sparse)
+			count = Math.max(count, (int)((size + (long)SPARSEBLOCK - 1) / SPARSEBLOCK));
+		shardSize = Math.max(1, (int)((size + (long)count - 1) / count));
+		shards = new AllocationShard[Math.max(1, (int)((size + (long)shardSize - 1) / shardSize))];
+		for(int i = 0; i < shards.length; i++)
+		{
+			shards[i] = new AllocationShard(i * shardSize, Math.min(shardSize, size - i * shardSize));
+			if(!sparse)
+				materialize(shards[i]);
+		}
+		if(leaseFile != null)
+			leaseFile.recover(this);
+	}
+	
+	/**
+	 * Create the structures of the given shard, if it has none yet
+	 * The caller holds its lock, or is the constructor
+	 * @param shard
+	 * @throws IOException	when its part of the lease file cannot be mapped
+	 */
+	void materialize(AllocationShard shard) throws IOException
+	{
+		if(shard.table != null) return;
+		shard.free = new FreeAddressSet(shard.size, order);
+		for(int i = 0; i < excluded.length; i += 2)
+			for(int index = Math.max(excluded[i], shard.base); index <= Math.min(excluded[i + 1], shard.base + shard.size - 1); index++)
+				shard.free.take(index - shard.base);
+		shard.expiry = new TimingWheel(shard.size, tickNanos);
+		shard.holds = new OfferHolds(shard.size);
+		if(leaseFile == null)
+			shard.table = new HeapLeaseTable(IP + shard.base, shard.size);
+		else
+			shard.table = leaseFile.table(shard, IP + shard.base);
+	}
+	
+	/**
+	 * Index the reserved or allocated IP address with the given index, owned by this process, under its client,
+	 * and give it its deadline: allocated addresses the end of their lease, reserved ones the offer timeout
+	 * A client that holds another address already, after a crash halfway a change, keeps that one
+	 * @param index
+	 * @param high	The first 8 bytes of the MAC address of its client
+	 * @param low	The last 8 bytes of the MAC address of its client
+	 */
+	void takeUp(int index, long high, long low)
+	{
+		Stripe stripe = stripe(high, low);
+		long stamp = stripe.lock.writeLock();
+		try
+		{
+			if(stripe.leases.putIfAbsent(high, low, index) >= 0)
+			{
+				free(index);
+				return;
+			}
+			AllocationShard shard = shard(index);
+			shard.lock.lock();
+			try
+			{
+				int local = index - shard.base;
+				if(shard.table.state(local) == LeaseTable.ALLOCATED)
+					shard.expiry.schedule(local, System.nanoTime() + (shard.table.expiry(local) - System.currentTimeMillis()) * 1_000_000L);
+				else if(offerTimeout > 0)
+					shard.holds.hold(local, System.nanoTime() + offerTimeout);
+			}
+			finally
+			{shard.lock.unlock();}
+			scheduled();
+		}
+		finally
+		{stripe.lock.unlockWrite(stamp);}
+	}
+	
+	/**
+	 * Write the changes to the lease file through to the disk and close it
+	 * The pool must not be used any more afterwards
+	 */
+	public void close()
+	{
+		if(leaseFile != null)
+			leaseFile.close(shards);
+	}
+	
+	/**
+	 * @param 	index
+	 * @return	the IP address with the given index, as an int
+	 */
+	int address(int index)
+	{
+		return IP + index;
+	}
+	
+	/**
+	 * @param 	high
+	 * @param 	low
+	 * @return	the stripe of the client with the given MAC address
+	 */
+	Stripe stripe(long high, long low)
+	{
+		return stripes[(int)(LeaseIndex.hash(high, low) >>> 40) & stripeMask];
+	}
+	
+	/**
+	 * @return the stripes of the clients, for the collaborators of the pool
+	 */
+	Stripe[] stripes()
+	{
+		return stripes;
+	}
+	
+	/**
+	 * @return the allocation shards by ascending base, for the collaborators of the pool
+	 */
+	AllocationShard[] shards()
+	{
+		return shards;
+	}
+	
+	/**
+	 * @return if the pool is sparse
+	 */
+	boolean isSparse()
+	{
+		return sparse;
+	}
+	
+	/**
+	 * @return the time in nanoseconds a reserved address is held for a DHCPRequest, 0 for ever
+	 */
+	long offerTimeout()
+	{
+		return offerTimeout;
+	}
+	
+	/**
+	 * @param 	address	An IPv4 address, as an int, 0 for none
+	 * @return	the address as a byte array, null for none
+	 */
+	private static byte[] toBytes(int address)
+	{
+		return address == 0 ? null : Utility.toByteArray(address);
+	}
+	
 	/**
 	 * Look for a reserved or allocated IP address to the given MAC address
 	 * @param 	macaddress
@@ -76,9 +632,64 @@ public class IPStorage
 	 */
 	public byte[] lookUp(byte[] macaddress)
 	{
-		for(IPContainer ipcontainer : listIPContainer)
-			if(ipcontainer.reserver != null && Arrays.equals(ipcontainer.reserver, macaddress)) return ipcontainer.IPAddress;
-		return null;
+		return toBytes(lookUp(LeaseIndex.high(macaddress), LeaseIndex.low(macaddress)));
+	}
+	
+	/**
+	 * Look for a reserved or allocated IP address to the given MAC address
+	 * @param 	high	The first 8 bytes of the MAC address
+	 * @param 	low		The last 8 bytes of the MAC address
+	 * @return	the reserved or allocated IP address, 0 if there is none
+	 */
+	public int lookUp(long high, long low)
+	{
+		Stripe stripe = stripe(high, low);
+		long stamp = stripe.lock.tryOptimisticRead();
+		if(stamp != 0)
+		{
+			try
+			{
+				int index = stripe.leases.get(high, low);
+				if(stripe.lock.validate(stamp))
+					return index < 0 ? 0 : address(index);
+			}
+			catch(RuntimeException e)
+			{
+				// the index was resized under the read, so the stamp is no longer valid either
+			}
+		}
+		stamp = stripe.lock.readLock();
+		try
+		{
+			int index = stripe.leases.get(high, low);
+			return index < 0 ? 0 : address(index);
+		}
+		finally
+		{stripe.lock.unlockRead(stamp);}
+	}
+	
+	/**
+	 * @param 	high	The first 8 bytes of the MAC address
+	 * @param 	low		The last 8 bytes of the MAC address
+	 * @return	the lease duration in seconds the address of the given client is kept for, 0 if it has none
+	 */
+	public int getLeaseDuration(long high, long low)
+	{
+		Stripe stripe = stripe(high, low);
+		long stamp = stripe.lock.readLock();
+		try
+		{
+			int index = stripe.leases.get(high, low);
+			if(index < 0) return 0;
+			AllocationShard shard = shard(index);
+			shard.lock.lock();
+			try
+			{return (int)Math.max(0, shard.table.leaseDuration(index - shard.base));}
+			finally
+			{shard.lock.unlock();}
+		}
+		finally
+		{stripe.lock.unlockRead(stamp);}
 	}
 	
 	/**
@@ -89,14 +700,108 @@ public class IPStorage
 	 */
 	public byte[] reserveAddress(byte[] macaddress, int leaseDuration)
 	{
-		if(lookUp(macaddress) != null) return lookUp(macaddress);
-		for(IPContainer ipcontainer : listIPContainer)
-			if(!ipcontainer.isReserved() && !ipcontainer.isAllocated())
+		return toBytes(reserveAddress(LeaseIndex.high(macaddress), LeaseIndex.low(macaddress), leaseDuration));
+	}
+	
+	/**
+	 * Reserve a free IP address to the given MAC adress for the given duration
+	 * @param 	high	The first 8 bytes of the MAC address
+	 * @param 	low		The last 8 bytes of the MAC address
+	 * @param 	leaseDuration
+	 * @return	the reserved IP address, 0 if the pool is exhausted
+	 */
+	public int reserveAddress(long high, long low, int leaseDuration)
+	{
+		Stripe stripe = stripe(high, low);
+		long stamp = stripe.lock.writeLock();
+		try
+		{
+			int index = stripe.leases.get(high, low);
+			if(index >= 0)
 			{
-				ipcontainer.reserve(macaddress, leaseDuration);
-				return ipcontainer.IPAddress;
+				hold(index);
+				return address(index);
 			}
-		return null;
+			index = take(high, low, leaseDuration);
+			if(index < 0) return 0;
+			stripe.leases.put(high, low, index);
+			record(LeaseJournal.RESERVE, index, high, low, leaseDuration);
+			return address(index);
+		}
+		finally
+		{stripe.lock.unlockWrite(stamp);}
+	}
+	
+	/**
+	 * Take a free IP address, from the shard of the calling thread or, when that one has run dry, from the next shard that has one,
+	 * reserve it to the given client and hold it for a DHCPRequest
+	 * @return	its index, -1 if the pool is exhausted
+	 */
+	private int take(long high, long low, int leaseDuration)
+	{
+		long timeout = offerTimeout;
+		int[] last = home.get();
+		int first = last[0] % shards.length;
+		for(int i = 0; i < shards.length; i++)
+		{
+			AllocationShard shard = shards[(first + i) % shards.length];
+			shard.lock.lock();
+			try
+			{
+				try
+				{materialize(shard);}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+					continue;
+				}
+				int index;
+				// an address another process took since the last scan stays taken here
+				while((index = shard.free.take()) >= 0 && !shard.table.reserve(index, high, low, leaseDuration));
+				if(index < 0) continue;
+				if(timeout > 0)
+				{
+					shard.holds.hold(index, System.nanoTime() + timeout);
+					scheduled();
+				}
+				last[0] = (first + i) % shards.length;
+				return shard.base + index;
+			}
+			finally
+			{shard.lock.unlock();}
+		}
+		return -1;
+	}
+	
+	/**
+	 * @param 	index
+	 * @return	the allocation shard of the IP address with the given index
+	 */
+	AllocationShard shard(int index)
+	{
+		return shards[index / shardSize];
+	}
+	
+	/**
+	 * Hold the IP address with the given index for a DHCPRequest again, if it is reserved
+	 * @param index
+	 */
+	private void hold(int index)
+	{
+		long timeout = offerTimeout;
+		if(timeout <= 0) return;
+		AllocationShard shard = shard(index);
+		shard.lock.lock();
+		try
+		{
+			if(shard.table.state(index - shard.base) == LeaseTable.RESERVED)
+			{
+				shard.holds.hold(index - shard.base, System.nanoTime() + timeout);
+				scheduled();
+			}
+		}
+		finally
+		{shard.lock.unlock();}
 	}
 	
 	/**
@@ -106,18 +811,78 @@ public class IPStorage
 	 */
 	public byte[] allocateAddress(byte[] macaddress)
 	{
-		if(lookUp(macaddress) == null) return null;
-
-		for(IPContainer ipcontainer : listIPContainer)
-			if(Arrays.equals(ipcontainer.reserver, macaddress))
+		return toBytes(allocateAddress(LeaseIndex.high(macaddress), LeaseIndex.low(macaddress)));
+	}
+	
+	/**
+	 * Allocate the IP address that is already reserved for the given MAC address
+	 * @param 	high	The first 8 bytes of the MAC address
+	 * @param 	low		The last 8 bytes of the MAC address
+	 * @return	the allocated IP address, 0 if the client has none
+	 */
+	public int allocateAddress(long high, long low)
+	{
+		return allocateAddress(high, low, null);
+	}
+	
+	/**
+	 * Allocate the IP address that is already reserved for the given MAC address
+	 * @param 	high	The first 8 bytes of the MAC address
+	 * @param 	low		The last 8 bytes of the MAC address
+	 * @param 	sequence	Receives the journal sequence number of the allocation in its first element, 0 without a journal; may be null
+	 * @return	the allocated IP address, 0 if the client has none
+	 */
+	public int allocateAddress(long high, long low, long[] sequence)
+	{
+		return allocateAddress(high, low, 0, sequence);
+	}
+	
+	/**
+	 * Allocate the IP address that is already reserved for the given MAC address, if it is the given one
+	 * A client that requests another address than its reservation keeps the reservation, and nothing is journaled
+	 * @param 	high	The first 8 bytes of the MAC address
+	 * @param 	low		The last 8 bytes of the MAC address
+	 * @param 	address	The IPv4 address the client requests, as an int; 0 for the one reserved, whichever it is
+	 * @param 	sequence	Receives the journal sequence number of the allocation in its first element, 0 without a journal; may be null
+	 * @return	the allocated IP address, 0 if the client has none or another one
+	 */
+	public int allocateAddress(long high, long low, int address, long[] sequence)
+	{
+		Stripe stripe = stripe(high, low);
+		long stamp = stripe.lock.writeLock();
+		try
+		{
+			int index = stripe.leases.get(high, low);
+			if(index < 0 || (address != 0 && address(index) != address)) return 0;
+			AllocationShard shard = shard(index);
+			long leaseDuration;
+			shard.lock.lock();
+			try
 			{
-				ipcontainer.allocate();
-				return ipcontainer.IPAddress;
+				boolean own = shard.table.allocate(index - shard.base);
+				shard.holds.cancel(index - shard.base);
+				leaseDuration = own ? shard.table.leaseDuration(index - shard.base) : -1;
+				if(own)
+					shard.expiry.schedule(index - shard.base, System.nanoTime() + leaseDuration * 1_000_000_000L);
 			}
-		
-		System.out.println("Allocation failed");
-		return null;
-		
+			finally
+			{shard.lock.unlock();}
+			if(leaseDuration >= 0)
+				scheduled();
+			if(leaseDuration < 0)
+			{
+				// another process took the address up while this one stalled: the lease is its now, and stays taken here
+				stripe.leases.remove(high, low);
+				record(LeaseJournal.RELEASE, index, high, low, 0);
+				return 0;
+			}
+			long recorded = record(LeaseJournal.ALLOCATE, index, high, low, (int)leaseDuration);
+			if(sequence != null)
+				sequence[0] = recorded;
+			return address(index);
+		}
+		finally
+		{stripe.lock.unlockWrite(stamp);}
 	}
 	
 	/**
@@ -127,48 +892,371 @@ public class IPStorage
 	 */
 	public boolean release(byte[] macaddress)
 	{
-		if(lookUp(macaddress) == null) return false;
-		for(IPContainer ipcontainer : listIPContainer)
-			if(ipcontainer.reserver != null && Arrays.equals(ipcontainer.reserver, macaddress)) 
-			{
-				ipcontainer.release();
-				return true;
-			}
-		return false;
+		return release(LeaseIndex.high(macaddress), LeaseIndex.low(macaddress));
+	}
+	
+	/**
+	 * Release the IP address reserved by or allocated to the given MAC address
+	 * @param 	high	The first 8 bytes of the MAC address
+	 * @param 	low		The last 8 bytes of the MAC address
+	 * @return	if the client had one
+	 */
+	public boolean release(long high, long low)
+	{
+		Stripe stripe = stripe(high, low);
+		long stamp = stripe.lock.writeLock();
+		try
+		{
+			int index = stripe.leases.remove(high, low);
+			if(index < 0) return false;
+			free(index);
+			record(LeaseJournal.RELEASE, index, high, low, 0);
+			return true;
+		}
+		finally
+		{stripe.lock.unlockWrite(stamp);}
+	}
+	
+	/**
+	 * Append a lease transition to the journal and hand it to the replicator, if there are
+	 * The caller holds the write lock of the stripe of the client
+	 * @param type		RESERVE, ALLOCATE, RELEASE or EXPIRE
+	 * @param index
+	 * @param high
+	 * @param low
+	 * @param leaseDuration
+	 * @return	the sequence number of the journal record, 0 without a journal
+	 */
+	long record(int type, int index, long high, long low, int leaseDuration)
+	{
+		long sequence = journal == null ? 0 : journal.append(type, address(index), high, low, leaseDuration);
+		if(replicator != null)
+			replicator.append(type, address(index), high, low, leaseDuration);
+		return sequence;
+	}
+	
+	/**
+	 * Return the IP address with the given index to the free addresses
+	 * An address another process that shares the lease file took up meanwhile is left to it, and stays taken here
+	 * The caller holds the write lock of the stripe of its client and has removed the client from it
+	 * @param index
+	 */
+	void free(int index)
+	{
+		AllocationShard shard = shard(index);
+		shard.lock.lock();
+		try
+		{
+			boolean own = shard.table.release(index - shard.base);
+			shard.holds.cancel(index - shard.base);
+			shard.expiry.cancel(index - shard.base);
+			if(own && (excluded.length == 0 || !isExcluded(index)))
+				shard.free.release(index - shard.base);
+		}
+		finally
+		{shard.lock.unlock();}
 	}
 	
 	/**
 	 * Print the content of this IP storage
+	 * The counts are not a snapshot: clients may be served while they are made
 	 */
 	public void printContent()
 	{
-		//System.out.println("Size of IP pool listIPContainer.size());
 		int numberReserved = 0, numberAllocated = 0;
-		for(IPContainer ipc : listIPContainer)
+		for(AllocationShard shard : shards)
 		{
-			if(ipc.isReserved()) ++numberReserved;
-			if(ipc.isAllocated()) ++ numberAllocated;
+			shard.lock.lock();
+			try
+			{
+				if(shard.table == null) continue;
+				numberReserved += shard.table.count(LeaseTable.RESERVED);
+				numberAllocated += shard.table.count(LeaseTable.ALLOCATED);
+			}
+			finally
+			{shard.lock.unlock();}
 		}
-		System.out.println("Size of IP pool: reserved: " + numberReserved + " , allocated: " + numberAllocated);
+		System.out.println("Size of IP pool: reserved: " + numberReserved + " , allocated: " + numberAllocated + " , free: " + getFreeAddresses());
 	}
 	
 	/**
-	 * Update the content of this IP Storage, lower all leasetimes of allocated IP's
+	 * @return the first IPv4 address of this pool, as an int
 	 */
-	public void update() 
+	public int getFirstAddress()
 	{
-		for(IPContainer ipc : listIPContainer)
+		return IP;
+	}
+	
+	/**
+	 * @return the number of addresses of this pool
+	 */
+	public int getSize()
+	{
+		return Math.max(0, IPRange);
+	}
+	
+	/**
+	 * @return the number of free IP addresses
+	 */
+	public int getFreeAddresses()
+	{
+		int count = 0;
+		for(AllocationShard shard : shards)
+		{
+			shard.lock.lock();
+			try
+			{count += shard.free == null ? shard.size - excludedIn(shard) : shard.free.count();}
+			finally
+			{shard.lock.unlock();}
+		}
+		return count;
+	}
+	
+	/**
+	 * Update the content of this IP Storage, release the allocated IP's whose lease has expired
+	 * and the reserved IP's whose offer was not requested in time
+	 * The expired addresses are collected first, then released one by one under the lock of their client's stripe,
+	 * skipping the ones that were renewed, requested again or released in between
+	 * With a lease file, the changes other processes made to it are looked at first, and the changes of this one
+	 * are forced to the disk after, as its Sync policy says (LeaseFile.update, LeaseFile.sync)
+	 * Called by one thread at a time (the lease scheduler)
+	 * @return the number of released IP's
+	 */
+	public int update()
+	{
+		// a deadline scheduled from here on is either seen below or tells the listener
+		deadlines.set(false);
+		boolean remaining = false;
+		if(leaseFile != null)
+			leaseFile.update(this);
+		expiredCount = 0;
+		for(AllocationShard shard : shards)
 		{
-			if(ipc.isAllocated() && ipc.leaseDuration > 0) ipc.update();
-			if(ipc.isAllocated() && ipc.leaseDuration <= 0)
+			shard.lock.lock();
+			try
 			{
-				ipc.release();
-				System.out.println("IP released ");
-				printContent();
+				if(shard.table == null) continue;
+				long now = System.nanoTime();
+				int first = expiredCount;
+				shard.expiry.advance(now, this::collect);
+				shard.holds.expire(now, this::collect);
+				remaining |= shard.expiry.size() > 0 || shard.holds.size() > 0;
+				for(int i = first; i < expiredCount; i++)
+				{
+					expiredHighs[i] = shard.table.high(expired[i]);
+					expiredLows[i] = shard.table.low(expired[i]);
+					expired[i] += shard.base;
+				}
 			}
-			
+			finally
+			{shard.lock.unlock();}
 		}
-		
-		
+		int released = 0;
+		for(int i = 0; i < expiredCount; i++)
+			if(expire(expired[i], expiredHighs[i], expiredLows[i]))
+				released++;
+		if(leaseFile != null)
+			leaseFile.sync(shards);
+		expiring = remaining && deadlines.compareAndSet(false, true);
+		return released;
+	}
+	
+	/**
+	 * @return	after an update, if its caller has to come back for the deadlines left: false when the pool has none,
+	 * 			or when it got one during the update and told the deadline listener
+	 */
+	public boolean isExpiring()
+	{
+		return expiring;
+	}
+	
+	/**
+	 * Tell the given listener when this pool gets a deadline while it has none, so that only the pools with deadlines are updated:
+	 * the listener is told once, and again only after an update found no deadlines left (isExpiring)
+	 * It is called by the thread that reserves or allocates, under the locks of the pool, so it must not block
+	 * @param listener	null for none
+	 */
+	public void setDeadlineListener(Consumer<IPStorage> listener)
+	{
+		deadlineListener = listener;
+	}
+	
+	/**
+	 * Note that a deadline was scheduled: the first one since the last update started tells the deadline listener
+	 */
+	void scheduled()
+	{
+		if(deadlines.get() || !deadlines.compareAndSet(false, true)) return;
+		Consumer<IPStorage> listener = deadlineListener;
+		if(listener != null)
+			listener.accept(this);
+	}
+	
+	private void collect(int index)
+	{
+		if(expiredCount == expired.length)
+		{
+			expired = Arrays.copyOf(expired, expiredCount * 2);
+			expiredHighs = Arrays.copyOf(expiredHighs, expiredCount * 2);
+			expiredLows = Arrays.copyOf(expiredLows, expiredCount * 2);
+		}
+		expired[expiredCount++] = index;
+	}
+	
+	/**
+	 * Set after how long without a heartbeat a process that shares the lease file is dead, and its leases are taken up
+	 * @param milliseconds
+	 */
+	public void setHeartbeatTimeout(long milliseconds)
+	{
+		if(leaseFile != null)
+			leaseFile.setHeartbeatTimeout(milliseconds);
+	}
+	
+	/**
+	 * @return the process slot of this process in the lease file, 0 without a lease file
+	 */
+	public int getProcessSlot()
+	{
+		return leaseFile == null ? 0 : leaseFile.slot();
+	}
+	
+	/**
+	 * @return the number of reserved IP addresses waiting for a DHCPRequest
+	 */
+	public int getHeldOffers()
+	{
+		int count = 0;
+		for(AllocationShard shard : shards)
+		{
+			shard.lock.lock();
+			try
+			{count += shard.holds == null ? 0 : shard.holds.size();}
+			finally
+			{shard.lock.unlock();}
+		}
+		return count;
+	}
+	
+	/**
+	 * @return the number of reserved IP addresses reclaimed because their offer was not requested in time
+	 */
+	public long getReclaimedOffers()
+	{
+		long count = 0;
+		for(AllocationShard shard : shards)
+		{
+			shard.lock.lock();
+			try
+			{count += shard.holds == null ? 0 : shard.holds.reclaimed();}
+			finally
+			{shard.lock.unlock();}
+		}
+		return count;
+	}
+	
+	/**
+	 * Release the IP address with the given index, its lease or its offer has expired
+	 * @param 	index
+	 * @param 	high	The first 8 bytes of the MAC address of its client when it expired
+	 * @param 	low		The last 8 bytes of the MAC address of its client when it expired
+	 * @return	if it was released, false if it has been renewed, requested again or released since
+	 */
+	private boolean expire(int index, long high, long low)
+	{
+		Stripe stripe = stripe(high, low);
+		long stamp = stripe.lock.writeLock();
+		try
+		{
+			AllocationShard shard = shard(index);
+			shard.lock.lock();
+			try
+			{
+				if(!shard.table.isClient(index - shard.base, high, low)) return false;
+				if(shard.expiry.isScheduled(index - shard.base) || shard.holds.isHeld(index - shard.base)) return false;
+			}
+			finally
+			{shard.lock.unlock();}
+			stripe.leases.remove(high, low);
+			free(index);
+			record(LeaseJournal.EXPIRE, index, high, low, 0);
+			return true;
+		}
+		finally
+		{stripe.lock.unlockWrite(stamp);}
+	}
+	
+	/**
+	 * Recover the leases of the given journal, from its latest LeaseSnapshot and the journal segments written since
+	 * (JournalRecovery), then append every lease transition to it from now on
+	 * A pool with a lease file has its leases already, and only appends
+	 * Call it before the pool is used
+	 * @param 	journal
+	 * @return	the number of leases recovered
+	 * @throws 	IOException
+	 */
+	public int setJournal(LeaseJournal journal) throws IOException
+	{
+		int count = 0;
+		if(leaseFile == null)
+			count = new JournalRecovery(this).recover(journal);
+		else
+			journal.replay(Long.MAX_VALUE, (type, address, high, low, leaseDuration, time) -> {});
+		this.journal = journal;
+		return count;
+	}
+	
+	/**
+	 * Hand every reserved and allocated address of this pool (of this process, when the lease file is shared) to the given sink,
+	 * by ascending index, while the pool keeps serving: the shards are copied SNAPSHOTSLICE addresses at a time,
+	 * each slice under the lock of its shard for a moment only, and handed over after
+	 * So the copy is fuzzy: a transition made during it may or may not be in it
+	 * @param 	sink
+	 * @throws 	IOException	when the sink fails
+	 */
+	public void copy(LeaseSnapshot.Sink sink) throws IOException
+	{
+		int[] indexes = new int[SNAPSHOTSLICE], states = new int[SNAPSHOTSLICE], durations = new int[SNAPSHOTSLICE];
+		long[] highs = new long[SNAPSHOTSLICE], lows = new long[SNAPSHOTSLICE], expiries = new long[SNAPSHOTSLICE];
+		for(AllocationShard shard : shards)
+		{
+			for(int start = 0; start < shard.size; start += SNAPSHOTSLICE)
+			{
+				int count = 0;
+				shard.lock.lock();
+				try
+				{
+					LeaseTable table = shard.table;
+					if(table == null) break;
+					long nanos = System.nanoTime(), millis = System.currentTimeMillis();
+					for(int local = start; local < Math.min(shard.size, start + SNAPSHOTSLICE); local++)
+					{
+						int state = table.state(local);
+						if(state != LeaseTable.RESERVED && state != LeaseTable.ALLOCATED) continue;
+						if(leaseFile != null && !leaseFile.isOwner(table, local)) continue;
+						indexes[count] = shard.base + local;
+						states[count] = state;
+						durations[count] = (int)table.leaseDuration(local);
+						highs[count] = table.high(local);
+						lows[count] = table.low(local);
+						expiries[count++] = state == LeaseTable.ALLOCATED && shard.expiry.isScheduled(local)
+								? millis + (shard.expiry.getDeadline(local) - nanos) / 1_000_000L : 0;
+					}
+				}
+				finally
+				{shard.lock.unlock();}
+				for(int i = 0; i < count; i++)
+					sink.add(indexes[i], states[i], durations[i], highs[i], lows[i], expiries[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Stream every lease transition of this pool to a standby with the given replicator from now on
+	 * @param replicator
+	 */
+	public void setReplicator(LeaseReplicator replicator)
+	{
+		this.replicator = replicator;
 	}
 }
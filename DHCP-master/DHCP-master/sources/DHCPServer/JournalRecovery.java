@@ -0,0 +1,259 @@
+package DHCPServer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import DHCPServer.IPStorage.AllocationShard;
+import DHCPServer.IPStorage.Stripe;
+
+/**
+ * Rebuilds an IPStorage from a LeaseJournal: its latest LeaseSnapshot, with the journal segments written since on top
+ * The pool is recovered by blocks of at most RECOVERYBLOCK addresses of one shard, on every processor
+ * Used by IPStorage.setJournal, before the pool serves
+ */
+class JournalRecovery
+{
+	/**
+	 * The number of addresses recovered by one task
+	 */
+	public final static int RECOVERYBLOCK = 65536;
+
+	private final IPStorage pool;
+
+	/**
+	 * @param pool	The pool to recover, which has no leases yet
+	 */
+	JournalRecovery(IPStorage pool)
+	{
+		this.pool = pool;
+	}
+
+	/**
+	 * Recover the leases of the given journal into the pool
+	 * @param 	journal
+	 * @return	the number of leases recovered
+	 * @throws 	IOException
+	 */
+	int recover(LeaseJournal journal) throws IOException
+	{
+		LeaseSnapshot snapshot = LeaseSnapshot.open(journal.snapshotPath(), pool.getFirstAddress(), pool.getSize());
+		JournalTail tail = new JournalTail();
+		journal.replay(snapshot == null ? 0 : snapshot.segment(), tail);
+		return recover(snapshot, tail);
+	}
+
+	/**
+	 * The records of the journal to replay on top of the snapshot, by index in the pool
+	 */
+	private class JournalTail implements LeaseJournal.Replay
+	{
+		int count;
+		int[] types = new int[1024];
+		int[] indexes = new int[1024];
+		int[] durations = new int[1024];
+		long[] highs = new long[1024];
+		long[] lows = new long[1024];
+		long[] times = new long[1024];
+
+		@Override
+		public void record(int type, int address, long high, long low, int leaseDuration, long time)
+		{
+			long index = (address - pool.getFirstAddress()) & 0xFFFFFFFFL;
+			if(index >= pool.getSize()) return;
+			if(count == types.length)
+			{
+				types = Arrays.copyOf(types, count * 2);
+				indexes = Arrays.copyOf(indexes, count * 2);
+				durations = Arrays.copyOf(durations, count * 2);
+				highs = Arrays.copyOf(highs, count * 2);
+				lows = Arrays.copyOf(lows, count * 2);
+				times = Arrays.copyOf(times, count * 2);
+			}
+			types[count] = type;
+			indexes[count] = (int)index;
+			durations[count] = leaseDuration;
+			highs[count] = high;
+			lows[count] = low;
+			times[count++] = time;
+		}
+	}
+
+	/**
+	 * Recover the leases of the given snapshot and journal tail, in blocks of at most RECOVERYBLOCK addresses of one shard,
+	 * on as many threads as there are processors
+	 * Every address ends up in the state the last record about it leaves it in, which is the state it had when the server stopped:
+	 * the tail holds every transition since the snapshot was started, and a record of a reservation or allocation takes the
+	 * address over, while a release or expiry only frees it if it still belongs to that client
+	 * @return	the number of leases recovered
+	 */
+	private int recover(LeaseSnapshot snapshot, JournalTail tail) throws IOException
+	{
+		AllocationShard[] shards = pool.shards();
+		int[] firstTask = new int[shards.length + 1];
+		for(int i = 0; i < shards.length; i++)
+			firstTask[i + 1] = firstTask[i] + (shards[i].size + RECOVERYBLOCK - 1) / RECOVERYBLOCK;
+		int tasks = firstTask[shards.length];
+
+		// the records of the tail by task, in journal order within every task
+		int[] bounds = new int[tasks + 1];
+		int[] order = new int[tail.count];
+		for(int record = 0; record < tail.count; record++)
+			bounds[task(firstTask, tail.indexes[record]) + 1]++;
+		for(int task = 0; task < tasks; task++)
+			bounds[task + 1] += bounds[task];
+		int[] next = Arrays.copyOf(bounds, tasks);
+		for(int record = 0; record < tail.count; record++)
+			order[next[task(firstTask, tail.indexes[record])]++] = record;
+
+		// size the stripes for every lease at once
+		Stripe[] stripes = pool.stripes();
+		int clients = (snapshot == null ? 0 : snapshot.count()) + tail.count;
+		for(Stripe stripe : stripes)
+			stripe.leases.ensureCapacity(clients / stripes.length + clients / stripes.length / 8);
+
+		AtomicInteger nextTask = new AtomicInteger();
+		AtomicInteger recovered = new AtomicInteger();
+		AtomicReference<IOException> failure = new AtomicReference<>();
+		Runnable worker = () -> {
+			long[] expiries = new long[RECOVERYBLOCK];
+			int shard = 0;
+			for(int task; (task = nextTask.getAndIncrement()) < tasks; )
+			{
+				while(firstTask[shard + 1] <= task) shard++;
+				int start = (task - firstTask[shard]) * RECOVERYBLOCK;
+				try
+				{
+					recovered.addAndGet(recover(shards[shard], start, Math.min(shards[shard].size, start + RECOVERYBLOCK),
+							snapshot, tail, order, bounds[task], bounds[task + 1], expiries));
+				}
+				catch(IOException e)
+				{failure.compareAndSet(null, e);}
+			}
+		};
+		Thread[] threads = new Thread[Math.max(0, Math.min(Runtime.getRuntime().availableProcessors(), tasks) - 1)];
+		for(int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread(worker, "dhcp-recovery-" + i);
+			threads[i].start();
+		}
+		worker.run();
+		for(Thread thread : threads)
+		{
+			try
+			{thread.join();}
+			catch(InterruptedException e)
+			{throw new IOException("Recovery interrupted", e);}
+		}
+		if(failure.get() != null) throw failure.get();
+		return recovered.get();
+	}
+
+	/**
+	 * @return	the recovery task of the address with the given index
+	 */
+	private int task(int[] firstTask, int index)
+	{
+		// every shard but the last has the size of the first
+		int shardSize = pool.shards()[0].size;
+		return firstTask[index / shardSize] + (index % shardSize) / RECOVERYBLOCK;
+	}
+
+	/**
+	 * Recover the addresses from start to end of the given shard: first their leases in the lease table, without a lock
+	 * (the other tasks work on other addresses), then their free addresses and deadlines under the shard lock,
+	 * and then the clients under the lock of their stripes
+	 * @param 	order	The records of the tail by task, from and to bounding the ones of this task
+	 * @param 	expiries	The wall clock time in milliseconds at which the lease of every address expires, room for the block
+	 * @return	the number of leases recovered
+	 */
+	private int recover(AllocationShard shard, int start, int end, LeaseSnapshot snapshot, JournalTail tail, int[] order, int from, int to,
+			long[] expiries) throws IOException
+	{
+		int first = snapshot == null ? 0 : snapshot.find(shard.base + start);
+		int last = snapshot == null ? 0 : snapshot.find(shard.base + end);
+		if(first == last && from == to) return 0;
+		shard.lock.lock();
+		try
+		{pool.materialize(shard);}
+		finally
+		{shard.lock.unlock();}
+		LeaseTable table = shard.table;
+		for(int record = first; record < last; record++)
+		{
+			int local = snapshot.index(record) - shard.base;
+			table.reserve(local, snapshot.high(record), snapshot.low(record), snapshot.leaseDuration(record));
+			if(snapshot.state(record) == LeaseTable.ALLOCATED)
+			{
+				table.allocate(local);
+				expiries[local - start] = snapshot.expiry(record);
+			}
+		}
+		for(int i = from; i < to; i++)
+		{
+			int record = order[i];
+			int local = tail.indexes[record] - shard.base;
+			long high = tail.highs[record], low = tail.lows[record];
+			int type = tail.types[record];
+			if(type == LeaseJournal.RELEASE || type == LeaseJournal.EXPIRE)
+			{
+				if(table.isClient(local, high, low))
+					table.release(local);
+				continue;
+			}
+			if(type == LeaseJournal.RESERVE || !table.isClient(local, high, low))
+			{
+				if(table.state(local) != LeaseTable.FREE)
+					table.release(local);
+				table.reserve(local, high, low, tail.durations[record]);
+			}
+			if(type == LeaseJournal.ALLOCATE)
+			{
+				table.allocate(local);
+				expiries[local - start] = tail.times[record] + tail.durations[record] * 1000L;
+			}
+		}
+
+		int count = 0;
+		long offerTimeout = pool.offerTimeout();
+		shard.lock.lock();
+		try
+		{
+			long nanos = System.nanoTime(), millis = System.currentTimeMillis();
+			for(int local = start; local < end; local++)
+			{
+				int state = table.state(local);
+				if(state == LeaseTable.FREE) continue;
+				shard.free.take(local);
+				if(state == LeaseTable.ALLOCATED)
+					shard.expiry.schedule(local, nanos + (expiries[local - start] - millis) * 1_000_000L);
+				else if(offerTimeout > 0)
+					shard.holds.hold(local, nanos + offerTimeout);
+				count++;
+			}
+		}
+		finally
+		{shard.lock.unlock();}
+		pool.scheduled();
+
+		for(int local = start; local < end; local++)
+		{
+			if(table.state(local) == LeaseTable.FREE) continue;
+			long high = table.high(local), low = table.low(local);
+			Stripe stripe = pool.stripe(high, low);
+			long stamp = stripe.lock.writeLock();
+			try
+			{
+				if(stripe.leases.putIfAbsent(high, low, shard.base + local) >= 0)
+				{
+					pool.free(shard.base + local);
+					count--;
+				}
+			}
+			finally
+			{stripe.lock.unlockWrite(stamp);}
+		}
+		return count;
+	}
+}
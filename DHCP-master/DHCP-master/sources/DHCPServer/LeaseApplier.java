@@ -0,0 +1,234 @@
+package DHCPServer;
+
+import java.io.IOException;
+
+import DHCPServer.IPStorage.AllocationShard;
+import DHCPServer.IPStorage.Stripe;
+
+/**
+ * Applies the lease transitions of another server to an IPStorage, as a standby does for its primary (LeaseReplica):
+ * the pool ends up with the bindings of the other server, under the same locks as its own operations
+ * Every change is journaled and replicated by the pool as its own, so the standby can take over
+ */
+class LeaseApplier
+{
+	private final IPStorage pool;
+
+	/**
+	 * @param pool	The pool to apply the transitions to
+	 */
+	LeaseApplier(IPStorage pool)
+	{
+		this.pool = pool;
+	}
+
+	/**
+	 * Apply a lease transition of the server this pool is a standby of: a reservation or allocation gives the client
+	 * the address of the transition in the state and for the duration of the transition, which its current holder loses,
+	 * as the client loses the address it had;
+	 * a release or expiry frees the address if the client still has it
+	 * The transition is journaled here as well, and the deadline of the lease kept, so the standby can take over
+	 * @param 	type	RESERVE, ALLOCATE, RELEASE or EXPIRE
+	 * @param 	address	The IPv4 address, as an int
+	 * @param 	high	The first 8 bytes of the MAC address of the client
+	 * @param 	low		The last 8 bytes of the MAC address of the client
+	 * @param 	leaseDuration	In seconds
+	 * @param 	time	Wall clock time in milliseconds of the transition
+	 * @return	if the transition could be applied, false for an address outside this pool or one that is in use here
+	 */
+	boolean replicate(int type, int address, long high, long low, int leaseDuration, long time)
+	{
+		return apply(type, address, high, low, leaseDuration, time, true);
+	}
+
+	/**
+	 * Take a lease the standby of this pool granted while it served in place of this server, as an ALLOCATE transition,
+	 * unless another client has the address here: both servers handed it out, and the lease of this one is kept
+	 * @param 	address	The IPv4 address, as an int
+	 * @param 	high	The first 8 bytes of the MAC address of the client
+	 * @param 	low		The last 8 bytes of the MAC address of the client
+	 * @param 	leaseDuration	In seconds
+	 * @param 	time	Wall clock time in milliseconds the lease was granted
+	 * @return	if the lease was taken
+	 */
+	boolean restore(int address, long high, long low, int leaseDuration, long time)
+	{
+		return apply(LeaseJournal.ALLOCATE, address, high, low, leaseDuration, time, false);
+	}
+
+	/**
+	 * Apply a lease transition, evicting the client that has the address of a reservation or allocation here or not
+	 */
+	private boolean apply(int type, int address, long high, long low, int leaseDuration, long time, boolean evicting)
+	{
+		long offset = (address - pool.getFirstAddress()) & 0xFFFFFFFFL;
+		if(offset >= pool.getSize()) return false;
+		int index = (int)offset;
+		boolean taking = type == LeaseJournal.RESERVE || type == LeaseJournal.ALLOCATE;
+		if(taking && evicting)
+			evict(index, high, low);
+		Stripe stripe = pool.stripe(high, low);
+		long stamp = stripe.lock.writeLock();
+		try
+		{
+			int current = stripe.leases.get(high, low);
+			if(!taking)
+			{
+				if(current != index) return true;
+				stripe.leases.remove(high, low);
+				pool.free(index);
+				pool.record(type, index, high, low, 0);
+				return true;
+			}
+			// the lease is taken anew, so it gets the state and duration of the transition, even when the client had it already;
+			// a client that moves keeps its address when the new one cannot be taken
+			if(current == index)
+			{
+				stripe.leases.remove(high, low);
+				pool.free(current);
+			}
+			if(!occupy(index, high, low, leaseDuration)) return false;
+			if(current >= 0 && current != index)
+			{
+				stripe.leases.remove(high, low);
+				pool.free(current);
+				pool.record(LeaseJournal.RELEASE, current, high, low, 0);
+			}
+			stripe.leases.put(high, low, index);
+			AllocationShard shard = pool.shard(index);
+			shard.lock.lock();
+			try
+			{
+				int local = index - shard.base;
+				if(type == LeaseJournal.ALLOCATE)
+				{
+					if(!shard.table.allocate(local))
+					{
+						stripe.leases.remove(high, low);
+						shard.holds.cancel(local);
+						return false;
+					}
+					shard.holds.cancel(local);
+					shard.expiry.schedule(local, System.nanoTime() + (time + leaseDuration * 1000L - System.currentTimeMillis()) * 1_000_000L);
+				}
+				else if(pool.offerTimeout() > 0)
+					shard.holds.hold(local, System.nanoTime() + pool.offerTimeout());
+			}
+			finally
+			{shard.lock.unlock();}
+			pool.scheduled();
+			pool.record(type, index, high, low, leaseDuration);
+			return true;
+		}
+		finally
+		{stripe.lock.unlockWrite(stamp);}
+	}
+
+	/**
+	 * Reserve the free IP address with the given index to the given client
+	 * The caller holds the write lock of the stripe of the client
+	 * @return	if it was free
+	 */
+	private boolean occupy(int index, long high, long low, int leaseDuration)
+	{
+		AllocationShard shard = pool.shard(index);
+		shard.lock.lock();
+		try
+		{
+			pool.materialize(shard);
+			int local = index - shard.base;
+			if(shard.table.state(local) != LeaseTable.FREE || !shard.table.reserve(local, high, low, leaseDuration)) return false;
+			shard.free.take(local);
+			return true;
+		}
+		catch(IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+		finally
+		{shard.lock.unlock();}
+	}
+
+	/**
+	 * Release the IP address with the given index if a client other than the given one has it
+	 * @param index
+	 * @param high	The first 8 bytes of the MAC address of the client that keeps it
+	 * @param low	The last 8 bytes of the MAC address of the client that keeps it
+	 */
+	private void evict(int index, long high, long low)
+	{
+		long holderHigh, holderLow;
+		AllocationShard shard = pool.shard(index);
+		shard.lock.lock();
+		try
+		{
+			int local = index - shard.base;
+			if(shard.table == null || shard.table.state(local) == LeaseTable.FREE || shard.table.isClient(local, high, low)) return;
+			holderHigh = shard.table.high(local);
+			holderLow = shard.table.low(local);
+		}
+		finally
+		{shard.lock.unlock();}
+		Stripe stripe = pool.stripe(holderHigh, holderLow);
+		long stamp = stripe.lock.writeLock();
+		try
+		{
+			if(stripe.leases.get(holderHigh, holderLow) != index) return;
+			stripe.leases.remove(holderHigh, holderLow);
+			pool.free(index);
+			pool.record(LeaseJournal.RELEASE, index, holderHigh, holderLow, 0);
+		}
+		finally
+		{stripe.lock.unlockWrite(stamp);}
+	}
+
+	/**
+	 * Release every reserved or allocated IP address with an index from the given one up to the other,
+	 * as a standby does for the addresses a copy of its primary does not have
+	 * @param 	from	The first index
+	 * @param 	to		The index after the last one
+	 * @return	the number of addresses released
+	 */
+	int vacate(int from, int to)
+	{
+		int count = 0;
+		for(int index = Math.max(0, from); index < Math.min(to, pool.getSize()); )
+		{
+			AllocationShard shard = pool.shard(index);
+			int end = Math.min(to, shard.base + shard.size);
+			if(shard.table == null)
+			{
+				index = end;
+				continue;
+			}
+			for(; index < end; index++)
+			{
+				long high, low;
+				shard.lock.lock();
+				try
+				{
+					int local = index - shard.base;
+					if(shard.table.state(local) == LeaseTable.FREE) continue;
+					high = shard.table.high(local);
+					low = shard.table.low(local);
+				}
+				finally
+				{shard.lock.unlock();}
+				Stripe stripe = pool.stripe(high, low);
+				long stamp = stripe.lock.writeLock();
+				try
+				{
+					if(stripe.leases.get(high, low) != index) continue;
+					stripe.leases.remove(high, low);
+					pool.free(index);
+					pool.record(LeaseJournal.RELEASE, index, high, low, 0);
+					count++;
+				}
+				finally
+				{stripe.lock.unlockWrite(stamp);}
+			}
+		}
+		return count;
+	}
+}
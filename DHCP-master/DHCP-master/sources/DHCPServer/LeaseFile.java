@@ -0,0 +1,412 @@
+package DHCPServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import DHCPServer.IPStorage.AllocationShard;
+
+/**
+ * The lease file an IPStorage keeps its leases in: every shard of the pool maps its part of it as a MappedLeaseTable
+ * When the file holds the leases of the pool already, recover takes them up again, rebuilding the indexes of the pool
+ * from the leases it finds there
+ *
+ * Several processes on one host may share a lease file, each serving clients of its own (a process per interface,
+ * or the old and the new server during an upgrade): every process claims one of its ProcessSlots and only reserves
+ * a record with a CAS on it; the lease scheduler of each then scans SCANSLICE records per run (update), to learn which addresses
+ * the others took and released and to take up the leases of processes that died or closed the pool
+ * A process that was dead when a scan started has no leases left once the scan has been through every record:
+ * its slot is retired then, so once the others are gone a process stops scanning
+ * A client must be served by one process at a time
+ */
+class LeaseFile
+{
+	/**
+	 * The number of records of a shared lease file update looks at per run, from where the last run stopped
+	 */
+	public final static int SCANSLICE = 65536;
+
+	private final FileChannel channel;
+	private final MappedLeaseTable.Sync sync;
+
+	/**
+	 * The processes sharing the lease file and the slot of this one
+	 */
+	private final ProcessSlots slots;
+	private final int slot;
+
+	/**
+	 * If the file held leases of the pool when it was opened
+	 */
+	private final boolean recovering;
+
+	/**
+	 * Where the next scan starts, and the buffer it reads the shards that are not materialized with; only used by update
+	 */
+	private int scanShard;
+	private int scanIndex;
+	private ByteBuffer scanBuffer;
+
+	/**
+	 * The heartbeat of every slot whose process was dead when the current scan started, 0 for the others; only used by update
+	 */
+	private final long[] dead = new long[ProcessSlots.SLOTS];
+
+	/**
+	 * Indexes taken up from dead processes during the current scan, with their clients; only used by update
+	 */
+	private int[] found = new int[64];
+	private long[] foundHighs = new long[64];
+	private long[] foundLows = new long[64];
+	private int foundCount;
+
+	/**
+	 * Open the given lease file for a pool, created when it does not exist, and claim a process slot in it
+	 * @param 	file
+	 * @param 	first	The first IPv4 address of the pool, as an int
+	 * @param 	size	Number of addresses of the pool
+	 * @param 	sync	When changes to the lease file are forced to the disk
+	 * @throws 	IOException	when the file cannot be opened, holds the leases of another pool or has no free process slot
+	 */
+	LeaseFile(Path file, int first, int size, MappedLeaseTable.Sync sync) throws IOException
+	{
+		this.sync = sync;
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try
+		{
+			recovering = MappedLeaseTable.open(channel, first, size);
+			slots = new ProcessSlots(channel, MappedLeaseTable.HEADER);
+			slot = slots.claim();
+		}
+		catch(IOException | RuntimeException e)
+		{
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @param 	shard
+	 * @param 	first	The IPv4 address of the base of the shard, as an int
+	 * @return	the lease table of the given shard, mapped from its part of the file
+	 * @throws 	IOException
+	 */
+	LeaseTable table(AllocationShard shard, int first) throws IOException
+	{
+		return new MappedLeaseTable(channel, shard.base, first, shard.size, sync, slot);
+	}
+
+	/**
+	 * Take up the leases that the file holds for the given pool again, the ones of this process and of dead processes
+	 * Every shard is materialized for it; a shard of a sparse pool that holds none of them is dropped again
+	 * This reads every record of the file and indexes every lease again, so a restart takes time in proportion to the size
+	 * of the pool and the number of leases, about 0.7 s per million leases on one processor; the shards are recovered
+	 * in parallel on every processor, in two passes so that the stripes are sized once for all the clients
+	 * Called by the constructor of the pool
+	 * @param 	pool
+	 * @return	the number of leases taken up
+	 * @throws 	IOException
+	 */
+	int recover(IPStorage pool) throws IOException
+	{
+		if(!recovering) return 0;
+		findDead();
+		AllocationShard[] shards = pool.shards();
+		int[] counts = new int[shards.length];
+		forEachShard(shards.length, i -> {
+			shards[i].lock.lock();
+			try
+			{
+				pool.materialize(shards[i]);
+				counts[i] = own(shards[i]);
+			}
+			finally
+			{shards[i].lock.unlock();}
+		});
+		int clients = 0;
+		for(int count : counts)
+			clients += count;
+		IPStorage.Stripe[] stripes = pool.stripes();
+		for(IPStorage.Stripe stripe : stripes)
+			stripe.leases.ensureCapacity(clients / stripes.length + clients / stripes.length / 8);
+		forEachShard(shards.length, i -> {
+			if(counts[i] == 0)
+			{
+				if(pool.isSparse())
+					shards[i].clear();
+				return;
+			}
+			LeaseTable table = shards[i].table;
+			for(int index = 0; index < shards[i].size; index++)
+				if(table.state(index) != LeaseTable.FREE && isOwner(table, index))
+					pool.takeUp(shards[i].base + index, table.high(index), table.low(index));
+		});
+		retireDead();
+		return clients;
+	}
+
+	/**
+	 * Take the reserved and allocated records of the given shard from its free addresses, and take the ones of dead processes up
+	 * The addresses of live processes that share the file are only taken from the free addresses
+	 * The caller holds the lock of the shard
+	 * @param 	shard
+	 * @return	the number of records this process owns now
+	 */
+	private int own(AllocationShard shard)
+	{
+		LeaseTable table = shard.table;
+		int count = 0;
+		for(int index = 0; index < shard.size; index++)
+		{
+			if(table.state(index) == LeaseTable.FREE) continue;
+			shard.free.take(index);
+			if(own(shard, index))
+				count++;
+			else if(table.state(index) == LeaseTable.FREE)
+				shard.free.release(index);
+		}
+		return count;
+	}
+
+	/**
+	 * Work on a shard of the pool
+	 */
+	private interface ShardTask
+	{
+		void run(int shard) throws IOException;
+	}
+
+	/**
+	 * Run the given task for every shard, on as many threads as there are processors
+	 * @param 	shards	The number of shards
+	 * @param 	task
+	 * @throws 	IOException	the first failure of a task
+	 */
+	private static void forEachShard(int shards, ShardTask task) throws IOException
+	{
+		AtomicInteger next = new AtomicInteger();
+		AtomicReference<IOException> failure = new AtomicReference<>();
+		Runnable worker = () -> {
+			for(int shard; (shard = next.getAndIncrement()) < shards; )
+			{
+				try
+				{task.run(shard);}
+				catch(IOException e)
+				{failure.compareAndSet(null, e);}
+			}
+		};
+		Thread[] threads = new Thread[Math.max(0, Math.min(Runtime.getRuntime().availableProcessors(), shards) - 1)];
+		for(int i = 0; i < threads.length; i++)
+		{
+			threads[i] = new Thread(worker, "dhcp-recovery-" + i);
+			threads[i].start();
+		}
+		worker.run();
+		for(Thread thread : threads)
+		{
+			try
+			{thread.join();}
+			catch(InterruptedException e)
+			{throw new IOException("Recovery interrupted", e);}
+		}
+		if(failure.get() != null) throw failure.get();
+	}
+
+	/**
+	 * Make sure this process owns the reserved or allocated record with the given index, taking it up from its owner if that one is dead
+	 * The caller holds the lock of the shard, or is the constructor of the pool
+	 * @param 	shard
+	 * @param 	index	The index in the shard
+	 * @return	if this process owns it, false if a live process does or it was left halfway a change and has been freed
+	 */
+	private boolean own(AllocationShard shard, int index)
+	{
+		MappedLeaseTable table = (MappedLeaseTable)shard.table;
+		int owner = table.owner(index);
+		if(owner != slot && slots.isAlive(owner)) return false;
+		return table.adopt(index, owner);
+	}
+
+	/**
+	 * @param 	table	A table of this file
+	 * @param 	index
+	 * @return	if this process owns the record with the given index
+	 */
+	boolean isOwner(LeaseTable table, int index)
+	{
+		return ((MappedLeaseTable)table).owner(index) == slot;
+	}
+
+	/**
+	 * Beat, and when other processes share the file, look at the next SCANSLICE records of it: release the addresses
+	 * other processes freed, take the ones they reserved from the free addresses and take up the leases of dead processes
+	 * Called by IPStorage.update
+	 * @param pool
+	 */
+	void update(IPStorage pool)
+	{
+		slots.beat(slot);
+		if(!slots.isShared(slot)) return;
+		AllocationShard[] shards = pool.shards();
+		if(scanShard == 0 && scanIndex == 0)
+			findDead();
+		foundCount = 0;
+		int remaining = SCANSLICE;
+		for(int visited = 0; remaining > 0 && visited < shards.length; )
+		{
+			AllocationShard shard = shards[scanShard];
+			int start = scanIndex, end = Math.min(shard.size, start + remaining);
+			shard.lock.lock();
+			try
+			{
+				if(shard.table != null || isInUse(shard))
+				{
+					pool.materialize(shard);
+					scan(shard, start, end);
+				}
+			}
+			catch(IOException e)
+			{e.printStackTrace();}
+			finally
+			{shard.lock.unlock();}
+			remaining -= end - start;
+			scanIndex = end;
+			if(end == shard.size)
+			{
+				scanIndex = 0;
+				scanShard = (scanShard + 1) % shards.length;
+				visited++;
+				if(scanShard == 0)
+				{
+					// every record has been looked at since the scan started: the leases of the dead are all taken up
+					retireDead();
+					break;
+				}
+			}
+		}
+		for(int i = 0; i < foundCount; i++)
+			pool.takeUp(found[i], foundHighs[i], foundLows[i]);
+	}
+
+	/**
+	 * Note the slots of the processes that are dead now, other than the one of this process
+	 */
+	private void findDead()
+	{
+		for(int other = 0; other < dead.length; other++)
+		{
+			long heartbeat = slots.heartbeat(other);
+			dead[other] = other != slot && heartbeat != 0 && !slots.isAlive(other) ? heartbeat : 0;
+		}
+	}
+
+	/**
+	 * Retire the slots noted by findDead, after every record has been looked at
+	 */
+	private void retireDead()
+	{
+		for(int other = 0; other < dead.length; other++)
+			if(dead[other] != 0)
+				slots.retire(other, dead[other]);
+	}
+
+	/**
+	 * Scan the records from start to end of the given shard, collecting the ones taken up from dead processes
+	 * The caller holds the lock of the shard
+	 */
+	private void scan(AllocationShard shard, int start, int end)
+	{
+		MappedLeaseTable table = (MappedLeaseTable)shard.table;
+		for(int index = start; index < end; index++)
+		{
+			if(table.state(index) == LeaseTable.FREE)
+				shard.free.release(index);
+			else if(table.owner(index) != slot)
+			{
+				shard.free.take(index);
+				if(own(shard, index))
+				{
+					if(foundCount == found.length)
+					{
+						found = Arrays.copyOf(found, foundCount * 2);
+						foundHighs = Arrays.copyOf(foundHighs, foundCount * 2);
+						foundLows = Arrays.copyOf(foundLows, foundCount * 2);
+					}
+					found[foundCount] = shard.base + index;
+					foundHighs[foundCount] = table.high(index);
+					foundLows[foundCount++] = table.low(index);
+				}
+				else if(table.state(index) == LeaseTable.FREE)
+					shard.free.release(index);
+			}
+		}
+	}
+
+	/**
+	 * @param 	shard	A shard that is not materialized
+	 * @return	if another process has reserved one of its addresses in the lease file
+	 * @throws 	IOException
+	 */
+	private boolean isInUse(AllocationShard shard) throws IOException
+	{
+		// read, not mapped: a mapping per run would only be unmapped by the garbage collector
+		if(scanBuffer == null)
+			scanBuffer = ByteBuffer.allocateDirect(MappedLeaseTable.RECORD * 1024);
+		return !MappedLeaseTable.isFree(channel, shard.base, shard.size, scanBuffer);
+	}
+
+	/**
+	 * With the PERIODIC sync policy, force the changes to the tables of the given shards to the disk
+	 * Called by IPStorage.update, without a lock: a shard materialized in the meantime is synced on the next run
+	 * @param shards
+	 */
+	void sync(AllocationShard[] shards)
+	{
+		if(sync != MappedLeaseTable.Sync.PERIODIC) return;
+		for(AllocationShard shard : shards)
+		{
+			LeaseTable table = shard.table;
+			if(table != null)
+				table.sync();
+		}
+	}
+
+	/**
+	 * Set after how long without a heartbeat a process that shares the file is dead, and its leases are taken up
+	 * @param milliseconds
+	 */
+	void setHeartbeatTimeout(long milliseconds)
+	{
+		slots.setTimeout(milliseconds);
+	}
+
+	/**
+	 * @return the process slot of this process
+	 */
+	int slot()
+	{
+		return slot;
+	}
+
+	/**
+	 * Write the changes to the tables of the given shards through to the disk, give the process slot up and close the file
+	 * @param shards
+	 */
+	void close(AllocationShard[] shards)
+	{
+		for(AllocationShard shard : shards)
+			if(shard.table != null)
+				shard.table.sync();
+		// the processes sharing the file take the leases up from here
+		slots.release(slot);
+		try
+		{channel.close();}
+		catch(IOException e)
+		{e.printStackTrace();}
+	}
+}
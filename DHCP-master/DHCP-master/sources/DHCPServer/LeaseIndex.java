@@ -0,0 +1,221 @@
+package DHCPServer;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Index from the hardware address of a client to the index of its lease in the pool
+ * The 16 byte address is packed into two longs (high and low, big endian, as DHCPMessageView.chaddrHigh/chaddrLow)
+ * and stored in an open addressing table with linear probing: no boxing, no byte[] keys, no entry objects
+ * Removal shifts the following entries of the probe run back, so the table never holds tombstones
+ *
+ * Not thread safe: IPStorage guards it with the lock of its stripe
+ * A read that races with a writer may see a half updated table, but it always ends: get probes at most every slot once
+ * A resized table is filled before it replaces the current one
+ */
+public class LeaseIndex
+{
+	private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+	private static final int EMPTY = -1;
+
+	private long[] highs;
+	private long[] lows;
+	private int[] values;
+	private int mask;
+	private int size;
+
+	/**
+	 * Construct an empty index that grows as needed
+	 */
+	public LeaseIndex()
+	{
+		values = new int[16];
+		Arrays.fill(values, EMPTY);
+		highs = new long[16];
+		lows = new long[16];
+		mask = 15;
+	}
+
+	/**
+	 * @param 	macaddress	A hardware address of 16 bytes
+	 * @return	its first 8 bytes packed in a long
+	 */
+	public static long high(byte[] macaddress)
+	{
+		return (long)LONGS.get(macaddress, 0);
+	}
+
+	/**
+	 * @param 	macaddress	A hardware address of 16 bytes
+	 * @return	its last 8 bytes packed in a long
+	 */
+	public static long low(byte[] macaddress)
+	{
+		return (long)LONGS.get(macaddress, 8);
+	}
+
+	/**
+	 * @param 	high
+	 * @param 	low
+	 * @return	a well mixed hash of the given hardware address, the index uses its low bits
+	 */
+	public static long hash(long high, long low)
+	{
+		long h = high * 0x9E3779B97F4A7C15L + low;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private int slot(long high, long low)
+	{
+		return (int)hash(high, low) & mask;
+	}
+
+	/**
+	 * @return the number of clients in the index
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @param 	high
+	 * @param 	low
+	 * @return	the lease index of the client with the given hardware address, -1 if it has none
+	 */
+	public int get(long high, long low)
+	{
+		int[] values = this.values;
+		long[] highs = this.highs, lows = this.lows;
+		int mask = values.length - 1;
+		for(int i = (int)hash(high, low) & mask, probes = 0; probes <= mask && values[i] != EMPTY; i = (i + 1) & mask, probes++)
+			if(highs[i] == high && lows[i] == low)
+				return values[i];
+		return EMPTY;
+	}
+
+	/**
+	 * Map the client with the given hardware address to the given lease index, replacing its current one
+	 * @param high
+	 * @param low
+	 * @param lease		A lease index, not negative
+	 */
+	public void put(long high, long low, int lease)
+	{
+		int i = slot(high, low);
+		for(; values[i] != EMPTY; i = (i + 1) & mask)
+			if(highs[i] == high && lows[i] == low)
+			{
+				values[i] = lease;
+				return;
+			}
+		highs[i] = high;
+		lows[i] = low;
+		values[i] = lease;
+		if(++size > (mask + 1) - ((mask + 1) >>> 2))
+			grow();
+	}
+
+	/**
+	 * Map the client with the given hardware address to the given lease index, unless it has one already
+	 * @param 	high
+	 * @param 	low
+	 * @param 	lease	A lease index, not negative
+	 * @return	the lease index the client already had, -1 if it had none and now has the given one
+	 */
+	public int putIfAbsent(long high, long low, int lease)
+	{
+		int i = slot(high, low);
+		for(; values[i] != EMPTY; i = (i + 1) & mask)
+			if(highs[i] == high && lows[i] == low)
+				return values[i];
+		highs[i] = high;
+		lows[i] = low;
+		values[i] = lease;
+		if(++size > (mask + 1) - ((mask + 1) >>> 2))
+			grow();
+		return EMPTY;
+	}
+
+	/**
+	 * Make room for the given number of clients at once, rather than growing step by step as they are put
+	 * @param clients
+	 */
+	public void ensureCapacity(int clients)
+	{
+		int capacity = mask + 1;
+		while(capacity - (capacity >>> 2) < clients && capacity < 1 << 30)
+			capacity <<= 1;
+		if(capacity == mask + 1) return;
+		resize(capacity);
+	}
+
+	/**
+	 * Remove the client with the given hardware address
+	 * @param 	high
+	 * @param 	low
+	 * @return	its lease index, -1 if it had none
+	 */
+	public int remove(long high, long low)
+	{
+		int i = slot(high, low);
+		for(; values[i] != EMPTY; i = (i + 1) & mask)
+			if(highs[i] == high && lows[i] == low)
+				break;
+		int lease = values[i];
+		if(lease == EMPTY) return EMPTY;
+		size--;
+		// shift back every following entry of the run that may sit in the freed slot
+		int hole = i;
+		for(int j = (hole + 1) & mask; values[j] != EMPTY; j = (j + 1) & mask)
+		{
+			int home = slot(highs[j], lows[j]);
+			if(((j - home) & mask) >= ((j - hole) & mask))
+			{
+				highs[hole] = highs[j];
+				lows[hole] = lows[j];
+				values[hole] = values[j];
+				hole = j;
+			}
+		}
+		values[hole] = EMPTY;
+		return lease;
+	}
+
+	private void grow()
+	{
+		resize(values.length * 2);
+	}
+
+	/**
+	 * Rehash the entries into new arrays of the given capacity, and only then replace the current ones with them
+	 * @param capacity	A power of 2
+	 */
+	private void resize(int capacity)
+	{
+		long[] newHighs = new long[capacity];
+		long[] newLows = new long[capacity];
+		int[] newValues = new int[capacity];
+		Arrays.fill(newValues, EMPTY);
+		int newMask = capacity - 1;
+		for(int j = 0; j < values.length; j++)
+			if(values[j] != EMPTY)
+			{
+				int i = (int)hash(highs[j], lows[j]) & newMask;
+				while(newValues[i] != EMPTY)
+					i = (i + 1) & newMask;
+				newHighs[i] = highs[j];
+				newLows[i] = lows[j];
+				newValues[i] = values[j];
+			}
+		highs = newHighs;
+		lows = newLows;
+		values = newValues;
+		mask = newMask;
+	}
+}
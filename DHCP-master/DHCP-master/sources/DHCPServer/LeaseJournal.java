@@ -0,0 +1,654 @@
+package DHCPServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only journal of the lease transitions of an IPStorage (reserve, allocate, release, expire),
+ * replayed on start so a restarted server knows every binding again
+ *
+ * The journal is a series of segment files next to each other, <journal>.0, <journal>.1, ...; rotate starts a new segment
+ * for a LeaseSnapshot, and once the snapshot is complete compact deletes the segments before it, so the journal
+ * only holds the transitions since the last snapshot
+ * Every segment starts with a header of HEADER bytes (magic, version, record size), followed by one record of RECORD bytes
+ * per transition, little endian:
+ *  0	long	first 8 bytes of the hardware address of the client
+ *  8	long	last 8 bytes of the hardware address of the client
+ * 16	long	wall clock time in milliseconds of the transition
+ * 24	int		the IPv4 address
+ * 28	int		lease duration in seconds
+ * 32	int		RESERVE, ALLOCATE, RELEASE or EXPIRE
+ * 36	int		CRC32C of the bytes before it: replay stops at a record torn by a crash and cuts it off
+ *
+ * append only copies a record into the batch in memory; a writer thread writes the batch and forces it to the disk
+ * with a single fsync (group commit), so every record that came in while the previous fsync ran shares the next one
+ * After the first record of a batch the writer waits up to the durability window for more, or until the batch is full
+ * Every record gets a sequence number: whenDurable runs a Waiter once the record is on the disk,
+ * which is how the server holds back a DHCPAck until the allocation it confirms survives a crash
+ *
+ * When a write fails the journal stops: the records appended since are dropped, never durable, and their Waiters are told so
+ */
+public class LeaseJournal
+{
+	public static final int RESERVE = 1, ALLOCATE = 2, RELEASE = 3, EXPIRE = 4;
+	public static final int HEADER = 16;
+	public static final int RECORD = 40;
+	public static final int DEFAULTWINDOW = 200;
+	public static final int DEFAULTBATCH = 4096;
+
+	private static final long MAGIC = 0x444843504A524E4CL;
+	private static final int VERSION = 1;
+	private static final int CHECKSUM = 36;
+
+	/**
+	 * Something that waits for a record to be durable
+	 */
+	public interface Waiter
+	{
+		/**
+		 * Called on the writer thread once the record is on the disk, or will never be
+		 * @param durable	false if the journal failed or was closed first
+		 */
+		void completed(boolean durable);
+	}
+
+	/**
+	 * Receives the records of the journal, oldest first
+	 */
+	public interface Replay
+	{
+		void record(int type, int address, long high, long low, int leaseDuration, long time);
+	}
+
+	private final Path base;
+	private final long windowNanos;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition appended = lock.newCondition();
+	private final Condition space = lock.newCondition();
+	private final Condition written = lock.newCondition();
+	private final CRC32C checksum = new CRC32C();
+
+	/**
+	 * Taken by snapshot, so one snapshot is written at a time
+	 */
+	private final ReentrantLock snapshotLock = new ReentrantLock();
+
+	/**
+	 * The batch appended to and the one being written, swapped by the writer; guarded by the lock
+	 */
+	private ByteBuffer batch;
+	private ByteBuffer writing;
+	private long firstNanos;
+	private volatile long sequence;
+	private volatile long durable;
+
+	/**
+	 * The segment written to, and its end; only the writer changes them, under the lock
+	 */
+	private FileChannel channel;
+	private long segment;
+	private long end;
+
+	/**
+	 * Where in the batch the records of the next segment start, -1 when no rotation is pending,
+	 * and the last segment number handed out; guarded by the lock
+	 */
+	private int rotation = -1;
+	private long assigned;
+	private boolean closed;
+	private volatile boolean stopped;
+	private volatile IOException failure;
+
+	/**
+	 * The Waiters and the sequence numbers they wait for, in no particular order; guarded by the lock
+	 */
+	private Waiter[] waiters = new Waiter[64];
+	private long[] waiting = new long[64];
+	private int waiterCount;
+	private Waiter[] ready = new Waiter[64];
+
+	private volatile long batches;
+	private final Thread writer;
+
+	/**
+	 * Open the given journal, created when it does not exist, and start its writer thread
+	 * @param 	file	The journal, the segments are named after it
+	 * @param 	windowMicros	Microseconds the writer waits after the first record of a batch for more, 0 not to wait
+	 * @param 	batchRecords	Number of records a batch holds, appenders wait when it is full
+	 * @throws 	IOException		when the last segment cannot be opened or is not a lease journal
+	 */
+	public LeaseJournal(Path file, int windowMicros, int batchRecords) throws IOException
+	{
+		base = file.toAbsolutePath();
+		windowNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, windowMicros));
+		batch = ByteBuffer.allocate(Math.max(1, batchRecords) * RECORD).order(ByteOrder.LITTLE_ENDIAN);
+		writing = ByteBuffer.allocate(batch.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+		long[] segments = segments();
+		segment = assigned = segments.length == 0 ? 0 : segments[segments.length - 1];
+		channel = open(segment);
+		end = HEADER + (channel.size() - HEADER) / RECORD * RECORD;
+		writer = new Thread(this::write, "dhcp-journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @param 	segment
+	 * @return	the file of the given segment
+	 */
+	private Path path(long segment)
+	{
+		return base.resolveSibling(base.getFileName() + "." + segment);
+	}
+
+	/**
+	 * @return the file of the LeaseSnapshot that goes with this journal
+	 */
+	public Path snapshotPath()
+	{
+		return base.resolveSibling(base.getFileName() + ".snapshot");
+	}
+
+	/**
+	 * @return	the numbers of the segments on the disk, ascending
+	 * @throws 	IOException
+	 */
+	private long[] segments() throws IOException
+	{
+		String prefix = base.getFileName() + ".";
+		long[] segments = new long[16];
+		int count = 0;
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(base.getParent(), prefix + "*"))
+		{
+			for(Path file : files)
+			{
+				String suffix = file.getFileName().toString().substring(prefix.length());
+				if(suffix.isEmpty() || !suffix.chars().allMatch(Character::isDigit)) continue;
+				if(count == segments.length)
+					segments = Arrays.copyOf(segments, count * 2);
+				segments[count++] = Long.parseLong(suffix);
+			}
+		}
+		segments = Arrays.copyOf(segments, count);
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * Open the given segment for reading and writing, with a header written when it is new
+	 * @param 	segment
+	 * @return	its channel
+	 * @throws 	IOException	when it is not a segment of a lease journal
+	 */
+	private FileChannel open(long segment) throws IOException
+	{
+		FileChannel channel = FileChannel.open(path(segment), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		if(channel.size() == 0)
+		{
+			header.putLong(MAGIC).putInt(VERSION).putInt(RECORD).flip();
+			channel.write(header, 0);
+			channel.force(true);
+		}
+		else if(channel.read(header, 0) != HEADER || header.getLong(0) != MAGIC)
+		{
+			channel.close();
+			throw new IOException("Not a lease journal: " + path(segment));
+		}
+		else if(header.getInt(8) != VERSION || header.getInt(12) != RECORD)
+		{
+			channel.close();
+			throw new IOException("Lease journal of version " + header.getInt(8) + ", expected " + VERSION);
+		}
+		return channel;
+	}
+
+	/**
+	 * Read the records of the given segment and the ones after it, oldest first
+	 * A record torn by a crash ends its segment; at the end of the last segment it is cut off
+	 * Must be called before the first append
+	 * @param 	from	The first segment to read, the last segment is always read
+	 * @param 	replay
+	 * @return	the number of records read
+	 * @throws 	IOException
+	 */
+	public long replay(long from, Replay replay) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD * 8192).order(ByteOrder.LITTLE_ENDIAN);
+		CRC32C crc = new CRC32C();
+		long count = 0;
+		for(long number : segments())
+		{
+			if(number < from && number != segment || number > segment) continue;
+			FileChannel channel = number == segment ? this.channel : FileChannel.open(path(number), StandardOpenOption.READ);
+			try
+			{
+				long end = HEADER + (channel.size() - HEADER) / RECORD * RECORD, position = HEADER;
+				read:
+				while(position < end)
+				{
+					buffer.clear().limit((int)Math.min(buffer.capacity(), end - position));
+					int read = 0;
+					while(buffer.hasRemaining() && (read = channel.read(buffer, position + buffer.position())) > 0);
+					buffer.flip();
+					for(int record = 0; record + RECORD <= buffer.limit(); record += RECORD)
+					{
+						crc.reset();
+						crc.update(buffer.array(), record, CHECKSUM);
+						if(buffer.getInt(record + CHECKSUM) != (int)crc.getValue())
+							break read;
+						replay.record(buffer.getInt(record + 32), buffer.getInt(record + 24), buffer.getLong(record), buffer.getLong(record + 8),
+								buffer.getInt(record + 28), buffer.getLong(record + 16));
+						position += RECORD;
+						count++;
+					}
+					if(read < 0) break;
+				}
+				if(number == segment)
+				{
+					if(position < channel.size())
+						channel.truncate(position);
+					this.end = position;
+				}
+			}
+			finally
+			{
+				if(number != segment)
+					channel.close();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Start a new segment: the records appended from now on go to it
+	 * @return	its number
+	 */
+	public long rotate()
+	{
+		lock.lock();
+		try
+		{
+			if(rotation < 0)
+			{
+				rotation = batch.position();
+				assigned++;
+				appended.signal();
+			}
+			return assigned;
+		}
+		finally
+		{lock.unlock();}
+	}
+
+	/**
+	 * Delete the segments before the given one, as far as the writer is done with them
+	 * @param 	segment	The first segment a complete snapshot needs
+	 * @return	the number of segments deleted
+	 */
+	public int compact(long segment)
+	{
+		long current;
+		lock.lock();
+		try
+		{current = this.segment;}
+		finally
+		{lock.unlock();}
+		int deleted = 0;
+		try
+		{
+			for(long number : segments())
+				if(number < segment && number < current && Files.deleteIfExists(path(number)))
+					deleted++;
+		}
+		catch(IOException e)
+		{e.printStackTrace();}
+		return deleted;
+	}
+
+	/**
+	 * Write a LeaseSnapshot of the given pool next to this journal, then delete the segments before the one started for it
+	 * The pool keeps serving meanwhile (see IPStorage.copy), and what changes during the copy is in the new segment as well
+	 * @param 	pool	The pool this journal is the journal of
+	 * @return	the number of leases in the snapshot
+	 * @throws 	IOException
+	 */
+	public int snapshot(IPStorage pool) throws IOException
+	{
+		snapshotLock.lock();
+		try
+		{
+			long segment = rotate();
+			LeaseSnapshot.Writer writer = new LeaseSnapshot.Writer(snapshotPath(), pool.getFirstAddress(), pool.getSize(), segment);
+			try
+			{
+				pool.copy(writer);
+				int count = writer.close();
+				compact(segment);
+				return count;
+			}
+			catch(IOException | RuntimeException e)
+			{
+				writer.abort();
+				throw e;
+			}
+		}
+		finally
+		{snapshotLock.unlock();}
+	}
+
+	/**
+	 * Append a record to the current batch, waiting while it is full
+	 * @param 	type	RESERVE, ALLOCATE, RELEASE or EXPIRE
+	 * @param 	address	The IPv4 address, as an int
+	 * @param 	high	The first 8 bytes of the hardware address of the client
+	 * @param 	low		The last 8 bytes of the hardware address of the client
+	 * @param 	leaseDuration	In seconds
+	 * @return	the sequence number of the record; after close or a failure the record is dropped and never durable
+	 */
+	public long append(int type, int address, long high, long low, int leaseDuration)
+	{
+		lock.lock();
+		try
+		{
+			while(batch.remaining() < RECORD && !closed)
+				space.awaitUninterruptibly();
+			if(closed) return ++sequence;
+			int record = batch.position();
+			if(record == 0)
+			{
+				firstNanos = System.nanoTime();
+				appended.signal();
+			}
+			batch.putLong(high).putLong(low).putLong(System.currentTimeMillis()).putInt(address).putInt(leaseDuration).putInt(type);
+			checksum.reset();
+			checksum.update(batch.array(), record, CHECKSUM);
+			batch.putInt((int)checksum.getValue());
+			if(batch.remaining() < RECORD)
+				appended.signal();
+			return ++sequence;
+		}
+		finally
+		{lock.unlock();}
+	}
+
+	/**
+	 * @return the sequence number of the last record appended
+	 */
+	public long lastSequence()
+	{
+		return sequence;
+	}
+
+	/**
+	 * @param 	sequence
+	 * @return	if the record with the given sequence number is on the disk
+	 */
+	public boolean isDurable(long sequence)
+	{
+		return sequence <= durable;
+	}
+
+	/**
+	 * Let the given Waiter know, on the writer thread, when the record with the given sequence number is durable
+	 * @param 	sequence
+	 * @param 	waiter
+	 * @return	false if the record is durable already, and the Waiter will not be called
+	 * @throws 	IOException	when the journal has stopped and the record never will be
+	 */
+	public boolean whenDurable(long sequence, Waiter waiter) throws IOException
+	{
+		lock.lock();
+		try
+		{
+			if(sequence <= durable) return false;
+			if(stopped) throw stoppedException();
+			if(waiterCount == waiters.length)
+			{
+				waiters = Arrays.copyOf(waiters, waiterCount * 2);
+				waiting = Arrays.copyOf(waiting, waiterCount * 2);
+			}
+			waiters[waiterCount] = waiter;
+			waiting[waiterCount++] = sequence;
+			return true;
+		}
+		finally
+		{lock.unlock();}
+	}
+
+	/**
+	 * Wait until the record with the given sequence number is durable
+	 * @param 	sequence
+	 * @throws 	IOException	when the journal stopped first
+	 */
+	public void awaitDurable(long sequence) throws IOException
+	{
+		if(sequence <= durable) return;
+		lock.lock();
+		try
+		{
+			while(sequence > durable && !stopped)
+				written.awaitUninterruptibly();
+			if(sequence > durable) throw stoppedException();
+		}
+		finally
+		{lock.unlock();}
+	}
+
+	private IOException stoppedException()
+	{
+		return failure == null ? new IOException("Lease journal closed") : new IOException("Lease journal failed", failure);
+	}
+
+	/**
+	 * The writer thread: write and force one batch at a time, then release the Waiters of its records
+	 * A pending rotation splits the batch: the records before it are forced to the current segment, the rest go to the next
+	 */
+	private void write()
+	{
+		while(true)
+		{
+			long last;
+			int split;
+			long next;
+			lock.lock();
+			try
+			{
+				while(batch.position() == 0 && rotation < 0 && !closed)
+					appended.awaitUninterruptibly();
+				if(batch.position() == 0 && rotation < 0)
+				{
+					stop(null);
+					return;
+				}
+				long wait;
+				while(!closed && batch.remaining() >= RECORD && (wait = firstNanos + windowNanos - System.nanoTime()) > 0)
+				{
+					try
+					{appended.awaitNanos(wait);}
+					catch(InterruptedException e)
+					{break;}
+				}
+				ByteBuffer full = batch;
+				batch = writing;
+				writing = full;
+				last = sequence;
+				split = rotation;
+				next = assigned;
+				rotation = -1;
+				space.signalAll();
+			}
+			finally
+			{lock.unlock();}
+
+			IOException error = null;
+			int length = writing.position();
+			writing.flip();
+			try
+			{
+				if(split >= 0)
+				{
+					writing.limit(split);
+					write(writing);
+					FileChannel previous = channel;
+					FileChannel opened = open(next);
+					lock.lock();
+					try
+					{
+						channel = opened;
+						segment = next;
+						end = HEADER;
+					}
+					finally
+					{lock.unlock();}
+					previous.close();
+					writing.limit(length);
+				}
+				write(writing);
+				if(length > 0)
+					batches++;
+			}
+			catch(IOException e)
+			{error = e;}
+			writing.clear();
+
+			if(error != null)
+			{
+				error.printStackTrace();
+				stop(error);
+				return;
+			}
+			lock.lock();
+			try
+			{
+				durable = last;
+				written.signalAll();
+			}
+			finally
+			{lock.unlock();}
+			complete(last, true);
+		}
+	}
+
+	/**
+	 * Write the remaining records of the given buffer at the end of the current segment and force them to the disk
+	 * @param 	records
+	 * @throws 	IOException
+	 */
+	private void write(ByteBuffer records) throws IOException
+	{
+		if(!records.hasRemaining()) return;
+		long position = end;
+		while(records.hasRemaining())
+			position += channel.write(records, position);
+		channel.force(false);
+		end = position;
+	}
+
+	/**
+	 * Stop the writer: the records appended from now on are dropped, and whoever waits for one that is not durable is told so
+	 * @param error	The write that failed, null when the journal is closed
+	 */
+	private void stop(IOException error)
+	{
+		lock.lock();
+		try
+		{
+			failure = error;
+			closed = true;
+			stopped = true;
+			space.signalAll();
+			written.signalAll();
+		}
+		finally
+		{lock.unlock();}
+		complete(Long.MAX_VALUE, false);
+	}
+
+	/**
+	 * Call the Waiters for the records up to the given sequence number, outside the lock
+	 * @param last
+	 * @param durable
+	 */
+	private void complete(long last, boolean durable)
+	{
+		int count = 0;
+		lock.lock();
+		try
+		{
+			for(int i = 0; i < waiterCount; )
+			{
+				if(waiting[i] > last)
+				{
+					i++;
+					continue;
+				}
+				if(count == ready.length)
+					ready = Arrays.copyOf(ready, count * 2);
+				ready[count++] = waiters[i];
+				waiters[i] = waiters[--waiterCount];
+				waiting[i] = waiting[waiterCount];
+				waiters[waiterCount] = null;
+			}
+		}
+		finally
+		{lock.unlock();}
+		for(int i = 0; i < count; i++)
+		{
+			ready[i].completed(durable);
+			ready[i] = null;
+		}
+	}
+
+	/**
+	 * @return the number of batches forced to the disk
+	 */
+	public long getBatches()
+	{
+		return batches;
+	}
+
+	/**
+	 * @return the sequence number of the last durable record
+	 */
+	public long getDurable()
+	{
+		return durable;
+	}
+
+	/**
+	 * Write and force the records appended so far, stop the writer and close the file
+	 * Appends after this are dropped
+	 */
+	public void close()
+	{
+		lock.lock();
+		try
+		{
+			closed = true;
+			appended.signal();
+			space.signalAll();
+		}
+		finally
+		{lock.unlock();}
+		try
+		{
+			writer.join();
+			channel.close();
+		}
+		catch(InterruptedException | IOException e)
+		{e.printStackTrace();}
+	}
+}
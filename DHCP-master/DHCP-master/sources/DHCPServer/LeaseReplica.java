@@ -0,0 +1,288 @@
+package DHCPServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The standby end of a LeaseReplicator: keeps an IPStorage equal to the pool of the primary server
+ * It connects to the primary, hands back the leases it granted since it lost the primary, takes the copy of the pool of the primary over,
+ * releasing the addresses the copy does not have (LeaseApplier.vacate), and applies the transitions that follow (LeaseApplier.replicate),
+ * acknowledging every frame
+ * When the connection is lost it connects again every retry interval and catches up from a new copy
+ *
+ * While connected the primary is up, and the standby server answers no clients; once the connection is lost it serves
+ * from the leases it has, with the transitions it missed since at most maxLag records of the primary
+ * A standby that has not been connected yet does not know if its primary is up, so it answers no clients for a grace period
+ * after it started: long enough to reach a primary that is up, after which it serves, as for a primary that is down
+ * The leases it granted meanwhile, the allocations and renewals whose lease started after the connection was lost, are taken
+ * by the primary when the standby connects again, so they are in the copy; the standby tells them by their start on its own clock,
+ * a lease the primary streamed and that was applied on the standby never starts later
+ * Its releases are not handed back: the primary keeps those leases until they expire
+ *
+ * Both servers hand addresses out of the same free addresses, so they must not serve at the same time: when only the link
+ * between them fails, the standby serves while the primary does, and both may give one address to two clients. The primary
+ * keeps its own lease then (LeaseReplicator.getConflicts) and the standby drops the other one with the copy, so that client
+ * loses its address when it renews; nothing splits the free addresses between the two servers, as the MCLT of
+ * DHCP failover does, so the link should be as reliable as the primary
+ */
+public class LeaseReplica
+{
+	public static final long DEFAULTRETRY = 1000;
+	public static final long DEFAULTGRACE = 10000;
+
+	private final IPStorage pool;
+	private final LeaseApplier applier;
+	private final InetSocketAddress primary;
+	private final long retryMillis;
+	private final long graceMillis;
+	private final long started = System.currentTimeMillis();
+	private final Thread follower;
+
+	private volatile SocketChannel channel;
+	private volatile boolean connected;
+	private volatile boolean followed;
+	private volatile boolean synced;
+	private volatile boolean closed;
+	private volatile long applied;
+	private volatile long records;
+	private volatile long catchUps;
+	private volatile long handedBack;
+
+	/**
+	 * Wall clock time in milliseconds the primary was lost at, the start of this replica before it is connected first
+	 */
+	private volatile long lost = System.currentTimeMillis();
+
+	/**
+	 * Follow the given primary into the given pool
+	 * @param pool			The pool of the standby, with the range of the one of the primary
+	 * @param primary		The address the LeaseReplicator of the primary listens on
+	 * @param retryMillis	Milliseconds between two attempts to connect
+	 * @param graceMillis	Milliseconds after the start the standby waits for the primary before it serves, when it does not reach it
+	 */
+	public LeaseReplica(IPStorage pool, InetSocketAddress primary, long retryMillis, long graceMillis)
+	{
+		this.pool = pool;
+		applier = new LeaseApplier(pool);
+		this.primary = primary;
+		this.retryMillis = Math.max(1, retryMillis);
+		this.graceMillis = graceMillis;
+		follower = new Thread(this::run, "dhcp-replica");
+		follower.setDaemon(true);
+		follower.start();
+	}
+
+	private void run()
+	{
+		while(!closed)
+		{
+			try(SocketChannel channel = SocketChannel.open(primary))
+			{
+				this.channel = channel;
+				follow(channel);
+			}
+			catch(IOException e)
+			{
+				if(connected && !closed)
+					System.out.println("Primary lost: " + e);
+			}
+			finally
+			{
+				if(connected)
+					lost = System.currentTimeMillis();
+				connected = false;
+				synced = false;
+				channel = null;
+			}
+			try
+			{
+				if(!closed)
+					Thread.sleep(retryMillis);
+			}
+			catch(InterruptedException e)
+			{return;}
+		}
+	}
+
+	/**
+	 * Take the copy of the pool of the primary over and apply its transitions, until the connection is lost
+	 */
+	private void follow(SocketChannel channel) throws IOException
+	{
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		ByteBuffer header = ByteBuffer.allocate(LeaseReplicator.FRAME).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(LeaseReplicator.HELLO).putInt(0).putLong(LeaseReplicator.MAGIC).flip();
+		while(header.hasRemaining())
+			channel.write(header);
+		header.clear();
+		LeaseReplicator.readFully(channel, header);
+		if(header.getInt(0) != LeaseReplicator.START)
+			throw new IOException("Not a primary");
+		if(header.getInt(4) != pool.getSize() || (int)header.getLong(8) != pool.getFirstAddress())
+			throw new IOException("The pool of the primary has " + header.getInt(4) + " addresses from " + Integer.toHexString((int)header.getLong(8)));
+		connected = true;
+		followed = true;
+		handBack(channel, lost);
+
+		ByteBuffer body = ByteBuffer.allocate(LeaseReplicator.RECORD * 4096).order(ByteOrder.LITTLE_ENDIAN);
+		int next = 0;
+		while(true)
+		{
+			header.clear();
+			LeaseReplicator.readFully(channel, header);
+			int type = header.getInt(0), count = header.getInt(4);
+			long value = header.getLong(8);
+			// a frame never carries more records than the lag a primary allows
+			if(count < 0 || count > LeaseReplicator.MAXLAG)
+				throw new IOException("Frame of " + count + " records");
+			int length = type == LeaseReplicator.SNAPSHOT ? count * LeaseSnapshot.RECORD : type == LeaseReplicator.RECORDS ? count * LeaseReplicator.RECORD : 0;
+			if(length > body.capacity())
+				body = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+			body.clear().limit(length);
+			LeaseReplicator.readFully(channel, body);
+			switch(type)
+			{
+				case LeaseReplicator.SNAPSHOT:
+					for(int record = 0; record < length; record += LeaseSnapshot.RECORD)
+					{
+						int index = body.getInt(record + 24), leaseDuration = body.getInt(record + 28);
+						if(index < next || index >= pool.getSize())
+							throw new IOException("Snapshot record out of order or outside the pool: " + index);
+						long expiry = body.getLong(record + 16);
+						applier.vacate(next, index);
+						applier.replicate(body.getInt(record + 32) == LeaseTable.ALLOCATED ? LeaseJournal.ALLOCATE : LeaseJournal.RESERVE,
+								pool.getFirstAddress() + index, body.getLong(record), body.getLong(record + 8), leaseDuration, expiry - leaseDuration * 1000L);
+						next = index + 1;
+					}
+					break;
+				case LeaseReplicator.SYNCED:
+					applier.vacate(next, pool.getSize());
+					applied = value;
+					synced = true;
+					catchUps++;
+					break;
+				case LeaseReplicator.RECORDS:
+					for(int record = 0; record < length; record += LeaseReplicator.RECORD)
+						applier.replicate(body.getInt(record + 32), body.getInt(record + 24), body.getLong(record), body.getLong(record + 8),
+								body.getInt(record + 28), body.getLong(record + 16));
+					applied = value + count - 1;
+					records += count;
+					header.clear();
+					header.putInt(LeaseReplicator.ACK).putInt(0).putLong(applied).flip();
+					while(header.hasRemaining())
+						channel.write(header);
+					break;
+				default:
+					throw new IOException("Unknown frame " + type);
+			}
+		}
+	}
+
+	/**
+	 * Send the primary the leases allocated or renewed here from the given time on, in GRANTED frames and an empty one
+	 * The standby does not serve once connected, so no lease is granted while they are sent
+	 * @param 	since	Wall clock time in milliseconds the primary was lost at
+	 */
+	private void handBack(SocketChannel channel, long since) throws IOException
+	{
+		ByteBuffer frame = ByteBuffer.allocate(LeaseReplicator.FRAME + LeaseReplicator.GRANTEDRECORDS * LeaseReplicator.RECORD).order(ByteOrder.LITTLE_ENDIAN);
+		frame.position(LeaseReplicator.FRAME);
+		pool.copy((index, state, leaseDuration, high, low, expiry) -> {
+			long granted = expiry - leaseDuration * 1000L;
+			if(state != LeaseTable.ALLOCATED || expiry == 0 || granted < since) return;
+			frame.putLong(high).putLong(low).putLong(granted).putInt(pool.getFirstAddress() + index).putInt(leaseDuration).putInt(LeaseJournal.ALLOCATE);
+			handedBack++;
+			if(!frame.hasRemaining())
+				writeGranted(channel, frame);
+		});
+		if(frame.position() > LeaseReplicator.FRAME)
+			writeGranted(channel, frame);
+		// the empty frame ends them
+		writeGranted(channel, frame);
+	}
+
+	private static void writeGranted(SocketChannel channel, ByteBuffer frame) throws IOException
+	{
+		frame.putInt(0, LeaseReplicator.GRANTED).putInt(4, (frame.position() - LeaseReplicator.FRAME) / LeaseReplicator.RECORD).putLong(8, 0).flip();
+		while(frame.hasRemaining())
+			channel.write(frame);
+		frame.clear().position(LeaseReplicator.FRAME);
+	}
+
+	/**
+	 * @return	if the primary is connected, so up
+	 */
+	public boolean isConnected()
+	{
+		return connected;
+	}
+
+	/**
+	 * @return	if the standby answers clients: the primary is not connected, and was connected before or the grace period has passed
+	 */
+	public boolean isServing()
+	{
+		return !connected && (followed || System.currentTimeMillis() - started >= graceMillis);
+	}
+
+	/**
+	 * @return	if the pool has caught up with the primary since the last connect
+	 */
+	public boolean isSynced()
+	{
+		return synced;
+	}
+
+	/**
+	 * @return the sequence number of the last transition of the primary applied
+	 */
+	public long getApplied()
+	{
+		return applied;
+	}
+
+	/**
+	 * @return the number of transitions applied
+	 */
+	public long getRecords()
+	{
+		return records;
+	}
+
+	/**
+	 * @return the number of times the pool caught up from a copy
+	 */
+	public long getCatchUps()
+	{
+		return catchUps;
+	}
+
+	/**
+	 * @return the number of leases granted here that were handed back to the primary
+	 */
+	public long getHandedBack()
+	{
+		return handedBack;
+	}
+
+	/**
+	 * Disconnect from the primary and stop following it
+	 */
+	public void close()
+	{
+		closed = true;
+		follower.interrupt();
+		SocketChannel channel = this.channel;
+		if(channel != null)
+		{
+			try
+			{channel.close();}
+			catch(IOException e)
+			{}
+		}
+	}
+}
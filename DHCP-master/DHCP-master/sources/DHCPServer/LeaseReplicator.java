@@ -0,0 +1,436 @@
+package DHCPServer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Streams the lease transitions of an IPStorage over TCP to a standby server (LeaseReplica),
+ * so that the standby knows every binding when it has to take over
+ *
+ * The primary listens, the standby connects and says HELLO; it gets the range of the pool (START) and hands back the leases it granted
+ * while it served in place of the primary (GRANTED frames of RECORDS records, ended by an empty one), which the primary takes
+ * unless it gave their addresses to other clients meanwhile (LeaseApplier.restore); then it gets a copy of every lease
+ * (SNAPSHOT frames, copied while the pool keeps serving, as for a LeaseSnapshot) and SYNCED, and from then on the transitions
+ * in RECORDS frames: every frame holds all records appended while the previous one was sent, so the stream batches
+ * itself under load. The standby acknowledges every RECORDS frame with the sequence number of its last record (ACK)
+ * The copy is fuzzy, but the transitions appended from the start of the copy on follow it, and the standby applies
+ * them on top of it (LeaseApplier.replicate), which ends in the state of the primary
+ *
+ * Every frame is a header of FRAME bytes, little endian: int type, int count of records, long value (a sequence number,
+ * or the first address of the pool in START, whose count is the number of addresses), then its records:
+ * a SNAPSHOT record is a LeaseSnapshot record, a RECORDS record is RECORD bytes:
+ *  0	long	first 8 bytes of the hardware address of the client
+ *  8	long	last 8 bytes of the hardware address of the client
+ * 16	long	wall clock time in milliseconds of the transition
+ * 24	int		the IPv4 address
+ * 28	int		lease duration in seconds
+ * 32	int		RESERVE, ALLOCATE, RELEASE or EXPIRE, as in the LeaseJournal
+ *
+ * append only copies a record into the buffer of the sender and never waits for the network, so a DHCPAck is not held back
+ * by the standby: when the standby lags more than maxLag records behind (appended but not acknowledged), it is disconnected
+ * and the buffer is dropped; it connects again and catches up from a new copy of the pool
+ * One standby at a time
+ */
+public class LeaseReplicator
+{
+	public static final int HELLO = 1, START = 2, SNAPSHOT = 3, SYNCED = 4, RECORDS = 5, ACK = 6, GRANTED = 7;
+	public static final int FRAME = 16;
+	public static final int RECORD = 36;
+	public static final int DEFAULTLAG = 65536;
+	public static final int MAXLAG = 1 << 20;
+
+	/**
+	 * The value of HELLO: the protocol and its version
+	 */
+	static final long MAGIC = 0x4448435052504C32L;
+
+	private static final int SNAPSHOTRECORDS = 4096;
+
+	/**
+	 * The most records of a GRANTED frame
+	 */
+	static final int GRANTEDRECORDS = 4096;
+
+	private final IPStorage pool;
+	private final LeaseApplier applier;
+	private final ServerSocketChannel server;
+	private final int maxLag;
+	private final Thread sender;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition appended = lock.newCondition();
+	private ByteBuffer batch;
+	private ByteBuffer sending;
+	private long sequence;
+	private long first;
+	private volatile boolean streaming;
+	private SocketChannel standby;
+	private volatile long acknowledged;
+	private volatile boolean closed;
+
+	private volatile long frames;
+	private volatile long lagged;
+	private volatile long restored;
+	private volatile long conflicts;
+
+	/**
+	 * Listen for a standby on the given address and stream the transitions of the given pool to it
+	 * Hand the replicator to the pool with IPStorage.setReplicator
+	 * @param 	pool
+	 * @param 	address	The address to listen on
+	 * @param 	maxLag	Number of records the standby may lag behind before it is disconnected, at most MAXLAG: the most records of a frame
+	 * @throws 	IOException	when the address cannot be bound
+	 */
+	public LeaseReplicator(IPStorage pool, InetSocketAddress address, int maxLag) throws IOException
+	{
+		this.pool = pool;
+		applier = new LeaseApplier(pool);
+		this.maxLag = Math.max(1, Math.min(MAXLAG, maxLag));
+		batch = ByteBuffer.allocate(this.maxLag * RECORD).order(ByteOrder.LITTLE_ENDIAN);
+		sending = ByteBuffer.allocate(batch.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+		server = ServerSocketChannel.open();
+		server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		server.bind(address);
+		sender = new Thread(this::run, "dhcp-replication");
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	/**
+	 * @return the address the replicator listens on
+	 * @throws IOException
+	 */
+	public InetSocketAddress getAddress() throws IOException
+	{
+		return (InetSocketAddress)server.getLocalAddress();
+	}
+
+	/**
+	 * Hand a lease transition to the standby, if one is connected
+	 * The caller holds the lock of the stripe of the client, as for LeaseJournal.append
+	 * @param type	RESERVE, ALLOCATE, RELEASE or EXPIRE
+	 * @param address	The IPv4 address, as an int
+	 * @param high	The first 8 bytes of the hardware address of the client
+	 * @param low	The last 8 bytes of the hardware address of the client
+	 * @param leaseDuration	In seconds
+	 */
+	public void append(int type, int address, long high, long low, int leaseDuration)
+	{
+		// without a standby the transition is in the copy the next one starts with
+		if(!streaming) return;
+		lock.lock();
+		try
+		{
+			if(!streaming) return;
+			sequence++;
+			if(batch.remaining() < RECORD || sequence - acknowledged > maxLag)
+			{
+				disconnect();
+				lagged++;
+				return;
+			}
+			if(batch.position() == 0)
+			{
+				first = sequence;
+				appended.signal();
+			}
+			batch.putLong(high).putLong(low).putLong(System.currentTimeMillis()).putInt(address).putInt(leaseDuration).putInt(type);
+		}
+		finally
+		{lock.unlock();}
+	}
+
+	/**
+	 * Drop the standby and its buffered records
+	 * The caller holds the lock
+	 */
+	private void disconnect()
+	{
+		streaming = false;
+		batch.clear();
+		appended.signal();
+		if(standby != null)
+		{
+			try
+			{standby.close();}
+			catch(IOException e)
+			{}
+		}
+	}
+
+	/**
+	 * Serve one standby after the other, until close
+	 */
+	private void run()
+	{
+		while(!closed)
+		{
+			try(SocketChannel channel = server.accept())
+			{
+				serve(channel);
+			}
+			catch(IOException e)
+			{
+				if(!closed)
+					System.out.println("Standby disconnected: " + e);
+			}
+			catch(InterruptedException e)
+			{return;}
+			finally
+			{
+				lock.lock();
+				try
+				{
+					streaming = false;
+					standby = null;
+					batch.clear();
+				}
+				finally
+				{lock.unlock();}
+			}
+		}
+	}
+
+	/**
+	 * Bring the given standby up to date and stream the transitions to it until it disconnects or lags behind
+	 */
+	private void serve(SocketChannel channel) throws IOException, InterruptedException
+	{
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		ByteBuffer header = ByteBuffer.allocate(FRAME).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, header);
+		if(header.getInt(0) != HELLO || header.getLong(8) != MAGIC)
+			throw new IOException("Not a standby");
+		writeHeader(channel, header, START, pool.getSize(), pool.getFirstAddress());
+		restore(channel, header);
+		long start;
+		lock.lock();
+		try
+		{
+			standby = channel;
+			streaming = true;
+			batch.clear();
+			sending.clear();
+			start = sequence;
+			acknowledged = start;
+		}
+		finally
+		{lock.unlock();}
+		Thread acks = new Thread(() -> readAcks(channel), "dhcp-replication-acks");
+		acks.setDaemon(true);
+		acks.start();
+
+		// the copy of the pool, the transitions since its start are buffered meanwhile
+		ByteBuffer copy = ByteBuffer.allocate(FRAME + SNAPSHOTRECORDS * LeaseSnapshot.RECORD).order(ByteOrder.LITTLE_ENDIAN);
+		copy.position(FRAME);
+		pool.copy((index, state, leaseDuration, high, low, expiry) -> {
+			copy.putLong(high).putLong(low).putLong(expiry).putInt(index).putInt(leaseDuration).putInt(state).putInt(0);
+			if(!copy.hasRemaining())
+				writeSnapshot(channel, copy);
+		});
+		if(copy.position() > FRAME)
+			writeSnapshot(channel, copy);
+		writeHeader(channel, header, SYNCED, 0, start);
+
+		ByteBuffer[] frame = {header, null};
+		while(true)
+		{
+			long from;
+			ByteBuffer records;
+			lock.lock();
+			try
+			{
+				while(streaming && batch.position() == 0)
+					appended.await();
+				if(!streaming)
+					throw new IOException(closed ? "closed" : "lagged more than " + maxLag + " records behind");
+				records = batch;
+				batch = sending;
+				sending = records;
+				from = first;
+			}
+			finally
+			{lock.unlock();}
+			records.flip();
+			header.clear();
+			header.putInt(RECORDS).putInt(records.remaining() / RECORD).putLong(from).flip();
+			frame[1] = records;
+			while(records.hasRemaining())
+				channel.write(frame);
+			records.clear();
+			frames++;
+		}
+	}
+
+	/**
+	 * Take the leases the given standby granted while it served, until the empty GRANTED frame that ends them
+	 * They are taken before the copy of the pool starts, so the copy has them
+	 */
+	private void restore(SocketChannel channel, ByteBuffer header) throws IOException
+	{
+		ByteBuffer body = ByteBuffer.allocate(GRANTEDRECORDS * RECORD).order(ByteOrder.LITTLE_ENDIAN);
+		while(true)
+		{
+			header.clear();
+			readFully(channel, header);
+			int count = header.getInt(4);
+			if(header.getInt(0) != GRANTED || count < 0 || count > GRANTEDRECORDS)
+				throw new IOException("Not the leases of a standby");
+			if(count == 0) return;
+			body.clear().limit(count * RECORD);
+			readFully(channel, body);
+			for(int record = 0; record < body.limit(); record += RECORD)
+			{
+				if(applier.restore(body.getInt(record + 24), body.getLong(record), body.getLong(record + 8), body.getInt(record + 28), body.getLong(record + 16)))
+					restored++;
+				else
+					conflicts++;
+			}
+		}
+	}
+
+	private void writeSnapshot(SocketChannel channel, ByteBuffer copy) throws IOException
+	{
+		copy.putInt(0, SNAPSHOT).putInt(4, (copy.position() - FRAME) / LeaseSnapshot.RECORD).putLong(8, 0).flip();
+		while(copy.hasRemaining())
+			channel.write(copy);
+		copy.clear().position(FRAME);
+	}
+
+	private static void writeHeader(SocketChannel channel, ByteBuffer header, int type, int count, long value) throws IOException
+	{
+		header.clear();
+		header.putInt(type).putInt(count).putLong(value).flip();
+		while(header.hasRemaining())
+			channel.write(header);
+	}
+
+	/**
+	 * Read the ACKs of the given standby until it disconnects
+	 */
+	private void readAcks(SocketChannel channel)
+	{
+		ByteBuffer header = ByteBuffer.allocate(FRAME).order(ByteOrder.LITTLE_ENDIAN);
+		try
+		{
+			while(true)
+			{
+				header.clear();
+				readFully(channel, header);
+				if(header.getInt(0) == ACK)
+					acknowledged = header.getLong(8);
+			}
+		}
+		catch(IOException e)
+		{
+			lock.lock();
+			try
+			{
+				if(standby == channel)
+					disconnect();
+			}
+			finally
+			{lock.unlock();}
+		}
+	}
+
+	/**
+	 * Fill the given buffer from the given channel
+	 * @throws IOException	at the end of the stream as well
+	 */
+	static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining())
+			if(channel.read(buffer) < 0)
+				throw new EOFException("Connection closed");
+	}
+
+	/**
+	 * @return	if a standby is connected and streamed to
+	 */
+	public boolean isStreaming()
+	{
+		return streaming;
+	}
+
+	/**
+	 * @return	the number of records appended that the standby has not acknowledged yet, -1 without a standby
+	 */
+	public long getLag()
+	{
+		lock.lock();
+		try
+		{return streaming ? sequence - acknowledged : -1;}
+		finally
+		{lock.unlock();}
+	}
+
+	/**
+	 * @return the sequence number of the last transition handed to a standby
+	 */
+	public long getSequence()
+	{
+		lock.lock();
+		try
+		{return sequence;}
+		finally
+		{lock.unlock();}
+	}
+
+	/**
+	 * @return the number of RECORDS frames sent
+	 */
+	public long getFrames()
+	{
+		return frames;
+	}
+
+	/**
+	 * @return the number of times a standby was disconnected for lagging behind
+	 */
+	public long getLagged()
+	{
+		return lagged;
+	}
+
+	/**
+	 * @return the number of leases granted by a standby that were taken
+	 */
+	public long getRestored()
+	{
+		return restored;
+	}
+
+	/**
+	 * @return the number of leases granted by a standby that were dropped, for their addresses were given to other clients here
+	 */
+	public long getConflicts()
+	{
+		return conflicts;
+	}
+
+	/**
+	 * Disconnect the standby and stop listening
+	 */
+	public void close()
+	{
+		closed = true;
+		lock.lock();
+		try
+		{disconnect();}
+		finally
+		{lock.unlock();}
+		try
+		{server.close();}
+		catch(IOException e)
+		{e.printStackTrace();}
+	}
+}
@@ -0,0 +1,247 @@
+package DHCPServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A point-in-time copy of the leases of an IPStorage, written next to its LeaseJournal so a restart only replays
+ * the journal segments written since, and the older segments can be deleted
+ *
+ * The file starts with a header of HEADER bytes (magic, version, record size, first address, number of addresses,
+ * first journal segment to replay, number of records), followed by one record of RECORD bytes per reserved
+ * or allocated address, by ascending index, little endian:
+ *  0	long	first 8 bytes of the hardware address of the client
+ *  8	long	last 8 bytes of the hardware address of the client
+ * 16	long	wall clock time in milliseconds at which the allocated lease expires, 0 for a reserved address
+ * 24	int		the index of the address in the pool
+ * 28	int		lease duration in seconds
+ * 32	int		RESERVED or ALLOCATED
+ * 36	int		flags, 0
+ * A snapshot is written to a temporary file that is forced to the disk and then renamed over the previous one,
+ * so there is always one complete snapshot, or none
+ */
+public class LeaseSnapshot
+{
+	public static final int HEADER = 64;
+	public static final int RECORD = 40;
+
+	private static final long MAGIC = 0x44484350534E4150L;
+	private static final int VERSION = 1;
+
+	private final MappedByteBuffer records;
+	private final long segment;
+	private final int count;
+
+	/**
+	 * Receives the leases of a pool, by ascending index
+	 */
+	public interface Sink
+	{
+		/**
+		 * @param 	index	The index of the address in the pool
+		 * @param 	state	RESERVED or ALLOCATED
+		 * @param 	leaseDuration	In seconds
+		 * @param 	high	The first 8 bytes of the hardware address of the client
+		 * @param 	low		The last 8 bytes of the hardware address of the client
+		 * @param 	expiry	Wall clock time in milliseconds at which the allocated lease expires, 0 for a reserved address
+		 * @throws 	IOException
+		 */
+		void add(int index, int state, int leaseDuration, long high, long low, long expiry) throws IOException;
+	}
+
+	/**
+	 * Writes a snapshot, records by ascending index
+	 */
+	public static class Writer implements Sink
+	{
+		private final Path file;
+		private final Path temporary;
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(RECORD * 4096).order(ByteOrder.LITTLE_ENDIAN);
+		private final ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		private long position = HEADER;
+		private int count;
+
+		/**
+		 * Start a snapshot of the given pool
+		 * @param 	file
+		 * @param 	first	The first IPv4 address of the pool, as an int
+		 * @param 	size	Number of addresses of the pool
+		 * @param 	segment	The first journal segment holding transitions the snapshot may miss
+		 * @throws 	IOException
+		 */
+		public Writer(Path file, int first, int size, long segment) throws IOException
+		{
+			this.file = file;
+			temporary = file.resolveSibling(file.getFileName() + ".tmp");
+			channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+			header.putLong(MAGIC).putInt(VERSION).putInt(RECORD).putInt(first).putInt(size).putLong(segment);
+		}
+
+		/**
+		 * Add the reserved or allocated address with the given index
+		 * @throws IOException
+		 */
+		@Override
+		public void add(int index, int state, int leaseDuration, long high, long low, long expiry) throws IOException
+		{
+			if(!buffer.hasRemaining())
+				flush();
+			buffer.putLong(high).putLong(low).putLong(expiry).putInt(index).putInt(leaseDuration).putInt(state).putInt(0);
+			count++;
+		}
+
+		private void flush() throws IOException
+		{
+			buffer.flip();
+			while(buffer.hasRemaining())
+				position += channel.write(buffer, position);
+			buffer.clear();
+		}
+
+		/**
+		 * Complete the snapshot: force it to the disk and put it in place of the previous one
+		 * @return	the number of records
+		 * @throws 	IOException
+		 */
+		public int close() throws IOException
+		{
+			try
+			{
+				flush();
+				header.putInt(count).clear();
+				channel.write(header, 0);
+				channel.force(true);
+			}
+			finally
+			{channel.close();}
+			Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			// the rename itself is only durable once the directory is
+			try(FileChannel directory = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ))
+			{directory.force(true);}
+			catch(IOException e)
+			{}
+			return count;
+		}
+
+		/**
+		 * Give up the snapshot, the previous one stays in place
+		 */
+		public void abort()
+		{
+			try
+			{
+				channel.close();
+				Files.deleteIfExists(temporary);
+			}
+			catch(IOException e)
+			{e.printStackTrace();}
+		}
+	}
+
+	/**
+	 * Map the given snapshot
+	 * @param 	file
+	 * @param 	first	The first IPv4 address of the pool, as an int
+	 * @param 	size	Number of addresses of the pool
+	 * @return	the snapshot, null if there is none
+	 * @throws 	IOException	when the file is not a snapshot, or a snapshot of another pool
+	 */
+	public static LeaseSnapshot open(Path file, int first, int size) throws IOException
+	{
+		if(!Files.exists(file)) return null;
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			if(channel.read(header, 0) != HEADER || header.getLong(0) != MAGIC)
+				throw new IOException("Not a lease snapshot");
+			if(header.getInt(8) != VERSION || header.getInt(12) != RECORD)
+				throw new IOException("Lease snapshot of version " + header.getInt(8) + ", expected " + VERSION);
+			if(header.getInt(16) != first || header.getInt(20) != size)
+				throw new IOException("Lease snapshot of another pool: " + header.getInt(20) + " addresses from " + Integer.toHexString(header.getInt(16)));
+			int count = header.getInt(32);
+			if(channel.size() < HEADER + (long)count * RECORD)
+				throw new IOException("Lease snapshot cut short");
+			return new LeaseSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, HEADER, (long)count * RECORD), header.getLong(24), count);
+		}
+	}
+
+	private LeaseSnapshot(MappedByteBuffer records, long segment, int count)
+	{
+		this.records = records;
+		this.segment = segment;
+		this.count = count;
+		records.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return the first journal segment to replay on top of this snapshot
+	 */
+	public long segment()
+	{
+		return segment;
+	}
+
+	/**
+	 * @return the number of records
+	 */
+	public int count()
+	{
+		return count;
+	}
+
+	/**
+	 * @param 	index	An index in the pool
+	 * @return	the first record of an address with the given index or above, count() if there is none
+	 */
+	public int find(int index)
+	{
+		int low = 0, high = count;
+		while(low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if(index(middle) < index)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	public long high(int record)
+	{
+		return records.getLong(record * RECORD);
+	}
+
+	public long low(int record)
+	{
+		return records.getLong(record * RECORD + 8);
+	}
+
+	public long expiry(int record)
+	{
+		return records.getLong(record * RECORD + 16);
+	}
+
+	public int index(int record)
+	{
+		return records.getInt(record * RECORD + 24);
+	}
+
+	public int leaseDuration(int record)
+	{
+		return records.getInt(record * RECORD + 28);
+	}
+
+	public int state(int record)
+	{
+		return records.getInt(record * RECORD + 32);
+	}
+}
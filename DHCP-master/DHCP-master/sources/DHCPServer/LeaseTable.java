@@ -0,0 +1,106 @@
+package DHCPServer;
+
+/**
+ * The leases of a block of consecutive IPv4 addresses, by index of the address in the block
+ * HeapLeaseTable keeps them on the Java heap, MappedLeaseTable in a memory-mapped file that outlives the process
+ *
+ * Not thread safe: IPStorage changes a lease only while holding the lock of the stripe of its client
+ * and the lock of the allocation shard of its address
+ */
+public interface LeaseTable
+{
+	int FREE = 0, RESERVED = 1, ALLOCATED = 2;
+
+	/**
+	 * @return the number of addresses in the table
+	 */
+	int size();
+
+	/**
+	 * @param 	index
+	 * @return	the IPv4 address with the given index, as an int
+	 */
+	int address(int index);
+
+	/**
+	 * @param 	address	An IPv4 address, as an int
+	 * @return	its index, -1 if it is not in the table
+	 */
+	int index(int address);
+
+	/**
+	 * @param 	index
+	 * @return	FREE, RESERVED or ALLOCATED, or another value while another process is changing the address
+	 */
+	int state(int index);
+
+	/**
+	 * @param 	index
+	 * @return	the lease duration in seconds of the reserved or allocated address with the given index
+	 */
+	long leaseDuration(int index);
+
+	/**
+	 * @param 	index
+	 * @param 	high
+	 * @param 	low
+	 * @return	if the address with the given index is reserved by or allocated to the client with the given hardware address
+	 */
+	boolean isClient(int index, long high, long low);
+
+	/**
+	 * @param 	index
+	 * @return	the first 8 bytes of the hardware address of the client of the address with the given index
+	 */
+	long high(int index);
+
+	/**
+	 * @param 	index
+	 * @return	the last 8 bytes of the hardware address of the client of the address with the given index
+	 */
+	long low(int index);
+
+	/**
+	 * @param 	index
+	 * @return	the wall clock time in milliseconds at which the allocated address with the given index expires,
+	 * 			0 if the table does not keep it
+	 */
+	long expiry(int index);
+
+	/**
+	 * Reserve the free address with the given index to the client with the given hardware address for the given duration
+	 * @param 	index
+	 * @param 	high
+	 * @param 	low
+	 * @param 	leaseDuration	In seconds, unsigned
+	 * @return	false if another process that shares the table took the address first
+	 */
+	boolean reserve(int index, long high, long low, int leaseDuration);
+
+	/**
+	 * Allocate the reserved address with the given index, for its lease duration from now
+	 * @param 	index
+	 * @return	false if the address is not this process's any more: a process that shares the table took it up
+	 */
+	boolean allocate(int index);
+
+	/**
+	 * Release the address with the given index
+	 * @param 	index
+	 * @return	false if the address is not this process's any more: a process that shares the table took it up
+	 */
+	boolean release(int index);
+
+	/**
+	 * Count the addresses in the given state, by a scan over the table
+	 * @param 	state	FREE, RESERVED or ALLOCATED
+	 * @return	the number of addresses in it
+	 */
+	int count(int state);
+
+	/**
+	 * Write the changes made since the last call through to storage, if the table has any
+	 * Called by the lease scheduler, not under a lock
+	 */
+	void sync();
+}
@@ -0,0 +1,339 @@
+package DHCPServer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import DHCPHelper.DHCPMessage;
+import DHCPHelper.DHCPMessageView;
+
+/**
+ * Load balancing between peer servers on one broadcast domain, as in RFC 3074 (DHC Load Balancing Algorithm):
+ * a client is hashed into one of BUCKETS buckets and only the servers that own its bucket answer it,
+ * so every client costs one server the full work of a lease instead of every server
+ *
+ * The hash is the Pearson hash of RFC 3074 over the client identifier (option 61), or the client hardware address
+ * when there is none; it applies to the messages that are not addressed to one server: DHCPDiscovers,
+ * and DHCPRequests without a server identifier (INIT-REBOOT, RENEWING, REBINDING), but for the ones that renew
+ * a lease this server holds: a client keeps the server of its lease, whatever its bucket
+ * A client whose secs reach the takeover threshold has waited too long for its server: the bucket is taken over,
+ * so this server answers it and its bucket from then on, until it is handed back: by hand, or when a client of the bucket
+ * requests the offer of another server, which shows that its server answers again
+ * The buckets owned are a bit set that can be changed at any time, checked without locking
+ */
+public class LoadBalancer
+{
+	public static final int BUCKETS = 256;
+	public static final int DEFAULTTAKEOVER = 10;
+
+	/**
+	 * The permutation of 0 to 255 of RFC 3074, section 6
+	 */
+	private static final byte[] TABLE = table(
+		251, 175, 119, 215, 81, 14, 79, 191, 103, 49, 181, 143, 186, 157, 0,
+		232, 31, 32, 55, 60, 152, 58, 17, 237, 174, 70, 160, 144, 220, 90, 57,
+		223, 59, 3, 18, 140, 111, 166, 203, 196, 134, 243, 124, 95, 222, 179,
+		197, 65, 180, 48, 36, 15, 107, 46, 233, 130, 165, 30, 123, 161, 209, 23,
+		97, 16, 40, 91, 219, 61, 100, 10, 210, 109, 250, 127, 22, 138, 29, 108,
+		244, 67, 207, 9, 178, 204, 74, 98, 126, 249, 167, 116, 34, 77, 193,
+		200, 121, 5, 20, 113, 71, 35, 128, 13, 182, 94, 25, 226, 227, 199, 75,
+		27, 41, 245, 230, 224, 43, 225, 177, 26, 155, 150, 212, 142, 218, 115,
+		241, 73, 88, 105, 39, 114, 62, 255, 192, 201, 145, 214, 168, 158, 221,
+		148, 154, 122, 12, 84, 82, 163, 44, 139, 228, 236, 205, 242, 217, 11,
+		187, 146, 159, 64, 86, 239, 195, 42, 106, 198, 118, 112, 184, 172, 87,
+		2, 173, 117, 176, 229, 247, 253, 137, 185, 99, 164, 102, 147, 45, 66,
+		231, 52, 141, 211, 194, 206, 246, 238, 56, 110, 78, 248, 63, 240, 189,
+		93, 92, 51, 53, 183, 19, 171, 72, 50, 33, 104, 101, 69, 8, 252, 83, 120,
+		76, 135, 85, 54, 202, 125, 188, 213, 96, 235, 136, 208, 162, 129, 190,
+		132, 156, 38, 47, 1, 7, 254, 24, 4, 216, 131, 89, 21, 28, 133, 37, 153,
+		149, 80, 170, 68, 6, 169, 234, 151);
+
+	private static final int CLIENTIDENTIFIER = 61;
+	private static final int SERVERIDENTIFIER = 54;
+
+	private final AtomicLongArray owned = new AtomicLongArray(BUCKETS / 64);
+	/**
+	 * The buckets set with setBuckets; the ones owned beyond them are taken over
+	 */
+	private final AtomicLongArray assigned = new AtomicLongArray(BUCKETS / 64);
+	private volatile int takeoverSecs;
+
+	private final LongAdder answered = new LongAdder();
+	private final LongAdder ignored = new LongAdder();
+	private final LongAdder takenOver = new LongAdder();
+	private final LongAdder handedBack = new LongAdder();
+
+	/**
+	 * @param buckets		The buckets this server owns, as for setBuckets
+	 * @param takeoverSecs	secs from which a client is answered whatever its bucket, 0 never to take a bucket over
+	 */
+	public LoadBalancer(String buckets, int takeoverSecs)
+	{
+		setBuckets(buckets);
+		this.takeoverSecs = takeoverSecs;
+	}
+
+	private static byte[] table(int... values)
+	{
+		byte[] table = new byte[values.length];
+		boolean[] seen = new boolean[BUCKETS];
+		for(int i = 0; i < values.length; i++)
+		{
+			if(seen[values[i]])
+				throw new IllegalStateException("Not a permutation: " + values[i] + " twice");
+			seen[values[i]] = true;
+			table[i] = (byte)values[i];
+		}
+		if(values.length != BUCKETS)
+			throw new IllegalStateException("Not a permutation of " + BUCKETS + " values");
+		return table;
+	}
+
+	/**
+	 * The hash of RFC 3074 over the given key
+	 * @param 	key
+	 * @param 	offset
+	 * @param 	length
+	 * @return	its bucket, 0 to 255
+	 */
+	public static int hash(byte[] key, int offset, int length)
+	{
+		return hash(ByteBuffer.wrap(key), offset, length);
+	}
+
+	/**
+	 * The hash of RFC 3074 over the given key
+	 * @param 	key		The buffer holding the key, read at absolute offsets
+	 * @param 	offset
+	 * @param 	length
+	 * @return	its bucket, 0 to 255
+	 */
+	public static int hash(ByteBuffer key, int offset, int length)
+	{
+		int hash = length & 0xFF;
+		for(int i = offset + length; i > offset; )
+			hash = TABLE[hash ^ (key.get(--i) & 0xFF)] & 0xFF;
+		return hash;
+	}
+
+	/**
+	 * @param 	request
+	 * @return	the bucket of the client of the given message: the hash of its client identifier, or else of its hardware address
+	 */
+	public static int bucket(DHCPMessageView request)
+	{
+		int identifier = request.findOption(CLIENTIDENTIFIER);
+		int offset, length;
+		if(identifier >= 0)
+		{
+			offset = identifier;
+			length = Math.min(request.optionLength(identifier), request.length() - identifier);
+		}
+		else
+		{
+			offset = DHCPMessageView.CLIENTHARDWAREADDRESS;
+			length = Math.min(16, request.hardWareAddressLength() & 0xFF);
+		}
+		return hash(request.buffer(), offset, length);
+	}
+
+	/**
+	 * Decide if this server answers the given message, taking the bucket of a client over when it has waited too long
+	 * @param 	request
+	 * @param 	type	The type of the message (option 53)
+	 * @param 	pool	The pool of the subnet of the client
+	 * @return	if it is answered here
+	 */
+	public boolean isServed(DHCPMessageView request, byte type, IPStorage pool)
+	{
+		if(type != DHCPMessage.DHCPDISCOVER && (type != DHCPMessage.DHCPREQUEST || request.findOption(SERVERIDENTIFIER) >= 0))
+			return true;
+		int ciaddr = request.ciaddr();
+		if(type == DHCPMessage.DHCPREQUEST && ciaddr != 0 && pool.lookUp(request.chaddrHigh(), request.chaddrLow()) == ciaddr)
+			return true;
+		int bucket = bucket(request);
+		if(owns(bucket))
+		{
+			answered.increment();
+			return true;
+		}
+		int takeover = takeoverSecs;
+		if(takeover > 0 && request.secs() >= takeover)
+		{
+			own(bucket);
+			takenOver.increment();
+			answered.increment();
+			return true;
+		}
+		ignored.increment();
+		return false;
+	}
+
+	/**
+	 * @param 	bucket
+	 * @return	if this server owns the given bucket
+	 */
+	public boolean owns(int bucket)
+	{
+		return (owned.get(bucket >>> 6) & (1L << bucket)) != 0;
+	}
+
+	/**
+	 * @param 	bucket
+	 * @return	if this server owns the given bucket without it being set with setBuckets: it took the bucket over
+	 */
+	public boolean isTakenOver(int bucket)
+	{
+		return owns(bucket) && (assigned.get(bucket >>> 6) & (1L << bucket)) == 0;
+	}
+
+	/**
+	 * Take the given bucket: answer its clients from now on
+	 * A bucket that is not set with setBuckets is taken over, and can be handed back
+	 * @param bucket
+	 */
+	public void own(int bucket)
+	{
+		owned.getAndAccumulate(bucket >>> 6, 1L << bucket, (bits, bit) -> bits | bit);
+	}
+
+	/**
+	 * Give the given bucket back to its server if this one took it over
+	 * @param 	bucket
+	 * @return	if it was taken over
+	 */
+	public boolean handBack(int bucket)
+	{
+		if(!isTakenOver(bucket)) return false;
+		disown(bucket);
+		handedBack.increment();
+		return true;
+	}
+
+	/**
+	 * Give every bucket this server took over back, as when the peer it took them from is known to serve again
+	 * @return	the number of buckets handed back
+	 */
+	public int handBack()
+	{
+		int count = 0;
+		for(int bucket = 0; bucket < BUCKETS; bucket++)
+			if(handBack(bucket))
+				count++;
+		return count;
+	}
+
+	/**
+	 * The client of the given DHCPRequest selected the offer of another server (a server identifier that is not this one):
+	 * that server answers the bucket of the client again, so it is handed back if it was taken over
+	 * @param 	request
+	 * @return	if the bucket was handed back
+	 */
+	public boolean peerAnswered(DHCPMessageView request)
+	{
+		return handBack(bucket(request));
+	}
+
+	/**
+	 * Give the given bucket up: leave its clients to the peers from now on
+	 * @param bucket
+	 */
+	public void disown(int bucket)
+	{
+		owned.getAndAccumulate(bucket >>> 6, ~(1L << bucket), (bits, mask) -> bits & mask);
+	}
+
+	/**
+	 * Own exactly the given buckets
+	 * @param buckets	Comma separated buckets and ranges of buckets, "0-127,200" for instance; "all" or null for every bucket
+	 * @throws IllegalArgumentException	for a bucket outside 0 to 255
+	 */
+	public void setBuckets(String buckets)
+	{
+		long[] bits = new long[BUCKETS / 64];
+		if(buckets == null || buckets.trim().equalsIgnoreCase("all"))
+			java.util.Arrays.fill(bits, -1L);
+		else
+		{
+			for(String part : buckets.split(","))
+			{
+				part = part.trim();
+				if(part.isEmpty()) continue;
+				int dash = part.indexOf('-');
+				int first = Integer.parseInt(dash < 0 ? part : part.substring(0, dash).trim());
+				int last = dash < 0 ? first : Integer.parseInt(part.substring(dash + 1).trim());
+				if(first < 0 || last >= BUCKETS || first > last)
+					throw new IllegalArgumentException("Not a range of buckets from 0 to " + (BUCKETS - 1) + ": " + part);
+				for(int bucket = first; bucket <= last; bucket++)
+					bits[bucket >>> 6] |= 1L << bucket;
+			}
+		}
+		for(int i = 0; i < bits.length; i++)
+		{
+			assigned.set(i, bits[i]);
+			owned.set(i, bits[i]);
+		}
+	}
+
+	/**
+	 * @return the buckets this server owns, as ranges for setBuckets
+	 */
+	public String getBuckets()
+	{
+		StringBuilder ranges = new StringBuilder();
+		for(int bucket = 0; bucket < BUCKETS; bucket++)
+		{
+			if(!owns(bucket)) continue;
+			int last = bucket;
+			while(last + 1 < BUCKETS && owns(last + 1))
+				last++;
+			if(ranges.length() > 0)
+				ranges.append(',');
+			ranges.append(bucket);
+			if(last > bucket)
+				ranges.append('-').append(last);
+			bucket = last;
+		}
+		return ranges.toString();
+	}
+
+	/**
+	 * @param takeoverSecs	secs from which a client is answered whatever its bucket, 0 never to take a bucket over
+	 */
+	public void setTakeoverSecs(int takeoverSecs)
+	{
+		this.takeoverSecs = takeoverSecs;
+	}
+
+	/**
+	 * @return	the number of balanced messages answered, the ones of buckets taken over included
+	 */
+	public long getAnswered()
+	{
+		return answered.sum();
+	}
+
+	/**
+	 * @return	the number of balanced messages left to the peers
+	 */
+	public long getIgnored()
+	{
+		return ignored.sum();
+	}
+
+	/**
+	 * @return	the number of buckets taken over
+	 */
+	public long getTakenOver()
+	{
+		return takenOver.sum();
+	}
+
+	/**
+	 * @return	the number of buckets taken over and handed back since
+	 */
+	public long getHandedBack()
+	{
+		return handedBack.sum();
+	}
+}
@@ -0,0 +1,324 @@
+package DHCPServer;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A LeaseTable in a memory-mapped file, off the Java heap: the leases add nothing to collect and survive the process,
+ * so a restarted server maps the file again and carries on with the leases it had
+ *
+ * The file starts with a header of HEADER bytes (magic, version, record size, first address, number of addresses)
+ * and the ProcessSlots of the processes that share it, followed from RECORDS on by one record of RECORD bytes per address,
+ * little endian:
+ *  0	long	state << 62 | owner << 56 | lease duration in seconds
+ *  8	long	first 8 bytes of the hardware address of the client
+ * 16	long	last 8 bytes of the hardware address of the client
+ * 24	long	wall clock time in milliseconds at which the allocated lease expires
+ * 32	int		the IPv4 address, written by the first reservation, so the untouched parts of a file stay sparse
+ * 36	int		flags, 0
+ * The owner is the process slot of the process that reserved the address; several processes may map the same file
+ * and only change the records they own, after claiming a FREE record with a CAS on its state word
+ * A reservation claims the record (CLAIMED), writes the client and then publishes the state with release semantics,
+ * a release goes back through CLAIMED before it clears the client: a RESERVED or ALLOCATED record always holds
+ * the client it belongs to, and a CLAIMED one of a dead process is simply freed again
+ * Every change of a state word is a CAS from the word this process owns, so a process that stalled past the heartbeat
+ * timeout and whose records were taken up meanwhile fails, instead of writing over the leases of the process that took them
+ *
+ * How the changes reach the disk is the Sync policy; the page cache holds them for a restarted process in any case
+ */
+public class MappedLeaseTable implements LeaseTable
+{
+	/**
+	 * When changes are forced to the disk (msync)
+	 * NONE:		never, the operating system writes them back in its own time; a crash of the host may lose them
+	 * PERIODIC:	on every run of the lease scheduler, so at most one tick of changes is lost
+	 * ALWAYS:		on every change, before the operation returns
+	 */
+	public enum Sync {NONE, PERIODIC, ALWAYS}
+
+	public static final int HEADER = 64;
+	public static final int RECORDS = HEADER + ProcessSlots.SLOTS * ProcessSlots.SLOTSIZE;
+	public static final int RECORD = 40;
+
+	private static final long MAGIC = 0x444843504C454153L;
+	private static final int VERSION = 2;
+
+	/**
+	 * The state of a record that is being reserved or released by its owner
+	 */
+	private static final int CLAIMED = 3;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static final int STATE = 0, HIGH = 8, LOW = 16, EXPIRY = 24, ADDRESS = 32, FLAGS = 36;
+	private static final int STATESHIFT = 62;
+	private static final int OWNERSHIFT = 56;
+	private static final long OWNERMASK = 0x3FL << OWNERSHIFT;
+	private static final long DURATIONMASK = 0xFFFFFFFFL;
+
+	private final MappedByteBuffer records;
+	private final int first;
+	private final int size;
+	private final Sync sync;
+	private final long owner;
+	private volatile boolean dirty;
+
+	/**
+	 * Map the records of the given block of addresses of the given lease file
+	 * @param 	channel	The lease file, opened for reading and writing, with a header written by open
+	 * @param 	offset	The index in the file of the first address of the block
+	 * @param 	first	The first IPv4 address of the block, as an int
+	 * @param 	size	Number of addresses of the block, indexed 0 to size - 1
+	 * @param 	sync
+	 * @param 	owner	The process slot of this process
+	 * @throws 	IOException
+	 */
+	public MappedLeaseTable(FileChannel channel, int offset, int first, int size, Sync sync, int owner) throws IOException
+	{
+		this.first = first;
+		this.size = size;
+		this.sync = sync;
+		this.owner = (long)owner << OWNERSHIFT;
+		records = channel.map(FileChannel.MapMode.READ_WRITE, RECORDS + (long)offset * RECORD, (long)size * RECORD);
+	}
+
+	/**
+	 * Write the header of a new lease file, or check the header of an existing one
+	 * @param 	channel	The lease file, opened for reading and writing
+	 * @param 	first	The first IPv4 address of the pool, as an int
+	 * @param 	size	Number of addresses of the pool
+	 * @return	if the file already held the leases of the pool
+	 * @throws 	IOException	when the file holds something else, or the leases of another pool
+	 */
+	public static boolean open(FileChannel channel, int first, int size) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		if(channel.size() == 0)
+		{
+			header.putLong(MAGIC).putInt(VERSION).putInt(RECORD).putInt(first).putInt(size).clear();
+			channel.write(header, 0);
+			return false;
+		}
+		if(channel.read(header, 0) != HEADER || header.getLong(0) != MAGIC)
+			throw new IOException("Not a lease file");
+		if(header.getInt(8) != VERSION || header.getInt(12) != RECORD)
+			throw new IOException("Lease file of version " + header.getInt(8) + ", expected " + VERSION);
+		if(header.getInt(16) != first || header.getInt(20) != size)
+			throw new IOException("Lease file of another pool: " + header.getInt(20) + " addresses from " + Integer.toHexString(header.getInt(16)));
+		return true;
+	}
+
+	/**
+	 * Read the state words of the given block of addresses of the given lease file, without mapping it
+	 * @param 	channel	The lease file, with a header written by open
+	 * @param 	offset	The index in the file of the first address of the block
+	 * @param 	size	Number of addresses of the block
+	 * @param 	buffer	A buffer to read into, of a multiple of RECORD bytes
+	 * @return	if every address of the block is FREE
+	 * @throws 	IOException
+	 */
+	public static boolean isFree(FileChannel channel, int offset, int size, ByteBuffer buffer) throws IOException
+	{
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		long position = RECORDS + (long)offset * RECORD, end = position + (long)size * RECORD;
+		while(position < end)
+		{
+			buffer.clear().limit((int)Math.min(buffer.capacity(), end - position));
+			int read = channel.read(buffer, position);
+			// past the end of the file every record is FREE
+			if(read < RECORD) return true;
+			for(int record = 0; record + RECORD <= read; record += RECORD)
+				if(buffer.getLong(record + STATE) >>> STATESHIFT != FREE)
+					return false;
+			position += read - read % RECORD;
+		}
+		return true;
+	}
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	@Override
+	public int address(int index)
+	{
+		return first + index;
+	}
+
+	@Override
+	public int index(int address)
+	{
+		long index = (address - first) & 0xFFFFFFFFL;
+		return index < size ? (int)index : -1;
+	}
+
+	private long word(int index)
+	{
+		return (long)LONGS.getAcquire(records, index * RECORD + STATE);
+	}
+
+	@Override
+	public int state(int index)
+	{
+		return (int)(word(index) >>> STATESHIFT);
+	}
+
+	@Override
+	public long leaseDuration(int index)
+	{
+		return word(index) & DURATIONMASK;
+	}
+
+	@Override
+	public boolean isClient(int index, long high, long low)
+	{
+		int state = state(index);
+		return (state == RESERVED || state == ALLOCATED) && high(index) == high && low(index) == low;
+	}
+
+	/**
+	 * @param 	index
+	 * @return	the process slot of the process that owns the record with the given index
+	 */
+	public int owner(int index)
+	{
+		return (int)((word(index) & OWNERMASK) >>> OWNERSHIFT);
+	}
+
+	/**
+	 * Take up the record with the given index that the dead process of the given slot left behind
+	 * A record it left halfway a reservation or release is freed instead
+	 * @param 	index
+	 * @param 	from	The process slot of the dead process
+	 * @return	if this process owns the reserved or allocated record now, false if it was freed or someone else came first
+	 */
+	public boolean adopt(int index, int from)
+	{
+		int record = index * RECORD;
+		long word = word(index);
+		if((word & OWNERMASK) >>> OWNERSHIFT != from) return false;
+		if(word >>> STATESHIFT == CLAIMED)
+		{
+			if(LONGS.compareAndSet(records, record + STATE, word, (long)CLAIMED << STATESHIFT | owner))
+				clear(record);
+			return false;
+		}
+		// a record of this process itself, left by a previous run in its slot, is not written again
+		if((word & OWNERMASK) == owner) return true;
+		if(!LONGS.compareAndSet(records, record + STATE, word, word & ~OWNERMASK | owner)) return false;
+		written(record);
+		return true;
+	}
+
+	@Override
+	public long high(int index)
+	{
+		return (long)LONGS.get(records, index * RECORD + HIGH);
+	}
+
+	@Override
+	public long low(int index)
+	{
+		return (long)LONGS.get(records, index * RECORD + LOW);
+	}
+
+	@Override
+	public long expiry(int index)
+	{
+		return (long)LONGS.get(records, index * RECORD + EXPIRY);
+	}
+
+	@Override
+	public boolean reserve(int index, long high, long low, int leaseDuration)
+	{
+		int record = index * RECORD;
+		if(!LONGS.compareAndSet(records, record + STATE, 0L, (long)CLAIMED << STATESHIFT | owner)) return false;
+		LONGS.set(records, record + HIGH, high);
+		LONGS.set(records, record + LOW, low);
+		LONGS.set(records, record + EXPIRY, 0L);
+		INTS.set(records, record + ADDRESS, first + index);
+		LONGS.setRelease(records, record + STATE, (long)RESERVED << STATESHIFT | owner | (leaseDuration & DURATIONMASK));
+		written(record);
+		return true;
+	}
+
+	/**
+	 * @param 	word	A state word
+	 * @return	if it is a RESERVED or ALLOCATED record of this process
+	 */
+	private boolean isOwn(long word)
+	{
+		int state = (int)(word >>> STATESHIFT);
+		return (state == RESERVED || state == ALLOCATED) && (word & OWNERMASK) == owner;
+	}
+
+	@Override
+	public boolean allocate(int index)
+	{
+		int record = index * RECORD;
+		long word = word(index);
+		long duration = word & DURATIONMASK;
+		if(!isOwn(word) || !LONGS.compareAndSet(records, record + STATE, word, (long)ALLOCATED << STATESHIFT | owner | duration)) return false;
+		LONGS.setRelease(records, record + EXPIRY, System.currentTimeMillis() + duration * 1000);
+		written(record);
+		return true;
+	}
+
+	@Override
+	public boolean release(int index)
+	{
+		int record = index * RECORD;
+		long word = word(index);
+		if(!isOwn(word) || !LONGS.compareAndSet(records, record + STATE, word, (long)CLAIMED << STATESHIFT | owner)) return false;
+		clear(record);
+		return true;
+	}
+
+	/**
+	 * Clear the client of the given CLAIMED record of this process, and free it
+	 * @param record
+	 */
+	private void clear(int record)
+	{
+		LONGS.set(records, record + HIGH, 0L);
+		LONGS.set(records, record + LOW, 0L);
+		LONGS.set(records, record + EXPIRY, 0L);
+		INTS.set(records, record + FLAGS, 0);
+		LONGS.setRelease(records, record + STATE, 0L);
+		written(record);
+	}
+
+	private void written(int record)
+	{
+		if(sync == Sync.ALWAYS)
+			records.force(record, RECORD);
+		else if(sync == Sync.PERIODIC && !dirty)
+			dirty = true;
+	}
+
+	@Override
+	public int count(int state)
+	{
+		int count = 0;
+		for(int index = 0; index < size; index++)
+			if(word(index) >>> STATESHIFT == state)
+				count++;
+		return count;
+	}
+
+	@Override
+	public void sync()
+	{
+		if(!dirty) return;
+		dirty = false;
+		records.force();
+	}
+}
@@ -0,0 +1,139 @@
+package DHCPServer;
+
+import java.util.function.IntConsumer;
+
+/**
+ * The addresses that are reserved by a DHCPOffer and wait for the DHCPRequest of the client, by index in the pool
+ * Every hold lives for the same time, the offer timeout the pool is built with, so holds expire in the order they were taken: they are kept in a FIFO,
+ * an intrusive doubly linked list over int arrays, and expiring them only looks at the head
+ * Taking, refreshing and cancelling a hold are O(1) and allocate nothing
+ *
+ * Not thread safe: IPStorage guards it with the lock of its allocation shard
+ */
+public class OfferHolds
+{
+	private static final int NONE = -1;
+
+	private final int[] next;
+	private final int[] previous;
+	private final long[] deadlines;
+	private final boolean[] held;
+	private int head = NONE;
+	private int tail = NONE;
+	private int size;
+	private long taken;
+	private long reclaimed;
+
+	/**
+	 * @param capacity	Number of addresses, indexed 0 to capacity - 1
+	 */
+	public OfferHolds(int capacity)
+	{
+		next = new int[capacity];
+		previous = new int[capacity];
+		deadlines = new long[capacity];
+		held = new boolean[capacity];
+	}
+
+	/**
+	 * (Re)hold the address with the given index until the given deadline
+	 * The deadline must not be before the one of any hold taken earlier
+	 * @param index
+	 * @param deadline	System.nanoTime() at which the hold expires
+	 */
+	public void hold(int index, long deadline)
+	{
+		if(held[index])
+			unlink(index);
+		else
+			taken++;
+		deadlines[index] = deadline;
+		held[index] = true;
+		next[index] = NONE;
+		previous[index] = tail;
+		if(tail == NONE)
+			head = index;
+		else
+			next[tail] = index;
+		tail = index;
+		size++;
+	}
+
+	/**
+	 * Drop the hold on the address with the given index, if there is one: the client requested it or released it
+	 * @param index
+	 */
+	public void cancel(int index)
+	{
+		if(!held[index]) return;
+		unlink(index);
+		held[index] = false;
+	}
+
+	/**
+	 * Hand every hold that expired at the given time to the given consumer and drop it
+	 * @param 	time		System.nanoTime()
+	 * @param 	expired		Receives the index of every expired hold
+	 * @return	the number of expired holds
+	 */
+	public int expire(long time, IntConsumer expired)
+	{
+		int count = 0;
+		while(head != NONE && deadlines[head] - time <= 0)
+		{
+			int index = head;
+			unlink(index);
+			held[index] = false;
+			reclaimed++;
+			count++;
+			expired.accept(index);
+		}
+		return count;
+	}
+
+	/**
+	 * @param 	index
+	 * @return	if the address with the given index is held
+	 */
+	public boolean isHeld(int index)
+	{
+		return held[index];
+	}
+
+	/**
+	 * @return the number of addresses held right now
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the number of holds taken since the start
+	 */
+	public long taken()
+	{
+		return taken;
+	}
+
+	/**
+	 * @return the number of holds that expired, and whose address was reclaimed, since the start
+	 */
+	public long reclaimed()
+	{
+		return reclaimed;
+	}
+
+	private void unlink(int index)
+	{
+		if(previous[index] == NONE)
+			head = next[index];
+		else
+			next[previous[index]] = next[index];
+		if(next[index] == NONE)
+			tail = previous[index];
+		else
+			previous[next[index]] = previous[index];
+		size--;
+	}
+}
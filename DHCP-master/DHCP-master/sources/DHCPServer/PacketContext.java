@@ -0,0 +1,120 @@
+package DHCPServer;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import DHCPHelper.DHCPMessage;
+import DHCPHelper.DHCPMessageView;
+
+/**
+ * Everything the server knows about one packet while it travels through the pipeline
+ * receive -> decode -> classify -> lease decision -> encode -> send
+ *
+ * A context owns its receive and send buffers and is recycled for the next packet,
+ * so the request is decoded exactly once and every stage works on the same object
+ */
+public class PacketContext
+{
+	/**
+	 * The shard that received the packet, the reply is sent through the same socket
+	 */
+	public final ServerShard shard;
+	
+	// received packet
+	public final ByteBuffer request;
+	public int length;
+	public SocketAddress client;
+	public final DHCPMessageView view = new DHCPMessageView();
+	
+	/**
+	 * Message type (option 53) set by the classify stage, 0 when the packet is to be dropped
+	 */
+	public byte type;
+	
+	/**
+	 * The pool of the subnet of the client, set by the classify stage
+	 */
+	public IPStorage pool;
+	
+	/**
+	 * Lease decision: the reply type (0 = no reply), the IP and the lease duration to send
+	 */
+	public byte replyType;
+	public int yourIP;
+	public int leaseDuration;
+	
+	/**
+	 * Sequence number of the journal record the reply confirms, 0 for none: the reply is sent once that record is durable
+	 */
+	public long journalSequence;
+	
+	/**
+	 * Receives the journal sequence number of the allocation from the pool
+	 */
+	public final long[] allocation = new long[1];
+	
+	// reply
+	public final ByteBuffer reply;
+	public int replyLength;
+	
+	/**
+	 * Constructor of a context with heap buffers
+	 * @param shard		The shard this context receives from
+	 */
+	public PacketContext(ServerShard shard)
+	{
+		this(shard, false);
+	}
+	
+	/**
+	 * Constructor of a context
+	 * @param shard		The shard this context receives from
+	 * @param direct	if the receive and send buffers are allocated outside the heap
+	 */
+	public PacketContext(ServerShard shard, boolean direct)
+	{
+		this.shard = shard;
+		request = direct ? ByteBuffer.allocateDirect(DHCPMessage.MAXLENGTH) : ByteBuffer.allocate(DHCPMessage.MAXLENGTH);
+		reply = direct ? ByteBuffer.allocateDirect(DHCPMessage.MAXLENGTH) : ByteBuffer.allocate(DHCPMessage.MAXLENGTH);
+	}
+	
+	/**
+	 * Prepare this context to receive the next packet
+	 */
+	public void reset()
+	{
+		request.clear();
+		length = 0;
+		client = null;
+		type = 0;
+		pool = null;
+		replyType = 0;
+		yourIP = 0;
+		leaseDuration = 0;
+		journalSequence = 0;
+		replyLength = 0;
+	}
+	
+	/**
+	 * Record the lease decision for this packet
+	 * @param replyType
+	 * @param yourIP
+	 * @param leaseDuration
+	 */
+	public void reply(byte replyType, int yourIP, int leaseDuration)
+	{
+		this.replyType = replyType;
+		this.yourIP = yourIP;
+		this.leaseDuration = leaseDuration;
+	}
+	
+	/**
+	 * @return a copy of the received bytes, for printing
+	 */
+	public byte[] receivedBytes()
+	{
+		byte[] bytes = new byte[length];
+		request.get(0, bytes);
+		return bytes;
+	}
+}
@@ -0,0 +1,11 @@
+package DHCPServer;
+
+/**
+ * Lease decision for one message type
+ * A handler reads the decoded request from the context, updates the pool
+ * and records the reply to send (if any) in the context; it never encodes or sends itself
+ */
+public interface PacketHandler
+{
+	void handle(PacketContext context);
+}
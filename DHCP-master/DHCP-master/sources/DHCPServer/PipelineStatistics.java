@@ -0,0 +1,80 @@
+package DHCPServer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Number of packets and time spent per pipeline stage
+ */
+public class PipelineStatistics
+{
+	public enum Stage {RECEIVE, DECODE, CLASSIFY, DECIDE, ENCODE, SEND}
+	
+	private final AtomicLongArray packets = new AtomicLongArray(Stage.values().length);
+	private final AtomicLongArray nanos = new AtomicLongArray(Stage.values().length);
+	private final AtomicLongArray drops = new AtomicLongArray(Stage.values().length);
+	
+	/**
+	 * Account one packet that spent the given time in the given stage
+	 * @param stage
+	 * @param elapsed	in nanoseconds
+	 */
+	public void record(Stage stage, long elapsed)
+	{
+		packets.incrementAndGet(stage.ordinal());
+		nanos.addAndGet(stage.ordinal(), elapsed);
+	}
+	
+	/**
+	 * Account one packet dropped in (or right after) the given stage
+	 * @param stage
+	 */
+	public void drop(Stage stage)
+	{
+		drops.incrementAndGet(stage.ordinal());
+	}
+	
+	/**
+	 * Add the counters of the given statistics to these
+	 * @param other
+	 */
+	public void add(PipelineStatistics other)
+	{
+		for(int i = 0; i < packets.length(); i++)
+		{
+			packets.addAndGet(i, other.packets.get(i));
+			nanos.addAndGet(i, other.nanos.get(i));
+			drops.addAndGet(i, other.drops.get(i));
+		}
+	}
+	
+	public long packets(Stage stage)
+	{
+		return packets.get(stage.ordinal());
+	}
+	
+	public long drops(Stage stage)
+	{
+		return drops.get(stage.ordinal());
+	}
+	
+	/**
+	 * @return the average time in nanoseconds a packet spends in the given stage
+	 */
+	public double averageNanos(Stage stage)
+	{
+		long count = packets(stage);
+		return count == 0 ? 0 : (double)nanos.get(stage.ordinal()) / count;
+	}
+	
+	/**
+	 * return a string with one line per stage for human readability
+	 */
+	public String toString()
+	{
+		StringBuilder builder = new StringBuilder();
+		for(Stage stage : Stage.values())
+			builder.append(String.format("%-9s packets: %10d  drops: %8d  avg: %8.1f ns%n", 
+					stage, packets(stage), drops(stage), averageNanos(stage)));
+		return builder.toString();
+	}
+}
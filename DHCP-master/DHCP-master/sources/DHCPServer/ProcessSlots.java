@@ -0,0 +1,230 @@
+package DHCPServer;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * The processes that share a lease file, in a table of SLOTS slots right after its header
+ * Every slot holds the wall clock time in milliseconds of the last heartbeat of its process (0: free, STOPPED: given up) and its pid;
+ * a process claims a slot with a CAS on the heartbeat, and beats on every run of its lease scheduler
+ * A process whose heartbeat is older than the timeout is dead: the others take up the leases it left behind,
+ * and the one that has looked at every record since retires its slot, which is free again
+ * A process of the same host whose pid no longer runs is dead at once, so a server that crashed and restarted takes up
+ * the leases of its previous run without waiting for the timeout; the pid is tagged with the pid namespace and boot of its host,
+ * and the pid of a slot with another tag (another container or host, or a host without /proc) is never looked up
+ *
+ * A process that stalls for longer than the timeout (a very long GC pause, a stopped debugger) is taken for dead as well,
+ * so the timeout must be well above the pauses the server can have
+ */
+public class ProcessSlots
+{
+	public static final int SLOTS = 64;
+	public static final int SLOTSIZE = 16;
+	public static final long DEFAULTTIMEOUT = 10_000;
+
+	/**
+	 * The heartbeat of a process that gave its slot up: dead at once, but its leases remain to be taken up
+	 */
+	private static final long STOPPED = 1;
+
+	/**
+	 * How long a pid that was looked up is taken to be running, or gone, without looking it up again, in milliseconds
+	 */
+	private static final long PIDCHECK = 1000;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+	private static final int HEARTBEAT = 0, PID = 8;
+
+	/**
+	 * The tag of the pids of this host in the high half of the pid word of a slot, 0 when it cannot be known
+	 */
+	private static final long HOST = host();
+
+	private final MappedByteBuffer slots;
+	private volatile long timeout = DEFAULTTIMEOUT;
+
+	/**
+	 * The last look up of the pid of every slot, null for none; replaced without a lock, a stale one is only taken for
+	 * the pid word it was made for
+	 */
+	private final PidCheck[] checks = new PidCheck[SLOTS];
+
+	/**
+	 * A look up of the pid word of a slot: if its process was gone, taken as the answer until the given time
+	 */
+	private static final class PidCheck
+	{
+		final long pid;
+		final boolean gone;
+		final long until;
+
+		PidCheck(long pid, boolean gone, long until)
+		{
+			this.pid = pid;
+			this.gone = gone;
+			this.until = until;
+		}
+	}
+
+	/**
+	 * Map the process slots of the given lease file
+	 * @param 	channel	The lease file, opened for reading and writing
+	 * @param 	offset	The position of the slots in the file
+	 * @throws 	IOException
+	 */
+	public ProcessSlots(FileChannel channel, long offset) throws IOException
+	{
+		slots = channel.map(FileChannel.MapMode.READ_WRITE, offset, SLOTS * SLOTSIZE);
+	}
+
+	/**
+	 * @return	a tag of the pid namespace of this process and of the boot of its host, never 0; 0 when /proc does not tell
+	 */
+	private static long host()
+	{
+		try
+		{
+			String host = Files.readSymbolicLink(Paths.get("/proc/self/ns/pid")) + " " + Files.readString(Paths.get("/proc/sys/kernel/random/boot_id")).trim();
+			int hash = host.hashCode();
+			return (hash == 0 ? 1 : hash) & 0xFFFFFFFFL;
+		}
+		catch(IOException | RuntimeException e)
+		{return 0;}
+	}
+
+	/**
+	 * Set after how many milliseconds without a heartbeat a process is dead
+	 * @param milliseconds
+	 */
+	public void setTimeout(long milliseconds)
+	{
+		timeout = milliseconds;
+	}
+
+	/**
+	 * Claim a free slot for this process, else the slot of a dead process whose leases are not taken up yet
+	 * The records of a dead process are owned by its slot, so they become the ones of this process, which has to take them up
+	 * before it serves (LeaseFile.recover does): the slot of a dead process is only reused when no slot is free
+	 * @return	the slot
+	 * @throws 	IOException	when all slots are in use
+	 */
+	public int claim() throws IOException
+	{
+		for(boolean free : new boolean[]{true, false})
+			for(int slot = 0; slot < SLOTS; slot++)
+			{
+				long heartbeat = heartbeat(slot);
+				if(free ? heartbeat != 0 : isAlive(slot, heartbeat)) continue;
+				if(LONGS.compareAndSet(slots, slot * SLOTSIZE + HEARTBEAT, heartbeat, System.currentTimeMillis()))
+				{
+					LONGS.setRelease(slots, slot * SLOTSIZE + PID, HOST << 32 | ProcessHandle.current().pid());
+					return slot;
+				}
+			}
+		throw new IOException("All " + SLOTS + " process slots of the lease file are in use");
+	}
+
+	/**
+	 * Tell the other processes that the process of the given slot is alive
+	 * @param slot
+	 */
+	public void beat(int slot)
+	{
+		LONGS.setRelease(slots, slot * SLOTSIZE + HEARTBEAT, System.currentTimeMillis());
+	}
+
+	/**
+	 * Give up the given slot: the process stops using the lease file and the others take up its leases
+	 * @param slot
+	 */
+	public void release(int slot)
+	{
+		LONGS.setRelease(slots, slot * SLOTSIZE + HEARTBEAT, STOPPED);
+	}
+
+	/**
+	 * Free the slot of a dead process, once its leases have been taken up
+	 * @param 	slot
+	 * @param 	heartbeat	The heartbeat the slot had when the process was found dead: a slot that beat or was claimed since is left alone
+	 * @return	if the slot was freed
+	 */
+	public boolean retire(int slot, long heartbeat)
+	{
+		return heartbeat != 0 && !isAlive(slot, heartbeat) && LONGS.compareAndSet(slots, slot * SLOTSIZE + HEARTBEAT, heartbeat, 0L);
+	}
+
+	/**
+	 * @param 	slot
+	 * @return	the heartbeat of the given slot: 0 when it is free, STOPPED when its process gave it up
+	 */
+	public long heartbeat(int slot)
+	{
+		return (long)LONGS.getAcquire(slots, slot * SLOTSIZE + HEARTBEAT);
+	}
+
+	/**
+	 * @param 	slot
+	 * @return	if the process of the given slot beat within the timeout, and still runs when it is one of this host
+	 */
+	public boolean isAlive(int slot)
+	{
+		return isAlive(slot, heartbeat(slot));
+	}
+
+	private boolean isAlive(int slot, long heartbeat)
+	{
+		return isRecent(heartbeat) && !isGone(slot);
+	}
+
+	/**
+	 * @param 	slot
+	 * @return	if the process of the given slot is one of this host and no longer runs
+	 */
+	private boolean isGone(int slot)
+	{
+		long pid = (long)LONGS.getAcquire(slots, slot * SLOTSIZE + PID);
+		if(HOST == 0 || pid >>> 32 != HOST) return false;
+		long now = System.currentTimeMillis();
+		PidCheck check = checks[slot];
+		if(check != null && check.pid == pid && now - check.until < 0) return check.gone;
+		check = new PidCheck(pid, ProcessHandle.of(pid & 0xFFFFFFFFL).isEmpty(), now + PIDCHECK);
+		checks[slot] = check;
+		return check.gone;
+	}
+
+	/**
+	 * @param 	heartbeat
+	 * @return	if a slot with the given heartbeat is in use by a live process
+	 */
+	private boolean isRecent(long heartbeat)
+	{
+		return heartbeat != 0 && System.currentTimeMillis() - heartbeat <= timeout;
+	}
+
+	/**
+	 * @param 	self
+	 * @return	if a slot other than the given one is in use, by a live process or by a dead one whose slot is not retired yet
+	 */
+	public boolean isShared(int self)
+	{
+		for(int slot = 0; slot < SLOTS; slot++)
+			if(slot != self && heartbeat(slot) != 0)
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param 	slot
+	 * @return	the pid of the process that claimed the given slot last
+	 */
+	public long pid(int slot)
+	{
+		return (long)LONGS.getAcquire(slots, slot * SLOTSIZE + PID) & 0xFFFFFFFFL;
+	}
+}
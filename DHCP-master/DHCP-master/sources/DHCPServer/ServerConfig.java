@@ -0,0 +1,177 @@
+package DHCPServer;
+
+/**
+ * Tunables of the DHCPServer
+ * Every field defaults to the matching system property (-Ddhcp.<name>=...) so they can be set from the command line
+ */
+public class ServerConfig
+{
+	/**
+	 * How received packets are processed
+	 * SERIAL: every packet runs through all stages on the receiving thread
+	 * STAGED: receive/decode/classify, decide/encode and send each run on their own thread, connected by bounded queues
+	 * NIO: a non-blocking selector loop drains the socket into pooled direct buffers and hands them to a pool of workers
+	 * POOL: every received packet is handled as a task on a fixed pool of platform threads
+	 * VIRTUAL: every received packet is handled on its own virtual thread (platform threads when the JVM has none)
+	 */
+	public enum Mode {SERIAL, STAGED, NIO, POOL, VIRTUAL}
+	
+	/**
+	 * Dump every received packet and the pool content (dhcp.verbose)
+	 */
+	public boolean verbose = Boolean.getBoolean("dhcp.verbose");
+	
+	/**
+	 * Execution mode (dhcp.mode)
+	 */
+	public Mode mode = Mode.valueOf(System.getProperty("dhcp.mode", "serial").toUpperCase());
+	
+	/**
+	 * Capacity of each hand-off queue between stages or to a worker (dhcp.queue)
+	 */
+	public int queueCapacity = Integer.getInteger("dhcp.queue", 1024);
+	
+	/**
+	 * Number of worker threads in NIO and POOL mode (dhcp.workers)
+	 */
+	public int workers = Integer.getInteger("dhcp.workers", Runtime.getRuntime().availableProcessors());
+	
+	/**
+	 * Number of pooled receive buffers in NIO, POOL and VIRTUAL mode (dhcp.buffers)
+	 */
+	public int buffers = Integer.getInteger("dhcp.buffers", 4096);
+	
+	/**
+	 * Number of sockets opened on the server port with SO_REUSEPORT, each with its own receive loop (dhcp.shards)
+	 * Only SERIAL and NIO mode run more than one shard; in NIO mode the workers and buffers are divided over the shards
+	 */
+	public int shards = Integer.getInteger("dhcp.shards", 1);
+	
+	/**
+	 * SO_RCVBUF and SO_SNDBUF of the server socket in bytes, 0 to keep the system default (dhcp.rcvbuf, dhcp.sndbuf)
+	 */
+	public int receiveBufferSize = Integer.getInteger("dhcp.rcvbuf", 0);
+	public int sendBufferSize = Integer.getInteger("dhcp.sndbuf", 0);
+	
+	/**
+	 * Number of addresses in the pool, from 128.1.0.1 (dhcp.pool)
+	 */
+	public int poolSize = Integer.getInteger("dhcp.pool", 5);
+	
+	/**
+	 * File of the subnets the server hands addresses out in, one CIDR range with its exclusions per line (Subnet);
+	 * null to only serve the pool above (dhcp.subnets)
+	 * Every subnet has a sparse pool of its own on the heap only: the server refuses to start with a lease file, a journal or replication as well
+	 */
+	public String subnets = System.getProperty("dhcp.subnets");
+	
+	/**
+	 * Order in which free addresses are offered: lowest, round_robin or random (dhcp.order)
+	 */
+	public FreeAddressSet.Order allocationOrder = FreeAddressSet.Order.valueOf(System.getProperty("dhcp.order", "lowest").toUpperCase());
+	
+	/**
+	 * Milliseconds between two runs of the lease expiry, which is also the precision of lease deadlines (dhcp.tick)
+	 */
+	public int expiryTick = Integer.getInteger("dhcp.tick", 100);
+	
+	/**
+	 * Number of lock stripes the clients of the pool are divided over (dhcp.stripes)
+	 */
+	public int stripes = Integer.getInteger("dhcp.stripes", IPStorage.DEFAULTSTRIPES);
+	
+	/**
+	 * Number of allocation shards the addresses of the pool are divided over, best the number of threads reserving
+	 * addresses; with more than one the allocation order holds within a shard (dhcp.allocshards)
+	 */
+	public int allocationShards = Integer.getInteger("dhcp.allocshards", 1);
+	
+	/**
+	 * If the pool is sparse: its addresses are only materialized, in blocks, when they are first offered,
+	 * so a pool of millions of addresses starts at once and uses memory for the blocks in use only (dhcp.sparse)
+	 */
+	public boolean sparse = Boolean.getBoolean("dhcp.sparse");
+	
+	/**
+	 * File the leases are kept in, memory-mapped, so they survive a restart; null to keep them on the heap (dhcp.leasefile)
+	 */
+	public String leaseFile = System.getProperty("dhcp.leasefile");
+	
+	/**
+	 * When changes to the lease file are forced to the disk: none, periodic (every expiry tick) or always (dhcp.msync)
+	 */
+	public MappedLeaseTable.Sync sync = MappedLeaseTable.Sync.valueOf(System.getProperty("dhcp.msync", "periodic").toUpperCase());
+	
+	/**
+	 * Append-only journal of every lease transition, replayed on start so the leases survive a restart;
+	 * a DHCPAck is only sent once the allocation it confirms is on the disk; null for no journal (dhcp.journal)
+	 */
+	public String journal = System.getProperty("dhcp.journal");
+	
+	/**
+	 * Microseconds the journal writer waits after the first record of a batch for more before it forces the batch
+	 * to the disk with one fsync, so the time a DHCPAck waits on top of that fsync (dhcp.journalwindow)
+	 */
+	public int journalWindow = Integer.getInteger("dhcp.journalwindow", LeaseJournal.DEFAULTWINDOW);
+	
+	/**
+	 * Number of records a journal batch holds; lease transitions wait while the batch is full (dhcp.journalbatch)
+	 */
+	public int journalBatch = Integer.getInteger("dhcp.journalbatch", LeaseJournal.DEFAULTBATCH);
+	
+	/**
+	 * Number of DHCPAcks that can wait for the journal at once; beyond that the thread sending one waits itself (dhcp.heldacks)
+	 */
+	public int heldAcks = Integer.getInteger("dhcp.heldacks", 4096);
+	
+	/**
+	 * Seconds between two snapshots of the leases, after which the journal before the snapshot is deleted;
+	 * a snapshot is also written on close, 0 to only write it then (dhcp.snapshot)
+	 */
+	public int snapshotInterval = Integer.getInteger("dhcp.snapshot", 300);
+	
+	/**
+	 * TCP port a standby server connects to for the lease transitions of this server, 0 for no standby (dhcp.replicate)
+	 */
+	public int replicationPort = Integer.getInteger("dhcp.replicate", 0);
+	
+	/**
+	 * host:port of the primary server this server is the standby of; a standby answers no clients while
+	 * it is connected to its primary, null for none (dhcp.primary)
+	 */
+	public String primary = System.getProperty("dhcp.primary");
+	
+	/**
+	 * Seconds a standby that has not reached its primary yet waits after it started before it answers clients;
+	 * once it has been connected it answers as soon as the connection is lost (dhcp.primarygrace)
+	 */
+	public int primaryGrace = Integer.getInteger("dhcp.primarygrace", (int)(LeaseReplica.DEFAULTGRACE / 1000));
+	
+	/**
+	 * Number of lease transitions the standby may lag behind before the primary disconnects it,
+	 * after which it catches up from a copy of the pool; at most LeaseReplicator.MAXLAG (dhcp.replicationlag)
+	 */
+	public int replicationLag = Integer.getInteger("dhcp.replicationlag", LeaseReplicator.DEFAULTLAG);
+	
+	/**
+	 * The buckets of clients this server answers when it shares them with peer servers (RFC 3074), "0-127" for instance;
+	 * null to answer every client (dhcp.buckets)
+	 */
+	public String buckets = System.getProperty("dhcp.buckets");
+	
+	/**
+	 * secs from which this server takes the bucket of a client of a peer over, 0 never to (dhcp.takeover)
+	 */
+	public int takeover = Integer.getInteger("dhcp.takeover", LoadBalancer.DEFAULTTAKEOVER);
+	
+	/**
+	 * Seconds an address offered to a client stays reserved without a DHCPRequest before it is reclaimed,
+	 * 0 to keep it reserved until the client releases it (dhcp.offerttl)
+	 */
+	public int offerTimeout = Integer.getInteger("dhcp.offerttl", IPStorage.DEFAULTOFFERTIMEOUT);
+	
+	/**
+	 * Seconds between two prints of the pipeline statistics, 0 to never print them (dhcp.stats)
+	 */
+	public int statisticsInterval = Integer.getInteger("dhcp.stats", 0);
+}
@@ -0,0 +1,49 @@
+package DHCPServer;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+import DHCPHelper.Transport;
+import DHCPHelper.Utility;
+
+/**
+ * One receive socket of the server with its own counters
+ * With SO_REUSEPORT the server opens several sockets on the same port and the kernel spreads
+ * the clients over them; every shard runs its own receive loop over its own buffers
+ */
+public class ServerShard
+{
+	public final int index;
+	public final Transport transport;
+	public final PipelineStatistics statistics = new PipelineStatistics();
+	
+	/**
+	 * The IPv4 address of the interface this shard receives on, as an int: the one its transport is bound to,
+	 * 0 when it receives on every interface
+	 */
+	public final int interfaceAddress;
+	
+	public ServerShard(int index, Transport transport)
+	{
+		this.index = index;
+		this.transport = transport;
+		interfaceAddress = interfaceAddress(transport);
+	}
+	
+	/**
+	 * @param 	transport
+	 * @return	the IPv4 address the given transport is bound to, as an int, 0 for the wildcard address or an unknown one
+	 */
+	private static int interfaceAddress(Transport transport)
+	{
+		SocketAddress local;
+		try
+		{local = transport.getLocalAddress();}
+		catch(IOException e)
+		{return 0;}
+		if(!(local instanceof InetSocketAddress) || !(((InetSocketAddress)local).getAddress() instanceof Inet4Address)) return 0;
+		return Utility.toInt(((InetSocketAddress)local).getAddress().getAddress());
+	}
+}
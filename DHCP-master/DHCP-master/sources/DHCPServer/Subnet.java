@@ -0,0 +1,167 @@
+package DHCPServer;
+
+/**
+ * A subnet the server hands addresses out in: a CIDR range and the addresses of it that are never handed out
+ * Its pool is every host address of the range (without the network and broadcast address, below a /31) minus the excluded ones
+ *
+ * A subnet is written as one line of the subnets file of the server (dhcp.subnets):
+ *  10.1.2.0/24 exclude 10.1.2.1,10.1.2.200-10.1.2.254
+ * The excluded addresses are single addresses or ranges, comma separated, within the subnet
+ */
+public class Subnet
+{
+	private final int network;
+	private final int prefix;
+	private final int[] excluded;
+
+	/**
+	 * @param network	The network address, as an int; the host bits are cleared
+	 * @param prefix	The length of the network prefix, 0 to 32
+	 * @param excluded	The addresses never to hand out, as pairs of first and last IPv4 address (inclusive); null for none
+	 * @throws IllegalArgumentException	for a prefix outside 0 to 32, or an excluded address outside the subnet
+	 */
+	public Subnet(int network, int prefix, int[] excluded)
+	{
+		if(prefix < 0 || prefix > 32)
+			throw new IllegalArgumentException("Not a prefix length: " + prefix);
+		this.prefix = prefix;
+		this.network = network & mask(prefix);
+		this.excluded = excluded == null ? new int[0] : excluded.clone();
+		for(int i = 0; i + 1 < this.excluded.length; i += 2)
+			if(!contains(this.excluded[i]) || !contains(this.excluded[i + 1]))
+				throw new IllegalArgumentException("Excluded address outside " + this + ": " + toString(this.excluded[i]) + "-" + toString(this.excluded[i + 1]));
+	}
+
+	/**
+	 * Parse a subnet as written in the subnets file
+	 * @param 	line	"network/prefix", optionally followed by "exclude" and the excluded addresses
+	 * @return	the subnet
+	 * @throws 	IllegalArgumentException	when the line is not a subnet
+	 */
+	public static Subnet parse(String line)
+	{
+		String[] words = line.trim().split("\\s+");
+		int slash = words[0].indexOf('/');
+		if(slash < 0 || (words.length != 1 && (words.length != 3 || !words[1].equalsIgnoreCase("exclude"))))
+			throw new IllegalArgumentException("Not a subnet: " + line);
+		int[] excluded = null;
+		if(words.length == 3)
+		{
+			String[] ranges = words[2].split(",");
+			excluded = new int[ranges.length * 2];
+			for(int i = 0; i < ranges.length; i++)
+			{
+				int dash = ranges[i].indexOf('-');
+				excluded[i * 2] = parseAddress(dash < 0 ? ranges[i] : ranges[i].substring(0, dash));
+				excluded[i * 2 + 1] = dash < 0 ? excluded[i * 2] : parseAddress(ranges[i].substring(dash + 1));
+			}
+		}
+		try
+		{return new Subnet(parseAddress(words[0].substring(0, slash)), Integer.parseInt(words[0].substring(slash + 1)), excluded);}
+		catch(NumberFormatException e)
+		{throw new IllegalArgumentException("Not a subnet: " + line);}
+	}
+
+	/**
+	 * @param 	address	A dotted quad IPv4 address
+	 * @return	the address as an int
+	 * @throws 	IllegalArgumentException	when it is not one
+	 */
+	public static int parseAddress(String address)
+	{
+		String[] parts = address.trim().split("\\.");
+		if(parts.length != 4)
+			throw new IllegalArgumentException("Not an IPv4 address: " + address);
+		int value = 0;
+		for(String part : parts)
+		{
+			int octet;
+			try
+			{octet = Integer.parseInt(part);}
+			catch(NumberFormatException e)
+			{throw new IllegalArgumentException("Not an IPv4 address: " + address);}
+			if(octet < 0 || octet > 255)
+				throw new IllegalArgumentException("Not an IPv4 address: " + address);
+			value = value << 8 | octet;
+		}
+		return value;
+	}
+
+	/**
+	 * @param 	address	An IPv4 address, as an int
+	 * @return	the address as a dotted quad
+	 */
+	public static String toString(int address)
+	{
+		return (address >>> 24) + "." + (address >>> 16 & 0xFF) + "." + (address >>> 8 & 0xFF) + "." + (address & 0xFF);
+	}
+
+	private static int mask(int prefix)
+	{
+		return prefix == 0 ? 0 : -1 << (32 - prefix);
+	}
+
+	/**
+	 * @param 	address	An IPv4 address, as an int
+	 * @return	if the address lies in this subnet
+	 */
+	public boolean contains(int address)
+	{
+		return (address & mask(prefix)) == network;
+	}
+
+	/**
+	 * @return the network address, as an int
+	 */
+	public int getNetwork()
+	{
+		return network;
+	}
+
+	/**
+	 * @return the broadcast address, the last of the subnet, as an int
+	 */
+	public int getBroadcast()
+	{
+		return network | ~mask(prefix);
+	}
+
+	/**
+	 * @return the length of the network prefix
+	 */
+	public int getPrefix()
+	{
+		return prefix;
+	}
+
+	/**
+	 * @return the first address of the pool, as an int
+	 */
+	public int getFirstAddress()
+	{
+		return prefix < 31 ? network + 1 : network;
+	}
+
+	/**
+	 * @return the number of addresses of the pool, the excluded ones included
+	 */
+	public int getSize()
+	{
+		long addresses = 1L << (32 - prefix);
+		return (int)Math.min(Integer.MAX_VALUE, prefix < 31 ? addresses - 2 : addresses);
+	}
+
+	/**
+	 * @return the addresses never to hand out, as pairs of first and last IPv4 address
+	 */
+	public int[] getExcluded()
+	{
+		return excluded.clone();
+	}
+
+	@Override
+	public String toString()
+	{
+		return toString(network) + "/" + prefix;
+	}
+}
@@ -0,0 +1,134 @@
+package DHCPServer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The subnets of the server with the pool of each, found by address in O(log n)
+ * The ranges of the subnets are kept in two sorted int arrays (first and last address, biased by Integer.MIN_VALUE so that
+ * the signed order of the ints is the unsigned order of the addresses) that find searches with a binary search,
+ * so finding the subnet of a packet allocates nothing and touches about log2(n) cache lines of two arrays
+ * The subnets must not overlap
+ */
+public class SubnetIndex
+{
+	private final int[] firsts;
+	private final int[] lasts;
+	private final Subnet[] subnets;
+	private final IPStorage[] pools;
+
+	/**
+	 * Creates the pool of a subnet
+	 */
+	public interface Allocator
+	{
+		IPStorage allocate(Subnet subnet) throws IOException;
+	}
+
+	/**
+	 * @param subnets	The subnets, in any order
+	 * @param allocator	Creates the pool of a subnet
+	 * @throws IOException	when the allocator cannot create a pool
+	 * @throws IllegalArgumentException	when two subnets overlap
+	 */
+	public SubnetIndex(List<Subnet> subnets, Allocator allocator) throws IOException
+	{
+		this.subnets = subnets.toArray(new Subnet[0]);
+		Arrays.sort(this.subnets, (a, b) -> Integer.compare(a.getNetwork() ^ Integer.MIN_VALUE, b.getNetwork() ^ Integer.MIN_VALUE));
+		firsts = new int[this.subnets.length];
+		lasts = new int[this.subnets.length];
+		pools = new IPStorage[this.subnets.length];
+		for(int i = 0; i < this.subnets.length; i++)
+		{
+			firsts[i] = this.subnets[i].getNetwork() ^ Integer.MIN_VALUE;
+			lasts[i] = this.subnets[i].getBroadcast() ^ Integer.MIN_VALUE;
+			if(i > 0 && firsts[i] <= lasts[i - 1])
+				throw new IllegalArgumentException("Overlapping subnets: " + this.subnets[i - 1] + " and " + this.subnets[i]);
+		}
+		for(int i = 0; i < this.subnets.length; i++)
+			pools[i] = allocator.allocate(this.subnets[i]);
+	}
+
+	/**
+	 * Read the subnets from the given file, one per line as for Subnet.parse; empty lines and lines starting with # are skipped
+	 * @param 	file
+	 * @return	the subnets
+	 * @throws 	IOException	when the file cannot be read
+	 * @throws 	IllegalArgumentException	for a line that is not a subnet, with its line number
+	 */
+	public static List<Subnet> load(Path file) throws IOException
+	{
+		List<Subnet> subnets = new ArrayList<>();
+		List<String> lines = Files.readAllLines(file);
+		for(int i = 0; i < lines.size(); i++)
+		{
+			String line = lines.get(i).trim();
+			if(line.isEmpty() || line.startsWith("#")) continue;
+			try
+			{subnets.add(Subnet.parse(line));}
+			catch(IllegalArgumentException e)
+			{throw new IllegalArgumentException(file + ":" + (i + 1) + ": " + e.getMessage());}
+		}
+		return subnets;
+	}
+
+	/**
+	 * @param 	address	An IPv4 address, as an int
+	 * @return	the index of the subnet the address lies in, -1 for none
+	 */
+	public int find(int address)
+	{
+		int key = address ^ Integer.MIN_VALUE;
+		int low = 0, high = firsts.length - 1;
+		// the last subnet that starts at or before the address
+		while(low <= high)
+		{
+			int middle = (low + high) >>> 1;
+			if(firsts[middle] <= key)
+				low = middle + 1;
+			else
+				high = middle - 1;
+		}
+		return high >= 0 && key <= lasts[high] ? high : -1;
+	}
+
+	/**
+	 * @param 	address	An IPv4 address, as an int
+	 * @return	the pool of the subnet the address lies in, null for none
+	 */
+	public IPStorage pool(int address)
+	{
+		int index = find(address);
+		return index < 0 ? null : pools[index];
+	}
+
+	/**
+	 * @param 	index	As returned by find
+	 * @return	the subnet with the given index
+	 */
+	public Subnet getSubnet(int index)
+	{
+		return subnets[index];
+	}
+
+	/**
+	 * @param 	index	As returned by find
+	 * @return	the pool of the subnet with the given index
+	 */
+	public IPStorage getPool(int index)
+	{
+		return pools[index];
+	}
+
+	/**
+	 * @return the number of subnets
+	 */
+	public int size()
+	{
+		return subnets.length;
+	}
+}
@@ -0,0 +1,177 @@
+package DHCPServer;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Hierarchical timing wheel over a fixed set of timers, identified by an index (a lease index in the pool)
+ * Deadlines are absolute System.nanoTime() values, rounded up to whole ticks
+ * Level 0 has one slot per tick, every next level has slots 64 times as wide; a timer sits in the lowest level
+ * whose span covers its deadline and is moved down a level when the wheel reaches its slot,
+ * so a tick only touches the timers that expire in it or that are cascaded to a lower level
+ *
+ * The slots are intrusive doubly linked lists over int arrays: scheduling and cancelling are O(1) and allocate nothing
+ * Not thread safe: IPStorage guards it with the lock of its allocation shard
+ */
+public class TimingWheel
+{
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int LEVELS = 6;
+	private static final int NONE = -1;
+
+	private final long tickNanos;
+	private final long origin;
+	private long now;
+
+	private final int[] heads = new int[LEVELS * SLOTS];
+	private final int[] next;
+	private final int[] previous;
+	private final int[] slots;
+	private final long[] deadlines;
+	private int size;
+
+	/**
+	 * @param capacity	Number of timers, indexed 0 to capacity - 1
+	 * @param tickNanos	Resolution of the wheel in nanoseconds
+	 */
+	public TimingWheel(int capacity, long tickNanos)
+	{
+		this.tickNanos = tickNanos;
+		origin = System.nanoTime();
+		next = new int[capacity];
+		previous = new int[capacity];
+		slots = new int[capacity];
+		deadlines = new long[capacity];
+		Arrays.fill(heads, NONE);
+		Arrays.fill(slots, NONE);
+	}
+
+	/**
+	 * @return the number of scheduled timers
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @param 	index
+	 * @return	if the timer with the given index is scheduled
+	 */
+	public boolean isScheduled(int index)
+	{
+		return slots[index] != NONE;
+	}
+
+	/**
+	 * (Re)schedule the timer with the given index
+	 * @param index
+	 * @param deadline	System.nanoTime() at which the timer expires
+	 */
+	public void schedule(int index, long deadline)
+	{
+		cancel(index);
+		long tick = Math.max(now + 1, (deadline - origin + tickNanos - 1) / tickNanos);
+		deadlines[index] = tick;
+		insert(index, tick);
+		size++;
+	}
+
+	/**
+	 * Cancel the timer with the given index, if it is scheduled
+	 * @param index
+	 */
+	public void cancel(int index)
+	{
+		if(slots[index] == NONE) return;
+		unlink(index);
+		size--;
+	}
+
+	/**
+	 * Advance the wheel up to the given time, handing every timer that expired on the way to the given consumer
+	 * A timer is unscheduled before it is handed over, so the consumer may schedule it again
+	 * @param 	time		System.nanoTime()
+	 * @param 	expired		Receives the index of every expired timer
+	 * @return	the number of expired timers
+	 */
+	public int advance(long time, IntConsumer expired)
+	{
+		long target = (time - origin) / tickNanos;
+		int count = 0;
+		while(now < target)
+		{
+			now++;
+			// cascade the higher levels whose slot starts at this tick
+			for(int level = 1; level < LEVELS && (now & ((1L << (BITS * level)) - 1)) == 0; level++)
+			{
+				int slot = level * SLOTS + ((int)(now >>> (BITS * level)) & (SLOTS - 1));
+				int index = heads[slot];
+				heads[slot] = NONE;
+				while(index != NONE)
+				{
+					int following = next[index];
+					slots[index] = NONE;
+					insert(index, deadlines[index]);
+					index = following;
+				}
+			}
+			int head = (int)now & (SLOTS - 1);
+			int index = heads[head];
+			heads[head] = NONE;
+			while(index != NONE)
+			{
+				int following = next[index];
+				slots[index] = NONE;
+				size--;
+				count++;
+				expired.accept(index);
+				index = following;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return the deadline of the given timer, as System.nanoTime(), rounded to the tick it expires in
+	 */
+	public long getDeadline(int index)
+	{
+		return origin + deadlines[index] * tickNanos;
+	}
+
+	private void insert(int index, long tick)
+	{
+		long delta = tick - now;
+		int level = 0;
+		while(level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1)))
+			level++;
+		if(delta >= 1L << (BITS * LEVELS))
+			tick = now + (1L << (BITS * LEVELS)) - 1;
+		link(index, level * SLOTS + ((int)(tick >>> (BITS * level)) & (SLOTS - 1)));
+	}
+
+	private void link(int index, int slot)
+	{
+		int head = heads[slot];
+		next[index] = head;
+		previous[index] = NONE;
+		if(head != NONE)
+			previous[head] = index;
+		heads[slot] = index;
+		slots[index] = slot;
+	}
+
+	private void unlink(int index)
+	{
+		int slot = slots[index];
+		if(previous[index] == NONE)
+			heads[slot] = next[index];
+		else
+			next[previous[index]] = next[index];
+		if(next[index] != NONE)
+			previous[next[index]] = previous[index];
+		slots[index] = NONE;
+	}
+}
@@ -0,0 +1,98 @@
+package DHCPHelper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * DHCPMessageView on a DHCPRequest, with options too short for their type and options cut off by the end of the message
+ */
+class DHCPMessageViewTest
+{
+	private final DHCPMessageView view = new DHCPMessageView();
+
+	/**
+	 * @param 	options	The bytes of the option zone
+	 * @return	a DHCPRequest of a client with the given options, exactly as long as they are
+	 */
+	private static ByteBuffer request(int... options)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(DHCPMessageView.OPTIONS + options.length);
+		buffer.put(DHCPMessageView.OPCODE, DHCPMessage.BOOTREQUEST);
+		buffer.putInt(DHCPMessageView.TRANSACTIONID, 0x12345678);
+		buffer.putInt(DHCPMessageView.CLIENTIP, 0x0A000001);
+		buffer.put(DHCPMessageView.CLIENTHARDWAREADDRESS, (byte)0x1b);
+		buffer.putInt(DHCPMessageView.MAGICCOOKIE, 0x63825363);
+		for(int i = 0; i < options.length; i++)
+			buffer.put(DHCPMessageView.OPTIONS + i, (byte)options[i]);
+		return buffer;
+	}
+
+	private DHCPMessageView wrap(ByteBuffer buffer)
+	{
+		return view.wrap(buffer, buffer.capacity());
+	}
+
+	@Test
+	void readsTheFixedHeader()
+	{
+		wrap(request(53, 1, DHCPMessage.DHCPREQUEST, 255));
+		assertEquals(0x12345678, view.xid());
+		assertEquals(0x0A000001, view.ciaddr());
+		assertEquals(0x1b00000000000000L, view.chaddrHigh());
+		assertEquals(DHCPMessage.DHCPREQUEST, view.getType());
+	}
+
+	@Test
+	void readsFourByteOptions()
+	{
+		wrap(request(53, 1, DHCPMessage.DHCPREQUEST, 50, 4, 10, 0, 0, 7, 54, 4, 10, 0, 0, 1, 255));
+		int requested = view.findOption(50, 4);
+		assertEquals(4, view.optionLength(requested));
+		assertEquals(0x0A000007, view.optionInt(requested));
+		assertEquals(0x0A000001, view.optionInt(view.findOption(54, 4)));
+	}
+
+	@Test
+	void shortOptionIsAbsent()
+	{
+		wrap(request(53, 1, DHCPMessage.DHCPREQUEST, 50, 2, 10, 0, 54, 0, 51, 3, 0, 0, 60, 255));
+		assertTrue(view.findOption(50) >= 0);
+		assertEquals(-1, view.findOption(50, 4));
+		assertEquals(-1, view.findOption(54, 4));
+		assertEquals(-1, view.findOption(51, 4));
+	}
+
+	@Test
+	void optionCutOffByTheEndIsAbsent()
+	{
+		// the message ends two bytes into the data of option 50, nothing past it may be read
+		wrap(request(53, 1, DHCPMessage.DHCPREQUEST, 50, 4, 10, 0));
+		assertEquals(-1, view.findOption(50));
+		assertEquals(-1, view.findOption(50, 4));
+		assertEquals(-1, view.endOfOptions());
+		assertEquals(DHCPMessage.DHCPREQUEST, view.getType());
+	}
+
+	@Test
+	void typeOfTheWrongLengthIsNone()
+	{
+		wrap(request(53, 2, DHCPMessage.DHCPREQUEST, 0, 255));
+		assertEquals(0, view.getType());
+	}
+
+	@Test
+	void messageWithoutOptionsHasNone()
+	{
+		ByteBuffer buffer = request();
+		view.wrap(buffer, DHCPMessageView.OPTIONS);
+		assertEquals(-1, view.findOption(53));
+		assertEquals(0, view.getType());
+		view.wrap(buffer, DHCPMessageView.MAGICCOOKIE);
+		assertFalse(view.isValid());
+	}
+}
@@ -0,0 +1,78 @@
+package DHCPHelper;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * DHCPOptionIndex on well formed option zones and on ones cut short
+ */
+class DHCPOptionIndexTest
+{
+	private final DHCPOptionIndex index = new DHCPOptionIndex();
+
+	private static ByteBuffer options(int... bytes)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+		for(int b : bytes)
+			buffer.put((byte)b);
+		return buffer;
+	}
+
+	@Test
+	void indexesEveryOptionUpToEnd()
+	{
+		ByteBuffer buffer = options(53, 1, 1, 0, 0, 51, 4, 0, 0, 0, 60, 255, 50, 4, 1, 2, 3, 4);
+		index.scan(buffer, 0, buffer.capacity());
+		assertEquals(2, index.get(53));
+		assertEquals(7, index.get(51));
+		assertEquals(11, index.end());
+		assertEquals(-1, index.get(50));
+		assertFalse(index.isTruncated());
+	}
+
+	@Test
+	void keepsTheFirstOccurrence()
+	{
+		ByteBuffer buffer = options(61, 1, 7, 61, 1, 8, 255);
+		index.scan(buffer, 0, buffer.capacity());
+		assertEquals(2, index.get(61));
+	}
+
+	@Test
+	void optionRunningPastTheEndIsNotIndexed()
+	{
+		ByteBuffer buffer = options(53, 1, 1, 51, 4, 0, 0);
+		index.scan(buffer, 0, buffer.capacity());
+		assertEquals(2, index.get(53));
+		assertEquals(-1, index.get(51));
+		assertEquals(-1, index.end());
+		assertTrue(index.isTruncated());
+	}
+
+	@Test
+	void codeWithoutLengthIsTruncated()
+	{
+		ByteBuffer buffer = options(53, 1, 1, 54);
+		index.scan(buffer, 0, buffer.capacity());
+		assertEquals(-1, index.get(54));
+		assertTrue(index.isTruncated());
+	}
+
+	@Test
+	void scanForgetsThePreviousMessage()
+	{
+		ByteBuffer first = options(50, 4, 1, 2, 3, 4, 255);
+		index.scan(first, 0, first.capacity());
+		assertEquals(2, index.get(50));
+		ByteBuffer second = options(53, 1, 3, 255);
+		index.scan(second, 0, second.capacity());
+		assertEquals(-1, index.get(50));
+		assertEquals(2, index.get(53));
+		assertEquals(3, index.end());
+	}
+}
@@ -0,0 +1,107 @@
+package DHCPServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * FreeAddressSet against a BitSet of the free addresses, on sizes of one to three levels and ragged last words
+ */
+public class FreeAddressSetTest
+{
+	@ParameterizedTest
+	@ValueSource(ints = {1, 63, 64, 65, 4096, 4097, 300_000})
+	public void lowestTakesEveryAddressInOrder(int size)
+	{
+		FreeAddressSet free = new FreeAddressSet(size, FreeAddressSet.Order.LOWEST);
+		assertEquals(size, free.size());
+		assertEquals(size, free.count());
+		for(int index = 0; index < size; index++)
+			assertEquals(index, free.take());
+		assertEquals(0, free.count());
+		assertEquals(-1, free.take());
+		assertEquals(-1, free.next(0));
+	}
+
+	@ParameterizedTest
+	@EnumSource(FreeAddressSet.Order.class)
+	public void everyOrderTakesEveryAddressOnce(FreeAddressSet.Order order)
+	{
+		int size = 10_000;
+		FreeAddressSet free = new FreeAddressSet(size, order);
+		BitSet taken = new BitSet(size);
+		for(int i = 0; i < size; i++)
+		{
+			int index = free.take();
+			assertTrue(index >= 0 && index < size);
+			assertFalse(taken.get(index), "taken twice: " + index);
+			taken.set(index);
+		}
+		assertEquals(-1, free.take());
+	}
+
+	@Test
+	public void roundRobinResumesAfterTheLastAddress()
+	{
+		FreeAddressSet free = new FreeAddressSet(100, FreeAddressSet.Order.ROUND_ROBIN);
+		assertEquals(0, free.take());
+		assertEquals(1, free.take());
+		free.release(0);
+		// the released address rests until the cursor wraps around
+		assertEquals(2, free.take());
+		for(int index = 3; index < 100; index++)
+			assertEquals(index, free.take());
+		assertEquals(0, free.take());
+	}
+
+	@Test
+	public void takeAndReleaseByIndexAreIdempotent()
+	{
+		FreeAddressSet free = new FreeAddressSet(200, FreeAddressSet.Order.LOWEST);
+		free.take(70);
+		free.take(70);
+		assertEquals(199, free.count());
+		assertFalse(free.isFree(70));
+		free.release(70);
+		free.release(70);
+		assertEquals(200, free.count());
+		assertTrue(free.isFree(70));
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = {100, 4097, 262_145})
+	public void nextFindsTheLowestFreeAddressAtOrAfter(int size)
+	{
+		FreeAddressSet free = new FreeAddressSet(size, FreeAddressSet.Order.LOWEST);
+		BitSet model = new BitSet(size);
+		model.set(0, size);
+		SplittableRandom random = new SplittableRandom(size);
+		for(int operation = 0; operation < 50_000; operation++)
+		{
+			int index = random.nextInt(size);
+			// mostly taken, so the free addresses are scattered and the search has to climb
+			if(random.nextInt(10) < 9)
+			{
+				free.take(index);
+				model.clear(index);
+			}
+			else
+			{
+				free.release(index);
+				model.set(index);
+			}
+			int from = random.nextInt(size);
+			assertEquals(model.nextSetBit(from), free.next(from));
+			assertEquals(model.cardinality(), free.count());
+		}
+		assertEquals(-1, free.next(size));
+	}
+}
@@ -0,0 +1,132 @@
+package DHCPServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * IPStorage: the lease life cycle of a pool
+ */
+class IPStorageTest
+{
+	@Test
+	void everyClientGetsAnAddressOfItsOwn() throws IOException
+	{
+		IPStorage pool = IPStorage.builder().size(16).build();
+		Set<Integer> reserved = new HashSet<>();
+		for(int client = 1; client <= 16; client++)
+		{
+			int address = pool.reserveAddress(0, client, 60);
+			long index = (address - pool.getFirstAddress()) & 0xFFFFFFFFL;
+			assertTrue(index < 16, "address inside the pool");
+			assertTrue(reserved.add(address), "address of client " + client + " is its own");
+			assertEquals(address, pool.lookUp(0, client));
+		}
+		assertEquals(0, pool.getFreeAddresses());
+		assertEquals(0, pool.reserveAddress(0, 17, 60), "the pool is exhausted");
+		// a client that asks again keeps its reservation
+		assertEquals(pool.lookUp(0, 5), pool.reserveAddress(0, 5, 60));
+		assertEquals(0, pool.getFreeAddresses());
+	}
+
+	@Test
+	void allocationNeedsTheReservation() throws IOException
+	{
+		IPStorage pool = IPStorage.builder().size(16).build();
+		assertEquals(0, pool.allocateAddress(0, 1), "a client without a reservation");
+		int address = pool.reserveAddress(0, 1, 120);
+		assertEquals(0, pool.allocateAddress(0, 1, address + 1, null), "a client that requests another address");
+		assertEquals(address, pool.lookUp(0, 1), "keeps its reservation");
+		assertEquals(address, pool.allocateAddress(0, 1, address, null));
+		assertEquals(address, pool.allocateAddress(0, 1), "a renewal");
+		assertEquals(120, pool.getLeaseDuration(0, 1));
+		assertEquals(15, pool.getFreeAddresses());
+	}
+
+	@Test
+	void releasedAddressIsFreeAgain() throws IOException
+	{
+		IPStorage pool = IPStorage.builder().size(1).build();
+		int address = pool.reserveAddress(0, 1, 60);
+		pool.allocateAddress(0, 1);
+		assertEquals(0, pool.reserveAddress(0, 2, 60));
+		assertTrue(pool.release(0, 1));
+		assertFalse(pool.release(0, 1), "nothing left to release");
+		assertEquals(0, pool.lookUp(0, 1));
+		assertEquals(0, pool.getLeaseDuration(0, 1));
+		assertEquals(1, pool.getFreeAddresses());
+		assertEquals(address, pool.reserveAddress(0, 2, 60));
+		assertEquals(0, pool.getFreeAddresses());
+	}
+
+	@Test
+	void threadStealsFromTheNextShardWhenItsOwnRunsDry() throws Exception
+	{
+		IPStorage pool = IPStorage.builder().size(16).shards(4).build();
+		// the first thread reserves from shard 0, and from the next shard once that one is dry
+		for(int client = 0; client < 16; client++)
+			assertEquals(client / 4, (pool.reserveAddress(0, client, 60) - pool.getFirstAddress()) / 4, "shard of client " + client);
+		assertEquals(0, pool.reserveAddress(0, 16, 60));
+
+		// shard 1 of the second thread is dry, so it takes the one address left, in shard 2
+		int address = pool.lookUp(0, 9);
+		assertTrue(pool.release(0, 9));
+		int[] stolen = new int[1];
+		Thread thread = new Thread(() -> stolen[0] = pool.reserveAddress(0, 17, 60));
+		thread.start();
+		thread.join();
+		assertEquals(address, stolen[0]);
+		assertEquals(0, pool.getFreeAddresses());
+	}
+
+	@Test
+	void deadlineListenerIsToldOncePerIdlePeriod() throws IOException
+	{
+		IPStorage pool = IPStorage.builder().size(16).offerTimeout(60).build();
+		List<IPStorage> told = new ArrayList<>();
+		pool.setDeadlineListener(told::add);
+		pool.update();
+		assertFalse(pool.isExpiring());
+
+		pool.reserveAddress(0, 1, 60);
+		pool.reserveAddress(0, 2, 60);
+		assertEquals(List.of(pool), told);
+		pool.update();
+		assertTrue(pool.isExpiring());
+		pool.allocateAddress(0, 1);
+		pool.update();
+		assertTrue(pool.isExpiring());
+		assertEquals(1, told.size());
+
+		pool.release(0, 1);
+		pool.release(0, 2);
+		pool.update();
+		assertFalse(pool.isExpiring());
+		pool.reserveAddress(0, 3, 60);
+		assertEquals(2, told.size());
+	}
+
+	@Test
+	void reservationHeldForeverHasNoDeadline() throws IOException
+	{
+		IPStorage pool = IPStorage.builder().size(16).offerTimeout(0).build();
+		List<IPStorage> told = new ArrayList<>();
+		pool.setDeadlineListener(told::add);
+		pool.reserveAddress(0, 1, 60);
+		assertTrue(told.isEmpty());
+		pool.update();
+		assertFalse(pool.isExpiring());
+		// the lease expires
+		pool.allocateAddress(0, 1);
+		assertEquals(1, told.size());
+	}
+}
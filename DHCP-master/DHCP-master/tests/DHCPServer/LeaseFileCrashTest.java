@@ -0,0 +1,82 @@
+package DHCPServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A server that crashes with leases in its lease file and restarts: the new process takes the leases of its previous run up at once,
+ * its heartbeat being recent still, because the pid of that run is gone
+ */
+class LeaseFileCrashTest
+{
+	private static final int LEASES = 100;
+
+	/**
+	 * The server that crashes: allocate LEASES addresses in the given lease file, print them and wait to be killed
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		IPStorage pool = IPStorage.builder().size(1024).leaseFile(Path.of(args[0]), MappedLeaseTable.Sync.NONE).build();
+		StringBuilder addresses = new StringBuilder();
+		for(long client = 1; client <= LEASES; client++)
+		{
+			pool.reserveAddress(0, client, 3600);
+			addresses.append(pool.allocateAddress(0, client)).append(' ');
+		}
+		System.out.println(addresses);
+		System.out.flush();
+		Thread.sleep(Long.MAX_VALUE);
+	}
+
+	@Test
+	void restartedProcessTakesItsLeasesUp(@TempDir Path directory) throws Exception
+	{
+		Path file = directory.resolve("leases");
+		Process crashing = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+				"-cp", System.getProperty("java.class.path"), LeaseFileCrashTest.class.getName(), file.toString())
+				.redirectError(new File(directory.toFile(), "stderr")).start();
+		String[] addresses;
+		try(BufferedReader output = new BufferedReader(new InputStreamReader(crashing.getInputStream())))
+		{addresses = output.readLine().trim().split(" ");}
+		finally
+		{
+			crashing.destroyForcibly();
+			crashing.waitFor();
+		}
+		assertEquals(LEASES, addresses.length);
+
+		// well within the heartbeat timeout of the crashed process
+		long start = System.currentTimeMillis();
+		IPStorage pool = IPStorage.builder().size(1024).leaseFile(file, MappedLeaseTable.Sync.NONE).build();
+		try
+		{
+			assertTrue(System.currentTimeMillis() - start < ProcessSlots.DEFAULTTIMEOUT);
+			Set<Integer> leased = new HashSet<>();
+			for(int client = 1; client <= LEASES; client++)
+			{
+				int address = Integer.parseInt(addresses[client - 1]);
+				assertNotEquals(0, address);
+				assertEquals(address, pool.lookUp(0, client), "lease of client " + client);
+				leased.add(address);
+			}
+			assertEquals(1024 - LEASES, pool.getFreeAddresses());
+			int address = pool.reserveAddress(0, LEASES + 1, 3600);
+			assertNotEquals(0, address);
+			assertFalse(leased.contains(address), "a new client gets a free address");
+		}
+		finally
+		{pool.close();}
+	}
+}
@@ -0,0 +1,93 @@
+package DHCPServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A pool with a lease file that is closed and opened again: every lease is taken up again as it was
+ */
+class LeaseFileTest
+{
+	private static final int SIZE = 20_000;
+
+	private static IPStorage open(Path file, int shards, boolean sparse) throws IOException
+	{
+		return IPStorage.builder().size(SIZE).shards(shards).sparse(sparse).leaseFile(file, MappedLeaseTable.Sync.NONE).build();
+	}
+
+	/**
+	 * Reserve an address to every client, allocate every other one and release every fourth one, close and open the pool again
+	 */
+	private static void restart(Path file, int shards, boolean sparse) throws IOException
+	{
+		int clients = SIZE / 2;
+		int[] addresses = new int[clients];
+		IPStorage pool = open(file, shards, sparse);
+		for(int client = 0; client < clients; client++)
+		{
+			addresses[client] = pool.reserveAddress(7, client, 600 + client % 60);
+			if(client % 2 == 0)
+				assertEquals(addresses[client], pool.allocateAddress(7, client));
+			if(client % 4 == 1)
+				pool.release(7, client);
+		}
+		int free = pool.getFreeAddresses();
+		pool.close();
+
+		IPStorage restarted = open(file, shards, sparse);
+		try
+		{
+			assertEquals(free, restarted.getFreeAddresses());
+			for(int client = 0; client < clients; client++)
+			{
+				if(client % 4 == 1)
+				{
+					assertEquals(0, restarted.lookUp(7, client), "released client " + client);
+					continue;
+				}
+				assertEquals(addresses[client], restarted.lookUp(7, client), "client " + client);
+				assertEquals(600 + client % 60, restarted.getLeaseDuration(7, client));
+			}
+			// a reserved lease can still be allocated, and a new client gets a free address
+			assertEquals(addresses[3], restarted.allocateAddress(7, 3));
+			int address = restarted.reserveAddress(8, 1, 600);
+			assertNotEquals(0, address);
+			assertEquals(free - 1, restarted.getFreeAddresses());
+		}
+		finally
+		{restarted.close();}
+	}
+
+	@Test
+	void restartKeepsEveryLease(@TempDir Path directory) throws IOException
+	{
+		restart(directory.resolve("leases"), 1, false);
+	}
+
+	@Test
+	void restartKeepsEveryLeaseOfEveryShard(@TempDir Path directory) throws IOException
+	{
+		restart(directory.resolve("leases"), 4, false);
+	}
+
+	@Test
+	void restartKeepsEveryLeaseOfASparsePool(@TempDir Path directory) throws IOException
+	{
+		restart(directory.resolve("leases"), 1, true);
+	}
+
+	@Test
+	void fileOfAnotherPoolIsRefused(@TempDir Path directory) throws IOException
+	{
+		Path file = directory.resolve("leases");
+		open(file, 1, false).close();
+		assertThrows(IOException.class, () -> IPStorage.builder().size(SIZE + 1).leaseFile(file, MappedLeaseTable.Sync.NONE).build());
+	}
+}
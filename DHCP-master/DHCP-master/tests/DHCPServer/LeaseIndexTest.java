@@ -0,0 +1,97 @@
+package DHCPServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * LeaseIndex against a HashMap, with removals in the middle of probe runs and resizes
+ */
+class LeaseIndexTest
+{
+	@Test
+	void putGetRemove()
+	{
+		LeaseIndex index = new LeaseIndex();
+		assertEquals(-1, index.get(1, 2));
+		index.put(1, 2, 7);
+		assertEquals(7, index.get(1, 2));
+		assertEquals(-1, index.get(2, 1));
+		index.put(1, 2, 8);
+		assertEquals(8, index.get(1, 2));
+		assertEquals(1, index.size());
+		assertEquals(8, index.remove(1, 2));
+		assertEquals(-1, index.remove(1, 2));
+		assertEquals(-1, index.get(1, 2));
+		assertEquals(0, index.size());
+	}
+
+	@Test
+	void putIfAbsentKeepsTheCurrentLease()
+	{
+		LeaseIndex index = new LeaseIndex();
+		assertEquals(-1, index.putIfAbsent(5, 5, 1));
+		assertEquals(1, index.putIfAbsent(5, 5, 2));
+		assertEquals(1, index.get(5, 5));
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	void hardwareAddressIsPackedBigEndian()
+	{
+		byte[] mac = new byte[16];
+		mac[0] = 0x12;
+		mac[7] = 0x34;
+		mac[8] = 0x56;
+		mac[15] = 0x78;
+		assertEquals(0x1200000000000034L, LeaseIndex.high(mac));
+		assertEquals(0x5600000000000078L, LeaseIndex.low(mac));
+	}
+
+	@Test
+	void matchesAMapUnderRandomOperations()
+	{
+		LeaseIndex index = new LeaseIndex();
+		Map<Long, Integer> model = new HashMap<>();
+		SplittableRandom random = new SplittableRandom(42);
+		for(int operation = 0; operation < 500_000; operation++)
+		{
+			// few distinct clients, so the table is full of collisions and removals shift runs back
+			long client = random.nextInt(20_000);
+			switch(random.nextInt(4))
+			{
+				case 0:
+				case 1:
+					int lease = random.nextInt(1 << 20);
+					index.put(client, ~client, lease);
+					model.put(client, lease);
+					break;
+				case 2:
+					assertEquals(model.getOrDefault(client, -1).intValue(), index.remove(client, ~client));
+					model.remove(client);
+					break;
+				default:
+					assertEquals(model.getOrDefault(client, -1).intValue(), index.get(client, ~client));
+			}
+		}
+		assertEquals(model.size(), index.size());
+		for(Map.Entry<Long, Integer> entry : model.entrySet())
+			assertEquals(entry.getValue().intValue(), index.get(entry.getKey(), ~entry.getKey()));
+	}
+
+	@Test
+	void ensureCapacityKeepsEveryClient()
+	{
+		LeaseIndex index = new LeaseIndex();
+		for(int client = 0; client < 1000; client++)
+			index.put(client, 0, client);
+		index.ensureCapacity(1_000_000);
+		for(int client = 0; client < 1000; client++)
+			assertEquals(client, index.get(client, 0));
+		assertEquals(1000, index.size());
+	}
+}
@@ -0,0 +1,137 @@
+package DHCPServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Replay of the LeaseJournal: the records come back as appended, a record torn by a crash is cut off,
+ * and a pool recovers its leases from the journal, with and without a LeaseSnapshot
+ */
+public class LeaseJournalTest
+{
+	@TempDir
+	Path directory;
+
+	@Test
+	public void replaysTheRecordsAsAppended() throws Exception
+	{
+		Path file = directory.resolve("leases.journal");
+		long before = System.currentTimeMillis();
+		LeaseJournal journal = new LeaseJournal(file, 0, LeaseJournal.DEFAULTBATCH);
+		assertEquals(0, journal.replay(0, (type, address, high, low, leaseDuration, time) -> {}));
+		journal.append(LeaseJournal.RESERVE, 0x0A000001, 1, 2, 60);
+		journal.append(LeaseJournal.ALLOCATE, 0x0A000001, 1, 2, 3600);
+		journal.awaitDurable(journal.append(LeaseJournal.RELEASE, 0x0A000001, 1, 2, 0));
+		journal.close();
+		long after = System.currentTimeMillis();
+
+		List<String> records = new ArrayList<>();
+		journal = new LeaseJournal(file, 0, LeaseJournal.DEFAULTBATCH);
+		assertEquals(3, journal.replay(0, (type, address, high, low, leaseDuration, time) -> {
+			assertTrue(time >= before && time <= after);
+			records.add(type + " " + Integer.toHexString(address) + " " + high + " " + low + " " + leaseDuration);
+		}));
+		journal.close();
+		assertEquals(List.of(LeaseJournal.RESERVE + " a000001 1 2 60", LeaseJournal.ALLOCATE + " a000001 1 2 3600", LeaseJournal.RELEASE + " a000001 1 2 0"),
+				records);
+	}
+
+	@Test
+	public void cutsOffARecordTornByACrash() throws Exception
+	{
+		Path file = directory.resolve("leases.journal");
+		LeaseJournal journal = new LeaseJournal(file, 0, LeaseJournal.DEFAULTBATCH);
+		journal.replay(0, (type, address, high, low, leaseDuration, time) -> {});
+		for(int client = 0; client < 3; client++)
+			journal.awaitDurable(journal.append(LeaseJournal.ALLOCATE, client, client, 0, 60));
+		journal.close();
+		Path segment = directory.resolve("leases.journal.0");
+		try(FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND))
+		{channel.write(ByteBuffer.wrap(new byte[LeaseJournal.RECORD / 2]));}
+
+		journal = new LeaseJournal(file, 0, LeaseJournal.DEFAULTBATCH);
+		assertEquals(3, journal.replay(0, (type, address, high, low, leaseDuration, time) -> {}));
+		assertEquals(LeaseJournal.HEADER + 3 * LeaseJournal.RECORD, Files.size(segment));
+		// appended after the cut, not after the torn bytes
+		journal.awaitDurable(journal.append(LeaseJournal.RELEASE, 0, 0, 0, 0));
+		journal.close();
+		journal = new LeaseJournal(file, 0, LeaseJournal.DEFAULTBATCH);
+		assertEquals(4, journal.replay(0, (type, address, high, low, leaseDuration, time) -> {}));
+		journal.close();
+	}
+
+	@Test
+	public void aPoolRecoversItsLeases() throws Exception
+	{
+		Path file = directory.resolve("leases.journal");
+		LeaseJournal journal = new LeaseJournal(file, 0, LeaseJournal.DEFAULTBATCH);
+		IPStorage pool = IPStorage.builder().size(1000).build();
+		pool.setJournal(journal);
+		int[] addresses = allocate(pool, 0, 100);
+		for(int client = 0; client < 10; client++)
+			pool.release(client, 0);
+		journal.close();
+
+		journal = new LeaseJournal(file, 0, LeaseJournal.DEFAULTBATCH);
+		pool = IPStorage.builder().size(1000).build();
+		assertEquals(90, pool.setJournal(journal));
+		journal.close();
+		for(int client = 0; client < 100; client++)
+			assertEquals(client < 10 ? 0 : addresses[client], pool.lookUp(client, 0));
+		assertEquals(910, pool.getFreeAddresses());
+	}
+
+	@Test
+	public void aPoolRecoversFromASnapshotAndTheJournalAfterIt() throws Exception
+	{
+		Path file = directory.resolve("leases.journal");
+		LeaseJournal journal = new LeaseJournal(file, 0, LeaseJournal.DEFAULTBATCH);
+		IPStorage pool = IPStorage.builder().size(1000).build();
+		pool.setJournal(journal);
+		int[] before = allocate(pool, 0, 100);
+		assertEquals(100, journal.snapshot(pool));
+		int[] after = allocate(pool, 100, 50);
+		pool.release(0, 0);
+		pool.release(120, 0);
+		journal.close();
+
+		journal = new LeaseJournal(file, 0, LeaseJournal.DEFAULTBATCH);
+		pool = IPStorage.builder().size(1000).build();
+		assertEquals(148, pool.setJournal(journal));
+		journal.close();
+		assertEquals(0, pool.lookUp(0, 0));
+		assertEquals(0, pool.lookUp(120, 0));
+		for(int client = 1; client < 100; client++)
+			assertEquals(before[client], pool.lookUp(client, 0));
+		for(int client = 100; client < 150; client++)
+			if(client != 120)
+				assertEquals(after[client - 100], pool.lookUp(client, 0));
+		assertEquals(852, pool.getFreeAddresses());
+	}
+
+	/**
+	 * Reserve and allocate an address for each of the given number of clients, from the given one on
+	 * @return	their addresses
+	 */
+	private static int[] allocate(IPStorage pool, int first, int count)
+	{
+		int[] addresses = new int[count];
+		for(int client = 0; client < count; client++)
+		{
+			addresses[client] = pool.reserveAddress(first + client, 0, 3600);
+			assertEquals(addresses[client], pool.allocateAddress(first + client, 0));
+		}
+		return addresses;
+	}
+}
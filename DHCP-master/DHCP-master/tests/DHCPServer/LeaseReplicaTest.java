@@ -0,0 +1,124 @@
+package DHCPServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Path;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A standby and its primary as two processes on localhost: the standby answers no clients before it reached its primary,
+ * follows it once it is up and serves as soon as it is lost; a standby that never reaches its primary serves after the grace period
+ */
+class LeaseReplicaTest
+{
+	private static final int SIZE = 1024;
+	private static final int LEASES = 100;
+
+	/**
+	 * The primary: replicate on the given port, allocate LEASES addresses, print them and wait to be killed
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		IPStorage pool = IPStorage.builder().size(SIZE).build();
+		pool.setReplicator(new LeaseReplicator(pool, new InetSocketAddress("127.0.0.1", Integer.parseInt(args[0])), LeaseReplicator.DEFAULTLAG));
+		StringBuilder addresses = new StringBuilder();
+		for(long client = 1; client <= LEASES; client++)
+		{
+			pool.reserveAddress(0, client, 3600);
+			addresses.append(pool.allocateAddress(0, client)).append(' ');
+		}
+		System.out.println(addresses);
+		System.out.flush();
+		Thread.sleep(Long.MAX_VALUE);
+	}
+
+	@Test
+	void standbyServesOnlyOnceItLostItsPrimary(@TempDir Path directory) throws Exception
+	{
+		int port;
+		try(ServerSocket socket = new ServerSocket(0))
+		{port = socket.getLocalPort();}
+		IPStorage pool = IPStorage.builder().size(SIZE).build();
+		LeaseReplica replica = new LeaseReplica(pool, new InetSocketAddress("127.0.0.1", port), 50, 60_000);
+		Process primary = null;
+		try
+		{
+			// the primary is not up yet, but the standby cannot know it is down
+			Thread.sleep(200);
+			assertFalse(replica.isConnected());
+			assertFalse(replica.isServing(), "a standby that has not reached its primary yet answers no clients");
+
+			primary = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+					"-cp", System.getProperty("java.class.path"), LeaseReplicaTest.class.getName(), Integer.toString(port))
+					.redirectError(new File(directory.toFile(), "stderr")).start();
+			BufferedReader output = new BufferedReader(new InputStreamReader(primary.getInputStream()));
+			String[] addresses = output.readLine().trim().split(" ");
+			assertEquals(LEASES, addresses.length);
+
+			await(replica::isSynced, "the standby catches up with its primary");
+			assertFalse(replica.isServing());
+			for(int client = 1; client <= LEASES; client++)
+				assertEquals(Integer.parseInt(addresses[client - 1]), pool.lookUp(0, client), "lease of client " + client);
+			assertEquals(SIZE - LEASES, pool.getFreeAddresses());
+
+			primary.destroyForcibly();
+			primary.waitFor();
+			await(() -> !replica.isConnected(), "the standby loses its primary");
+			// well within the grace period: it has been connected, so it knows the primary went down
+			assertTrue(replica.isServing(), "a standby serves once it lost its primary");
+		}
+		finally
+		{
+			if(primary != null)
+			{
+				primary.destroyForcibly();
+				primary.waitFor();
+			}
+			replica.close();
+			pool.close();
+		}
+	}
+
+	@Test
+	void standbyServesAfterTheGracePeriodWithoutAPrimary() throws Exception
+	{
+		int port;
+		try(ServerSocket socket = new ServerSocket(0))
+		{port = socket.getLocalPort();}
+		IPStorage pool = IPStorage.builder().size(SIZE).build();
+		long start = System.currentTimeMillis();
+		LeaseReplica replica = new LeaseReplica(pool, new InetSocketAddress("127.0.0.1", port), 50, 300);
+		try
+		{
+			assertFalse(replica.isServing());
+			await(replica::isServing, "the standby serves after the grace period");
+			assertTrue(System.currentTimeMillis() - start >= 300);
+			assertFalse(replica.isConnected());
+		}
+		finally
+		{
+			replica.close();
+			pool.close();
+		}
+	}
+
+	private static void await(BooleanSupplier condition, String message) throws InterruptedException
+	{
+		long deadline = System.currentTimeMillis() + 10_000;
+		while(!condition.getAsBoolean())
+		{
+			assertTrue(System.currentTimeMillis() < deadline, message);
+			Thread.sleep(10);
+		}
+	}
+}
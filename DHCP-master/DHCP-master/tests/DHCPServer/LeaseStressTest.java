@@ -0,0 +1,217 @@
+package DHCPServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Concurrency stress test of IPStorage in the style of jcstress
+ * Every test runs two actors against a fresh pool at the same moment, many times over, and then an arbiter
+ * that looks at the state the actors left behind; every outcome must be one that a sequential execution
+ * of the two actors could produce (linearizability)
+ * A soak test then runs random operations from many threads and checks the invariants of the pool afterwards
+ *
+ * The number of runs and the length of the soak are set with -Dstress.iterations and -Dstress.seconds
+ */
+class LeaseStressTest
+{
+	private static final int ITERATIONS = Integer.getInteger("stress.iterations", 20_000);
+	private static final int SECONDS = Integer.getInteger("stress.seconds", 2);
+
+	private static final byte[] A = mac(1), B = mac(2), X = mac(3);
+
+	private IPStorage pool;
+
+	private static byte[] mac(int client)
+	{
+		return new byte[]{0, 0x1b, 0x21, (byte)(client >>> 16), (byte)(client >>> 8), (byte)client, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+	}
+
+	private static String ip(byte[] ip)
+	{
+		return ip == null ? "null" : Integer.toString(ip[3] & 0xFF);
+	}
+
+	/**
+	 * Two clients compete for the last free address: exactly one gets it
+	 */
+	@Test
+	void lastFreeAddress() throws Exception
+	{
+		run(() -> { pool = new IPStorage(2); pool.reserveAddress(X, 60); },
+				() -> ip(pool.reserveAddress(A, 60)),
+				() -> ip(pool.reserveAddress(B, 60)),
+				() -> "free=" + pool.getFreeAddresses(),
+				Set.of("2 null free=0", "null 2 free=0"));
+	}
+
+	/**
+	 * One client sends two DHCPDiscovers at once: both get the same single reservation
+	 */
+	@Test
+	void sameClientTwice() throws Exception
+	{
+		run(() -> pool = new IPStorage(4),
+				() -> ip(pool.reserveAddress(A, 60)),
+				() -> ip(pool.reserveAddress(A, 60)),
+				() -> "free=" + pool.getFreeAddresses(),
+				Set.of("1 1 free=3"));
+	}
+
+	/**
+	 * A DHCPRequest races a DHCPRelease of the same client: the release always wins in the end, nothing leaks
+	 */
+	@Test
+	void allocateVersusRelease() throws Exception
+	{
+		run(() -> { pool = new IPStorage(2); pool.reserveAddress(A, 60); },
+				() -> ip(pool.allocateAddress(A)),
+				() -> Boolean.toString(pool.release(A)),
+				() -> ip(pool.lookUp(A)) + " free=" + pool.getFreeAddresses(),
+				Set.of("1 true null free=2", "null true null free=2"));
+	}
+
+	/**
+	 * An optimistic lookUp races the reservation it looks for: it sees nothing or the final address
+	 */
+	@Test
+	void lookUpVersusReserve() throws Exception
+	{
+		run(() -> pool = new IPStorage(2),
+				() -> ip(pool.reserveAddress(A, 60)),
+				() -> ip(pool.lookUp(A)),
+				() -> "",
+				Set.of("1 null", "1 1"));
+	}
+
+	/**
+	 * A release frees the only address while another client asks for one
+	 */
+	@Test
+	void releaseVersusReserve() throws Exception
+	{
+		run(() -> { pool = new IPStorage(1); pool.reserveAddress(X, 60); pool.allocateAddress(X); },
+				() -> Boolean.toString(pool.release(X)),
+				() -> ip(pool.reserveAddress(B, 60)),
+				() -> "free=" + pool.getFreeAddresses(),
+				Set.of("true null free=1", "true 1 free=0"));
+	}
+
+	/**
+	 * Run the two actors against the pool of the setup ITERATIONS times, and check every outcome is acceptable
+	 */
+	private void run(Runnable setup, Supplier<String> actor1, Supplier<String> actor2, Supplier<String> arbiter, Set<String> acceptable)
+			throws Exception
+	{
+		CyclicBarrier start = new CyclicBarrier(3);
+		CyclicBarrier end = new CyclicBarrier(3);
+		String[] results = new String[2];
+		AtomicReference<Exception> failure = new AtomicReference<>();
+		Thread[] actors = new Thread[2];
+		for(int a = 0; a < 2; a++)
+		{
+			Supplier<String> actor = a == 0 ? actor1 : actor2;
+			int slot = a;
+			actors[a] = new Thread(() -> {
+				try
+				{
+					for(int i = 0; i < ITERATIONS; i++)
+					{
+						start.await();
+						results[slot] = actor.get();
+						end.await();
+					}
+				}
+				catch(Exception e)
+				{failure.compareAndSet(null, e);}
+			});
+			actors[a].start();
+		}
+
+		Map<String, Integer> outcomes = new TreeMap<>();
+		for(int i = 0; i < ITERATIONS; i++)
+		{
+			setup.run();
+			start.await();
+			end.await();
+			outcomes.merge((results[0] + " " + results[1] + " " + arbiter.get()).trim(), 1, Integer::sum);
+		}
+		for(Thread actor : actors)
+			actor.join();
+		if(failure.get() != null) throw failure.get();
+		assertTrue(acceptable.containsAll(outcomes.keySet()), "forbidden outcomes in " + outcomes);
+	}
+
+	/**
+	 * Random reserve/allocate/release/lookUp from several threads on a small pool with a short offer timeout
+	 * spread over 4 allocation shards so that threads steal from each other, with the lease scheduler running,
+	 * then check that no address is held by two clients and none leaked
+	 */
+	@Test
+	void soak() throws Exception
+	{
+		int size = 64, clients = 256;
+		IPStorage pool = IPStorage.builder().size(size).order(FreeAddressSet.Order.RANDOM).tick(1_000_000L).stripes(4).shards(4).offerTimeout(1).build();
+		byte[][] macs = new byte[clients][];
+		for(int c = 0; c < clients; c++)
+			macs[c] = mac(100 + c);
+
+		long end = System.nanoTime() + SECONDS * 1_000_000_000L;
+		Thread[] threads = new Thread[Math.max(4, Runtime.getRuntime().availableProcessors())];
+		long[] operations = new long[threads.length];
+		for(int t = 0; t < threads.length; t++)
+		{
+			int thread = t;
+			threads[t] = new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				while(System.nanoTime() < end)
+				{
+					byte[] mac = macs[random.nextInt(clients)];
+					switch(random.nextInt(4))
+					{
+						case 0: pool.reserveAddress(mac, 1); break;
+						case 1: pool.allocateAddress(mac); break;
+						case 2: pool.release(mac); break;
+						default: pool.lookUp(mac);
+					}
+					operations[thread]++;
+				}
+			});
+			threads[t].start();
+		}
+		Thread scheduler = new Thread(() -> {
+			while(System.nanoTime() < end)
+			{
+				pool.update();
+				Thread.yield();
+			}
+		});
+		scheduler.start();
+		for(Thread thread : threads)
+			thread.join();
+		scheduler.join();
+
+		boolean[] taken = new boolean[256];
+		int used = 0;
+		for(byte[] mac : macs)
+		{
+			byte[] ip = pool.lookUp(mac);
+			if(ip == null) continue;
+			used++;
+			assertFalse(taken[ip[3] & 0xFF], "address " + ip(ip) + " held by two clients");
+			taken[ip[3] & 0xFF] = true;
+		}
+		assertEquals(size, used + pool.getFreeAddresses(), "addresses in use and free after " + Arrays.stream(operations).sum() + " operations");
+	}
+}
@@ -0,0 +1,123 @@
+package DHCPServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+import DHCPHelper.DHCPMessage;
+import DHCPHelper.DHCPMessageView;
+
+/**
+ * LoadBalancer: the hash of RFC 3074, the buckets of clients and taking a bucket over and handing it back
+ */
+class LoadBalancerTest
+{
+	private static final byte[] MAC = {0x00, 0x1b, 0x21, 0x3c, 0x4d, 0x5e};
+
+	private static byte[] bytes(int... values)
+	{
+		byte[] bytes = new byte[values.length];
+		for(int i = 0; i < values.length; i++)
+			bytes[i] = (byte)values[i];
+		return bytes;
+	}
+
+	/**
+	 * @param 	secs	The secs of the message
+	 * @param 	options	The bytes of the option zone after option 53
+	 * @return	a DHCPDiscover of the client with hardware address MAC
+	 */
+	private static DHCPMessageView discover(int secs, int... options)
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(DHCPMessageView.OPTIONS + 3 + options.length + 1);
+		buffer.put(DHCPMessageView.OPCODE, DHCPMessage.BOOTREQUEST);
+		buffer.put(DHCPMessageView.HARDWAREADDRESSLENGTH, (byte)MAC.length);
+		buffer.putShort(DHCPMessageView.SECS, (short)secs);
+		buffer.put(DHCPMessageView.CLIENTHARDWAREADDRESS, MAC);
+		buffer.putInt(DHCPMessageView.MAGICCOOKIE, 0x63825363);
+		buffer.position(DHCPMessageView.OPTIONS);
+		buffer.put(bytes(53, 1, DHCPMessage.DHCPDISCOVER));
+		buffer.put(bytes(options));
+		buffer.put((byte)255);
+		return new DHCPMessageView().wrap(buffer, buffer.capacity());
+	}
+
+	/**
+	 * Known answers of the reference function of RFC 3074, section 6 (loadBalanceHash), compiled from the RFC with its table
+	 */
+	@Test
+	void hashMatchesTheReferenceFunction()
+	{
+		assertEquals(0, LoadBalancer.hash(new byte[0], 0, 0));
+		assertEquals(61, LoadBalancer.hash(bytes(0x42), 0, 1));
+		assertEquals(254, LoadBalancer.hash(new byte[6], 0, 6));
+		assertEquals(77, LoadBalancer.hash(MAC, 0, 6));
+		assertEquals(79, LoadBalancer.hash(bytes(0xff, 0xff, 0xff, 0xff, 0xff, 0xff), 0, 6));
+		assertEquals(76, LoadBalancer.hash(bytes(0x01, 0x00, 0x1b, 0x21, 0x3c, 0x4d, 0x5e), 0, 7));
+		assertEquals(155, LoadBalancer.hash(bytes(0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15), 0, 16));
+	}
+
+	@Test
+	void hashReadsOnlyTheKey()
+	{
+		byte[] padded = bytes(0x99, 0x00, 0x1b, 0x21, 0x3c, 0x4d, 0x5e, 0x99);
+		assertEquals(77, LoadBalancer.hash(padded, 1, 6));
+		assertEquals(77, LoadBalancer.hash(ByteBuffer.wrap(padded), 1, 6));
+	}
+
+	@Test
+	void bucketOfTheHardwareAddressOrClientIdentifier()
+	{
+		assertEquals(77, LoadBalancer.bucket(discover(0)));
+		assertEquals(76, LoadBalancer.bucket(discover(0, 61, 7, 0x01, 0x00, 0x1b, 0x21, 0x3c, 0x4d, 0x5e)));
+	}
+
+	@Test
+	void answersOnlyTheBucketsOwned()
+	{
+		LoadBalancer balancer = new LoadBalancer("0-76,78-255", 0);
+		assertFalse(balancer.owns(77));
+		assertFalse(balancer.isServed(discover(30), DHCPMessage.DHCPDISCOVER, null));
+		balancer.setBuckets("77");
+		assertTrue(balancer.isServed(discover(0), DHCPMessage.DHCPDISCOVER, null));
+		assertEquals("77", balancer.getBuckets());
+		assertEquals(1, balancer.getAnswered());
+		assertEquals(1, balancer.getIgnored());
+	}
+
+	@Test
+	void takenOverBucketIsHandedBack()
+	{
+		LoadBalancer balancer = new LoadBalancer("128-255", 10);
+		assertFalse(balancer.isServed(discover(9), DHCPMessage.DHCPDISCOVER, null));
+		assertTrue(balancer.isServed(discover(10), DHCPMessage.DHCPDISCOVER, null));
+		assertTrue(balancer.isTakenOver(77));
+		assertFalse(balancer.isTakenOver(200));
+		assertEquals(1, balancer.getTakenOver());
+		// the bucket stays with this server while the peer is away
+		assertTrue(balancer.isServed(discover(0), DHCPMessage.DHCPDISCOVER, null));
+
+		assertTrue(balancer.peerAnswered(discover(0)));
+		assertFalse(balancer.owns(77));
+		assertFalse(balancer.isServed(discover(0), DHCPMessage.DHCPDISCOVER, null));
+		// a bucket of this server is never handed back
+		assertFalse(balancer.handBack(200));
+		assertTrue(balancer.owns(200));
+		assertEquals(1, balancer.getHandedBack());
+	}
+
+	@Test
+	void handBackEveryBucketTakenOver()
+	{
+		LoadBalancer balancer = new LoadBalancer("0-127", 10);
+		balancer.own(200);
+		balancer.own(201);
+		balancer.own(5);
+		assertEquals(2, balancer.handBack());
+		assertEquals("0-127", balancer.getBuckets());
+	}
+}
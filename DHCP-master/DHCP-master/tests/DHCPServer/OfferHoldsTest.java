@@ -0,0 +1,92 @@
+package DHCPServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * OfferHolds: holds expire in the order they were taken, a refreshed hold moves to the end
+ */
+public class OfferHoldsTest
+{
+	private final List<Integer> expired = new ArrayList<>();
+
+	/**
+	 * Expire the holds due at the given time into expired
+	 * @return	the number expired
+	 */
+	private int expire(OfferHolds holds, long now)
+	{
+		return holds.expire(now, expired::add);
+	}
+
+	@Test
+	public void expireInTheOrderTaken()
+	{
+		OfferHolds holds = new OfferHolds(8);
+		holds.hold(3, 10);
+		holds.hold(1, 20);
+		holds.hold(5, 30);
+		assertEquals(3, holds.size());
+		assertEquals(0, expire(holds, 9));
+		assertEquals(2, expire(holds, 20));
+		assertEquals(List.of(3, 1), expired);
+		assertFalse(holds.isHeld(3));
+		assertTrue(holds.isHeld(5));
+		assertEquals(1, holds.size());
+		assertEquals(3, holds.taken());
+		assertEquals(2, holds.reclaimed());
+	}
+
+	@Test
+	public void aRefreshedHoldMovesToTheEnd()
+	{
+		OfferHolds holds = new OfferHolds(4);
+		holds.hold(0, 10);
+		holds.hold(1, 20);
+		holds.hold(0, 30);
+		assertEquals(2, holds.size());
+		// refreshing is not taking a hold again
+		assertEquals(2, holds.taken());
+		expire(holds, 25);
+		assertEquals(List.of(1), expired);
+		expire(holds, 30);
+		assertEquals(List.of(1, 0), expired);
+	}
+
+	@Test
+	public void cancelledHoldsNeverExpire()
+	{
+		OfferHolds holds = new OfferHolds(4);
+		holds.hold(0, 10);
+		holds.hold(1, 20);
+		holds.hold(2, 30);
+		// the head, the middle and the tail of the list
+		holds.cancel(0);
+		holds.cancel(2);
+		holds.cancel(2);
+		assertEquals(1, holds.size());
+		assertEquals(1, expire(holds, Long.MAX_VALUE));
+		assertEquals(List.of(1), expired);
+		holds.hold(2, 40);
+		assertEquals(1, expire(holds, 40));
+		assertEquals(0, holds.size());
+	}
+
+	@Test
+	public void deadlinesCompareAcrossTheWrapOfNanoTime()
+	{
+		OfferHolds holds = new OfferHolds(2);
+		holds.hold(0, Long.MAX_VALUE - 5);
+		holds.hold(1, Long.MIN_VALUE + 5);
+		expire(holds, Long.MAX_VALUE);
+		assertEquals(List.of(0), expired);
+		expire(holds, Long.MIN_VALUE + 5);
+		assertEquals(List.of(0, 1), expired);
+	}
+}
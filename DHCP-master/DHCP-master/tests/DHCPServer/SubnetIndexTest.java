@@ -0,0 +1,106 @@
+package DHCPServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * SubnetIndex: finding the subnet of an address at the edges of the subnets, across the sign bit of the addresses
+ */
+class SubnetIndexTest
+{
+	private static int address(String address)
+	{
+		return Subnet.parseAddress(address);
+	}
+
+	private static SubnetIndex index(String... subnets) throws IOException
+	{
+		return new SubnetIndex(List.of(subnets).stream().map(Subnet::parse).toList(),
+				subnet -> IPStorage.builder().first(subnet.getFirstAddress()).size(subnet.getSize()).stripes(1).sparse(true).build());
+	}
+
+	private static String find(SubnetIndex index, String address)
+	{
+		int found = index.find(address(address));
+		return found < 0 ? null : index.getSubnet(found).toString();
+	}
+
+	@Test
+	void findsTheSubnetAtItsEdges() throws IOException
+	{
+		SubnetIndex index = index("10.1.2.0/24", "10.1.4.0/23", "10.1.3.0/24");
+		assertNull(find(index, "10.1.1.255"));
+		assertEquals("10.1.2.0/24", find(index, "10.1.2.0"));
+		assertEquals("10.1.2.0/24", find(index, "10.1.2.255"));
+		// adjacent subnets
+		assertEquals("10.1.3.0/24", find(index, "10.1.3.0"));
+		assertEquals("10.1.4.0/23", find(index, "10.1.4.0"));
+		assertEquals("10.1.4.0/23", find(index, "10.1.5.255"));
+		assertNull(find(index, "10.1.6.0"));
+		assertNull(find(index, "0.0.0.0"));
+		assertNull(find(index, "255.255.255.255"));
+	}
+
+	@Test
+	void ordersAddressesUnsigned() throws IOException
+	{
+		// 192.168 and 224 are negative as ints, and must come after 10 and 127
+		SubnetIndex index = index("224.0.0.0/4", "10.0.0.0/8", "192.168.0.0/16", "127.0.0.0/8", "0.0.0.0/8");
+		assertEquals("0.0.0.0/8", find(index, "0.0.0.0"));
+		assertEquals("10.0.0.0/8", find(index, "10.255.255.255"));
+		assertEquals("127.0.0.0/8", find(index, "127.255.255.255"));
+		assertNull(find(index, "128.0.0.0"));
+		assertEquals("192.168.0.0/16", find(index, "192.168.255.255"));
+		assertNull(find(index, "223.255.255.255"));
+		assertEquals("224.0.0.0/4", find(index, "224.0.0.0"));
+		assertEquals("224.0.0.0/4", find(index, "239.255.255.255"));
+		assertNull(find(index, "240.0.0.0"));
+	}
+
+	@Test
+	void poolOfTheSubnet() throws IOException
+	{
+		SubnetIndex index = index("10.0.0.0/24", "10.0.1.0/24");
+		IPStorage pool = index.pool(address("10.0.1.7"));
+		assertSame(index.getPool(index.find(address("10.0.1.7"))), pool);
+		assertEquals(address("10.0.1.1"), pool.getFirstAddress());
+		assertNull(index.pool(address("10.0.2.1")));
+		assertEquals(2, index.size());
+	}
+
+	@Test
+	void rejectsOverlappingSubnets()
+	{
+		assertThrows(IllegalArgumentException.class, () -> index("10.0.0.0/16", "10.0.200.0/24"));
+		assertThrows(IllegalArgumentException.class, () -> index("10.0.0.0/24", "10.0.0.0/24"));
+		assertThrows(IllegalArgumentException.class, () -> index("192.168.0.0/24", "10.0.0.0/8", "192.168.0.128/25"));
+	}
+
+	@Test
+	void emptyIndexFindsNothing() throws IOException
+	{
+		assertEquals(-1, index().find(address("10.0.0.1")));
+	}
+
+	@Test
+	void loadSkipsCommentsAndNamesTheBadLine(@TempDir Path directory) throws IOException
+	{
+		Path file = directory.resolve("subnets");
+		Files.write(file, List.of("# subnets", "", "10.0.0.0/24", "  10.0.1.0/24 exclude 10.0.1.1"));
+		assertEquals(2, SubnetIndex.load(file).size());
+		Files.write(file, List.of("10.0.0.0/24", "10.0.1.0/40"));
+		IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> SubnetIndex.load(file));
+		assertTrue(e.getMessage().contains(":2:"), e.getMessage());
+	}
+}
@@ -0,0 +1,91 @@
+package DHCPServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import DHCPHelper.DHCPMessage;
+import DHCPHelper.DHCPMessageView;
+import DHCPHelper.LoopbackTransport;
+import DHCPHelper.Transport;
+import DHCPHelper.Utility;
+
+/**
+ * A server with subnets on two interfaces: a client that is not relayed gets an address of the subnet of the interface it reached
+ */
+class SubnetServerTest
+{
+	private static final int PORT = 67;
+
+	/**
+	 * @return	a DHCPDiscover of the client with the given last byte of its hardware address, from the given relay agent (0 for none)
+	 */
+	private static byte[] discover(int client, int giaddr)
+	{
+		DHCPMessage message = new DHCPMessage();
+		message.opCode = DHCPMessage.BOOTREQUEST;
+		message.hardWareType = DHCPMessage.ETHERNET;
+		message.hardWareAddressLength = 6;
+		message.transactionID = Utility.toByteArray(client);
+		message.gateWayIP = Utility.toByteArray(giaddr);
+		message.clientHardWareAddress = Utility.toBytes(new int[]{0,0x1b,0x21,0x3c,0x4d,client,0,0,0,0,0,0,0,0,0,0});
+		message.magicCookie = DHCPMessage.COOKIE;
+		message.addOption((byte)53, (byte)1, new byte[]{DHCPMessage.DHCPDISCOVER});
+		message.addOption((byte)255, (byte)0, Utility.toBytes(new int[]{0}));
+		return message.retrieveBytes();
+	}
+
+	private static InetSocketAddress at(String address) throws Exception
+	{
+		return new InetSocketAddress(InetAddress.getByName(address), PORT);
+	}
+
+	/**
+	 * @return	the address offered to the given DHCPDiscover sent to the given server address
+	 */
+	private static String offer(LoopbackTransport client, InetSocketAddress server, byte[] discover) throws Exception
+	{
+		client.send(ByteBuffer.wrap(discover), server);
+		ByteBuffer reply = ByteBuffer.allocate(DHCPMessage.MAXLENGTH);
+		client.receive(reply);
+		return Subnet.toString(reply.getInt(DHCPMessageView.YOURIP));
+	}
+
+	@Test
+	void poolOfTheReceivingInterface(@TempDir Path directory) throws Exception
+	{
+		Path subnets = directory.resolve("subnets");
+		Files.write(subnets, List.of("10.1.0.0/24 exclude 10.1.0.1", "10.2.0.0/24 exclude 10.2.0.1", "10.3.0.0/24"));
+		ServerConfig config = new ServerConfig();
+		config.mode = ServerConfig.Mode.SERIAL;
+		config.subnets = subnets.toString();
+		LoopbackTransport.Network network = new LoopbackTransport.Network(64);
+		InetSocketAddress first = at("10.1.0.1"), second = at("10.2.0.1");
+		DHCPServer server = new DHCPServer("10.1.0.1", config, new Transport[]{network.open(first), network.open(second)});
+		Thread thread = new Thread(server::run, "dhcp-server");
+		thread.setDaemon(true);
+		thread.start();
+		try(LoopbackTransport client = network.open())
+		{
+			assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+				assertEquals("10.2.0.2", offer(client, second, discover(1, 0)));
+				assertEquals("10.1.0.2", offer(client, first, discover(2, 0)));
+				assertEquals("10.2.0.3", offer(client, second, discover(3, 0)));
+				// a relayed client is served from the subnet of its relay agent, whichever interface it reached
+				assertEquals("10.3.0.1", offer(client, second, discover(4, Subnet.parseAddress("10.3.0.254"))));
+			});
+		}
+		finally
+		{server.close();}
+	}
+}
@@ -0,0 +1,72 @@
+package DHCPServer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Subnet: parsing the lines of a subnets file and the pool of a subnet
+ */
+class SubnetTest
+{
+	private static int address(String address)
+	{
+		return Subnet.parseAddress(address);
+	}
+
+	@Test
+	void parseWithExcludedAddressesAndRanges()
+	{
+		Subnet subnet = Subnet.parse("  10.1.2.0/24   exclude 10.1.2.1,10.1.2.200-10.1.2.254 ");
+		assertEquals(address("10.1.2.0"), subnet.getNetwork());
+		assertEquals(address("10.1.2.255"), subnet.getBroadcast());
+		assertEquals(24, subnet.getPrefix());
+		assertArrayEquals(new int[]{address("10.1.2.1"), address("10.1.2.1"), address("10.1.2.200"), address("10.1.2.254")}, subnet.getExcluded());
+		assertEquals("10.1.2.0/24", subnet.toString());
+	}
+
+	@Test
+	void hostBitsAreCleared()
+	{
+		Subnet subnet = Subnet.parse("192.168.7.77/28");
+		assertEquals(address("192.168.7.64"), subnet.getNetwork());
+		assertTrue(subnet.contains(address("192.168.7.79")));
+		assertFalse(subnet.contains(address("192.168.7.80")));
+	}
+
+	@Test
+	void poolLeavesNetworkAndBroadcastOutBelowSlash31()
+	{
+		Subnet slash24 = Subnet.parse("10.0.0.0/24");
+		assertEquals(address("10.0.0.1"), slash24.getFirstAddress());
+		assertEquals(254, slash24.getSize());
+		Subnet slash31 = Subnet.parse("10.0.0.8/31");
+		assertEquals(address("10.0.0.8"), slash31.getFirstAddress());
+		assertEquals(2, slash31.getSize());
+		Subnet slash32 = Subnet.parse("10.0.0.9/32");
+		assertEquals(address("10.0.0.9"), slash32.getFirstAddress());
+		assertEquals(1, slash32.getSize());
+		assertEquals(Integer.MAX_VALUE, Subnet.parse("0.0.0.0/0").getSize());
+	}
+
+	@Test
+	void highAddressesAreUnsigned()
+	{
+		Subnet subnet = Subnet.parse("255.255.255.0/24");
+		assertEquals("255.255.255.0", Subnet.toString(subnet.getNetwork()));
+		assertEquals("255.255.255.255", Subnet.toString(subnet.getBroadcast()));
+		assertTrue(subnet.contains(address("255.255.255.128")));
+	}
+
+	@Test
+	void rejectsWhatIsNotASubnet()
+	{
+		for(String line : new String[]{"10.0.0.0", "10.0.0.0/33", "10.0.0.0/-1", "10.0.0/24", "10.0.0.256/24", "10.0.0.0/x",
+				"10.0.0.0/24 10.0.0.1", "10.0.0.0/24 exclude", "10.0.0.0/24 exclude 10.0.1.1", "10.0.0.0/24 exclude 10.0.0.1-10.0.1.1"})
+			assertThrows(IllegalArgumentException.class, () -> Subnet.parse(line), line);
+	}
+}
@@ -0,0 +1,127 @@
+package DHCPServer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * TimingWheel on a virtual clock: ticks of a second, so the time between the start of the wheel and the start of the test
+ * is well within the first tick, and every deadline is given in ticks from the start of the test
+ */
+class TimingWheelTest
+{
+	private static final long TICK = 1_000_000_000L;
+
+	private long start;
+
+	@BeforeEach
+	void startClock()
+	{
+		start = System.nanoTime();
+	}
+
+	/**
+	 * @return	the nanoTime the given number of ticks after the start of the test
+	 */
+	private long at(long ticks)
+	{
+		return start + ticks * TICK;
+	}
+
+	@Test
+	void expiresInTheTickOfItsDeadline()
+	{
+		TimingWheel wheel = new TimingWheel(4, TICK);
+		wheel.schedule(1, at(5));
+		assertTrue(wheel.isScheduled(1));
+		List<Integer> expired = new ArrayList<>();
+		assertEquals(0, wheel.advance(at(4), expired::add));
+		// rounded up to the end of the tick the deadline falls in
+		assertEquals(1, wheel.advance(at(7), expired::add));
+		assertEquals(List.of(1), expired);
+		assertFalse(wheel.isScheduled(1));
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	void cascadesFarDeadlinesDownTheLevels()
+	{
+		TimingWheel wheel = new TimingWheel(3, TICK);
+		// one in each of the levels 1, 2 and 3
+		long[] deadlines = {100, 5_000, 300_000};
+		for(int index = 0; index < deadlines.length; index++)
+			wheel.schedule(index, at(deadlines[index]));
+		for(int index = 0; index < deadlines.length; index++)
+		{
+			List<Integer> expired = new ArrayList<>();
+			wheel.advance(at(deadlines[index] - 2), expired::add);
+			assertEquals(List.of(), expired, "early at " + deadlines[index]);
+			wheel.advance(at(deadlines[index] + 2), expired::add);
+			assertEquals(List.of(index), expired);
+		}
+	}
+
+	@Test
+	void cancelAndReschedule()
+	{
+		TimingWheel wheel = new TimingWheel(2, TICK);
+		wheel.schedule(0, at(10));
+		wheel.schedule(1, at(10));
+		wheel.cancel(0);
+		wheel.cancel(0);
+		wheel.schedule(1, at(20));
+		assertEquals(1, wheel.size());
+		List<Integer> expired = new ArrayList<>();
+		wheel.advance(at(15), expired::add);
+		assertEquals(List.of(), expired);
+		wheel.advance(at(25), expired::add);
+		assertEquals(List.of(1), expired);
+	}
+
+	@Test
+	void aConsumerMayScheduleTheExpiredTimerAgain()
+	{
+		TimingWheel wheel = new TimingWheel(1, TICK);
+		wheel.schedule(0, at(2));
+		int[] expiries = new int[1];
+		wheel.advance(at(100), index -> {
+			// every 10 ticks, until the end of the advance
+			if(++expiries[0] < 5)
+				wheel.schedule(index, at(2 + 10 * expiries[0]));
+		});
+		assertEquals(5, expiries[0]);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	void neverExpiresEarlyNorLate()
+	{
+		int timers = 10_000;
+		TimingWheel wheel = new TimingWheel(timers, TICK);
+		long[] deadlines = new long[timers];
+		SplittableRandom random = new SplittableRandom(7);
+		for(int index = 0; index < timers; index++)
+		{
+			deadlines[index] = 1 + random.nextLong(20_000);
+			wheel.schedule(index, at(deadlines[index]));
+		}
+		int count = 0;
+		for(long tick = 0; tick <= 20_002; tick++)
+		{
+			long now = tick;
+			count += wheel.advance(at(tick), index -> {
+				// the deadline is rounded up to a whole tick of the wheel, and the start of the test is within its first one
+				assertTrue(now >= deadlines[index] && now <= deadlines[index] + 1, index + " expired at " + now + ", due at " + deadlines[index]);
+			});
+		}
+		assertEquals(timers, count);
+		assertEquals(0, wheel.size());
+	}
+}